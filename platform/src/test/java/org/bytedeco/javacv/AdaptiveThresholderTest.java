@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for AdaptiveThresholder, against JavaCV.adaptiveThreshold(), on
+ * the whole image and inside regions of interest of color images.
+ *
+ * @author Samuel Audet
+ */
+public class AdaptiveThresholderTest {
+    static final int WIDTH = 321, HEIGHT = 243, WINDOW_MIN = 5, WINDOW_MAX = 63;
+
+    static IplImage createImage(Random random) {
+        IplImage image = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 3);
+        ByteBuffer buf = image.getByteBuffer();
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, (byte)(128 + random.nextInt(96)));
+        }
+        for (int i = 0; i < 6; i++) {
+            int x = random.nextInt(WIDTH - 40), y = random.nextInt(HEIGHT - 40);
+            cvRectangle(image, cvPoint(x, y), cvPoint(x + 30, y + 30), cvScalarAll(random.nextInt(64)), CV_FILLED, 8, 0);
+        }
+        return image;
+    }
+
+    @Test public void testThreshold() {
+        System.out.println("Threshold");
+
+        Random random = new Random(42);
+        IplImage image = createImage(random);
+        IplImage gray = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        IplImage sum = IplImage.create(WIDTH + 1, HEIGHT + 1, IPL_DEPTH_64F, 1);
+        IplImage sqSum = IplImage.create(WIDTH + 1, HEIGHT + 1, IPL_DEPTH_64F, 1);
+        IplImage expected = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        IplImage actual = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        AdaptiveThresholder thresholder = new AdaptiveThresholder();
+        int[] rois = { 10, 20, 50, 40,  -5, 200, 60, 60,  280, -10, 100, 100,  150, 100, 0, 10 };
+
+        for (boolean invert : new boolean[] { false, true }) {
+            cvCvtColor(image, gray, CV_BGR2GRAY);
+            JavaCV.adaptiveThreshold(gray, sum, sqSum, expected, invert, WINDOW_MAX, WINDOW_MIN, 1.0, 0.6);
+            ByteBuffer e = expected.getByteBuffer(), a = actual.getByteBuffer();
+            int step = expected.widthStep();
+
+            thresholder.threshold(image, actual, invert, WINDOW_MAX, WINDOW_MIN, 1.0, 0.6);
+            assertEquals((long)WIDTH*HEIGHT, thresholder.getPixelCount());
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals(e.get(y*step + x), a.get(y*step + x));
+                }
+            }
+
+            // the same values inside the regions, with only those converted to grayscale,
+            // the background outside, and no ROI left behind on the images
+            cvSet(actual, cvScalarAll(128));
+            thresholder.threshold(image, actual, invert, WINDOW_MAX, WINDOW_MIN, 1.0, 0.6, rois, rois.length/4);
+            assertNull(image.roi());
+            assertNull(actual.roi());
+            long count = 0;
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    boolean inside = false;
+                    for (int i = 0; i < rois.length; i += 4) {
+                        inside |= x >= rois[i] && x < rois[i] + rois[i + 2] && y >= rois[i + 1] && y < rois[i + 1] + rois[i + 3];
+                    }
+                    if (inside) {
+                        assertEquals(e.get(y*step + x), a.get(y*step + x));
+                        count++;
+                    } else {
+                        assertEquals((byte)thresholder.getBackground(), a.get(y*step + x));
+                    }
+                }
+            }
+            assertTrue(count > 0);
+            assertEquals(count, thresholder.getPixelCount());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgcodecs.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for BlobAnalyzer, checking that labeling strips in parallel gives the
+ * same regions as labeling serially, with blobs crossing the boundaries of strips,
+ * and that both give the same regions as the previous Blobs code on the sample images.
+ *
+ * @author Samuel Audet
+ */
+public class BlobAnalyzerTest {
+    static final int WIDTH = 203, HEIGHT = 151, STRIP_ROWS = 8;
+
+    /** Draws blobs that cross strip boundaries: random noise, nested rings, a comb, and a spiral. */
+    static IplImage createImage(long seed, double density) {
+        IplImage image = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        int step = image.widthStep();
+        byte[] pixels = new byte[HEIGHT*step];
+        Random random = new Random(seed);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y*step + x] = random.nextDouble() < density ? (byte)0xFF : 0;
+            }
+        }
+        // nested rings spanning many strips, so that parents get resolved across seams
+        for (int r = 0; r < 5; r++) {
+            int x1 = 5 + 4*r, y1 = 5 + 4*r, x2 = 75 - 4*r, y2 = 140 - 4*r;
+            byte c = r % 2 == 0 ? (byte)0xFF : 0;
+            for (int y = y1; y <= y2; y++) {
+                for (int x = x1; x <= x2; x++) {
+                    if (y < y1 + 2 || y > y2 - 2 || x < x1 + 2 || x > x2 - 2) {
+                        pixels[y*step + x] = c;
+                    }
+                }
+            }
+        }
+        // a comb whose teeth only get connected in the last strip
+        for (int y = 10; y < 120; y++) {
+            for (int x = 90; x < 150; x++) {
+                pixels[y*step + x] = (x - 90) % 6 < 2 || y >= 117 ? (byte)0xFF : 0;
+            }
+        }
+        // a spiral crossing the same seams several times
+        int x = 160, y = 5, dx = 0, dy = 1, length = 140;
+        while (length > 4) {
+            for (int i = 0; i < length; i++) {
+                for (int k = 0; k < 2; k++) {
+                    int px = Math.min(Math.max(x + k*dy, 0), WIDTH - 1);
+                    int py = Math.min(Math.max(y + k*dx, 0), HEIGHT - 1);
+                    pixels[py*step + px] = (byte)0xFF;
+                }
+                x = Math.min(Math.max(x + dx, 0), WIDTH - 1);
+                y = Math.min(Math.max(y + dy, 0), HEIGHT - 1);
+            }
+            int t = dx; dx = -dy; dy = t;
+            length -= dx == 0 ? 30 : 4;
+        }
+        ByteBuffer buffer = image.getByteBuffer();
+        buffer.put(pixels);
+        buffer.position(0);
+        return image;
+    }
+
+    static void assertRegionsEqual(BlobAnalyzer.Regions expected, BlobAnalyzer.Regions actual) {
+        assertEquals(expected.count, actual.count);
+        for (int i = 0; i <= expected.count; i++) {
+            assertEquals(expected.parent[i],    actual.parent[i]);
+            assertEquals(expected.color[i],     actual.color[i]);
+            assertEquals(expected.area[i],      actual.area[i]);
+            assertEquals(expected.perimeter[i], actual.perimeter[i]);
+            assertEquals(expected.minX[i],      actual.minX[i]);
+            assertEquals(expected.maxX[i],      actual.maxX[i]);
+            assertEquals(expected.minY[i],      actual.minY[i]);
+            assertEquals(expected.maxY[i],      actual.maxY[i]);
+            assertEquals(expected.meanX[i],     actual.meanX[i], 1e-9);
+            assertEquals(expected.meanY[i],     actual.meanY[i], 1e-9);
+            assertEquals(expected.varX[i],      actual.varX[i],  1e-9);
+            assertEquals(expected.varY[i],      actual.varY[i],  1e-9);
+            assertEquals(expected.covXY[i],     actual.covXY[i], 1e-9);
+        }
+    }
+
+    @Test public void testParallelLabeling() {
+        System.out.println("ParallelLabeling");
+
+        BlobAnalyzer serial = new BlobAnalyzer();
+        BlobAnalyzer parallel = new BlobAnalyzer();
+        parallel.setParallel(true);
+        parallel.minStripRows = STRIP_ROWS; // many thin strips, to cross as many seams as possible
+
+        double[] densities = { 0.05, 0.3, 0.5 };
+        int[][] rois = { { -1, -1, -1, -1 }, { 3, 7, 150, 131 }, { 0, 1, WIDTH, 2*STRIP_ROWS + 1 } };
+        for (int n = 0; n < densities.length; n++) {
+            IplImage image = createImage(n, densities[n]);
+            for (int[] roi : rois) {
+                for (int border = 0; border <= 1; border++) {
+                    for (int minArea : new int[] { 0, 1, 10 }) {
+                        BlobAnalyzer.Regions expected = serial.analyze(image, roi[0], roi[1], roi[2], roi[3], border, minArea);
+                        assertTrue(expected.count > 1);
+                        BlobAnalyzer.Regions actual = parallel.analyze(image, roi[0], roi[1], roi[2], roi[3], border, minArea);
+                        assertRegionsEqual(expected, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the sample image with the given name, from the samples directory of the project. */
+    static File sampleFile(String name) {
+        for (String dir : new String[] { "../samples", "samples" }) {
+            File f = new File(dir, name);
+            if (f.exists()) {
+                return f;
+            }
+        }
+        fail("Could not find sample image " + name);
+        return null;
+    }
+
+    @Test public void testSampleImages() {
+        System.out.println("SampleImages");
+
+        // the same preprocessing and arguments as in samples/BlobDemo.java
+        String[] names = { "BlackBalls.jpg", "Shapes1.jpg", "Shapes2.jpg", "Blob1.jpg", "Blob2.jpg", "Blob3.jpg", "Rice.jpg" };
+        int[] minAreas = { 250, 6, 250, 2800, 2800, 2800, 30 };
+        int[] erodeCounts = { 0, 0, 0, 1, 1, 1, 2 };
+        BlobAnalyzer serial = new BlobAnalyzer();
+        BlobAnalyzer parallel = new BlobAnalyzer();
+        parallel.setParallel(true);
+        parallel.minStripRows = STRIP_ROWS;
+        for (int i = 0; i < names.length; i++) {
+            IplImage raw = cvLoadImage(sampleFile(names[i]).getAbsolutePath());
+            assertNotNull(names[i], raw);
+            IplImage gray = cvCreateImage(cvGetSize(raw), IPL_DEPTH_8U, 1);
+            cvCvtColor(raw, gray, CV_BGR2GRAY);
+            cvThreshold(gray, gray, 127, 255, CV_THRESH_BINARY);
+            IplImage image = cvCreateImage(cvGetSize(gray), IPL_DEPTH_8U, 1);
+            cvErode(gray, image, null, erodeCounts[i]);
+            cvDilate(image, image, null, 1);
+
+            int w = image.width(), h = image.height();
+            int[][] rois = { { -1, -1, -1, -1 }, { w/5, h/7, w/2, h/2 } };
+            for (int[] roi : rois) {
+                for (int minArea : new int[] { 0, minAreas[i] }) {
+                    BlobsTest.assertSameAsPrevious(image, roi[0], roi[1], roi[2], roi[3], 1, minArea);
+                    BlobAnalyzer.Regions expected = serial.analyze(image, roi[0], roi[1], roi[2], roi[3], 1, minArea);
+                    if (roi[0] < 0 && minArea == 0) {
+                        assertTrue(names[i], expected.count > 0);
+                    }
+                    assertRegionsEqual(expected, parallel.analyze(image, roi[0], roi[1], roi[2], roi[3], 1, minArea));
+                }
+            }
+            cvReleaseImage(image);
+            cvReleaseImage(gray);
+            cvReleaseImage(raw);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for Blobs, now backed by BlobAnalyzer, against the labeling code it replaced.
+ *
+ * @author Samuel Audet
+ */
+public class BlobsTest {
+
+    /**
+     * The previous implementation of Blobs.BlobAnalysis(), with its working storage
+     * moved into the instance and sized for the image, and with the three fixes
+     * that came with BlobAnalyzer: pixels get read at the offset of the region of
+     * interest, the border perimeter starts from 0, and when all regions are too
+     * small, the count drops to 0.
+     */
+    static class PreviousBlobs {
+        static final int BLOBLABEL = Blobs.BLOBLABEL, BLOBPARENT = Blobs.BLOBPARENT, BLOBCOLOR = Blobs.BLOBCOLOR,
+                BLOBAREA = Blobs.BLOBAREA, BLOBPERIMETER = Blobs.BLOBPERIMETER, BLOBSUMX = Blobs.BLOBSUMX,
+                BLOBSUMY = Blobs.BLOBSUMY, BLOBSUMXX = Blobs.BLOBSUMXX, BLOBSUMYY = Blobs.BLOBSUMYY,
+                BLOBSUMXY = Blobs.BLOBSUMXY, BLOBMINX = Blobs.BLOBMINX, BLOBMAXX = Blobs.BLOBMAXX,
+                BLOBMINY = Blobs.BLOBMINY, BLOBMAXY = Blobs.BLOBMAXY, BLOBDATACOUNT = Blobs.BLOBDATACOUNT;
+
+        int [][] LabelMat;
+        double [][] RegionData;
+        int MaxLabel;
+        int LabelA, LabelB, LabelC, LabelD;
+        int ColorA, ColorB, ColorC, ColorD;
+        int jrow, jcol;
+        int [] SubsumedLabel, CondensationMap;
+
+        void ResetRegion(int Label) {
+            java.util.Arrays.fill(RegionData[Label], 0.0);
+        }
+
+        void OldRegion(int NewLabelD, int Label1, int Label2) {
+            int DeltaPerimeter = 0;
+            if (Label1 >= 0 && Label1 != NewLabelD) {
+                DeltaPerimeter++;
+                RegionData[Label1][BLOBPERIMETER]++;
+            }
+            if (Label2 >= 0 && Label2 != NewLabelD) {
+                DeltaPerimeter++;
+                RegionData[Label2][BLOBPERIMETER]++;
+            }
+            LabelD = NewLabelD;
+            double [] RegionD = RegionData[LabelD];
+            RegionD[BLOBLABEL] = LabelD;
+            RegionD[BLOBAREA] += 1.0;
+            RegionD[BLOBPERIMETER] += DeltaPerimeter;
+            RegionD[BLOBSUMX] += jcol;
+            RegionD[BLOBSUMY] += jrow;
+            RegionD[BLOBSUMXX] += jcol*jcol;
+            RegionD[BLOBSUMYY] += jrow*jrow;
+            RegionD[BLOBSUMXY] += jcol*jrow;
+            RegionD[BLOBMINX] = Math.min(RegionD[BLOBMINX], jcol);
+            RegionD[BLOBMAXX] = Math.max(RegionD[BLOBMAXX], jcol);
+            RegionD[BLOBMINY] = Math.min(RegionD[BLOBMINY], jrow);
+            RegionD[BLOBMAXY] = Math.max(RegionD[BLOBMAXY], jrow);
+        }
+
+        void NewRegion(int ParentLabel) {
+            LabelD = ++MaxLabel;
+            double [] RegionD = RegionData[LabelD];
+            RegionD[BLOBLABEL] = LabelD;
+            RegionD[BLOBPARENT] = (double) ParentLabel;
+            RegionD[BLOBCOLOR] = ColorD;
+            RegionD[BLOBAREA] = 1.0;
+            RegionD[BLOBPERIMETER] = 2.0;
+            RegionD[BLOBSUMX] = jcol;
+            RegionD[BLOBSUMY] = jrow;
+            RegionD[BLOBSUMXX] = jcol*jcol;
+            RegionD[BLOBSUMYY] = jrow*jrow;
+            RegionD[BLOBSUMXY] = jcol*jrow;
+            RegionD[BLOBMINX] = jcol;
+            RegionD[BLOBMAXX] = jcol;
+            RegionD[BLOBMINY] = jrow;
+            RegionD[BLOBMAXY] = jrow;
+            SubsumedLabel[LabelD] = -1;
+            RegionData[LabelB][BLOBPERIMETER]++;
+            RegionData[LabelC][BLOBPERIMETER]++;
+        }
+
+        void Subsume(int GoodLabel, int BadLabel, int PSign) {
+            LabelD = GoodLabel;
+            double [] GoodRegion = RegionData[GoodLabel];
+            double [] BadRegion = RegionData[BadLabel];
+            GoodRegion[BLOBAREA] += BadRegion[BLOBAREA];
+            GoodRegion[BLOBPERIMETER] += BadRegion[BLOBPERIMETER] * PSign;
+            GoodRegion[BLOBSUMX] += BadRegion[BLOBSUMX];
+            GoodRegion[BLOBSUMY] += BadRegion[BLOBSUMY];
+            GoodRegion[BLOBSUMXX] += BadRegion[BLOBSUMXX];
+            GoodRegion[BLOBSUMYY] += BadRegion[BLOBSUMYY];
+            GoodRegion[BLOBSUMXY] += BadRegion[BLOBSUMXY];
+            GoodRegion[BLOBMINX] = Math.min(GoodRegion[BLOBMINX], BadRegion[BLOBMINX]);
+            GoodRegion[BLOBMAXX] = Math.max(GoodRegion[BLOBMAXX], BadRegion[BLOBMAXX]);
+            GoodRegion[BLOBMINY] = Math.min(GoodRegion[BLOBMINY], BadRegion[BLOBMINY]);
+            GoodRegion[BLOBMAXY] = Math.max(GoodRegion[BLOBMAXY], BadRegion[BLOBMAXY]);
+        }
+
+        int SubsumptionChain(int x) {
+            int Lastx = x;
+            while (x > -1) {
+                Lastx = x;
+                if (x == 0) break;
+                x = SubsumedLabel[x];
+            }
+            return Lastx;
+        }
+
+        /** Condenses the labels flagged in SubsumedLabel into their roots, and returns the new maximum label. */
+        int Condense(int PSign) {
+            int Offset = 0;
+            for (int Label = 1; Label <= MaxLabel; Label++) {
+                if (SubsumedLabel[Label] > -1) Offset++;
+                CondensationMap[Label] = Label - Offset;
+            }
+            for (int Label = 1; Label <= MaxLabel; Label++) {
+                int BetterLabel = SubsumptionChain(Label);
+                if (BetterLabel != Label) Subsume(BetterLabel, Label, PSign);
+            }
+            int NewMaxLabel = 0;
+            for (int OldLabel = 1; OldLabel <= MaxLabel; OldLabel++) {
+                if (SubsumedLabel[OldLabel] < 0) {
+                    double [] OldRegion = RegionData[OldLabel];
+                    int OldParent = (int) OldRegion[BLOBPARENT];
+                    int NewLabel = CondensationMap[OldLabel];
+                    int NewParent = CondensationMap[SubsumptionChain(OldParent)];
+                    OldRegion[BLOBLABEL] = (double) NewLabel;
+                    OldRegion[BLOBPARENT] = (double) NewParent;
+                    System.arraycopy(OldRegion, 0, RegionData[NewLabel], 0, BLOBDATACOUNT);
+                    NewMaxLabel = NewLabel;
+                }
+            }
+            for (int Label = NewMaxLabel + 1; Label <= MaxLabel; Label++) ResetRegion(Label);
+            return NewMaxLabel;
+        }
+
+        int BlobAnalysis(IplImage Src, int Col0, int Row0, int Cols, int Rows, int Border, int MinArea) {
+            int SrcCols = Src.width();
+            int SrcRows = Src.height();
+            int Step = Src.widthStep();
+            ByteBuffer Buf = Src.getByteBuffer();
+
+            if (Col0 < 0) Col0 = 0;
+            if (Row0 < 0) Row0 = 0;
+            if (Cols < 0) Cols = SrcCols;
+            if (Rows < 0) Rows = SrcRows;
+            if (Col0 + Cols > SrcCols) Cols = SrcCols - Col0;
+            if (Row0 + Rows > SrcRows) Rows = SrcRows - Row0;
+
+            int Total = Rows*Cols + Rows + Cols + 2;
+            LabelMat = new int [Rows][Cols];
+            RegionData = new double [Total][BLOBDATACOUNT];
+            SubsumedLabel = new int [Total];
+            CondensationMap = new int [Total];
+
+            int FillColor = Border > 0 ? 1 : 0;
+            LabelA = LabelB = LabelC = LabelD = 0;
+            ColorA = ColorB = ColorC = ColorD = FillColor;
+            java.util.Arrays.fill(SubsumedLabel, -1);
+
+            MaxLabel = 0;
+            double [] BorderRegion = RegionData[0];
+            BorderRegion[BLOBLABEL] = 0.0;
+            BorderRegion[BLOBPARENT] = -1.0;
+            BorderRegion[BLOBAREA] = Rows + Cols + 4;
+            BorderRegion[BLOBCOLOR] = FillColor;
+            BorderRegion[BLOBSUMX] = 0.5 * ((2.0 + Cols) * (Cols - 1.0)) - Rows - 1;
+            BorderRegion[BLOBSUMY] = 0.5 * ((2.0 + Rows) * (Rows - 1.0)) - Cols - 1;
+            BorderRegion[BLOBMINX] = -1;
+            BorderRegion[BLOBMINY] = -1;
+            BorderRegion[BLOBMAXX] = Cols + 1.0;
+            BorderRegion[BLOBMAXY] = Rows + 1.0;
+
+            for (int irow = Row0; irow < Row0 + Rows; irow++) {
+                jrow = irow - Row0;
+                for (int icol = Col0; icol < Col0 + Cols; icol++) {
+                    jcol = icol - Col0;
+
+                    ColorA = ColorB = ColorC = FillColor;
+                    LabelA = LabelB = LabelC = LabelD = 0;
+                    ColorD = Buf.get(irow*Step + icol) & 0xFF;
+                    if (jrow == 0 || jcol == 0) {
+                        if (jcol > 0) {
+                            ColorC = Buf.get(irow*Step + icol - 1) & 0xFF;
+                            LabelC = LabelMat[jrow][jcol - 1];
+                        }
+                        if (jrow > 0) {
+                            ColorB = Buf.get((irow - 1)*Step + icol) & 0xFF;
+                            LabelB = LabelMat[jrow - 1][jcol];
+                        }
+                    } else {
+                        ColorA = Buf.get((irow - 1)*Step + icol - 1) & 0xFF;
+                        ColorB = Buf.get((irow - 1)*Step + icol) & 0xFF;
+                        ColorC = Buf.get(irow*Step + icol - 1) & 0xFF;
+                        LabelA = LabelMat[jrow - 1][jcol - 1];
+                        LabelB = LabelMat[jrow - 1][jcol];
+                        LabelC = LabelMat[jrow][jcol - 1];
+                    }
+                    if (ColorA > 0) ColorA = 1;
+                    if (ColorB > 0) ColorB = 1;
+                    if (ColorC > 0) ColorC = 1;
+                    if (ColorD > 0) ColorD = 1;
+
+                    int Case = 0;
+                    if (ColorA == ColorB) {
+                        if (ColorC == ColorD) { Case = ColorA == ColorC ? 1 : 2; }
+                        else { Case = ColorA == ColorC ? 5 : 6; }
+                    } else {
+                        if (ColorC == ColorD) { Case = ColorA == ColorC ? 3 : 4; }
+                        else { Case = ColorA == ColorC ? 7 : 8; }
+                    }
+
+                    if (Case == 1) { OldRegion(LabelC, -1, -1); }
+                    else if (Case == 2 || Case == 3) { OldRegion(LabelC, LabelB, LabelC); }
+                    else if (Case == 5 || Case == 8) {
+                        if ((jrow == Rows || jcol == Cols) && ColorD == FillColor) { OldRegion(0, -1, -1); }
+                        else NewRegion(LabelB);
+                    }
+                    else if (Case == 6 || Case == 7) { OldRegion(LabelB, LabelB, LabelC); }
+                    else {
+                        int LabelBRoot = SubsumptionChain(LabelB);
+                        int LabelCRoot = SubsumptionChain(LabelC);
+                        int LabelRoot = Math.min(LabelBRoot, LabelCRoot);
+                        int LabelX;
+                        if (LabelBRoot < LabelCRoot) { OldRegion(LabelB, -1, -1); LabelX = LabelC; }
+                        else { OldRegion(LabelC, -1, -1); LabelX = LabelB; }
+                        while (LabelRoot < LabelX) {
+                            int NextLabelX = SubsumedLabel[LabelX];
+                            SubsumedLabel[LabelX] = LabelRoot;
+                            LabelX = NextLabelX;
+                        }
+                    }
+
+                    if ((jrow == Rows || jcol == Cols) && ColorD == FillColor) {
+                        if (jcol < Cols) {
+                            if (ColorC != FillColor) SubsumedLabel[SubsumptionChain(LabelB)] = 0;
+                        } else if (jrow < Rows) {
+                            if (ColorB != FillColor) SubsumedLabel[SubsumptionChain(LabelC)] = 0;
+                        }
+                        OldRegion(0, -1, -1);
+                    }
+                    LabelMat[jrow][jcol] = LabelD;
+                }
+            }
+
+            // subsume regions that were flagged as connected, where perimeters add
+            MaxLabel = Condense(1);
+
+            // then regions that have too small an area, where perimeters subtract
+            for (int Label = MaxLabel; Label > 0; Label--) {
+                double [] ThisRegion = RegionData[Label];
+                SubsumedLabel[Label] = (int) ThisRegion[BLOBAREA] < MinArea ? (int) ThisRegion[BLOBPARENT] : -1;
+            }
+            MaxLabel = Condense(-1);
+
+            for (int Label = 0; Label <= MaxLabel; Label++) {
+                double [] ThisRegion = RegionData[Label];
+                double Area = ThisRegion[BLOBAREA];
+                double SumX = ThisRegion[BLOBSUMX] / Area;
+                double SumY = ThisRegion[BLOBSUMY] / Area;
+                double SumXX = ThisRegion[BLOBSUMXX] / Area - SumX * SumX;
+                double SumYY = ThisRegion[BLOBSUMYY] / Area - SumY * SumY;
+                double SumXY = ThisRegion[BLOBSUMXY] / Area - SumX * SumY;
+                if (SumXY > -1.0E-14 && SumXY < 1.0E-14) SumXY = (float) 0.0;
+                ThisRegion[BLOBSUMX] = SumX;
+                ThisRegion[BLOBSUMY] = SumY;
+                ThisRegion[BLOBSUMXX] = SumXX;
+                ThisRegion[BLOBSUMYY] = SumYY;
+                ThisRegion[BLOBSUMXY] = SumXY;
+            }
+            RegionData[0][BLOBSUMXX] = RegionData[0][BLOBSUMYY] = RegionData[0][BLOBSUMXY] = 0;
+            return MaxLabel;
+        }
+    }
+
+    /** Checks that Blobs and BlobAnalyzer give the same regions as the previous code. */
+    static void assertSameAsPrevious(IplImage image, int x0, int y0, int cols, int rows, int border, int minArea) {
+        PreviousBlobs previous = new PreviousBlobs();
+        int expected = previous.BlobAnalysis(image, x0, y0, cols, rows, border, minArea);
+        assertEquals(expected, new Blobs().BlobAnalysis(image, x0, y0, cols, rows, border, minArea));
+        assertEquals(expected, Blobs.MaxLabel);
+        for (int label = 0; label <= expected; label++) {
+            for (int f = 0; f < Blobs.BLOBDATACOUNT; f++) {
+                assertEquals("label " + label + ", field " + f, previous.RegionData[label][f], Blobs.RegionData[label][f], 1e-9);
+            }
+        }
+
+        BlobAnalyzer.Regions regions = new BlobAnalyzer().analyze(image, x0, y0, cols, rows, border, minArea);
+        assertEquals(expected, regions.count);
+        double[] property = null;
+        for (int label = 0; label <= expected; label++) {
+            property = regions.get(label, property);
+            for (int f = 0; f < Blobs.BLOBDATACOUNT; f++) {
+                assertEquals("label " + label + ", field " + f, previous.RegionData[label][f], property[f], 1e-9);
+            }
+        }
+    }
+
+    @Test public void testBlobAnalysis() {
+        System.out.println("BlobAnalysis");
+
+        double[] densities = { 0.05, 0.3, 0.5 };
+        int[][] rois = { { -1, -1, -1, -1 }, { 3, 7, 150, 131 }, { 0, 1, 40, 17 }, { 180, 140, 100, 100 } };
+        for (int n = 0; n < densities.length; n++) {
+            IplImage image = BlobAnalyzerTest.createImage(n, densities[n]);
+            for (int[] roi : rois) {
+                for (int border = 0; border <= 1; border++) {
+                    for (int minArea : new int[] { 0, 1, 10, 1000000 }) {
+                        assertSameAsPrevious(image, roi[0], roi[1], roi[2], roi[3], border, minArea);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test public void testDeprecatedHelpers() {
+        System.out.println("DeprecatedHelpers");
+
+        // the helpers of the previous code still work on the static tables
+        Blobs blobs = new Blobs();
+        blobs.BlobAnalysis(BlobAnalyzerTest.createImage(0, 0.3), -1, -1, -1, -1, 0, 0);
+        int max = Blobs.MaxLabel;
+        assertTrue(max > 1);
+        for (int label = 0; label <= max; label++) {
+            assertEquals(-1, Blobs.SubsumedLabel[label]);
+            assertEquals(label, Blobs.SubsumptionChain(label));
+        }
+        double area = Blobs.RegionData[1][Blobs.BLOBAREA];
+        blobs.jcol = 5;
+        blobs.jrow = 7;
+        blobs.ColorD = 1;
+        blobs.LabelB = blobs.LabelC = 1;
+        blobs.NewRegion(1);
+        assertEquals(max + 1, Blobs.MaxLabel);
+        assertEquals(max + 1, blobs.LabelD);
+        assertEquals(1.0, Blobs.RegionData[max + 1][Blobs.BLOBAREA], 0);
+        blobs.OldRegion(max + 1, -1, -1);
+        assertEquals(2.0, Blobs.RegionData[max + 1][Blobs.BLOBAREA], 0);
+        Blobs.SubsumedLabel[max + 1] = 1;
+        assertEquals(1, Blobs.SubsumptionChain(max + 1));
+        blobs.Subsume(1, max + 1, 1);
+        assertEquals(area + 2, Blobs.RegionData[1][Blobs.BLOBAREA], 0);
+    }
+}
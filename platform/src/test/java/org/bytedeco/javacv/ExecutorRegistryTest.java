@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for ExecutorRegistry, with the default and user executors,
+ * and the metrics updated by Parallel.
+ *
+ * @author Samuel Audet
+ */
+public class ExecutorRegistryTest {
+
+    @Test public void testExecutors() throws Exception {
+        System.out.println("Executors");
+
+        String name = "test";
+        ExecutorService d = ExecutorRegistry.get(name);
+        assertNotNull(d);
+        assertSame(d, ExecutorRegistry.get(name));
+        assertTrue(d.submit(new Runnable() { public void run() {
+            assertTrue(Thread.currentThread().isDaemon());
+        }}, Boolean.TRUE).get());
+
+        // a user executor replaces the default one until it gets removed
+        ExecutorService e = Executors.newSingleThreadExecutor();
+        try {
+            assertNull(ExecutorRegistry.set(name, e));
+            assertSame(e, ExecutorRegistry.get(name));
+            assertSame(e, ExecutorRegistry.set(name, null));
+            assertSame(d, ExecutorRegistry.get(name));
+
+            // shutting down the defaults leaves user executors alone
+            ExecutorRegistry.set(name, e);
+            ExecutorRegistry.shutdown();
+            assertTrue(d.isShutdown());
+            assertFalse(e.isShutdown());
+            assertSame(e, ExecutorRegistry.get(name));
+            ExecutorRegistry.set(name, null);
+        } finally {
+            e.shutdown();
+        }
+
+        // and the defaults get recreated on next use
+        ExecutorService d2 = ExecutorRegistry.get(name);
+        assertNotSame(d, d2);
+        assertFalse(d2.isShutdown());
+    }
+
+    @Test public void testMetrics() {
+        System.out.println("Metrics");
+
+        ExecutorRegistry.Metrics m = ExecutorRegistry.getMetrics("test");
+        assertSame(m, ExecutorRegistry.getMetrics("test"));
+        m.reset();
+
+        long s1 = m.submitted(), s2 = m.submitted(), s3 = m.submitted();
+        assertEquals(3, m.getQueuedCount());
+        long t1 = m.started(s1), t2 = m.started(s2);
+        m.cancelled();
+        assertEquals(0, m.getQueuedCount());
+        assertEquals(2, m.getActiveCount());
+        m.finished(t1, true);
+        m.finished(t2, false);
+        assertEquals(0, m.getActiveCount());
+        assertEquals(1, m.getCompletedCount());
+        assertEquals(1, m.getFailedCount());
+        assertTrue(m.getMaxQueueWaitNanos() >= m.getMeanQueueWaitNanos());
+        assertTrue(m.getMaxDurationNanos() >= m.getMeanDurationNanos());
+
+        // a reset clears everything, including tasks left queued or active
+        m.submitted();
+        m.started(m.submitted());
+        m.reset();
+        assertEquals(0, m.getQueuedCount());
+        assertEquals(0, m.getActiveCount());
+        assertEquals(0, m.getCompletedCount());
+        assertEquals(0, m.getFailedCount());
+        assertEquals(0, m.getMaxQueueWaitNanos());
+        assertEquals(0, m.getMaxDurationNanos());
+    }
+
+    @Test public void testParallelMetrics() {
+        System.out.println("ParallelMetrics");
+
+        // on a plain executor, to check that loops work without a ForkJoinPool too
+        ExecutorService e = Executors.newFixedThreadPool(3);
+        ExecutorRegistry.set(ExecutorRegistry.PARALLEL, e);
+        try {
+            ExecutorRegistry.Metrics m = Parallel.getMetrics();
+            m.reset();
+            final AtomicInteger count = new AtomicInteger();
+            for (int k = 0; k < 10; k++) {
+                Parallel.loop(0, 100, 4, new Parallel.AdaptiveLooper() {
+                    @Override public void loop(int from, int to, int looperID) {
+                        count.addAndGet(to - from);
+                    }
+                });
+                Parallel.run(new Runnable() { public void run() {
+                    count.incrementAndGet();
+                }}, new Runnable() { public void run() {
+                    count.incrementAndGet();
+                }});
+            }
+            assertEquals(10*102, count.get());
+            // the first looper and runnable execute on the calling thread, without metrics
+            assertEquals(10*(3 + 1), m.getCompletedCount());
+            assertEquals(0, m.getFailedCount());
+            assertEquals(0, m.getQueuedCount());
+            assertEquals(0, m.getActiveCount());
+
+            try {
+                Parallel.run(new Runnable() { public void run() {
+                }}, new Runnable() { public void run() {
+                    throw new IllegalStateException();
+                }});
+                fail("RuntimeException should have been thrown.");
+            } catch (RuntimeException ex) {
+                // expected
+            }
+            assertEquals(1, m.getFailedCount());
+            assertEquals(0, m.getQueuedCount());
+            assertEquals(0, m.getActiveCount());
+        } finally {
+            ExecutorRegistry.set(ExecutorRegistry.PARALLEL, null);
+            e.shutdown();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test case for the live mode of FFmpegFrameGrabber, receiving MPEG-TS over local UDP
+ * from a sender that restarts, goes silent, and comes back at another resolution.
+ *
+ * @author Samuel Audet
+ */
+public class FrameGrabberLiveStreamTest {
+    /** Returns the URL of a local UDP port free at the moment, so that tests running at the same time do not collide. */
+    static String freeUrl() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return "udp://127.0.0.1:" + port;
+    }
+
+    /** Streams frames of the given size in real time at 30 fps, with timestamps starting over. */
+    static void send(String url, int width, int height, int count) throws Exception {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(url, width, height, 0);
+        recorder.setVideoCodecName("mpeg2video");
+        recorder.setFormat("mpegts");
+        recorder.setVideoBitrate(width * height * 4);
+        recorder.setGopSize(10);
+        recorder.setFrameRate(30);
+        recorder.start();
+
+        Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 3);
+        UByteIndexer frameIdx = frame.createIndexer();
+        long start = System.currentTimeMillis();
+        for (int n = 0; n < count; n++) {
+            for (int i = 0; i < frameIdx.rows(); i++) {
+                for (int j = 0; j < frameIdx.cols(); j++) {
+                    for (int k = 0; k < frameIdx.channels(); k++) {
+                        frameIdx.put(i, j, k, n + i + j + k);
+                    }
+                }
+            }
+            recorder.record(frame);
+            long sleep = start + (n + 1) * 1000L / 30 - System.currentTimeMillis();
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+        }
+        recorder.stop();
+        recorder.release();
+    }
+
+    @Test
+    public void testLiveStream() throws Exception {
+        System.out.println("LiveStream");
+
+        final String url = freeUrl();
+        final Exception[] senderError = { null };
+        Thread sender = new Thread() {
+            @Override public void run() {
+                try {
+                    send(url, 640, 480, 90);
+                    // restart right away, faster than the read timeout, so that the timestamps
+                    // start over on the same connection, as a discontinuity, not as late packets
+                    send(url, 640, 480, 30);
+                    // go silent for longer than the read timeout, to force a reconnect
+                    Thread.sleep(2000);
+                    // and come back at another resolution, to force reopening the decoder
+                    send(url, 320, 240, 90);
+                } catch (Exception e) {
+                    senderError[0] = e;
+                }
+            }
+        };
+        sender.setName("Sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(url);
+        grabber.setFormat("mpegts");
+        grabber.setLive(true);
+        grabber.setJitterBufferSize(8);
+        grabber.setReadTimeout(500000);
+        grabber.setReconnectDelay(100000);
+        grabber.setMaxReconnectDelay(200000);
+        grabber.setMaxReconnectAttempts(20);
+        grabber.start();
+
+        ArrayList<Integer> widths = new ArrayList<Integer>();
+        long reconnectsAtRestart = -1, reconnectsAt320 = -1, lastTimestamp = Long.MIN_VALUE;
+        int frames640 = 0, framesRestarted = 0, frames320 = 0;
+        long end = System.currentTimeMillis() + 60000;
+        Frame frame;
+        while ((sender.isAlive() || grabber.getJitterBufferDepth() > 0) && System.currentTimeMillis() < end
+                && (frame = grabber.grabImage()) != null) {
+            if (widths.isEmpty() || widths.get(widths.size() - 1) != frame.imageWidth) {
+                widths.add(frame.imageWidth);
+            }
+            if (frame.imageWidth == 640) {
+                assertEquals(480, frame.imageHeight);
+                if (reconnectsAtRestart < 0 && frame.timestamp < lastTimestamp) {
+                    reconnectsAtRestart = grabber.getReconnectCount();
+                }
+                if (reconnectsAtRestart >= 0) {
+                    framesRestarted++;
+                }
+                lastTimestamp = frame.timestamp;
+                frames640++;
+            } else {
+                assertEquals(320, frame.imageWidth);
+                assertEquals(240, frame.imageHeight);
+                if (reconnectsAt320 < 0) {
+                    reconnectsAt320 = grabber.getReconnectCount();
+                }
+                frames320++;
+            }
+        }
+        System.out.println("widths: " + widths + ", frames: " + frames640 + " (" + framesRestarted + " restarted) + " + frames320
+                + ", reconnects: " + grabber.getReconnectCount() + " of " + grabber.getReconnectAttemptCount()
+                + ", decoders reopened: " + grabber.getDecoderReopenCount()
+                + ", late packets: " + grabber.getLatePacketCount()
+                + ", discontinuities: " + grabber.getDiscontinuityCount()
+                + ", max jitter buffer depth: " + grabber.getMaxJitterBufferDepth());
+        grabber.stop();
+        grabber.release();
+        sender.join();
+        assertNull(senderError[0]);
+
+        // both resolutions, in order, with most frames of each
+        assertEquals(2, widths.size());
+        assertEquals(640, (int)widths.get(0));
+        assertEquals(320, (int)widths.get(1));
+        assertTrue(frames640 > 45);
+        assertTrue(frames320 > 45);
+
+        // the restarted stream came through on the same connection, with most of its frames,
+        // the outage made it reconnect, and the new resolution made it reopen the decoder
+        assertEquals(0, reconnectsAtRestart);
+        assertTrue(framesRestarted > 15);
+        assertTrue(grabber.getDiscontinuityCount() >= 1);
+        assertTrue(reconnectsAt320 >= 1);
+        assertTrue(grabber.getReconnectCount() >= 1);
+        assertTrue(grabber.getDecoderReopenCount() >= 1);
+        assertTrue(grabber.getDecoderReopenCount() <= grabber.getReconnectCount());
+        assertTrue(grabber.getMaxJitterBufferDepth() > 0);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for FrameRing, with the producer wrapping around the ring
+ * many times past slow consumers, and consumers joining while it runs.
+ *
+ * @author Samuel Audet
+ */
+public class FrameRingTest {
+    static final int WIDTH = 16, HEIGHT = 8;
+
+    /** Publishes count frames whose pixels and timestamp hold their sequence number. */
+    static Thread produce(final FrameRing ring, final int count, final Exception[] error) {
+        Thread t = new Thread() { @Override public void run() {
+            try {
+                Frame frame = new Frame(WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 1);
+                ByteBuffer buf = (ByteBuffer)frame.image[0];
+                for (int i = 0; i < count; i++) {
+                    for (int j = 0; j < buf.capacity(); j++) {
+                        buf.put(j, (byte)i);
+                    }
+                    frame.timestamp = i;
+                    ring.publish(frame);
+                }
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        }};
+        t.setName("Producer");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    static void assertFrame(long expected, Frame frame) {
+        assertEquals(expected, frame.timestamp);
+        ByteBuffer buf = (ByteBuffer)frame.image[0];
+        for (int j = 0; j < buf.capacity(); j++) {
+            assertEquals((byte)expected, buf.get(j));
+        }
+    }
+
+    @Test public void testSlowConsumer() throws Exception {
+        System.out.println("SlowConsumer");
+
+        int count = 100;
+        FrameRing ring = new FrameRing(4, WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 1);
+        FrameRing.Consumer consumer = ring.newConsumer();
+        Exception[] error = { null };
+        Thread producer = produce(ring, count, error);
+
+        // the producer wraps around the ring 25 times, but never past us
+        for (int i = 0; i < count; i++) {
+            Frame frame = consumer.take(5, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            if (i % 10 == 0) {
+                Thread.sleep(20);
+            }
+            assertFrame(i, frame);
+            assertFalse(consumer.isOverwritten());
+            assertTrue(ring.getCursor() - i < ring.capacity());
+        }
+        producer.join(5000);
+        assertNull(error[0]);
+        assertEquals(0, consumer.getDroppedCount());
+        assertEquals(0, consumer.getLag());
+        assertNull(consumer.poll());
+        ring.release();
+    }
+
+    @Test public void testOverwrite() throws Exception {
+        System.out.println("Overwrite");
+
+        FrameRing ring = new FrameRing(4, WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 1,
+                FrameRing.WaitStrategy.BLOCKING, true);
+        FrameRing.Consumer consumer = ring.newConsumer();
+        Exception[] error = { null };
+        produce(ring, 10, error).join(5000);
+        assertNull(error[0]);
+        assertEquals(10, consumer.getLag());
+
+        // only the last frames that fit in the ring remain
+        Frame frame = new Frame(WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 1);
+        for (int i = 6; i < 10; i++) {
+            assertTrue(consumer.poll(frame));
+            assertFrame(i, frame);
+        }
+        assertEquals(6, consumer.getDroppedCount());
+        assertFalse(consumer.poll(frame));
+        ring.release();
+    }
+
+    @Test public void testNewConsumer() throws Exception {
+        System.out.println("NewConsumer");
+
+        // consumers keep joining a small ring while the producer wraps around it
+        int count = 20000;
+        FrameRing ring = new FrameRing(2, WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 1);
+        Exception[] error = { null };
+        Thread producer = produce(ring, count, error);
+        int consumers = 0;
+        while (ring.getCursor() < count - 10) {
+            FrameRing.Consumer consumer = ring.newConsumer();
+            long first = consumer.getSequence();
+            for (long i = first; i < first + 5 && i < count; i++) {
+                Frame frame = consumer.take(5, TimeUnit.SECONDS);
+                assertNotNull(frame);
+                assertFrame(i, frame);
+                assertFalse(consumer.isOverwritten());
+            }
+            consumer.close();
+            consumers++;
+        }
+        producer.join(5000);
+        assertNull(error[0]);
+        assertTrue(consumers > 0);
+        ring.release();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for GeometricCalibrator: points packed incrementally, against points
+ * packed from scratch, and calibrations in the background rejected by the executor.
+ *
+ * @author Samuel Audet
+ */
+public class GeometricCalibratorTest {
+
+    static Marker[] randomMarkers(Random random, int count) {
+        Marker[] markers = new Marker[count];
+        for (int i = 0; i < count; i++) {
+            double[] corners = new double[8];
+            for (int j = 0; j < corners.length; j++) {
+                corners[j] = random.nextDouble()*640;
+            }
+            markers[i] = new Marker(i, corners);
+        }
+        return markers;
+    }
+
+    static void assertPackedEquals(LinkedList<Marker[]> om, LinkedList<Marker[]> im,
+            GeometricCalibrator.PackedPoints packed) {
+        GeometricCalibrator.PackedPoints expected = new GeometricCalibrator.PackedPoints(packed.useCenters);
+        expected.update(om, im);
+        assertEquals(expected.viewCount, packed.viewCount);
+        assertEquals(expected.pointCount, packed.pointCount);
+        for (int i = 0; i < expected.viewCount; i++) {
+            assertEquals(expected.pointCounts[i], packed.pointCounts[i]);
+        }
+        for (int i = 0; i < 3*expected.pointCount; i++) {
+            assertEquals(expected.objectPoints[i], packed.objectPoints[i], 0);
+        }
+        for (int i = 0; i < 2*expected.pointCount; i++) {
+            assertEquals(expected.imagePoints[i], packed.imagePoints[i], 0);
+        }
+    }
+
+    @Test public void testPackedPoints() {
+        System.out.println("PackedPoints");
+
+        Random random = new Random(42);
+        for (boolean useCenters : new boolean[] { false, true }) {
+            GeometricCalibrator.PackedPoints packed = new GeometricCalibrator.PackedPoints(useCenters);
+            LinkedList<Marker[]> om = new LinkedList<Marker[]>(), im = new LinkedList<Marker[]>();
+            for (int i = 0; i < 20; i++) {
+                int n = 1 + random.nextInt(10);
+                om.add(randomMarkers(random, n));
+                im.add(randomMarkers(random, n));
+                if (i % 3 == 0) {
+                    packed.update(om, im);
+                    assertPackedEquals(om, im, packed);
+                }
+            }
+
+            // a view replaced in the middle of the lists, with as many markers
+            int n = om.get(7).length;
+            om.set(7, randomMarkers(random, n));
+            im.set(7, randomMarkers(random, n));
+            packed.update(om, im);
+            assertPackedEquals(om, im, packed);
+
+            // corners of a marker modified in place
+            im.get(3)[0].corners[5] += 1;
+            packed.update(om, im);
+            assertPackedEquals(om, im, packed);
+
+            // a view removed and another one added, keeping the same size
+            om.remove(5);
+            im.remove(5);
+            om.add(randomMarkers(random, 4));
+            im.add(randomMarkers(random, 4));
+            packed.update(om, im);
+            assertPackedEquals(om, im, packed);
+
+            // views removed at the end
+            om.removeLast();
+            im.removeLast();
+            packed.update(om, im);
+            assertPackedEquals(om, im, packed);
+
+            // lists replaced
+            om = new LinkedList<Marker[]>(om.subList(0, 5));
+            im = new LinkedList<Marker[]>(im.subList(0, 5));
+            packed.update(om, im);
+            assertPackedEquals(om, im, packed);
+        }
+    }
+
+    @Test public void testRejectedCalibration() throws Exception {
+        System.out.println("RejectedCalibration");
+
+        GeometricCalibrator.Settings settings = new GeometricCalibrator.Settings();
+        settings.setIncrementalInterval(1);
+        GeometricCalibrator calibrator = new GeometricCalibrator(settings, new MarkerDetector.Settings(),
+                null, new ProjectiveDevice(new ProjectiveDevice.CalibrationSettings()));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        calibrator.setExecutor(executor);
+
+        ExecutorRegistry.Metrics metrics = ExecutorRegistry.getMetrics(ExecutorRegistry.CALIBRATOR);
+        int queued = metrics.getQueuedCount();
+        Random random = new Random(42);
+        // adding markers still works, without calibrating in the background
+        calibrator.addMarkers(randomMarkers(random, 4), randomMarkers(random, 4));
+        assertEquals(1, calibrator.getImageCount());
+        assertEquals(queued, metrics.getQueuedCount());
+
+        try {
+            calibrator.calibrateInBackground(false);
+            fail("RejectedExecutionException should have been thrown.");
+        } catch (RejectedExecutionException e) {
+            // executor shut down
+        }
+        assertEquals(queued, metrics.getQueuedCount());
+        assertNull(calibrator.getEstimate());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for IPCameraFrameGrabber, decoding images at reduced scales, in color or
+ * in grayscale, with or without an MjpegIngest, from a local MJPEG server over HTTP.
+ *
+ * @author Samuel Audet
+ */
+public class IPCameraFrameGrabberTest {
+    static final int WIDTH = 64, HEIGHT = 48;
+
+    static byte[][] jpegParts(int count) throws Exception {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, (x*4) << 16 | (y*5) << 8 | ((x ^ y) & 0xFF));
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bytes);
+        byte[][] parts = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            parts[i] = bytes.toByteArray();
+        }
+        return parts;
+    }
+
+    static IPCameraFrameGrabber createGrabber(int count, MjpegIngest ingest) throws Exception {
+        ServerSocket server = MjpegIngestTest.serve(jpegParts(count), 5, 1000);
+        IPCameraFrameGrabber grabber = new IPCameraFrameGrabber(MjpegIngestTest.url(server), 5, 5, TimeUnit.SECONDS);
+        grabber.setIngest(ingest);
+        return grabber;
+    }
+
+    static void assertFrame(Frame frame, int scaleDenominator, int channels) {
+        assertNotNull(frame);
+        assertEquals(WIDTH/scaleDenominator, frame.imageWidth);
+        assertEquals(HEIGHT/scaleDenominator, frame.imageHeight);
+        assertEquals(channels, frame.imageChannels);
+    }
+
+    @Test public void testScaleDenominator() throws Exception {
+        System.out.println("ScaleDenominator");
+
+        // in color by default, as before
+        IPCameraFrameGrabber grabber = createGrabber(4, null);
+        grabber.start();
+        assertFrame(grabber.grab(), 1, 3);
+        grabber.setScaleDenominator(2);
+        assertFrame(grabber.grab(), 2, 3);
+
+        // in grayscale, images now have 1 channel, instead of 3
+        grabber.setImageMode(FrameGrabber.ImageMode.GRAY);
+        assertFrame(grabber.grab(), 2, 1);
+        grabber.setScaleDenominator(8);
+        assertFrame(grabber.grab(), 8, 1);
+        grabber.stop();
+
+        try {
+            grabber.setScaleDenominator(3);
+            fail("IllegalArgumentException should have been thrown.");
+        } catch (IllegalArgumentException e) {
+            // only 1, 2, 4, and 8 are supported
+        }
+        assertEquals(8, grabber.getScaleDenominator());
+    }
+
+    @Test public void testScaleDenominatorIngest() throws Exception {
+        System.out.println("ScaleDenominatorIngest");
+
+        MjpegIngest ingest = new MjpegIngest();
+        try {
+            IPCameraFrameGrabber grabber = createGrabber(6, ingest);
+            grabber.setImageMode(FrameGrabber.ImageMode.GRAY);
+            grabber.setScaleDenominator(4);
+            grabber.start();
+            assertFrame(grabber.grab(), 4, 1);
+
+            // images get decoded in the background with the settings of start()
+            grabber.setScaleDenominator(2);
+            grabber.setImageMode(FrameGrabber.ImageMode.COLOR);
+            assertFrame(grabber.grab(), 4, 1);
+            grabber.stop();
+
+            grabber = createGrabber(6, ingest);
+            grabber.setScaleDenominator(2);
+            grabber.start();
+            assertFrame(grabber.grab(), 2, 3);
+            grabber.stop();
+        } finally {
+            ingest.close();
+        }
+    }
+}
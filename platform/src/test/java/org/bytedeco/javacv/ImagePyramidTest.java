@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for ImagePyramid, against cvPyrDown(), and for updates of regions.
+ *
+ * @author Samuel Audet
+ */
+public class ImagePyramidTest {
+
+    static IplImage createImage(Random random, int width, int height, int depth, int channels) {
+        IplImage image = IplImage.create(width, height, depth, channels);
+        if (depth == IPL_DEPTH_32F) {
+            FloatBuffer buf = image.getFloatBuffer();
+            for (int i = 0; i < buf.capacity(); i++) {
+                buf.put(i, random.nextFloat());
+            }
+        } else {
+            ByteBuffer buf = image.getByteBuffer();
+            for (int i = 0; i < buf.capacity(); i++) {
+                buf.put(i, (byte)random.nextInt(256));
+            }
+        }
+        return image;
+    }
+
+    /** Returns levels from cvPyrDown(), after conversion to floating point with the given scale. */
+    static IplImage[] referencePyramid(IplImage image, int minLevel, int maxLevel, double scale) {
+        IplImage[] levels = new IplImage[maxLevel + 1];
+        levels[minLevel] = IplImage.create(image.width(), image.height(), IPL_DEPTH_32F, image.nChannels());
+        cvConvertScale(image, levels[minLevel], scale, 0);
+        for (int i = minLevel + 1; i <= maxLevel; i++) {
+            levels[i] = IplImage.create(levels[i-1].width()/2, levels[i-1].height()/2, IPL_DEPTH_32F, image.nChannels());
+            cvPyrDown(levels[i-1], levels[i], CV_GAUSSIAN_5x5);
+        }
+        return levels;
+    }
+
+    static void assertImageEquals(IplImage expected, IplImage actual, double delta) {
+        assertEquals(expected.width(), actual.width());
+        assertEquals(expected.height(), actual.height());
+        assertEquals(expected.nChannels(), actual.nChannels());
+        int rowLength = expected.width()*expected.nChannels();
+        int expectedStep = expected.widthStep()/4, actualStep = actual.widthStep()/4;
+        FloatBuffer e = expected.getFloatBuffer(), a = actual.getFloatBuffer();
+        for (int y = 0; y < expected.height(); y++) {
+            for (int x = 0; x < rowLength; x++) {
+                assertEquals("at (" + x + ", " + y + ")", e.get(y*expectedStep + x), a.get(y*actualStep + x), delta);
+            }
+        }
+    }
+
+    @Test public void testPyrDown() {
+        System.out.println("PyrDown");
+
+        Random random = new Random(42);
+        // even and odd sizes, several channels, and images converted from bytes
+        int[][] sizes = { { 64, 48 }, { 101, 77 }, { 33, 9 }, { 640, 480 } };
+        for (int[] size : sizes) {
+            for (int channels : new int[] { 1, 3 }) {
+                for (int depth : new int[] { IPL_DEPTH_32F, IPL_DEPTH_8U }) {
+                    IplImage image = createImage(random, size[0], size[1], depth, channels);
+                    double scale = depth == IPL_DEPTH_32F ? 1.0 : 1.0/255;
+                    int maxLevel = size[1] < 16 ? 2 : 4;
+                    IplImage[] expected = referencePyramid(image, 0, maxLevel, scale);
+                    ImagePyramid pyramid = new ImagePyramid(0, maxLevel);
+                    pyramid.setImage(image);
+                    for (int i = 0; i <= maxLevel; i++) {
+                        assertImageEquals(expected[i], pyramid.getImage(i), 1e-5);
+                    }
+                    pyramid.release();
+                }
+            }
+        }
+    }
+
+    @Test public void testRegionUpdate() {
+        System.out.println("RegionUpdate");
+
+        Random random = new Random(7);
+        int width = 320, height = 240, maxLevel = 4;
+        for (int depth : new int[] { IPL_DEPTH_32F, IPL_DEPTH_8U }) {
+            IplImage image = createImage(random, width, height, depth, 1);
+            double scale = depth == IPL_DEPTH_32F ? 1.0 : 1.0/255;
+            ImagePyramid pyramid = new ImagePyramid(0, maxLevel);
+            pyramid.setImage(image);
+            pyramid.getImages(null);
+
+            // change only pixels inside the ROI, which should then give the same
+            // levels as a full pyramid of the new image, even next to the region
+            int[][] rois = { { 70, 50, 90, 60 }, { 0, 0, 40, 30 }, { 250, 190, 70, 50 }, { 5, 3, 1, 1 } };
+            for (int[] r : rois) {
+                IplImage patch = createImage(random, r[2], r[3], depth, 1);
+                CvRect roi = cvRect(r[0], r[1], r[2], r[3]);
+                cvSetImageROI(image, roi);
+                cvCopy(patch, image);
+
+                pyramid.setImage(image);
+                // the ROI of the caller stays as it was
+                IplROI ir = image.roi();
+                assertNotNull(ir);
+                assertEquals(r[0], ir.xOffset());
+                assertEquals(r[1], ir.yOffset());
+                assertEquals(r[2], ir.width());
+                assertEquals(r[3], ir.height());
+
+                IplImage[] levels = pyramid.getImages(null);
+                cvResetImageROI(image);
+                IplImage[] expected = referencePyramid(image, 0, maxLevel, scale);
+                for (int i = 1; i <= maxLevel; i++) {
+                    assertImageEquals(expected[i], levels[i], 1e-5);
+                }
+            }
+
+            // levels that did not get requested for the previous image need a full update
+            image = createImage(random, width, height, depth, 1);
+            pyramid.setImage(image);
+            pyramid.getImage(1);
+            cvSetImageROI(image, cvRect(100, 80, 20, 20));
+            cvCopy(createImage(random, 20, 20, depth, 1), image);
+            pyramid.setImage(image);
+            IplImage[] levels = pyramid.getImages(null);
+            cvResetImageROI(image);
+            IplImage[] expected = referencePyramid(image, 0, maxLevel, scale);
+            for (int i = 1; i <= maxLevel; i++) {
+                assertImageEquals(expected[i], levels[i], 1e-5);
+            }
+            pyramid.release();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for MjpegIngest, with a local MJPEG server over HTTP.
+ *
+ * @author Samuel Audet
+ */
+public class MjpegIngestTest {
+
+    /**
+     * Serves the parts to a single client, pausing between them, then keeps the
+     * connection open without sending anything for holdMillis, and closes it.
+     */
+    static ServerSocket serve(final byte[][] parts, final long pauseMillis, final long holdMillis) throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        Thread t = new Thread() { @Override public void run() {
+            try {
+                Socket socket = server.accept();
+                OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.0 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=frame\r\n\r\n").getBytes("ISO-8859-1"));
+                for (byte[] part : parts) {
+                    out.write(("--frame\r\nContent-Type: image/jpeg\r\nContent-Length: " + part.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.write(part);
+                    out.write("\r\n".getBytes("ISO-8859-1"));
+                    out.flush();
+                    if (pauseMillis > 0) {
+                        Thread.sleep(pauseMillis);
+                    }
+                }
+                Thread.sleep(holdMillis);
+                socket.close();
+                server.close();
+            } catch (Exception e) {
+                // client disconnected
+            }
+        }};
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    static URL url(ServerSocket server) throws IOException {
+        return new URL("http://localhost:" + server.getLocalPort() + "/video.mjpg");
+    }
+
+    /** Returns parts holding only their sequence number, which is enough when not decoding. */
+    static byte[][] numberedParts(int count) {
+        byte[][] parts = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            parts[i] = ByteBuffer.allocate(64).putInt(0, i).array();
+        }
+        return parts;
+    }
+
+    static int number(MjpegIngest.Part p) {
+        return p.getData().getInt(p.getData().position());
+    }
+
+    static void waitForReceived(MjpegIngest.Stream stream, long count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (stream.getReceivedCount() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, stream.getReceivedCount());
+    }
+
+    @Test public void testOrder() throws Exception {
+        System.out.println("Order");
+
+        // JPEG images whose width gives their sequence number, decoded in the background
+        int count = 30;
+        byte[][] parts = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = new BufferedImage(16 + i, 8, BufferedImage.TYPE_3BYTE_BGR);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", bytes);
+            parts[i] = bytes.toByteArray();
+        }
+        ServerSocket server = serve(parts, 5, 1000);
+        MjpegIngest ingest = new MjpegIngest();
+        try {
+            MjpegIngest.Stream stream = ingest.open(url(server), 5000, 5000, count, true);
+            for (int i = 0; i < count; i++) {
+                MjpegIngest.Part p = stream.take(5000);
+                assertNotNull(p);
+                Mat image = p.getImage();
+                assertEquals(16 + i, image.cols());
+                assertEquals(8, image.rows());
+                p.release();
+            }
+            assertEquals(count, stream.getReceivedCount());
+            assertEquals(0, stream.getDroppedCount());
+            stream.close();
+        } finally {
+            ingest.close();
+        }
+    }
+
+    @Test public void testDrops() throws Exception {
+        System.out.println("Drops");
+
+        int count = 20, depth = 4;
+        ServerSocket server = serve(numberedParts(count), 0, 2000);
+        MjpegIngest ingest = new MjpegIngest();
+        try {
+            MjpegIngest.Stream stream = ingest.open(url(server), 5000, 5000, depth, false);
+            waitForReceived(stream, count);
+
+            // only the newest parts remain, still in order
+            assertEquals(count - depth, stream.getDroppedCount());
+            assertEquals(depth, stream.getQueuedCount());
+            for (int i = count - depth; i < count; i++) {
+                MjpegIngest.Part p = stream.take(1000);
+                assertNotNull(p);
+                assertEquals(i, number(p));
+                p.release();
+            }
+            assertEquals(0, stream.getQueuedCount());
+
+            // nothing more comes while the server holds the connection open
+            long start = System.currentTimeMillis();
+            assertNull(stream.take(200));
+            assertTrue(System.currentTimeMillis() - start >= 200);
+            stream.close();
+        } finally {
+            ingest.close();
+        }
+    }
+
+    @Test public void testReadTimeout() throws Exception {
+        System.out.println("ReadTimeout");
+
+        ServerSocket server = serve(numberedParts(1), 0, 10000);
+        MjpegIngest ingest = new MjpegIngest();
+        try {
+            MjpegIngest.Stream stream = ingest.open(url(server), 5000, 300, 4, false);
+            MjpegIngest.Part p = stream.take(5000);
+            assertNotNull(p);
+            assertEquals(0, number(p));
+            p.release();
+
+            // the server stays silent longer than the read timeout
+            long start = System.currentTimeMillis();
+            try {
+                stream.take(-1);
+                fail("IOException should have been thrown.");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Read timed out"));
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Timed out after " + elapsed + " ms", elapsed < 5000);
+            assertEquals(1, stream.getReceivedCount());
+            assertEquals(0, stream.getDroppedCount());
+            stream.close();
+        } finally {
+            ingest.close();
+        }
+    }
+}
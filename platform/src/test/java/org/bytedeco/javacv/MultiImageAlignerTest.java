@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for MultiImageAligner, against independent GNImageAligner instances,
+ * and for the references that aligners hold on shared pyramids.
+ *
+ * @author Samuel Audet
+ */
+public class MultiImageAlignerTest {
+    static final int WIDTH = 640, HEIGHT = 480;
+
+    /** Returns a smoothed random texture. */
+    static IplImage createTemplate(long seed) {
+        IplImage template = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_32F, 1);
+        FloatBuffer buf = template.getFloatBuffer();
+        Random random = new Random(seed);
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, random.nextFloat());
+        }
+        cvSmooth(template, template, CV_GAUSSIAN, 15, 0, 0, 0);
+        return template;
+    }
+
+    /** Warps the template by a small rotation and translation. */
+    static IplImage createTarget(IplImage template, double degrees, double tx, double ty) {
+        IplImage target = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_32F, 1);
+        double angle = Math.toRadians(degrees);
+        double c = Math.cos(angle), s = Math.sin(angle), cx = WIDTH/2, cy = HEIGHT/2;
+        CvMat H = CvMat.create(3, 3);
+        H.put(c, -s, cx - c*cx + s*cy + tx,
+              s,  c, cy - s*cx - c*cy + ty,
+              0,  0, 1);
+        cvWarpPerspective(template, target, H, CV_INTER_LINEAR | CV_WARP_FILL_OUTLIERS, CvScalar.ZERO);
+        return target;
+    }
+
+    static final double[][] ROIS = {
+        { 100, 100,  300, 100,  300, 250,  100, 250 },
+        { 340, 120,  560, 120,  560, 380,  340, 380 },
+        { 150, 280,  330, 280,  330, 440,  150, 440 } };
+
+    static GNImageAligner[] createAligners(IplImage template, IplImage target) {
+        GNImageAligner[] aligners = new GNImageAligner[ROIS.length];
+        for (int i = 0; i < aligners.length; i++) {
+            ProjectiveTransformer transformer = new ProjectiveTransformer(ROIS[i]);
+            aligners[i] = new GNImageAligner(transformer, transformer.createParameters(),
+                    template, ROIS[i], target, new GNImageAligner.Settings());
+        }
+        return aligners;
+    }
+
+    @Test public void testAlign() {
+        System.out.println("Align");
+
+        IplImage template = createTemplate(42);
+        IplImage[] targets = { createTarget(template, 2, 4, -3), createTarget(template, 3, 6, -4) };
+        GNImageAligner[] singles = createAligners(template, targets[0]);
+        MultiImageAligner multi = new MultiImageAligner(createAligners(template, targets[0]));
+
+        // a sequence of two frames, to also check that each aligner tracks from its own last result
+        for (IplImage target : targets) {
+            boolean allConverged = true;
+            boolean[] converged = new boolean[singles.length];
+            for (int i = 0; i < singles.length; i++) {
+                converged[i] = singles[i].align(target);
+                allConverged &= converged[i];
+            }
+            assertEquals(allConverged, multi.align(target));
+            for (int i = 0; i < singles.length; i++) {
+                assertEquals(converged[i], multi.getConverged()[i]);
+                double[] expected = singles[i].getParameters().get();
+                double[] actual = multi.getAligners()[i].getParameters().get();
+                assertEquals(expected.length, actual.length);
+                for (int j = 0; j < expected.length; j++) {
+                    assertEquals(expected[j], actual[j], 0.01);
+                }
+            }
+        }
+        multi.getTargetPyramid().release();
+    }
+
+    @Test public void testPyramidReferences() {
+        System.out.println("PyramidReferences");
+
+        IplImage template = createTemplate(7);
+        IplImage target = createTarget(template, 1, 2, 1);
+        GNImageAligner aligner = createAligners(template, target)[0];
+        ImagePyramid pyramid = new ImagePyramid(0, 4);
+        pyramid.setImage(target);
+
+        aligner.setTargetPyramid(pyramid);
+        assertEquals(2, pyramid.references);
+        aligner.setTargetPyramid(pyramid);
+        assertEquals(2, pyramid.references);
+
+        // plain images replace the pyramid, so the aligner must let go of it
+        aligner.setTargetPyramid(pyramid.getImages(null));
+        assertEquals(1, pyramid.references);
+
+        aligner.setTargetPyramid(pyramid);
+        assertEquals(2, pyramid.references);
+        aligner.setTargetImage(target);
+        assertEquals(1, pyramid.references);
+        pyramid.release();
+        assertEquals(0, pyramid.references);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for MultiObjectFinder, on synthetic keypoints and descriptors.
+ *
+ * @author Samuel Audet
+ */
+public class MultiObjectFinderTest {
+    static final int SIZE = 61;
+
+    static byte[] randomDescriptors(Random random, int count) {
+        byte[] d = new byte[count*SIZE];
+        random.nextBytes(d);
+        return d;
+    }
+
+    static float[] randomPoints(Random random, int count, int width, int height) {
+        float[] p = new float[2*count];
+        for (int i = 0; i < count; i++) {
+            p[2*i    ] = random.nextFloat()*width;
+            p[2*i + 1] = random.nextFloat()*height;
+        }
+        return p;
+    }
+
+    /** Adds three templates with random descriptors, and returns them. */
+    static byte[][] addTemplates(MultiObjectFinder finder, Random random) {
+        int[] counts = { 40, 0, 70 };
+        byte[][] descriptors = new byte[counts.length][];
+        for (int t = 0; t < counts.length; t++) {
+            descriptors[t] = randomDescriptors(random, counts[t]);
+            assertEquals(t, finder.addTemplate(100 + t, 50 + t, randomPoints(random, counts[t], 100, 50), descriptors[t], SIZE));
+        }
+        return descriptors;
+    }
+
+    /**
+     * Makes image descriptors out of copies of template descriptors, with a few bits flipped,
+     * followed by random ones, which are far from all the others.
+     */
+    static void setImageDescriptors(MultiObjectFinder finder, Random random, byte[][] copies, int extra) {
+        int count = extra;
+        for (byte[] c : copies) {
+            count += c.length/SIZE;
+        }
+        byte[] d = new byte[count*SIZE];
+        int n = 0;
+        for (byte[] c : copies) {
+            System.arraycopy(c, 0, d, n, c.length);
+            n += c.length;
+        }
+        for (int i = 0; i < n; i += 3*SIZE) {
+            d[i + random.nextInt(SIZE)] ^= 1 << random.nextInt(8);
+        }
+        System.arraycopy(randomDescriptors(random, extra), 0, d, n, extra*SIZE);
+        finder.imageDescriptors = new Mat(count, SIZE, CV_8UC1);
+        ((ByteBuffer)finder.imageDescriptors.createBuffer()).put(d);
+        finder.imageKeypoints = new KeyPointVector(count);
+        for (int i = 0; i < count; i++) {
+            finder.imageKeypoints.put(i, new KeyPoint(i, 2*i, 1));
+        }
+    }
+
+    @Test public void testAddTemplate() {
+        System.out.println("AddTemplate");
+
+        MultiObjectFinder finder = new MultiObjectFinder();
+        Random random = new Random(42);
+        addTemplates(finder, random);
+        assertEquals(3, finder.getTemplateCount());
+        assertEquals(101, finder.getTemplateWidth(1));
+        assertEquals(52, finder.getTemplateHeight(2));
+        assertEquals(40, finder.getTemplateDescriptorCount(0));
+        assertEquals(0, finder.getTemplateDescriptorCount(1));
+        assertEquals(70, finder.getTemplateDescriptorCount(2));
+
+        try {
+            finder.addTemplate(10, 10, new float[4], new byte[2*32], 32);
+            fail("IllegalArgumentException should have been thrown.");
+        } catch (IllegalArgumentException e) {
+            // descriptor size different from the previous templates
+        }
+        try {
+            finder.addTemplate(10, 10, new float[4], new byte[SIZE], SIZE);
+            fail("IllegalArgumentException should have been thrown.");
+        } catch (IllegalArgumentException e) {
+            // fewer descriptors than keypoints
+        }
+        assertEquals(3, finder.getTemplateCount());
+
+        finder.clearTemplates();
+        assertEquals(0, finder.getTemplateCount());
+        finder.addTemplate(10, 10, new float[4], new byte[2*32], 32);
+        assertEquals(1, finder.getTemplateCount());
+    }
+
+    @Test public void testFindPairs() {
+        System.out.println("FindPairs");
+
+        Random random = new Random(42);
+        for (boolean useFLANN : new boolean[] { false, true }) {
+            MultiObjectFinder finder = new MultiObjectFinder();
+            finder.getSettings().setUseFLANN(useFLANN);
+            byte[][] descriptors = addTemplates(finder, random);
+            byte[] last = new byte[20*SIZE];
+            System.arraycopy(descriptors[2], 50*SIZE, last, 0, last.length);
+            setImageDescriptors(finder, random, new byte[][] { descriptors[0], last }, 30);
+
+            finder.buildIndex();
+            assertEquals(useFLANN, finder.flannIndex != null);
+            int total = finder.imageDescriptors.rows();
+            finder.findPairs(total);
+
+            // each copy matches its original, while random descriptors match nothing
+            int[] pairs0 = finder.getPairs(0), pairs1 = finder.getPairs(1), pairs2 = finder.getPairs(2);
+            assertEquals(0, pairs1.length);
+            if (useFLANN) {
+                // approximate search, so only check that the pairs found are correct
+                assertTrue(pairs0.length > 0 && pairs2.length > 0);
+            } else {
+                assertEquals(2*40, pairs0.length);
+                assertEquals(2*20, pairs2.length);
+            }
+            for (int i = 0; i < pairs0.length; i += 2) {
+                assertEquals(pairs0[i], pairs0[i + 1]);
+            }
+            for (int i = 0; i < pairs2.length; i += 2) {
+                assertEquals(pairs2[i], pairs2[i + 1] - 40 + 50);
+            }
+        }
+    }
+
+    @Test public void testUseFLANN() {
+        System.out.println("UseFLANN");
+
+        // switching the settings rebuilds the index the other way
+        MultiObjectFinder finder = new MultiObjectFinder();
+        Random random = new Random(7);
+        byte[][] descriptors = addTemplates(finder, random);
+        setImageDescriptors(finder, random, descriptors, 0);
+        finder.buildIndex();
+        assertNull(finder.flannIndex);
+        assertNotNull(finder.indexBits);
+        finder.getSettings().setUseFLANN(true);
+        finder.buildIndex();
+        assertNotNull(finder.flannIndex);
+        finder.getSettings().setUseFLANN(false);
+        finder.buildIndex();
+        assertNull(finder.flannIndex);
+        finder.findPairs(finder.imageDescriptors.rows());
+        assertEquals(2*40, finder.getPairs(0).length);
+        assertEquals(2*70, finder.getPairs(2).length);
+
+        // image descriptors of another size get rejected
+        finder.imageDescriptors = new Mat(10, SIZE - 1, CV_8UC1);
+        try {
+            finder.findPairs(10);
+            fail("IllegalArgumentException should have been thrown.");
+        } catch (IllegalArgumentException e) {
+            // descriptor size different from the templates
+        }
+    }
+
+    @Test public void testWriteRead() throws Exception {
+        System.out.println("WriteRead");
+
+        MultiObjectFinder finder = new MultiObjectFinder();
+        addTemplates(finder, new Random(42));
+        File file = File.createTempFile("templates", ".yml");
+        file.deleteOnExit();
+        finder.write(file);
+
+        MultiObjectFinder finder2 = new MultiObjectFinder();
+        finder2.read(file);
+        assertEquals(finder.getTemplateCount(), finder2.getTemplateCount());
+        for (int t = 0; t < finder.getTemplateCount(); t++) {
+            assertEquals(finder.getTemplateWidth(t), finder2.getTemplateWidth(t));
+            assertEquals(finder.getTemplateHeight(t), finder2.getTemplateHeight(t));
+            assertEquals(finder.getTemplateDescriptorCount(t), finder2.getTemplateDescriptorCount(t));
+        }
+        int n = finder.descriptorCount;
+        assertEquals(n, finder2.descriptorCount);
+        assertEquals(finder.descriptorSize, finder2.descriptorSize);
+        for (int i = 0; i < 2*n; i++) {
+            assertEquals(finder.points[i], finder2.points[i], 0);
+        }
+        for (int i = 0; i < n*SIZE; i++) {
+            assertEquals(finder.descriptors[i], finder2.descriptors[i]);
+        }
+
+        // a file that cannot be created
+        File dir = new File(file.getParentFile(), file.getName() + ".missing");
+        try {
+            finder.write(new File(dir, "templates.yml"));
+            fail("MultiObjectFinder.Exception should have been thrown.");
+        } catch (MultiObjectFinder.Exception e) {
+            assertTrue(e.getMessage().contains("Could not open"));
+        }
+    }
+}
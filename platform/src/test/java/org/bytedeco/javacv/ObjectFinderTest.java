@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the brute-force matcher of ObjectFinder, against the byte by byte
+ * code it replaced.
+ *
+ * @author Samuel Audet
+ */
+public class ObjectFinderTest {
+
+    /** Draws random rectangles, so that the detector finds at least a few keypoints. */
+    static IplImage createObjectImage(Random random) {
+        IplImage image = IplImage.create(160, 120, IPL_DEPTH_8U, 1);
+        cvSet(image, cvScalarAll(0));
+        for (int i = 0; i < 20; i++) {
+            int x = random.nextInt(140), y = random.nextInt(100);
+            cvRectangle(image, cvPoint(x, y), cvPoint(x + 5 + random.nextInt(15), y + 5 + random.nextInt(15)),
+                    cvScalarAll(64 + random.nextInt(192)), CV_FILLED, 8, 0);
+        }
+        return image;
+    }
+
+    /** Fills a matrix of descriptors with bytes drawn from only a few values, to get ties between distances. */
+    static Mat createDescriptors(Random random, int rows, int size, int values) {
+        Mat descriptors = new Mat(rows, size, CV_8UC1);
+        ByteBuffer buf = descriptors.createBuffer();
+        for (int i = 0; i < rows*size; i++) {
+            buf.put(i, (byte)(random.nextInt(values)*0x35));
+        }
+        return descriptors;
+    }
+
+    static final int[] bits = new int[256];
+    static {
+        for (int i = 0; i < bits.length; i++) {
+            for (int j = i; j != 0; j >>= 1) {
+                bits[i] += j & 0x1;
+            }
+        }
+    }
+
+    /** The previous implementation of ObjectFinder.compareDescriptors(). */
+    static int compareDescriptors(ByteBuffer d1, ByteBuffer d2, int best) {
+        int totalCost = 0;
+        assert d1.limit() - d1.position() == d2.limit() - d2.position();
+        while (d1.position() < d1.limit()) {
+            totalCost += bits[(d1.get() ^ d2.get()) & 0xFF];
+            if (totalCost > best)
+                break;
+        }
+        return totalCost;
+    }
+
+    /** The previous implementation of ObjectFinder.naiveNearestNeighbor(). */
+    static int naiveNearestNeighbor(ByteBuffer vec, ByteBuffer modelDescriptors, double distanceThreshold) {
+        int neighbor = -1;
+        int d, dist1 = Integer.MAX_VALUE, dist2 = Integer.MAX_VALUE;
+        int size = vec.limit() - vec.position();
+
+        for (int i = 0; i * size < modelDescriptors.capacity(); i++) {
+            ByteBuffer mvec = (ByteBuffer)modelDescriptors.position(i * size).limit((i + 1) * size);
+            d = compareDescriptors((ByteBuffer)vec.reset(), mvec, dist2);
+            if (d < dist1) {
+                dist2 = dist1;
+                dist1 = d;
+                neighbor = i;
+            } else if (d < dist2) {
+                dist2 = d;
+            }
+        }
+        if (dist1 < distanceThreshold*dist2)
+            return neighbor;
+        return -1;
+    }
+
+    /** The previous implementation of ObjectFinder.findPairs(). */
+    static void findPairs(Mat objectDescriptors, Mat imageDescriptors, double distanceThreshold, ArrayList<Integer> ptpairs) {
+        int size = imageDescriptors.cols();
+        ByteBuffer objectBuf = objectDescriptors.createBuffer();
+        ByteBuffer imageBuf = imageDescriptors.createBuffer();
+
+        for (int i = 0; i * size < objectBuf.capacity(); i++) {
+            ByteBuffer descriptor = (ByteBuffer)objectBuf.position(i * size).limit((i + 1) * size).mark();
+            int nearestNeighbor = naiveNearestNeighbor(descriptor, imageBuf, distanceThreshold);
+            if (nearestNeighbor >= 0) {
+                ptpairs.add(i);
+                ptpairs.add(nearestNeighbor);
+            }
+        }
+    }
+
+    @Test public void testFindPairs() {
+        System.out.println("FindPairs");
+
+        Random random = new Random(42);
+        ObjectFinder finder = new ObjectFinder(createObjectImage(random));
+        ObjectFinder.Workspace ws = new ObjectFinder.Workspace();
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+
+        // sizes around multiples of 8 bytes, AKAZE-sized descriptors, and
+        // row counts that do not divide evenly into blocks of object and image rows
+        int[] sizes = { 1, 7, 8, 9, 16, 31, 32, 33, 61, 64, 70 };
+        int[][] rows = { { 1, 1 }, { 1, 2 }, { 15, 17 }, { 17, 255 }, { 33, 257 }, { 50, 600 } };
+        double[] thresholds = { 0.75, 1.0, 0.5 };
+        for (int size : sizes) {
+            for (int[] r : rows) {
+                for (int values : new int[] { 2, 256 }) {
+                    Mat objectDescriptors = createDescriptors(random, r[0], size, values);
+                    Mat imageDescriptors = createDescriptors(random, r[1], size, values);
+                    finder.objectDescriptors = objectDescriptors;
+                    finder.objectBits = ObjectFinder.packDescriptors(objectDescriptors, null);
+                    ws.imageDescriptors = imageDescriptors;
+                    for (double threshold : thresholds) {
+                        finder.settings.distanceThreshold = threshold;
+                        expected.clear();
+                        findPairs(objectDescriptors, imageDescriptors, threshold, expected);
+
+                        ws.pairCount = 0;
+                        finder.findPairs(ws);
+                        assertEquals(expected.size()/2, ws.getPairCount());
+                        for (int i = 0; i < expected.size(); i++) {
+                            assertEquals((int)expected.get(i), ws.getPairs()[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test public void testHeader() {
+        System.out.println("Header");
+
+        Random random = new Random(42);
+        IplImage image = createObjectImage(random), other = createObjectImage(random);
+        ObjectFinder.Workspace ws = new ObjectFinder.Workspace();
+
+        // the same header while nothing changes, and a new one otherwise
+        Mat header = ws.header(image);
+        assertEquals(image.width(), header.cols());
+        assertSame(header, ws.header(image));
+        Mat otherHeader = ws.header(other);
+        assertNotSame(header, otherHeader);
+        assertEquals(other.imageData().address(), otherHeader.data().address());
+
+        cvSetImageROI(other, cvRect(10, 20, 30, 40));
+        Mat roiHeader = ws.header(other);
+        assertNotSame(otherHeader, roiHeader);
+        assertEquals(30, roiHeader.cols());
+        assertEquals(40, roiHeader.rows());
+        assertSame(roiHeader, ws.header(other));
+        cvResetImageROI(other);
+        assertEquals(other.width(), ws.header(other).cols());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for Parallel, checking how loops get split among loopers,
+ * statically for a plain Looper and in chunks for an AdaptiveLooper.
+ *
+ * @author Samuel Audet
+ */
+public class ParallelTest {
+    static final int[][] RANGES = { { 0, 1 }, { 3, 5 }, { 0, 7 }, { -10, 13 }, { 0, 1000 }, { 5, 10007 } };
+    static final int[] THREADS = { 1, 2, 3, 4, 16 };
+
+    /** Counts calls per index, and checks that no two calls with the same looperID overlap. */
+    static class CountingLooper implements Parallel.Looper {
+        final int from;
+        final AtomicIntegerArray counts, running, calls;
+        volatile String error = null;
+
+        CountingLooper(int from, int to, int numThreads) {
+            this.from = from;
+            this.counts = new AtomicIntegerArray(to - from);
+            this.running = new AtomicIntegerArray(numThreads);
+            this.calls = new AtomicIntegerArray(numThreads);
+        }
+
+        @Override public void loop(int from, int to, int looperID) {
+            if (looperID < 0 || looperID >= running.length()) {
+                error = "Invalid looperID " + looperID;
+                return;
+            }
+            if (from >= to) {
+                error = "Empty range " + from + ".." + to + " for looperID " + looperID;
+            }
+            if (running.incrementAndGet(looperID) != 1) {
+                error = "Concurrent calls for looperID " + looperID;
+            }
+            calls.incrementAndGet(looperID);
+            for (int i = from; i < to; i++) {
+                counts.incrementAndGet(i - this.from);
+                // uneven work, so that loopers take a varying number of chunks
+                if (i % 97 == 0) {
+                    Thread.yield();
+                }
+            }
+            running.decrementAndGet(looperID);
+        }
+
+        void check() {
+            assertNull(error, error);
+            for (int i = 0; i < counts.length(); i++) {
+                assertEquals("Index " + (i + from), 1, counts.get(i));
+            }
+        }
+    }
+
+    static class AdaptiveCountingLooper extends CountingLooper implements Parallel.AdaptiveLooper {
+        AdaptiveCountingLooper(int from, int to, int numThreads) {
+            super(from, to, numThreads);
+        }
+    }
+
+    @Test public void testStaticLoop() {
+        System.out.println("StaticLoop");
+
+        for (int[] r : RANGES) {
+            for (int n : THREADS) {
+                CountingLooper looper = new CountingLooper(r[0], r[1], n);
+                Parallel.loop(r[0], r[1], n, looper);
+                looper.check();
+                // one contiguous range per looper, none of them idle
+                int loopers = Math.min(r[1] - r[0], n);
+                for (int i = 0; i < n; i++) {
+                    assertEquals(i < loopers ? 1 : 0, looper.calls.get(i));
+                }
+            }
+        }
+    }
+
+    @Test public void testAdaptiveLoop() {
+        System.out.println("AdaptiveLoop");
+
+        for (int[] r : RANGES) {
+            for (int n : THREADS) {
+                AdaptiveCountingLooper looper = new AdaptiveCountingLooper(r[0], r[1], n);
+                Parallel.loop(r[0], r[1], n, looper);
+                looper.check();
+                // no more chunks than guided scheduling creates, and never a looperID out of range
+                int loopers = Math.min(r[1] - r[0], n);
+                int chunk = Math.max(1, (r[1] - r[0]) / (4*loopers));
+                int total = 0;
+                for (int i = 0; i < n; i++) {
+                    if (i >= loopers) {
+                        assertEquals(0, looper.calls.get(i));
+                    }
+                    total += looper.calls.get(i);
+                }
+                assertTrue(total >= 1);
+                assertTrue(total <= (r[1] - r[0] + chunk - 1) / chunk);
+                if (loopers == 1) {
+                    assertEquals(1, looper.calls.get(0));
+                }
+            }
+        }
+    }
+
+    @Test public void testNestedLoop() {
+        System.out.println("NestedLoop");
+
+        final int outer = 8, inner = 100;
+        final AtomicIntegerArray counts = new AtomicIntegerArray(outer*inner);
+        final String[] error = { null };
+        Parallel.loop(0, outer, 4, new Parallel.AdaptiveLooper() {
+            @Override public void loop(int from, int to, int looperID) {
+                for (int i = from; i < to; i++) {
+                    final int row = i;
+                    final Thread thread = Thread.currentThread();
+                    if (!Parallel.isNested()) {
+                        error[0] = "Not nested in looperID " + looperID;
+                    }
+                    // runs inline, on the same thread, as a single looper
+                    Parallel.loop(0, inner, 4, new Parallel.Looper() {
+                        @Override public void loop(int from, int to, int looperID) {
+                            if (looperID != 0 || from != 0 || to != inner || Thread.currentThread() != thread) {
+                                error[0] = "Nested loop not inline: " + from + ".." + to + " for looperID " + looperID;
+                            }
+                            for (int j = from; j < to; j++) {
+                                counts.incrementAndGet(row*inner + j);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        assertNull(error[0], error[0]);
+        for (int i = 0; i < counts.length(); i++) {
+            assertEquals(1, counts.get(i));
+        }
+        assertFalse(Parallel.isNested());
+    }
+
+    @Test public void testLoopError() {
+        System.out.println("LoopError");
+
+        for (int n : THREADS) {
+            try {
+                Parallel.loop(0, 100, n, new Parallel.AdaptiveLooper() {
+                    @Override public void loop(int from, int to, int looperID) {
+                        if (from <= 50 && 50 < to) {
+                            throw new IllegalStateException("Failed at 50");
+                        }
+                    }
+                });
+                fail("IllegalStateException should have been thrown.");
+            } catch (RuntimeException e) {
+                Throwable t = e instanceof IllegalStateException ? e : e.getCause();
+                assertTrue(String.valueOf(t), t instanceof IllegalStateException);
+            }
+            assertFalse(Parallel.isNested());
+
+            // the thread-local tasks are still usable afterwards
+            CountingLooper looper = new AdaptiveCountingLooper(0, 100, n);
+            Parallel.loop(0, 100, n, looper);
+            looper.check();
+        }
+    }
+
+    @Test public void testStatistics() {
+        System.out.println("Statistics");
+
+        Parallel.resetStatistics();
+        Parallel.setStatisticsEnabled(true);
+        try {
+            for (int k = 0; k < 10; k++) {
+                Parallel.loop(0, 1000, 4, new AdaptiveCountingLooper(0, 1000, 4));
+            }
+        } finally {
+            Parallel.setStatisticsEnabled(false);
+        }
+        Parallel.LoopStatistics s = Parallel.getStatistics().get(AdaptiveCountingLooper.class);
+        assertNotNull(s);
+        assertEquals(10, s.getLoopCount());
+        assertTrue(s.getMeanImbalance() >= 0);
+        assertTrue(s.getMaxImbalance() >= s.getMeanImbalance());
+        assertTrue(s.getTotalNanos() >= s.getMaxNanos());
+        Parallel.resetStatistics();
+        assertNull(Parallel.getStatistics().get(AdaptiveCountingLooper.class));
+    }
+}
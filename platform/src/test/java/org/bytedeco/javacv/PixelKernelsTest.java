@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the bulk kernels of JavaCV.clamp(), JavaCV.hysteresisThreshold(), and
+ * Java2DFrameConverter.applyGamma(), against the element by element code they replaced,
+ * and for ProjectiveDevice.undistortColor(), against the separate passes it fuses.
+ *
+ * @author Samuel Audet
+ */
+public class PixelKernelsTest {
+    static final int WIDTH = 641, HEIGHT = 97; // odd sizes, so that rows get padded and blocks split unevenly
+    static final double[][] BOUNDS = { { 10, 200 }, { -3.5, 100.25 }, { 0.5, 0.75 }, { -1e9, 1e9 }, { 50, 20 }, { 300, 400 } };
+
+    @Test public void testClamp() {
+        System.out.println("clamp");
+
+        Random random = new Random(42);
+        int[] depths = { IPL_DEPTH_8U, IPL_DEPTH_8S, IPL_DEPTH_16U, IPL_DEPTH_16S, IPL_DEPTH_32S, IPL_DEPTH_32F, IPL_DEPTH_64F };
+        for (int depth : depths) {
+            for (double[] bounds : BOUNDS) {
+                double min = bounds[0], max = bounds[1];
+                IplImage src = IplImage.create(WIDTH, HEIGHT, depth, 1);
+                IplImage dst = IplImage.create(WIDTH, HEIGHT, depth, 1);
+                switch (depth) {
+                    case IPL_DEPTH_8U:
+                    case IPL_DEPTH_8S: {
+                        ByteBuffer sb = src.getByteBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            sb.put(i, (byte)random.nextInt());
+                        }
+                        JavaCV.clamp(src, dst, min, max);
+                        ByteBuffer db = dst.getByteBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            int in = depth == IPL_DEPTH_8U ? sb.get(i) & 0xFF : sb.get(i);
+                            assertEquals((byte)Math.max(Math.min(in, max), min), db.get(i));
+                        }
+                        break;
+                    }
+                    case IPL_DEPTH_16U:
+                    case IPL_DEPTH_16S: {
+                        ShortBuffer sb = src.getShortBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            sb.put(i, (short)random.nextInt());
+                        }
+                        JavaCV.clamp(src, dst, min, max);
+                        ShortBuffer db = dst.getShortBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            int in = depth == IPL_DEPTH_16U ? sb.get(i) & 0xFFFF : sb.get(i);
+                            assertEquals((short)Math.max(Math.min(in, max), min), db.get(i));
+                        }
+                        break;
+                    }
+                    case IPL_DEPTH_32S: {
+                        IntBuffer sb = src.getIntBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            sb.put(i, random.nextInt(1000) - 500);
+                        }
+                        JavaCV.clamp(src, dst, min, max);
+                        IntBuffer db = dst.getIntBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            assertEquals((int)Math.max(Math.min(sb.get(i), max), min), db.get(i));
+                        }
+                        break;
+                    }
+                    case IPL_DEPTH_32F: {
+                        FloatBuffer sb = src.getFloatBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            sb.put(i, (float)(random.nextGaussian() * 500));
+                        }
+                        JavaCV.clamp(src, dst, min, max);
+                        FloatBuffer db = dst.getFloatBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            assertEquals((float)Math.max(Math.min(sb.get(i), max), min), db.get(i), 0);
+                        }
+                        break;
+                    }
+                    case IPL_DEPTH_64F: {
+                        DoubleBuffer sb = src.getDoubleBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            sb.put(i, random.nextGaussian() * 500);
+                        }
+                        JavaCV.clamp(src, dst, min, max);
+                        DoubleBuffer db = dst.getDoubleBuffer();
+                        for (int i = 0; i < sb.capacity(); i++) {
+                            assertEquals(Math.max(Math.min(sb.get(i), max), min), db.get(i), 0);
+                        }
+                        break;
+                    }
+                    default: fail();
+                }
+            }
+        }
+    }
+
+    @Test public void testHysteresisThreshold() {
+        System.out.println("hysteresisThreshold");
+
+        Random random = new Random(42);
+        IplImage src = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        IplImage dst = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        IplImage ref = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+        ByteBuffer sb = src.getByteBuffer();
+        int step = src.widthStep();
+        for (int n = 0; n < 3; n++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    // smooth ridges crossing the image, with noise, so that propagation matters in both passes
+                    double v = 128 + 100 * Math.sin(x / (7.0 + n) + y / (5.0 + 2 * n)) + random.nextGaussian() * 20;
+                    sb.put(y * step + x, (byte)Math.max(0, Math.min(255, (int)v)));
+                }
+            }
+            double high = 180 + 20 * n, low = 60 + 30 * n, max = n == 2 ? 200 : 255;
+            JavaCV.hysteresisThreshold(src, dst, high, low, max);
+            referenceHysteresisThreshold(src, ref, high, low, max);
+            ByteBuffer db = dst.getByteBuffer(), rb = ref.getByteBuffer();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals("at (" + x + ", " + y + ")", rb.get(y * ref.widthStep() + x), db.get(y * dst.widthStep() + x));
+                }
+            }
+        }
+    }
+
+    @Test public void testApplyGamma() {
+        System.out.println("applyGamma");
+
+        Random random = new Random(42);
+        int[] depths = { Frame.DEPTH_UBYTE, Frame.DEPTH_BYTE, Frame.DEPTH_USHORT, Frame.DEPTH_SHORT,
+                         Frame.DEPTH_INT, Frame.DEPTH_FLOAT, Frame.DEPTH_DOUBLE };
+        double[] gammas = { 2.2, 1/2.2, 0.7, 1.8 };
+        for (int depth : depths) {
+            for (double gamma : gammas) {
+                Frame frame = new Frame(WIDTH, HEIGHT, depth, 3);
+                int stride = frame.imageStride, length = stride * HEIGHT;
+                switch (depth) {
+                    case Frame.DEPTH_UBYTE:
+                    case Frame.DEPTH_BYTE: {
+                        ByteBuffer b = (ByteBuffer)frame.image[0];
+                        for (int i = 0; i < length; i++) {
+                            b.put(i, (byte)random.nextInt());
+                        }
+                        ByteBuffer src = ByteBuffer.allocate(length).put((ByteBuffer)b.duplicate().clear());
+                        ByteBuffer ref = ByteBuffer.allocate(length);
+                        src.position(0);
+                        Java2DFrameConverter.flipCopyWithGamma(src, stride, ref, stride, depth == Frame.DEPTH_BYTE, gamma, false, 0);
+                        Java2DFrameConverter.applyGamma(frame, gamma);
+                        for (int i = 0; i < length; i++) {
+                            assertEquals(ref.get(i), b.get(i));
+                        }
+                        break;
+                    }
+                    case Frame.DEPTH_USHORT:
+                    case Frame.DEPTH_SHORT: {
+                        ShortBuffer b = (ShortBuffer)frame.image[0];
+                        for (int i = 0; i < length; i++) {
+                            b.put(i, (short)random.nextInt());
+                        }
+                        ShortBuffer src = ShortBuffer.allocate(length).put((ShortBuffer)b.duplicate().clear());
+                        ShortBuffer ref = ShortBuffer.allocate(length);
+                        src.position(0);
+                        Java2DFrameConverter.flipCopyWithGamma(src, stride, ref, stride, depth == Frame.DEPTH_SHORT, gamma, false, 0);
+                        Java2DFrameConverter.applyGamma(frame, gamma);
+                        for (int i = 0; i < length; i++) {
+                            assertEquals(ref.get(i), b.get(i));
+                        }
+                        break;
+                    }
+                    case Frame.DEPTH_INT: {
+                        IntBuffer b = (IntBuffer)frame.image[0];
+                        for (int i = 0; i < length; i++) {
+                            b.put(i, random.nextInt(Integer.MAX_VALUE));
+                        }
+                        IntBuffer src = IntBuffer.allocate(length).put((IntBuffer)b.duplicate().clear());
+                        IntBuffer ref = IntBuffer.allocate(length);
+                        src.position(0);
+                        Java2DFrameConverter.flipCopyWithGamma(src, stride, ref, stride, gamma, false, 0);
+                        Java2DFrameConverter.applyGamma(frame, gamma);
+                        for (int i = 0; i < length; i++) {
+                            assertEquals(ref.get(i), b.get(i));
+                        }
+                        break;
+                    }
+                    case Frame.DEPTH_FLOAT: {
+                        FloatBuffer b = (FloatBuffer)frame.image[0];
+                        for (int i = 0; i < length; i++) {
+                            b.put(i, random.nextFloat());
+                        }
+                        FloatBuffer src = FloatBuffer.allocate(length).put((FloatBuffer)b.duplicate().clear());
+                        FloatBuffer ref = FloatBuffer.allocate(length);
+                        src.position(0);
+                        Java2DFrameConverter.flipCopyWithGamma(src, stride, ref, stride, gamma, false, 0);
+                        Java2DFrameConverter.applyGamma(frame, gamma);
+                        for (int i = 0; i < length; i++) {
+                            assertEquals(ref.get(i), b.get(i), 0);
+                        }
+                        break;
+                    }
+                    case Frame.DEPTH_DOUBLE: {
+                        DoubleBuffer b = (DoubleBuffer)frame.image[0];
+                        for (int i = 0; i < length; i++) {
+                            b.put(i, random.nextDouble());
+                        }
+                        DoubleBuffer src = DoubleBuffer.allocate(length).put((DoubleBuffer)b.duplicate().clear());
+                        DoubleBuffer ref = DoubleBuffer.allocate(length);
+                        src.position(0);
+                        Java2DFrameConverter.flipCopyWithGamma(src, stride, ref, stride, gamma, false, 0);
+                        Java2DFrameConverter.applyGamma(frame, gamma);
+                        for (int i = 0; i < length; i++) {
+                            assertEquals(ref.get(i), b.get(i), 0);
+                        }
+                        break;
+                    }
+                    default: fail();
+                }
+            }
+        }
+    }
+
+    @Test public void testApplyGammaRange() throws Exception {
+        System.out.println("applyGammaRange");
+
+        // only the elements between the position and the limit change, even across blocks
+        Random random = new Random(42);
+        int length = 3*PixelKernels.BLOCK_SIZE + 17, position = 100, limit = length - 50;
+        ByteBuffer b = ByteBuffer.allocateDirect(length);
+        FloatBuffer f = FloatBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            b.put(i, (byte)random.nextInt());
+            f.put(i, random.nextFloat());
+        }
+        ByteBuffer bref = ByteBuffer.allocate(length).put((ByteBuffer)b.duplicate().clear());
+        FloatBuffer fref = FloatBuffer.allocate(length).put((FloatBuffer)f.duplicate().clear());
+        b.limit(limit).position(position);
+        f.limit(limit).position(position);
+        Java2DFrameConverter.applyGamma(b, Frame.DEPTH_UBYTE, length, 1.8);
+        Java2DFrameConverter.applyGamma(f, Frame.DEPTH_FLOAT, length, 1.8);
+        assertEquals(position, b.position());
+        assertEquals(limit, b.limit());
+        for (int i = 0; i < length; i++) {
+            byte bin = bref.get(i);
+            float fin = fref.get(i);
+            if (i >= position && i < limit) {
+                assertEquals((byte)Math.round(Math.pow((double)(bin & 0xFF)/0xFF, 1.8)*0xFF), b.get(i));
+                assertEquals((float)Math.pow(fin, 1.8), f.get(i), 0);
+            } else {
+                assertEquals(bin, b.get(i));
+                assertEquals(fin, f.get(i), 0);
+            }
+        }
+
+        // tables for different gammas requested concurrently never get mixed up
+        Thread[] threads = new Thread[4];
+        final Throwable[] error = { null };
+        for (int t = 0; t < threads.length; t++) {
+            final double gamma = 0.5 + t;
+            threads[t] = new Thread() { @Override public void run() {
+                try {
+                    for (int k = 0; k < 200; k++) {
+                        byte[] table = (byte[])Java2DFrameConverter.gammaTable(Frame.DEPTH_UBYTE, gamma);
+                        assertEquals((byte)Math.round(Math.pow(100.0/0xFF, gamma)*0xFF), table[100]);
+                    }
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }};
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(error[0]);
+    }
+
+    @Test public void testUndistortColor() {
+        System.out.println("undistortColor");
+
+        // sizes divisible by 4, where cvResize() with CV_INTER_AREA averages exactly 2x2 or 4x4 pixels
+        int width = 644, height = 100;
+        ProjectiveDevice device = new ProjectiveDevice("Test");
+        device.imageWidth  = width;
+        device.imageHeight = height;
+        device.cameraMatrix = CvMat.create(3, 3);
+        device.cameraMatrix.put(0.8*width, 0, width/2.0,  0, 0.8*width, height/2.0,  0, 0, 1);
+        device.distortionCoeffs = CvMat.create(1, 5);
+        device.distortionCoeffs.put(-0.25, 0.08, 0.001, -0.001, 0);
+        CvMat mixing = CvMat.create(3, 3), additive = CvMat.create(3, 1);
+        mixing.put(0.9, 0.1, 0.05,  0.05, 1.1, 0.0,  0.02, 0.08, 0.95);
+
+        Random random = new Random(42);
+        for (int depth : new int[] { IPL_DEPTH_8U, IPL_DEPTH_32F }) {
+            boolean bytes = depth == IPL_DEPTH_8U;
+            additive.put(bytes ? 5 : 0.02, bytes ? -3 : -0.01, bytes ? 2 : 0.01);
+            for (int channels : new int[] { 1, 3, 4 }) {
+                IplImage src = IplImage.create(width, height, depth, channels);
+                if (bytes) {
+                    ByteBuffer b = src.getByteBuffer();
+                    for (int i = 0; i < b.capacity(); i++) {
+                        b.put(i, (byte)random.nextInt(256));
+                    }
+                } else {
+                    FloatBuffer b = src.getFloatBuffer();
+                    for (int i = 0; i < b.capacity(); i++) {
+                        b.put(i, random.nextFloat());
+                    }
+                }
+                // smooth, as with real images, so that rounding at different steps does not add up
+                cvSmooth(src, src, CV_GAUSSIAN, 5, 0, 0, 0);
+                for (boolean fixed : new boolean[] { false, true }) {
+                    device.setFixedPointMaps(fixed);
+                    for (boolean mix : new boolean[] { false, true }) {
+                        device.colorMixingMatrix = mix ? mixing : null;
+                        device.additiveLight = mix ? additive : null;
+                        for (int level = 0; level <= 2; level++) {
+                            IplImage expected = IplImage.create(width >> level, height >> level, depth, channels);
+                            IplImage actual = IplImage.create(width >> level, height >> level, depth, channels);
+                            device.undistortColorSeparately(src, expected, level);
+                            device.undistortColor(src, actual, level);
+                            assertImageClose(expected, actual, bytes ? 3 : 1e-3);
+                        }
+                    }
+                }
+            }
+        }
+
+        // sizes that do not match get rejected, instead of reading or writing out of bounds
+        IplImage src = IplImage.create(width, height, IPL_DEPTH_8U, 3);
+        int[][] sizes = { { width/2 + 1, height/2 }, { width, height }, { width/2, height/2 - 1 } };
+        for (int[] size : sizes) {
+            try {
+                device.undistortColor(src, IplImage.create(size[0], size[1], IPL_DEPTH_8U, 3), 1);
+                fail("IllegalArgumentException should have been thrown.");
+            } catch (IllegalArgumentException e) {
+                // size of dst not the one of src down by 2
+            }
+        }
+        try {
+            device.undistortColor(IplImage.create(width/2, height/2, IPL_DEPTH_8U, 3),
+                    IplImage.create(width/4, height/4, IPL_DEPTH_8U, 3), 1);
+            fail("IllegalArgumentException should have been thrown.");
+        } catch (IllegalArgumentException e) {
+            // size of src not the one of the calibration
+        }
+    }
+
+    /** Checks that no element differs by more than delta, and that they differ by less than delta/4 on average. */
+    static void assertImageClose(IplImage expected, IplImage actual, double delta) {
+        boolean bytes = expected.depth() == IPL_DEPTH_8U;
+        int rowLength = expected.width()*expected.nChannels();
+        int expectedStep = expected.widthStep()/(bytes ? 1 : 4), actualStep = actual.widthStep()/(bytes ? 1 : 4);
+        ByteBuffer eb = bytes ? expected.getByteBuffer() : null, ab = bytes ? actual.getByteBuffer() : null;
+        FloatBuffer ef = bytes ? null : expected.getFloatBuffer(), af = bytes ? null : actual.getFloatBuffer();
+        double sum = 0;
+        for (int y = 0; y < expected.height(); y++) {
+            for (int x = 0; x < rowLength; x++) {
+                int i = y*expectedStep + x, j = y*actualStep + x;
+                double e = bytes ? eb.get(i) & 0xFF : ef.get(i);
+                double a = bytes ? ab.get(j) & 0xFF : af.get(j);
+                assertEquals("at (" + x + ", " + y + ")", e, a, delta);
+                sum += Math.abs(e - a);
+            }
+        }
+        assertTrue(sum/(rowLength*expected.height()) < delta/4);
+    }
+
+    /** Element by element equivalent of the original JavaCV.hysteresisThreshold(), with border cases folded in. */
+    static void referenceHysteresisThreshold(IplImage srcImage, IplImage dstImage,
+            double highThresh, double lowThresh, double maxValue) {
+        int highThreshold = (int)Math.round(highThresh);
+        int lowThreshold  = (int)Math.round(lowThresh);
+        byte lowValue  = 0;
+        byte medValue  = (byte)Math.round(maxValue/2);
+        byte highValue = (byte)Math.round(maxValue);
+
+        int height = srcImage.height();
+        int width  = srcImage.width();
+
+        ByteBuffer srcData = srcImage.getByteBuffer();
+        ByteBuffer dstData = dstImage.getByteBuffer();
+        int srcStep = srcImage.widthStep();
+        int dstStep = dstImage.widthStep();
+        int srcIndex = 0;
+        int dstIndex = 0;
+
+        // first pass forward, first line
+        for (int i = 0; i < width; i++) {
+            int in = srcData.get(srcIndex+i)&0xFF;
+            if (in >= highThreshold) {
+                dstData.put(dstIndex+i, highValue);
+            } else if (in < lowThreshold) {
+                dstData.put(dstIndex+i, lowValue);
+            } else if (i > 0 && dstData.get(dstIndex+i-1) == highValue) {
+                dstData.put(dstIndex+i, highValue);
+            } else {
+                dstData.put(dstIndex+i, medValue);
+            }
+        }
+
+        // other lines
+        for (int y = 1; y < height; y++) {
+            srcIndex += srcStep;
+            dstIndex += dstStep;
+            for (int i = 0; i < width; i++) {
+                int in = srcData.get(srcIndex+i)&0xFF;
+                if (in >= highThreshold) {
+                    dstData.put(dstIndex+i, highValue);
+                } else if (in < lowThreshold) {
+                    dstData.put(dstIndex+i, lowValue);
+                } else if ((i > 0         && dstData.get(dstIndex+i-1)         == highValue)
+                        || (i > 0         && dstData.get(dstIndex+i-dstStep-1) == highValue)
+                        ||                   dstData.get(dstIndex+i-dstStep)   == highValue
+                        || (i < width-1   && dstData.get(dstIndex+i-dstStep+1) == highValue)) {
+                    dstData.put(dstIndex+i, highValue);
+                } else {
+                    dstData.put(dstIndex+i, medValue);
+                }
+            }
+        }
+
+        // second pass backward, last line
+        dstIndex = (height-1)*dstStep;
+        for (int i = width-1; i >= 0; i--) {
+            if (dstData.get(dstIndex+i) == medValue) {
+                if (i < width-1 && dstData.get(dstIndex+i+1) == highValue) {
+                    dstData.put(dstIndex+i, highValue);
+                } else {
+                    dstData.put(dstIndex+i, lowValue);
+                }
+            }
+        }
+
+        // other lines
+        for (int y = height-2; y >= 0; y--) {
+            dstIndex -= dstStep;
+            for (int i = width-1; i >= 0; i--) {
+                if (dstData.get(dstIndex+i) == medValue) {
+                    if ((i < width-1 && dstData.get(dstIndex+i+1)         == highValue)
+                     || (i < width-1 && dstData.get(dstIndex+i+dstStep+1) == highValue)
+                     ||                 dstData.get(dstIndex+i+dstStep)   == highValue
+                     || (i > 0       && dstData.get(dstIndex+i+dstStep-1) == highValue)) {
+                        dstData.put(dstIndex+i, highValue);
+                    } else {
+                        dstData.put(dstIndex+i, lowValue);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for SyntheticFrameGrabber: the warp of the plane as ground truth, dropped
+ * frames, jitter, and the virtual clock, and for the synchronization of FrameGrabber.Array
+ * and FrameGrabber.ConcurrentArray on cameras out of phase, or whose stream ends.
+ *
+ * @author Samuel Audet
+ */
+public class SyntheticFrameGrabberTest {
+
+    /** Returns the value of the pixel at (x, y) of the first channel, or -1 if outside the frame. */
+    static int pixel(Frame frame, double x, double y) {
+        int px = (int)Math.floor(x), py = (int)Math.floor(y);
+        if (px < 0 || px >= frame.imageWidth || py < 0 || py >= frame.imageHeight) {
+            return -1;
+        }
+        ByteBuffer b = (ByteBuffer)frame.image[0];
+        return b.get(py*frame.imageStride + px*frame.imageChannels) & 0xFF;
+    }
+
+    /** Returns the image of (x, y) by the row-major homography H. */
+    static double[] transform(double[] H, double x, double y) {
+        double z = H[6]*x + H[7]*y + H[8];
+        return new double[] { (H[0]*x + H[1]*y + H[2])/z, (H[3]*x + H[4]*y + H[5])/z };
+    }
+
+    /** Returns the inverse of the row-major 3x3 matrix. */
+    static double[] invert(double[] m) {
+        double[] r = {
+            m[4]*m[8] - m[5]*m[7], m[2]*m[7] - m[1]*m[8], m[1]*m[5] - m[2]*m[4],
+            m[5]*m[6] - m[3]*m[8], m[0]*m[8] - m[2]*m[6], m[2]*m[3] - m[0]*m[5],
+            m[3]*m[7] - m[4]*m[6], m[1]*m[6] - m[0]*m[7], m[0]*m[4] - m[1]*m[3] };
+        double det = m[0]*r[0] + m[1]*r[3] + m[2]*r[6];
+        for (int i = 0; i < 9; i++) {
+            r[i] /= det;
+        }
+        return r;
+    }
+
+    @Test public void testPlaneWarp() throws Exception {
+        System.out.println("PlaneWarp");
+
+        Marker[] markers = Marker.createArray(4, 6, 40, 40, 60, 60, false, 10, 10)[0];
+        MarkedPlane plane = new MarkedPlane(370, 250, markers, 1.0);
+        IplImage planeImage = plane.getImage();
+        ByteBuffer planeBuffer = planeImage.getByteBuffer();
+
+        SyntheticFrameGrabber grabber = new SyntheticFrameGrabber(0);
+        grabber.setRealTime(false);
+        grabber.setImageMode(FrameGrabber.ImageMode.GRAY);
+        grabber.setPattern(SyntheticFrameGrabber.Pattern.BLANK);
+        grabber.setMarkedPlane(plane);
+        grabber.start();
+        for (int n = 0; n < 90; n += 1 + n/2) {
+            Frame frame = null;
+            while (grabber.getFrameNumber() < n || frame == null) {
+                frame = grabber.grab();
+            }
+            double[] H = grabber.getPlaneWarp();
+
+            // pixels of the image come from the plane where the inverse of the warp says
+            double[] Hi = invert(H);
+            int checked = 0;
+            for (int y = 0; y < frame.imageHeight; y += 2) {
+                for (int x = 0; x < frame.imageWidth; x += 2) {
+                    double[] q = transform(Hi, x, y);
+                    double fx = q[0] - Math.floor(q[0]), fy = q[1] - Math.floor(q[1]);
+                    if (q[0] < 0 || q[0] >= planeImage.width() || q[1] < 0 || q[1] >= planeImage.height()
+                            || fx < 0.01 || fx > 0.99 || fy < 0.01 || fy > 0.99) {
+                        continue;
+                    }
+                    int expected = planeBuffer.get((int)q[1]*planeImage.widthStep() + (int)q[0]) & 0xFF;
+                    assertEquals("at (" + x + ", " + y + ")", expected, pixel(frame, x, y));
+                    checked++;
+                }
+            }
+            assertTrue(checked > 10000);
+
+            // corners of the markers are ground truth: dark just inside, bright just outside
+            for (Marker m : markers) {
+                double[] c = m.getCenter();
+                for (int k = 0; k < 4; k++) {
+                    double cx = m.corners[2*k], cy = m.corners[2*k + 1];
+                    double dx = Math.signum(c[0] - cx), dy = Math.signum(c[1] - cy);
+                    double[] in  = transform(H, cx + 2*dx, cy + 2*dy);
+                    double[] out = transform(H, cx - 4*dx, cy - 4*dy);
+                    int vin = pixel(frame, in[0], in[1]), vout = pixel(frame, out[0], out[1]);
+                    if (vin >= 0 && vout >= 0) {
+                        assertTrue(vin < 64);
+                        assertTrue(vout > 192);
+                    }
+                }
+            }
+        }
+        grabber.release();
+    }
+
+    @Test public void testDropsAndJitter() throws Exception {
+        System.out.println("DropsAndJitter");
+
+        long[][] timestamps = new long[2][];
+        for (int run = 0; run < 2; run++) {
+            SyntheticFrameGrabber grabber = new SyntheticFrameGrabber(3);
+            grabber.setRealTime(false);
+            grabber.setImageWidth(64);
+            grabber.setImageHeight(48);
+            grabber.setFrameRate(25);
+            grabber.setTimeOffset(1000);
+            grabber.setJitter(5000);
+            grabber.setDropProbability(0.2);
+            grabber.start();
+
+            int count = 400;
+            timestamps[run] = new long[count];
+            long period = 1000000/25, last = Long.MIN_VALUE;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Frame frame = grabber.grab();
+                long t = grabber.getTimestamp();
+                assertEquals(t, frame.timestamp);
+                // the frame number counts dropped frames, and the timestamp follows it, within the jitter
+                assertTrue(Math.abs(t - (1000 + grabber.getFrameNumber()*period)) <= 5000);
+                assertTrue(t > last);
+                last = t;
+                timestamps[run][i] = t;
+            }
+            // every frame not returned got counted as dropped, about 1/4 of the ones returned
+            assertEquals(count - 1 + grabber.getDroppedCount(), grabber.getFrameNumber());
+            assertTrue(grabber.getDroppedCount() > count/8 && grabber.getDroppedCount() < count/2);
+            // the virtual clock does not wait for the 16 seconds covered
+            assertTrue(System.nanoTime() - start < 8000000000L);
+            assertTrue(last > 16000000);
+            grabber.release();
+        }
+        // the same seed gives the same frames
+        for (int i = 0; i < timestamps[0].length; i++) {
+            assertEquals(timestamps[0][i], timestamps[1][i]);
+        }
+    }
+
+    @Test public void testVirtualClock() throws Exception {
+        System.out.println("VirtualClock");
+
+        SyntheticFrameGrabber grabber = new SyntheticFrameGrabber(0);
+        grabber.setRealTime(false);
+        grabber.setFrameRate(30);
+        grabber.setTimeOffset(250);
+        grabber.start();
+        for (int i = 0; i < 10; i++) {
+            grabber.grab();
+            assertEquals(i, grabber.getFrameNumber());
+            assertEquals(250 + Math.round(i*1000000.0/30), grabber.getTimestamp());
+        }
+        // restarting rewinds the virtual clock
+        grabber.stop();
+        grabber.start();
+        grabber.grab();
+        assertEquals(0, grabber.getFrameNumber());
+        assertEquals(250, grabber.getTimestamp());
+
+        // in trigger mode, each trigger produces the next frame
+        grabber.setTriggerMode(true);
+        grabber.start();
+        grabber.trigger();
+        grabber.trigger();
+        grabber.grab();
+        assertEquals(250, grabber.getTimestamp());
+        grabber.grab();
+        assertEquals(250 + Math.round(1000000.0/30), grabber.getTimestamp());
+        grabber.release();
+    }
+
+    /** Returns cameras out of phase, at 30 frames per second, the second one dropping frames. */
+    static SyntheticFrameGrabber[] createCameras(boolean realTime, long jitter) {
+        SyntheticFrameGrabber[] grabbers = new SyntheticFrameGrabber[3];
+        for (int i = 0; i < grabbers.length; i++) {
+            grabbers[i] = new SyntheticFrameGrabber(i);
+            grabbers[i].setRealTime(realTime);
+            grabbers[i].setImageWidth(160);
+            grabbers[i].setImageHeight(120);
+            grabbers[i].setTimeOffset(3000*i);
+            grabbers[i].setJitter(jitter);
+        }
+        grabbers[1].setDropProbability(0.1);
+        return grabbers;
+    }
+
+    /** Returns the largest difference between the timestamps of the frames. */
+    static long spread(Frame[] frames) {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (Frame f : frames) {
+            assertNotNull(f);
+            min = Math.min(min, f.timestamp);
+            max = Math.max(max, f.timestamp);
+        }
+        return max - min;
+    }
+
+    @Test public void testArraySync() throws Exception {
+        System.out.println("ArraySync");
+
+        SyntheticFrameGrabber[] grabbers = createCameras(false, 0);
+        FrameGrabber.Array array = grabbers[0].createArray(grabbers);
+        array.start();
+        int synced = 0, count = 200;
+        for (int i = 0; i < count; i++) {
+            long s = spread(array.grab());
+            if (s < 1000000/30/2) {
+                synced++;
+            }
+        }
+        array.release();
+        // the frames dropped by the second camera get compensated by grabbing more from the others
+        assertTrue(grabbers[1].getDroppedCount() > 0);
+        assertTrue(synced > count*9/10);
+    }
+
+    @Test public void testConcurrentArraySync() throws Exception {
+        System.out.println("ConcurrentArraySync");
+
+        SyntheticFrameGrabber[] grabbers = createCameras(true, 1000);
+        FrameGrabber.ConcurrentArray array = (FrameGrabber.ConcurrentArray)grabbers[0].createConcurrentArray(grabbers);
+        array.start();
+        int count = 45;
+        for (int i = 0; i < count; i++) {
+            Frame[] frames = array.grab();
+            if (i >= 5) {
+                // after a few sets to measure the intervals, skews stay within half a period
+                assertTrue(spread(frames) <= 1000000/30/2);
+            }
+        }
+        assertEquals(count, array.getSetCount());
+        assertTrue(array.getUnsynchronizedCount() <= 5);
+        for (int i = 0; i < grabbers.length; i++) {
+            assertTrue(array.getGrabbedCount(i) >= count);
+        }
+        array.release();
+    }
+
+    @Test public void testConcurrentArrayEnd() throws Exception {
+        System.out.println("ConcurrentArrayEnd");
+
+        // cameras whose stream ends after a few frames, or that fail
+        final int frames = 5;
+        final AtomicInteger[] calls = { new AtomicInteger(), new AtomicInteger() };
+        SyntheticFrameGrabber[] grabbers = new SyntheticFrameGrabber[2];
+        for (int i = 0; i < grabbers.length; i++) {
+            final int device = i;
+            grabbers[i] = new SyntheticFrameGrabber(i) {
+                @Override public Frame grab() throws Exception {
+                    if (calls[device].incrementAndGet() > frames) {
+                        if (device == 1) {
+                            throw new Exception("Device unplugged.");
+                        }
+                        return null;
+                    }
+                    return super.grab();
+                }
+            };
+            grabbers[i].setImageWidth(160);
+            grabbers[i].setImageHeight(120);
+        }
+
+        for (int i = 0; i < grabbers.length; i++) {
+            FrameGrabber.ConcurrentArray array = (FrameGrabber.ConcurrentArray)grabbers[i]
+                    .createConcurrentArray(new FrameGrabber[] { grabbers[i] });
+            array.start();
+            int sets = 0;
+            try {
+                while (sets <= frames) {
+                    assertNotNull(array.grab()[0]);
+                    sets++;
+                }
+                fail("Exception should have been thrown.");
+            } catch (FrameGrabber.Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(i == 0 ? "End of stream" : "Device unplugged"));
+            }
+            // all frames got returned before, and the thread did not keep calling grab()
+            assertEquals(frames, sets);
+            Thread.sleep(100);
+            assertEquals(frames + 1, calls[i].get());
+            try {
+                array.grab();
+                fail("Exception should have been thrown.");
+            } catch (FrameGrabber.Exception e) {
+                // the end gets reported again
+            }
+            array.release();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for UndistortMapCache: stability of keys, and maps saved and loaded back.
+ *
+ * @author Samuel Audet
+ */
+public class UndistortMapCacheTest {
+
+    static CvMat cameraMatrix() {
+        CvMat m = CvMat.create(3, 3);
+        m.put(500, 0, 320,  0, 500, 240,  0, 0, 1);
+        return m;
+    }
+    static CvMat distortionCoeffs() {
+        CvMat m = CvMat.create(1, 5);
+        m.put(0.1, -0.2, 0.001, 0.002, 0.05);
+        return m;
+    }
+
+    static IplImage createMap(Random random, int width, int height, int depth, int channels) {
+        IplImage map = IplImage.create(width, height, depth, channels);
+        ByteBuffer buf = map.getByteBuffer();
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, (byte)random.nextInt(256));
+        }
+        return map;
+    }
+
+    static void assertMapEquals(IplImage expected, IplImage actual) {
+        assertEquals(expected.width(), actual.width());
+        assertEquals(expected.height(), actual.height());
+        assertEquals(expected.depth(), actual.depth());
+        assertEquals(expected.nChannels(), actual.nChannels());
+        int length = UndistortMapCache.rowSize(expected);
+        ByteBuffer e = expected.getByteBuffer(), a = actual.getByteBuffer();
+        for (int y = 0; y < expected.height(); y++) {
+            for (int x = 0; x < length; x++) {
+                assertEquals(e.get(y*expected.widthStep() + x), a.get(y*actual.widthStep() + x));
+            }
+        }
+    }
+
+    static File createDirectory() throws Exception {
+        File directory = File.createTempFile("mapcache", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test public void testKey() {
+        System.out.println("Key");
+
+        // keys name files that later processes load, so they must not change between
+        // runs, or else after changing the format, for which MAGIC should also change
+        CvMat cameraMatrix = cameraMatrix(), distortionCoeffs = distortionCoeffs();
+        String key = UndistortMapCache.key(cameraMatrix, distortionCoeffs, 640, 480, 0, false);
+        assertEquals("592aaa8412315dc0a4412be6971acc64ce3d562e", key);
+        assertEquals("0ad4764dc720078cab23c423e69886b18a143178",
+                UndistortMapCache.key(cameraMatrix, distortionCoeffs, 640, 480, 1, true));
+        assertEquals(key, UndistortMapCache.key(cameraMatrix(), distortionCoeffs(), 640, 480, 0, false));
+
+        // and any parameter changes them
+        assertFalse(key.equals(UndistortMapCache.key(cameraMatrix, distortionCoeffs, 641, 480, 0, false)));
+        assertFalse(key.equals(UndistortMapCache.key(cameraMatrix, distortionCoeffs, 640, 481, 0, false)));
+        assertFalse(key.equals(UndistortMapCache.key(cameraMatrix, distortionCoeffs, 640, 480, 2, false)));
+        assertFalse(key.equals(UndistortMapCache.key(cameraMatrix, distortionCoeffs, 640, 480, 0, true)));
+        assertFalse(key.equals(UndistortMapCache.key(cameraMatrix, null, 640, 480, 0, false)));
+        distortionCoeffs.put(4, 0.05000001);
+        assertFalse(key.equals(UndistortMapCache.key(cameraMatrix, distortionCoeffs, 640, 480, 0, false)));
+    }
+
+    @Test public void testSaveLoad() throws Exception {
+        System.out.println("SaveLoad");
+
+        Random random = new Random(42);
+        File directory = createDirectory();
+        // odd widths, so that rows of the images have padding, which files do not
+        int[][] formats = { { IPL_DEPTH_16S, 2, IPL_DEPTH_16U, 1 }, { IPL_DEPTH_32F, 1, IPL_DEPTH_32F, 1 } };
+        for (int[] f : formats) {
+            for (int width : new int[] { 101, 64 }) {
+                IplImage map1 = createMap(random, width, 37, f[0], f[1]);
+                IplImage map2 = createMap(random, width, 37, f[2], f[3]);
+                File file = new File(directory, "test" + width + "_" + f[0] + ".map");
+                file.deleteOnExit();
+                UndistortMapCache.save(file, map1, map2);
+                assertEquals(UndistortMapCache.HEADER_SIZE + 37*(UndistortMapCache.rowSize(map1)
+                        + UndistortMapCache.rowSize(map2)), file.length());
+
+                IplImage[] maps = UndistortMapCache.load(file);
+                assertNotNull(maps);
+                assertMapEquals(map1, maps[0]);
+                assertMapEquals(map2, maps[1]);
+            }
+        }
+        assertNull(UndistortMapCache.load(new File(directory, "missing.map")));
+    }
+
+    @Test public void testGetPut() throws Exception {
+        System.out.println("GetPut");
+
+        File previous = UndistortMapCache.getDirectory();
+        File directory = createDirectory();
+        UndistortMapCache.setDirectory(directory);
+        try {
+            Random random = new Random(7);
+            String key = UndistortMapCache.key(cameraMatrix(), distortionCoeffs(), 99, 31, 0, false);
+            for (boolean fixedPoint : new boolean[] { true, false }) {
+                UndistortMapCache.clear();
+                UndistortMapCache.resetStatistics();
+                assertNull(UndistortMapCache.get(key, fixedPoint));
+                assertEquals(1, UndistortMapCache.getMisses());
+
+                IplImage map1 = createMap(random, 99, 31, fixedPoint ? IPL_DEPTH_16S : IPL_DEPTH_32F, fixedPoint ? 2 : 1);
+                IplImage map2 = createMap(random, 99, 31, fixedPoint ? IPL_DEPTH_16U : IPL_DEPTH_32F, 1);
+                IplImage[] maps = UndistortMapCache.put(key, map1, map2);
+                assertSame(map1, maps[0]);
+                assertSame(map2, maps[1]);
+                assertSame(map1, UndistortMapCache.get(key, fixedPoint)[0]);
+                assertEquals(1, UndistortMapCache.getMemoryHits());
+
+                // as in another process, both kinds of maps come back from the directory
+                UndistortMapCache.clear();
+                maps = UndistortMapCache.get(key, fixedPoint);
+                assertNotNull(maps);
+                assertEquals(1, UndistortMapCache.getDiskHits());
+                assertMapEquals(map1, maps[0]);
+                assertMapEquals(map2, maps[1]);
+                assertSame(maps[0], UndistortMapCache.get(key, fixedPoint)[0]);
+                assertEquals(2, UndistortMapCache.getMemoryHits());
+            }
+            for (File f : directory.listFiles()) {
+                f.deleteOnExit();
+            }
+        } finally {
+            UndistortMapCache.setDirectory(previous);
+        }
+    }
+}
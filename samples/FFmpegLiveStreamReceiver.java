@@ -0,0 +1,85 @@
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.SyntheticFrameGrabber;
+
+/**
+ * Receives an MPEG-TS stream over UDP with FFmpegFrameGrabber in live mode, while a local
+ * sender streams synthetic frames, goes silent for a while, and comes back at another
+ * resolution, to show the grabber reconnecting and the statistics of its jitter buffer.
+ *
+ * Usage: FFmpegLiveStreamReceiver [port] [seconds per segment]
+ */
+public class FFmpegLiveStreamReceiver {
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 12345;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Thread sender = new Thread() {
+            @Override public void run() {
+                try {
+                    int[][] sizes = { { 640, 480 }, { 320, 240 }, { 640, 480 } };
+                    for (int[] size : sizes) {
+                        send("udp://127.0.0.1:" + port, size[0], size[1], seconds);
+                        // simulate an outage
+                        Thread.sleep(2000);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber("udp://127.0.0.1:" + port);
+        grabber.setFormat("mpegts");
+        grabber.setLive(true);
+        grabber.setJitterBufferSize(16);
+        grabber.setReadTimeout(1000000);
+        grabber.setMaxReconnectAttempts(10);
+        grabber.start();
+
+        long count = 0, last = System.currentTimeMillis();
+        Frame frame;
+        while (sender.isAlive() && (frame = grabber.grabImage()) != null) {
+            count++;
+            long now = System.currentTimeMillis();
+            if (now - last >= 1000) {
+                System.out.println(count + " frames, " + frame.imageWidth + "x" + frame.imageHeight
+                        + ", reconnects: " + grabber.getReconnectCount()
+                        + " (decoders reopened: " + grabber.getDecoderReopenCount() + ")"
+                        + ", late packets: " + grabber.getLatePacketCount()
+                        + ", jitter buffer: " + grabber.getJitterBufferDepth()
+                        + " (max " + grabber.getMaxJitterBufferDepth() + ")");
+                last = now;
+            }
+        }
+        grabber.stop();
+    }
+
+    static void send(String url, int width, int height, int seconds) throws Exception {
+        SyntheticFrameGrabber source = new SyntheticFrameGrabber(0);
+        source.setImageWidth(width);
+        source.setImageHeight(height);
+        source.start();
+
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(url, width, height);
+        recorder.setFormat("mpegts");
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG2VIDEO);
+        recorder.setFrameRate(source.getFrameRate());
+        recorder.setGopSize(15);
+        recorder.start();
+
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Frame frame = source.grab();
+            if (frame.image != null) {
+                recorder.record(frame);
+            }
+        }
+        recorder.stop();
+        source.stop();
+    }
+}
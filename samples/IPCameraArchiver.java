@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.IPCameraFrameGrabber;
+import org.bytedeco.javacv.MjpegIngest;
+
+/**
+ * Archives the MJPEG stream of an IP camera to a file without decoding or encoding
+ * any image, reading the size of the images from the header of the first one.
+ *
+ * Usage: IPCameraArchiver http://camera/video.mjpg output.avi [seconds]
+ */
+public class IPCameraArchiver {
+    /** Returns the width and height from the start of frame segment of the JPEG data, or null if not found. */
+    static int[] jpegSize(ByteBuffer jpeg) {
+        int i = jpeg.position(), end = jpeg.limit();
+        if (end - i < 4 || (jpeg.get(i) & 0xFF) != 0xFF || (jpeg.get(i + 1) & 0xFF) != 0xD8) {
+            return null;
+        }
+        i += 2;
+        while (i + 9 <= end) {
+            if ((jpeg.get(i) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = jpeg.get(i + 1) & 0xFF;
+            if (marker == 0xFF) {
+                i++; // fill byte
+                continue;
+            }
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = (jpeg.get(i + 5) & 0xFF) << 8 | (jpeg.get(i + 6) & 0xFF);
+                int width  = (jpeg.get(i + 7) & 0xFF) << 8 | (jpeg.get(i + 8) & 0xFF);
+                return new int[] { width, height };
+            }
+            i += 2 + ((jpeg.get(i + 2) & 0xFF) << 8 | (jpeg.get(i + 3) & 0xFF));
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = args.length > 0 ? args[0] : "http://localhost:8080/video.mjpg";
+        String output = args.length > 1 ? args[1] : "archive.avi";
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        IPCameraFrameGrabber grabber = new IPCameraFrameGrabber(url, 5, 5, TimeUnit.SECONDS);
+        grabber.setIngest(MjpegIngest.getDefault());
+        grabber.setDecoding(false);
+        grabber.start();
+        try {
+            ByteBuffer jpeg = grabber.grabCompressed();
+            int[] size = jpegSize(jpeg);
+            if (size == null) {
+                throw new Exception("Could not find the size of the images in the first JPEG data from " + url);
+            }
+
+            FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output, size[0], size[1]);
+            recorder.setFormat("avi");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MJPEG);
+            recorder.start();
+            try {
+                long start = grabber.getTimestamp();
+                long end = start + seconds * 1000000L;
+                long count = 0;
+                while (grabber.getTimestamp() < end) {
+                    recorder.recordCompressed(jpeg, grabber.getTimestamp() - start);
+                    count++;
+                    jpeg = grabber.grabCompressed();
+                }
+                recorder.stop();
+                System.out.println(count + " images archived to " + output);
+            } finally {
+                recorder.release();
+            }
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Computes the same output as {@link JavaCV#adaptiveThreshold}, but keeps its
+ * integral images in Java arrays reused from one call to the next, and can limit
+ * the work to regions of interest, for example around markers found in the
+ * previous frame. Pixels outside of the regions get set to {@link #getBackground()}.
+ * <p>
+ * Instances are not thread-safe, but each call processes rows in parallel.
+ *
+ * @author Samuel Audet
+ */
+public class AdaptiveThresholder {
+
+    int width, height, depth, srcStep, dstStep;
+    byte[] src8 = new byte[0], dst = new byte[0];
+    double[] srcDouble = new double[0], sum = new double[0], sqSum = new double[0];
+    int[] boxes = new int[0];
+    byte background = (byte)0xFF;
+    long pixelCount = 0;
+    int varianceWidth = -1, varianceHeight = -1;
+    double variance = 0;
+
+    /** Returns the value given to pixels outside of the regions of interest, 0xFF by default. */
+    public int getBackground() {
+        return background & 0xFF;
+    }
+    public void setBackground(int background) {
+        this.background = (byte)background;
+    }
+
+    /** Returns the number of pixels thresholded on the last call, useful to measure the gain from regions of interest. */
+    public long getPixelCount() {
+        return pixelCount;
+    }
+
+    /** Thresholds the whole image. */
+    public void threshold(IplImage srcImage, IplImage dstImage, boolean invert,
+            int windowMax, int windowMin, double varMultiplier, double k) {
+        threshold(srcImage, dstImage, invert, windowMax, windowMin, varMultiplier, k, null, 0);
+    }
+
+    /**
+     * Thresholds only inside the given regions, or the whole image if {@code rois} is null.
+     *
+     * @param rois  packed as {x, y, width, height} for each region
+     * @param count number of regions in {@code rois}
+     */
+    public void threshold(IplImage srcImage, IplImage dstImage, final boolean invert,
+            final int windowMax, final int windowMin, double varMultiplier, final double k, int[] rois, int count) {
+        final int w = srcImage.width();
+        final int h = srcImage.height();
+        final int srcChannels = srcImage.nChannels();
+        final int dstDepth = dstImage.depth();
+
+        // integral images only need to cover the largest windows around the regions
+        int n = 0;
+        if (rois != null) {
+            if (boxes.length < 8*count) {
+                boxes = new int[8*count];
+            }
+            int margin = windowMax/2 + 1;
+            for (int i = 0; i < count; i++) {
+                int rx1 = Math.max(rois[4*i], 0), rx2 = Math.min(rois[4*i] + rois[4*i + 2], w);
+                int ry1 = Math.max(rois[4*i + 1], 0), ry2 = Math.min(rois[4*i + 1] + rois[4*i + 3], h);
+                if (rx1 >= rx2 || ry1 >= ry2) {
+                    continue;
+                }
+                int ox = Math.max(rx1 - margin, 0), oy = Math.max(ry1 - margin, 0);
+                int ex = Math.min(rx2 + margin, w), ey = Math.min(ry2 + margin, h);
+                boxes[8*n    ] = rx1; boxes[8*n + 1] = ry1; boxes[8*n + 2] = rx2; boxes[8*n + 3] = ry2;
+                boxes[8*n + 4] = ox;  boxes[8*n + 5] = oy;  boxes[8*n + 6] = ex;  boxes[8*n + 7] = ey;
+                n++;
+            }
+        }
+
+        if (srcChannels > 1 && dstDepth == IPL_DEPTH_8U) {
+            int code = srcChannels == 4 ? CV_RGBA2GRAY : CV_BGR2GRAY;
+            if (rois == null) {
+                cvCvtColor(srcImage, dstImage, code);
+            } else {
+                // convert only the padded regions, the rest of dstImage gets overwritten anyway
+                CvRect srcRoi = srcImage.roi() != null ? cvGetImageROI(srcImage) : null;
+                CvRect dstRoi = dstImage.roi() != null ? cvGetImageROI(dstImage) : null;
+                for (int i = 0; i < n; i++) {
+                    CvRect r = cvRect(boxes[8*i + 4], boxes[8*i + 5],
+                            boxes[8*i + 6] - boxes[8*i + 4], boxes[8*i + 7] - boxes[8*i + 5]);
+                    cvSetImageROI(srcImage, r);
+                    cvSetImageROI(dstImage, r);
+                    cvCvtColor(srcImage, dstImage, code);
+                }
+                restoreROI(srcImage, srcRoi);
+                restoreROI(dstImage, dstRoi);
+            }
+            srcImage = dstImage;
+        }
+        width   = w;
+        height  = h;
+        depth   = srcImage.depth();
+        srcStep = srcImage.widthStep();
+        dstStep = dstImage.widthStep();
+        if (depth != IPL_DEPTH_8U && depth != IPL_DEPTH_32F && depth != IPL_DEPTH_64F) {
+            // cvIntegral() does not support other image types either
+            throw new IllegalArgumentException("Unsupported depth: " + depth);
+        }
+        if (dst.length < h*dstStep) {
+            dst = new byte[h*dstStep];
+        }
+
+        if (rois == null) {
+            load(srcImage, 0, 0, w, h);
+            final int sumStep = integrate(0, 0, w, h);
+
+            // try to detect a reasonable maximum and minimum intensity
+            // for thresholds instead of simply 0 and 255...
+            double totalMean = sum[(h-1)*sumStep + (w-1)] - sum[(h-1)*sumStep] - sum[w-1] + sum[0];
+            totalMean /= w*h;
+            double totalSqMean = sqSum[(h-1)*sumStep + (w-1)] - sqSum[(h-1)*sumStep] - sqSum[w-1] + sqSum[0];
+            totalSqMean /= w*h;
+            variance = totalSqMean - totalMean*totalMean;
+            varianceWidth  = w;
+            varianceHeight = h;
+            final double targetVar = variance*varMultiplier;
+
+            Parallel.loop(0, h, new Parallel.AdaptiveLooper() {
+            public void loop(int from, int to, int looperID) {
+                thresholdRows(0, from, w, to, 0, 0, sumStep, invert, windowMax, windowMin, targetVar, k);
+            }});
+            pixelCount = (long)w*h;
+        } else {
+            for (int i = 0; i < n; i++) {
+                int ox = boxes[8*i + 4], oy = boxes[8*i + 5], ex = boxes[8*i + 6], ey = boxes[8*i + 7];
+                load(srcImage, ox, oy, ex - ox, ey - oy);
+            }
+            // reuse the variance of the last full image of the same size, if any,
+            // otherwise fall back on the variance inside the padded regions only
+            final double targetVar = (varianceWidth == w && varianceHeight == h
+                    ? variance : regionVariance(n))*varMultiplier;
+
+            for (int y = 0; y < h; y++) {
+                Arrays.fill(dst, y*dstStep, y*dstStep + w, background);
+            }
+            pixelCount = 0;
+            for (int i = 0; i < n; i++) {
+                final int rx1 = boxes[8*i],     ry1 = boxes[8*i + 1], rx2 = boxes[8*i + 2], ry2 = boxes[8*i + 3];
+                final int ox  = boxes[8*i + 4], oy  = boxes[8*i + 5], ex  = boxes[8*i + 6], ey  = boxes[8*i + 7];
+                final int sumStep = integrate(ox, oy, ex - ox, ey - oy);
+                Parallel.loop(ry1, ry2, new Parallel.AdaptiveLooper() {
+                public void loop(int from, int to, int looperID) {
+                    thresholdRows(rx1, from, rx2, to, ox, oy, sumStep, invert, windowMax, windowMin, targetVar, k);
+                }});
+                pixelCount += (long)(rx2 - rx1)*(ry2 - ry1);
+            }
+        }
+
+        ByteBuffer dstBuf = dstImage.getByteBuffer();
+        for (int y = 0; y < h; y++) {
+            dstBuf.position(y*dstStep);
+            dstBuf.put(dst, y*dstStep, w);
+        }
+        dstBuf.position(0);
+    }
+
+    static void restoreROI(IplImage image, CvRect roi) {
+        if (roi != null) {
+            cvSetImageROI(image, roi);
+        } else {
+            cvResetImageROI(image);
+        }
+    }
+
+    /** Copies pixels of the given region into our arrays. */
+    void load(IplImage image, int x, int y, int w, int h) {
+        if (depth == IPL_DEPTH_8U) {
+            if (src8.length < height*srcStep) {
+                src8 = new byte[height*srcStep];
+            }
+            ByteBuffer b = image.getByteBuffer();
+            for (int j = y; j < y + h; j++) {
+                b.position(j*srcStep + x);
+                b.get(src8, j*srcStep + x, w);
+            }
+            b.position(0);
+        } else {
+            if (srcDouble.length < width*height) {
+                srcDouble = new double[width*height];
+            }
+            if (depth == IPL_DEPTH_32F) {
+                FloatBuffer b = image.getFloatBuffer();
+                int step = srcStep/4;
+                for (int j = y; j < y + h; j++) {
+                    for (int i = x; i < x + w; i++) {
+                        srcDouble[j*width + i] = b.get(j*step + i);
+                    }
+                }
+            } else {
+                DoubleBuffer b = image.getDoubleBuffer();
+                int step = srcStep/8;
+                for (int j = y; j < y + h; j++) {
+                    b.position(j*step + x);
+                    b.get(srcDouble, j*width + x, w);
+                }
+                b.position(0);
+            }
+        }
+    }
+
+    double value(int x, int y) {
+        return depth == IPL_DEPTH_8U ? src8[y*srcStep + x] & 0xFF : srcDouble[y*width + x];
+    }
+
+    /** Returns the variance of the pixels inside the first n padded regions of {@link #boxes}. */
+    double regionVariance(int n) {
+        double s = 0, sq = 0;
+        long area = 0;
+        for (int i = 0; i < n; i++) {
+            int ox = boxes[8*i + 4], oy = boxes[8*i + 5], ex = boxes[8*i + 6], ey = boxes[8*i + 7];
+            for (int y = oy; y < ey; y++) {
+                for (int x = ox; x < ex; x++) {
+                    double v = value(x, y);
+                    s  += v;
+                    sq += v*v;
+                }
+            }
+            area += (long)(ex - ox)*(ey - oy);
+        }
+        if (area == 0) {
+            return 0;
+        }
+        double mean = s/area;
+        return sq/area - mean*mean;
+    }
+
+    /**
+     * Computes the integral images of the given region, in the same order as cvIntegral():
+     * prefix sums of rows in parallel, then accumulated vertically. Returns the step of the arrays.
+     */
+    int integrate(final int x, final int y, final int w, int h) {
+        final int sumStep = w + 1;
+        int n = sumStep*(h + 1);
+        if (sum.length < n) {
+            sum = new double[n];
+            sqSum = new double[n];
+        }
+        Arrays.fill(sum, 0, sumStep, 0.0);
+        Arrays.fill(sqSum, 0, sumStep, 0.0);
+        Parallel.loop(0, h, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int j = from; j < to; j++) {
+                int row = (j + 1)*sumStep;
+                double s = 0, sq = 0;
+                sum[row] = 0;
+                sqSum[row] = 0;
+                if (depth == IPL_DEPTH_8U) {
+                    int offset = (y + j)*srcStep + x;
+                    for (int i = 0; i < w; i++) {
+                        int v = src8[offset + i] & 0xFF;
+                        s  += v;
+                        sq += v*v;
+                        sum[row + i + 1] = s;
+                        sqSum[row + i + 1] = sq;
+                    }
+                } else {
+                    int offset = (y + j)*width + x;
+                    for (int i = 0; i < w; i++) {
+                        double v = srcDouble[offset + i];
+                        s  += v;
+                        sq += v*v;
+                        sum[row + i + 1] = s;
+                        sqSum[row + i + 1] = sq;
+                    }
+                }
+            }
+        }});
+        for (int j = 1; j <= h; j++) {
+            int row = j*sumStep, prev = row - sumStep;
+            for (int i = 1; i <= w; i++) {
+                sum[row + i] += sum[prev + i];
+                sqSum[row + i] += sqSum[prev + i];
+            }
+        }
+        return sumStep;
+    }
+
+    /** Same algorithm as JavaCV.adaptiveThreshold(), with integral images whose origin is at (ox, oy). */
+    void thresholdRows(int xFrom, int yFrom, int xTo, int yTo, int ox, int oy, int sumStep,
+            boolean invert, int windowMax, int windowMin, double targetVar, double k) {
+        final int w = width, h = height;
+        final double[] sum = this.sum, sqSum = this.sqSum;
+        for (int y = yFrom; y < yTo; y++) {
+            for (int x = xFrom; x < xTo; x++) {
+                double var = 0, mean = 0, sqMean = 0;
+                int upperLimit = windowMax;
+                int lowerLimit = windowMin;
+                int window = upperLimit; // start with windowMax
+                while (upperLimit - lowerLimit > 2) {
+                    int x1 = Math.max(x-window/2, 0) - ox;
+                    int x2 = Math.min(x+window/2+1, w) - ox;
+
+                    int y1 = (Math.max(y-window/2, 0) - oy)*sumStep;
+                    int y2 = (Math.min(y+window/2+1, h) - oy)*sumStep;
+
+                    double area = window*window;
+                    mean   = (sum[y2 + x2] - sum[y2 + x1] - sum[y1 + x2] + sum[y1 + x1]) / area;
+                    sqMean = (sqSum[y2 + x2] - sqSum[y2 + x1] - sqSum[y1 + x2] + sqSum[y1 + x1]) / area;
+                    var = sqMean - mean*mean;
+
+                    // if we're at maximum window size, but variance is
+                    // too low anyway, let's break out immediately
+                    if (window == upperLimit && var < targetVar) {
+                        break;
+                    }
+
+                    // otherwise, start binary search
+                    if (var > targetVar) {
+                        upperLimit = window;
+                    } else {
+                        lowerLimit = window;
+                    }
+
+                    window = lowerLimit   + (upperLimit-lowerLimit)/2;
+                    window = (window/2)*2 + 1;
+                }
+
+                double value = value(x, y);
+                if (invert) {
+                    double threshold = 255 - (255 - mean) * k;
+                    dst[y*dstStep + x] = value < threshold ? (byte)0xFF : (byte)0x00;
+                } else {
+                    double threshold = mean * k;
+                    dst[y*dstStep + x] = value > threshold ? (byte)0xFF : (byte)0x00;
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures the time taken to threshold a 1080p color image like {@link MarkerDetector} does, with
+     * cvCvtColor() and {@link JavaCV#adaptiveThreshold} as before, and with this class on the whole
+     * image and inside regions of interest around the markers, as when tracking them.
+     */
+    public static void main(String[] args) {
+        int width = 1920, height = 1080, markers = 8, size = 120;
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int windowMin = 5, windowMax = 63;
+        double varMultiplier = 1.0, k = 0.6;
+
+        IplImage image = IplImage.create(width, height, IPL_DEPTH_8U, 3);
+        ByteBuffer buf = image.getByteBuffer();
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, (byte)(160 + random.nextInt(64)));
+        }
+        int[] rois = new int[4*markers];
+        for (int i = 0; i < markers; i++) {
+            int x = (i % 4)*width/4 + 100, y = (i / 4)*height/2 + 150;
+            cvRectangle(image, cvPoint(x, y), cvPoint(x + size, y + size), cvScalarAll(0), CV_FILLED, 8, 0);
+            cvRectangle(image, cvPoint(x + size/4, y + size/4), cvPoint(x + size/2, y + size/2), cvScalarAll(255), CV_FILLED, 8, 0);
+            rois[4*i    ] = x - size/4;
+            rois[4*i + 1] = y - size/4;
+            rois[4*i + 2] = size + size/2;
+            rois[4*i + 3] = size + size/2;
+        }
+        IplImage gray = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+        IplImage sum = IplImage.create(width + 1, height + 1, IPL_DEPTH_64F, 1);
+        IplImage sqSum = IplImage.create(width + 1, height + 1, IPL_DEPTH_64F, 1);
+        IplImage dst = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+        AdaptiveThresholder thresholder = new AdaptiveThresholder();
+
+        double[] times = new double[3];
+        for (int pass = 0; pass < 2; pass++) { // the first pass only warms up the JIT
+            long start = System.nanoTime();
+            for (int t = 0; t < trials; t++) {
+                cvCvtColor(image, gray, CV_BGR2GRAY);
+                JavaCV.adaptiveThreshold(gray, sum, sqSum, dst, false, windowMax, windowMin, varMultiplier, k);
+            }
+            times[0] = (System.nanoTime() - start)/1e6/trials;
+            start = System.nanoTime();
+            for (int t = 0; t < trials; t++) {
+                thresholder.threshold(image, dst, false, windowMax, windowMin, varMultiplier, k);
+            }
+            times[1] = (System.nanoTime() - start)/1e6/trials;
+            start = System.nanoTime();
+            for (int t = 0; t < trials; t++) {
+                thresholder.threshold(image, dst, false, windowMax, windowMin, varMultiplier, k, rois, markers);
+            }
+            times[2] = (System.nanoTime() - start)/1e6/trials;
+        }
+        System.out.println("JavaCV.adaptiveThreshold(): " + (float)times[0] + " ms/frame");
+        System.out.println("AdaptiveThresholder, full image: " + (float)times[1] + " ms/frame = "
+                + (float)(times[0]/times[1]) + "x faster");
+        System.out.println("AdaptiveThresholder, " + markers + " regions: " + (float)times[2] + " ms/frame = "
+                + (float)(times[0]/times[2]) + "x faster, " + thresholder.getPixelCount() + " of "
+                + (long)width*height + " pixels");
+    }
+}
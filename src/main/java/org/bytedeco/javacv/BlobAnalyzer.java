@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Connected-component analysis of binary images with 4-connectivity, computing
+ * the same region statistics as {@link Blobs}, but in a re-entrant way: all working
+ * memory belongs to the instance, grows to fit the input, and gets reused from one
+ * call to the next. Pixels are read a row at a time, and labels get merged with a
+ * union-find structure instead of subsumption chains.
+ * <p>
+ * Instances are not thread-safe, but different instances can analyze different
+ * images concurrently.
+ *
+ * @author Samuel Audet
+ */
+public class BlobAnalyzer {
+
+    /**
+     * Statistics of regions in struct-of-arrays form, indexed by label, from 0 for
+     * the border up to {@link #count}. Arrays may be longer than {@code count + 1}.
+     */
+    public static class Regions {
+        /** The highest label, that is, the number of regions excluding the border. */
+        public int count;
+        /** Label of the enclosing region, or -1 for the border. */
+        public int[] parent = new int[0];
+        /** 0 for black, 1 for white. */
+        public int[] color = new int[0];
+        public int[] area = new int[0], perimeter = new int[0];
+        /** Bounding boxes, relative to the region of interest. */
+        public int[] minX = new int[0], maxX = new int[0], minY = new int[0], maxY = new int[0];
+        /** Centroids, and second-order central moments, which are 0 for the border. */
+        public double[] meanX = new double[0], meanY = new double[0],
+                varX = new double[0], varY = new double[0], covXY = new double[0];
+
+        void allocate(int n) {
+            if (parent.length < n) {
+                parent = new int[n];    color = new int[n];
+                area   = new int[n];    perimeter = new int[n];
+                minX   = new int[n];    maxX  = new int[n];
+                minY   = new int[n];    maxY  = new int[n];
+                meanX  = new double[n]; meanY = new double[n];
+                varX   = new double[n]; varY  = new double[n];
+                covXY  = new double[n];
+            }
+        }
+
+        /** Returns the first label from {@code label} upward matching the conditions, or -1. Negative parent or color get ignored. */
+        public int next(int parent, int color, double minArea, double maxArea, int label) {
+            for (int i = Math.max(label, 0); i <= count; i++) {
+                if (matches(i, parent, color, minArea, maxArea)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Returns the first label from {@code label} downward matching the conditions, or -1. Negative parent or color get ignored. */
+        public int prior(int parent, int color, double minArea, double maxArea, int label) {
+            for (int i = Math.min(label, count); i >= 0; i--) {
+                if (matches(i, parent, color, minArea, maxArea)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean matches(int i, int parent, int color, double minArea, double maxArea) {
+            return (parent < 0 || parent == this.parent[i])
+                    && (color < 0 || Math.min(color, 1) == this.color[i])
+                    && area[i] >= minArea && area[i] <= maxArea;
+        }
+
+        /** Returns the statistics of the given label in the layout of {@link Blobs#RegionData}, using {@code property} if large enough. */
+        public double[] get(int label, double[] property) {
+            if (property == null || property.length < Blobs.BLOBDATACOUNT) {
+                property = new double[Blobs.BLOBDATACOUNT];
+            }
+            property[Blobs.BLOBLABEL]     = label;
+            property[Blobs.BLOBPARENT]    = parent[label];
+            property[Blobs.BLOBCOLOR]     = color[label];
+            property[Blobs.BLOBAREA]      = area[label];
+            property[Blobs.BLOBPERIMETER] = perimeter[label];
+            property[Blobs.BLOBSUMX]      = meanX[label];
+            property[Blobs.BLOBSUMY]      = meanY[label];
+            property[Blobs.BLOBSUMXX]     = varX[label];
+            property[Blobs.BLOBSUMYY]     = varY[label];
+            property[Blobs.BLOBSUMXY]     = covXY[label];
+            property[Blobs.BLOBMINX]      = minX[label];
+            property[Blobs.BLOBMAXX]      = maxX[label];
+            property[Blobs.BLOBMINY]      = minY[label];
+            property[Blobs.BLOBMAXY]      = maxY[label];
+            return property;
+        }
+    }
+
+    /** Growable storage for provisional labels, with their union-find forest and raw sums. */
+    static class Labels {
+        int count;
+        int[] root = new int[0], parent = new int[0], color = new int[0],
+              area = new int[0], perimeter = new int[0],
+              minX = new int[0], maxX = new int[0], minY = new int[0], maxY = new int[0];
+        double[] sumX = new double[0], sumY = new double[0],
+                 sumXX = new double[0], sumYY = new double[0], sumXY = new double[0];
+
+        void ensureCapacity(int n) {
+            if (root.length < n) {
+                n = Math.max(n, 2*root.length);
+                root   = Arrays.copyOf(root, n);   parent    = Arrays.copyOf(parent, n);
+                color  = Arrays.copyOf(color, n);  area      = Arrays.copyOf(area, n);
+                perimeter = Arrays.copyOf(perimeter, n);
+                minX   = Arrays.copyOf(minX, n);   maxX      = Arrays.copyOf(maxX, n);
+                minY   = Arrays.copyOf(minY, n);   maxY      = Arrays.copyOf(maxY, n);
+                sumX   = Arrays.copyOf(sumX, n);   sumY      = Arrays.copyOf(sumY, n);
+                sumXX  = Arrays.copyOf(sumXX, n);  sumYY     = Arrays.copyOf(sumYY, n);
+                sumXY  = Arrays.copyOf(sumXY, n);
+            }
+        }
+
+        /** Creates a label for a region starting at pixel (x, y), with a perimeter of 2. */
+        int create(int parent, int color, int x, int y) {
+            int l = count++;
+            if (l >= root.length) {
+                ensureCapacity(l + 1);
+            }
+            double dx = x, dy = y;
+            this.root[l] = l;
+            this.parent[l] = parent;
+            this.color[l] = color;
+            area[l] = 1;
+            perimeter[l] = 2;
+            sumX[l] = dx;
+            sumY[l] = dy;
+            sumXX[l] = dx*dx;
+            sumYY[l] = dy*dy;
+            sumXY[l] = dx*dy;
+            minX[l] = maxX[l] = x;
+            minY[l] = maxY[l] = y;
+            return l;
+        }
+
+        /** Creates a label without pixels, standing for pixels of another strip until merged with their label. */
+        int createEmpty(int color) {
+            int l = count++;
+            if (l >= root.length) {
+                ensureCapacity(l + 1);
+            }
+            this.root[l] = l;
+            this.parent[l] = -1;
+            this.color[l] = color;
+            area[l] = perimeter[l] = 0;
+            sumX[l] = sumY[l] = sumXX[l] = sumYY[l] = sumXY[l] = 0;
+            minX[l] = minY[l] = Integer.MAX_VALUE;
+            maxX[l] = maxY[l] = Integer.MIN_VALUE;
+            return l;
+        }
+
+        /** Adds pixel (x, y) to label l. */
+        void add(int l, int perimeter, int x, int y) {
+            double dx = x, dy = y;
+            area[l]++;
+            this.perimeter[l] += perimeter;
+            sumX[l] += dx;
+            sumY[l] += dy;
+            sumXX[l] += dx*dx;
+            sumYY[l] += dy*dy;
+            sumXY[l] += dx*dy;
+            if (x < minX[l]) minX[l] = x;
+            if (x > maxX[l]) maxX[l] = x;
+            if (y < minY[l]) minY[l] = y;
+            if (y > maxY[l]) maxY[l] = y;
+        }
+
+        /** Adds the statistics of label src to the ones of label dst, with perimeters multiplied by sign. */
+        void merge(int dst, int src, int sign) {
+            area[dst]      += area[src];
+            perimeter[dst] += perimeter[src]*sign;
+            sumX[dst]  += sumX[src];
+            sumY[dst]  += sumY[src];
+            sumXX[dst] += sumXX[src];
+            sumYY[dst] += sumYY[src];
+            sumXY[dst] += sumXY[src];
+            minX[dst] = Math.min(minX[dst], minX[src]);
+            maxX[dst] = Math.max(maxX[dst], maxX[src]);
+            minY[dst] = Math.min(minY[dst], minY[src]);
+            maxY[dst] = Math.max(maxY[dst], maxY[src]);
+        }
+
+        /** Copies all of label src into label dst. */
+        void move(int dst, int src) {
+            parent[dst] = parent[src];       color[dst] = color[src];
+            area[dst]   = area[src];         perimeter[dst] = perimeter[src];
+            sumX[dst]   = sumX[src];         sumY[dst]  = sumY[src];
+            sumXX[dst]  = sumXX[src];        sumYY[dst] = sumYY[src];
+            sumXY[dst]  = sumXY[src];
+            minX[dst]   = minX[src];         maxX[dst]  = maxX[src];
+            minY[dst]   = minY[src];         maxY[dst]  = maxY[src];
+        }
+
+        /** Copies the statistics of label l from another instance into label dst. */
+        void copy(int dst, Labels src, int l) {
+            color[dst] = src.color[l];
+            area[dst]  = src.area[l];        perimeter[dst] = src.perimeter[l];
+            sumX[dst]  = src.sumX[l];        sumY[dst]  = src.sumY[l];
+            sumXX[dst] = src.sumXX[l];       sumYY[dst] = src.sumYY[l];
+            sumXY[dst] = src.sumXY[l];
+            minX[dst]  = src.minX[l];        maxX[dst]  = src.maxX[l];
+            minY[dst]  = src.minY[l];        maxY[dst]  = src.maxY[l];
+        }
+
+        /** Returns the root of label l, halving paths along the way. */
+        int find(int l) {
+            while (root[l] != l) {
+                l = root[l] = root[root[l]];
+            }
+            return l;
+        }
+
+        /** Joins the trees of two roots, keeping the smallest one, that is, the oldest region, as root. */
+        void union(int r1, int r2) {
+            if (r1 < r2) {
+                root[r2] = r1;
+            } else if (r2 < r1) {
+                root[r1] = r2;
+            }
+        }
+    }
+
+    final Labels labels = new Labels();
+    final Regions regions = new Regions();
+    final Strip serial = new Strip(labels);
+    Strip[] strips = new Strip[0];
+    int[] offsets = new int[0], map = new int[0], flags = new int[0];
+    boolean parallel = false;
+    int minStripRows = 64;
+
+    /** Returns true if images get split into horizontal strips labeled in parallel. False by default. */
+    public boolean isParallel() {
+        return parallel;
+    }
+    /** Splits images into horizontal strips labeled in parallel with {@link Parallel}, giving the same results as serially. */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /** Analyzes the whole image. */
+    public Regions analyze(IplImage image, int border, int minArea) {
+        return analyze(image, -1, -1, -1, -1, border, minArea);
+    }
+
+    /**
+     * Analyzes a region of interest of the image, where pixels greater than 0 are white,
+     * with the same arguments as {@link Blobs#BlobAnalysis}. The returned object belongs
+     * to this analyzer and gets overwritten on the next call.
+     *
+     * @param x0      start column of the region of interest, or -1 for 0
+     * @param y0      start row of the region of interest, or -1 for 0
+     * @param cols    number of columns, or -1 for all
+     * @param rows    number of rows, or -1 for all
+     * @param border  color of the border region (0 = black; 1 = white)
+     * @param minArea regions smaller than this get merged into their parents
+     */
+    public Regions analyze(IplImage image, int x0, int y0, int cols, int rows, int border, int minArea) {
+        int imageCols = image.width();
+        int imageRows = image.height();
+        if (x0 < 0) x0 = 0;
+        if (y0 < 0) y0 = 0;
+        if (cols < 0) cols = imageCols;
+        if (rows < 0) rows = imageRows;
+        if (x0 + cols > imageCols) cols = imageCols - x0;
+        if (y0 + rows > imageRows) rows = imageRows - y0;
+        int fill = border > 0 ? 1 : 0;
+
+        int numStrips = parallel ? Math.min(2*Parallel.getNumThreads(), rows/minStripRows) : 1;
+        if (numStrips <= 1) {
+            serial.yFrom = 0;
+            serial.yTo = rows;
+            serial.label(image, x0, y0, cols, rows, fill);
+        } else {
+            labelStrips(image, x0, y0, cols, rows, fill, numStrips);
+        }
+        return condense(minArea);
+    }
+
+    /** Labels strips in parallel, and then stitches their labels into {@link #labels} with their seams. */
+    void labelStrips(final IplImage image, final int x0, final int y0, final int cols, final int rows, final int fill, int numStrips) {
+        if (strips.length < numStrips) {
+            Strip[] s = new Strip[numStrips];
+            for (int i = 0; i < numStrips; i++) {
+                s[i] = i < strips.length ? strips[i] : new Strip(new Labels());
+            }
+            strips = s;
+            offsets = new int[2*numStrips];
+        }
+        final Strip[] strips = this.strips;
+        for (int i = 0; i < numStrips; i++) {
+            strips[i].yFrom = rows*i/numStrips;
+            strips[i].yTo = rows*(i + 1)/numStrips;
+        }
+        Parallel.loop(0, numStrips, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i = from; i < to; i++) {
+                strips[i].label(image, x0, y0, cols, rows, fill);
+            }
+        }});
+
+        // number labels created from pixels in raster order, as the serial path does,
+        // followed by provisional labels, which therefore never become roots
+        int n = 0;
+        for (int i = 0; i < numStrips; i++) {
+            offsets[2*i] = n - strips[i].provisional;
+            n += strips[i].labels.count - strips[i].provisional;
+        }
+        for (int i = 0; i < numStrips; i++) {
+            offsets[2*i + 1] = n;
+            n += strips[i].provisional;
+        }
+        labels.count = n;
+        labels.ensureCapacity(n);
+        for (int i = 0; i < numStrips; i++) {
+            Labels l = strips[i].labels;
+            for (int j = 0; j < l.count; j++) {
+                int g = global(i, j);
+                labels.copy(g, l, j);
+                labels.root[g] = g;
+                labels.parent[g] = l.parent[j] < 0 ? -1 : global(i, l.parent[j]);
+            }
+        }
+        for (int i = 0; i < numStrips; i++) {
+            Labels l = strips[i].labels;
+            for (int j = 0; j < l.count; j++) {
+                int r = l.find(j);
+                if (r != j) {
+                    labels.union(labels.find(global(i, j)), labels.find(global(i, r)));
+                }
+            }
+            if (i > 0) {
+                labels.union(labels.find(global(i, 0)), labels.find(0));
+                int[] seam = strips[i].seamLabels, above = strips[i - 1].rowLabels;
+                for (int x = 0; x < cols; x++) {
+                    labels.union(labels.find(global(i, seam[x])), labels.find(global(i - 1, above[x])));
+                }
+            }
+        }
+    }
+
+    /** Maps label j of strip i to its index in {@link #labels}. */
+    int global(int i, int j) {
+        return j < strips[i].provisional ? offsets[2*i + 1] + j : offsets[2*i] + j;
+    }
+
+    /** Rows and labels of a horizontal strip of the region of interest, with buffers reused across calls. */
+    static class Strip {
+        final Labels labels;
+        int yFrom, yTo, provisional;
+        byte[] row = new byte[0], colors = new byte[0], colorsAbove = new byte[0];
+        int[] rowLabels = new int[0], rowLabelsAbove = new int[0], seamLabels = new int[0];
+
+        Strip(Labels labels) {
+            this.labels = labels;
+        }
+
+        /**
+         * Labels rows from yFrom to yTo of the region of interest. The first strip starts with the
+         * border region as label 0. Other strips start with provisional labels, one for the border
+         * and one for each run of pixels in the row above, to get merged with the labels of the
+         * previous strip.
+         */
+        void label(IplImage image, int x0, int y0, int cols, int rows, int fill) {
+            labels.count = 0;
+            labels.ensureCapacity(rows + cols);
+            if (colors.length < cols) {
+                colors = new byte[cols];
+                colorsAbove = new byte[cols];
+                rowLabels = new int[cols];
+                rowLabelsAbove = new int[cols];
+            }
+            if (yFrom == 0) {
+                createBorder(fill, cols, rows);
+                provisional = 0;
+            } else {
+                if (seamLabels.length < cols) {
+                    seamLabels = new int[cols];
+                }
+                readRow(image, x0, y0 + yFrom - 1, cols, colors);
+                labels.createEmpty(fill); // stands for the border, as label 0 does in the first strip
+                for (int x = 0; x < cols; x++) {
+                    rowLabels[x] = x > 0 && colors[x] == colors[x - 1] ? rowLabels[x - 1]
+                                 : labels.createEmpty(colors[x]);
+                }
+                System.arraycopy(rowLabels, 0, seamLabels, 0, cols);
+                provisional = labels.count;
+            }
+            for (int y = yFrom; y < yTo; y++) {
+                byte[] c = colorsAbove; colorsAbove = colors; colors = c;
+                int[] l = rowLabelsAbove; rowLabelsAbove = rowLabels; rowLabels = l;
+                readRow(image, x0, y0 + y, cols, colors);
+                labelRow(y, cols, fill, y > 0 ? colorsAbove : null, y > 0 ? rowLabelsAbove : null, colors, rowLabels);
+            }
+        }
+
+        /** Initializes label 0 with the statistics of the top and left border around the region of interest. */
+        void createBorder(int fill, int cols, int rows) {
+            labels.create(-1, fill, 0, 0);
+            labels.area[0] = rows + cols + 4;   // top, left, and 4 corners
+            labels.perimeter[0] = 0;
+            labels.sumX[0] = 0.5 * ((2.0 + cols) * (cols - 1.0)) - rows - 1;
+            labels.sumY[0] = 0.5 * ((2.0 + rows) * (rows - 1.0)) - cols - 1;
+            labels.sumXX[0] = labels.sumYY[0] = labels.sumXY[0] = 0;
+            labels.minX[0] = -1;
+            labels.minY[0] = -1;
+            labels.maxX[0] = cols + 1;
+            labels.maxY[0] = rows + 1;
+        }
+
+        /** Reads pixels of the first channel of a row into {@code colors}, as 0 or 1. */
+        void readRow(IplImage image, int x0, int y, int cols, byte[] colors) {
+            int depth = image.depth();
+            int channels = image.nChannels();
+            if (depth == IPL_DEPTH_8U || depth == IPL_DEPTH_8S) {
+                int n = cols*channels;
+                if (row.length < n) {
+                    row = new byte[n];
+                }
+                ByteBuffer b = image.getByteBuffer();
+                b.position(y*image.widthStep() + x0*channels);
+                b.get(row, 0, n);
+                if (depth == IPL_DEPTH_8U) {
+                    for (int x = 0; x < cols; x++) {
+                        colors[x] = row[x*channels] != 0 ? (byte)1 : (byte)0;
+                    }
+                } else {
+                    for (int x = 0; x < cols; x++) {
+                        colors[x] = row[x*channels] > 0 ? (byte)1 : (byte)0;
+                    }
+                }
+            } else {
+                CvMat mat = image.asCvMat();
+                for (int x = 0; x < cols; x++) {
+                    colors[x] = mat.get(y, x0 + x) > 0 ? (byte)1 : (byte)0;
+                }
+            }
+        }
+
+        /**
+         * Labels one row given the row above, or a border row when {@code colorsAbove} is null.
+         * Cells are identified this way, with D at (x, y):
+         * <pre>
+         *     Last |AB|
+         *     This |CD|
+         * </pre>
+         * and the 8 possible cases are the same as documented in {@link Blobs}.
+         */
+        void labelRow(int y, int cols, int fill, byte[] colorsAbove, int[] labelsAbove, byte[] colors, int[] rowLabels) {
+            int[] perimeter = labels.perimeter;
+            for (int x = 0; x < cols; x++) {
+                int colorA, colorB, colorC, labelB, labelC;
+                int colorD = colors[x];
+                if (colorsAbove == null) {
+                    colorA = colorB = fill;
+                    labelB = 0;
+                } else {
+                    colorA = x > 0 ? colorsAbove[x - 1] : fill;
+                    colorB = colorsAbove[x];
+                    labelB = labelsAbove[x];
+                }
+                if (x > 0) {
+                    colorC = colors[x - 1];
+                    labelC = rowLabels[x - 1];
+                } else {
+                    colorC = fill;
+                    labelC = 0;
+                }
+
+                int labelD;
+                if (colorC == colorD) {
+                    if (colorA == colorB || colorA == colorC) {
+                        // Cases 1, 2, and 3: D continues C
+                        int delta = 0;
+                        if (colorB != colorD && labelB != labelC) {
+                            perimeter[labelB]++;
+                            delta = 1;
+                        }
+                        labelD = labelC;
+                        labels.add(labelD, delta, x, y);
+                    } else {
+                        // Case 4: D joins B and C
+                        int rootB = labels.find(labelB);
+                        int rootC = labels.find(labelC);
+                        labelD = rootB < rootC ? labelB : labelC;
+                        labels.add(labelD, 0, x, y);
+                        labels.union(rootB, rootC);
+                    }
+                } else if (colorB == colorD) {
+                    // Cases 6 and 7: D continues B
+                    int delta = 0;
+                    if (labelC != labelB) {
+                        perimeter[labelC]++;
+                        delta = 1;
+                    }
+                    labelD = labelB;
+                    labels.add(labelD, delta, x, y);
+                } else {
+                    // Cases 5 and 8: D starts a new region inside B
+                    labelD = labels.create(labelB, colorD, x, y);
+                    perimeter = labels.perimeter;
+                    perimeter[labelB]++;
+                    perimeter[labelC]++;
+                }
+                rowLabels[x] = labelD;
+            }
+        }
+    }
+
+    /**
+     * Merges connected labels, then regions smaller than minArea into their parents,
+     * numbers the remaining ones in order of appearance, and normalizes moments.
+     */
+    Regions condense(int minArea) {
+        Labels labels = this.labels;
+        int n = labels.count;
+        if (map.length < n) {
+            map = new int[n];
+            flags = new int[n];
+        }
+
+        // merge connected labels into their roots, where perimeters add
+        int offset = 0;
+        map[0] = 0;
+        for (int l = 1; l < n; l++) {
+            if (labels.find(l) != l) {
+                offset++;
+            }
+            map[l] = l - offset;
+        }
+        for (int l = 1; l < n; l++) {
+            int r = labels.find(l);
+            if (r != l) {
+                labels.merge(r, l, 1);
+            }
+        }
+        int count = 0;
+        for (int l = 1; l < n; l++) {
+            if (labels.root[l] == l) {
+                int parent = map[labels.find(labels.parent[l])];
+                count = map[l];
+                labels.move(count, l);
+                labels.parent[count] = parent;
+            }
+        }
+
+        // merge regions with too small an area into their parents, where perimeters subtract
+        for (int l = count; l > 0; l--) {
+            flags[l] = labels.area[l] < minArea ? labels.parent[l] : -1;
+        }
+        offset = 0;
+        for (int l = 1; l <= count; l++) {
+            if (flags[l] > -1) {
+                offset++;
+            }
+            map[l] = l - offset;
+        }
+        for (int l = 1; l <= count; l++) {
+            int r = enclosing(l);
+            if (r != l) {
+                labels.merge(r, l, -1);
+            }
+        }
+        int newCount = 0;
+        for (int l = 1; l <= count; l++) {
+            if (flags[l] < 0) {
+                int parent = map[enclosing(labels.parent[l])];
+                newCount = map[l];
+                labels.move(newCount, l);
+                labels.parent[newCount] = parent;
+            }
+        }
+        count = newCount;
+
+        // normalize sums into moments
+        Regions r = regions;
+        r.allocate(count + 1);
+        r.count = count;
+        for (int l = 0; l <= count; l++) {
+            double area = labels.area[l];
+            double meanX = labels.sumX[l] / area;
+            double meanY = labels.sumY[l] / area;
+            double varX  = labels.sumXX[l] / area - meanX * meanX;
+            double varY  = labels.sumYY[l] / area - meanY * meanY;
+            double covXY = labels.sumXY[l] / area - meanX * meanY;
+            if (covXY > -1.0E-14 && covXY < 1.0E-14) {
+                covXY = 0.0; // eliminate roundoff error
+            }
+            r.parent[l]    = labels.parent[l];
+            r.color[l]     = labels.color[l];
+            r.area[l]      = labels.area[l];
+            r.perimeter[l] = labels.perimeter[l];
+            r.minX[l]      = labels.minX[l];
+            r.maxX[l]      = labels.maxX[l];
+            r.minY[l]      = labels.minY[l];
+            r.maxY[l]      = labels.maxY[l];
+            r.meanX[l]     = meanX;
+            r.meanY[l]     = meanY;
+            r.varX[l]      = l > 0 ? varX : 0;
+            r.varY[l]      = l > 0 ? varY : 0;
+            r.covXY[l]     = l > 0 ? covXY : 0;
+        }
+        return r;
+    }
+
+    /** Returns the first ancestor of label l that was not flagged, or 0 for the border. */
+    int enclosing(int l) {
+        int last = l;
+        while (l > -1) {
+            last = l;
+            if (l == 0) {
+                break;
+            }
+            l = flags[l];
+        }
+        return last;
+    }
+}
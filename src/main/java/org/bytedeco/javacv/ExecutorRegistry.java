@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the {@link ExecutorService} instances used by {@link Parallel}, by
+ * {@link FrameGrabber#delayedGrab(long)}, by background calibrations of
+ * {@link GeometricCalibrator}, and by {@link MjpegIngest} to decode images,
+ * along with metrics about the tasks they run. By default, these are shared
+ * pools of daemon threads that never prevent the JVM from exiting, but any
+ * {@link ExecutorService} can be set, for example, one returned by
+ * {@code Executors.newVirtualThreadPerTaskExecutor()}.
+ *
+ * @author Samuel Audet
+ */
+public class ExecutorRegistry {
+    /** Name of the executor used by {@link Parallel}. */
+    public static final String PARALLEL = "parallel";
+    /** Name of the executor used by {@link FrameGrabber#delayedGrab(long)}. */
+    public static final String GRABBER = "grabber";
+    /** Name of the executor used by {@link GeometricCalibrator#calibrateInBackground(boolean)}. */
+    public static final String CALIBRATOR = "calibrator";
+    /** Name of the executor used by {@link MjpegIngest} to decode images. */
+    public static final String DECODER = "decoder";
+
+    private static final Map<String, ExecutorService> executors = new ConcurrentHashMap<String, ExecutorService>();
+    private static final Map<String, ExecutorService> defaults = new ConcurrentHashMap<String, ExecutorService>();
+    private static final Map<String, Metrics> metrics = new ConcurrentHashMap<String, Metrics>();
+
+    /** Counters updated by the users of an executor, not by the executor itself. */
+    public static class Metrics {
+        final AtomicInteger queued = new AtomicInteger(), active = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong(), failed = new AtomicLong();
+        final AtomicLong queueNanos = new AtomicLong(), maxQueueNanos = new AtomicLong();
+        final AtomicLong runNanos = new AtomicLong(), maxRunNanos = new AtomicLong();
+
+        /** Call when submitting a task, and pass the returned value to {@link #started(long)}. */
+        public long submitted() {
+            queued.incrementAndGet();
+            return System.nanoTime();
+        }
+        /** Call when a task starts running, and pass the returned value to {@link #finished(long, boolean)}. */
+        public long started(long submitTime) {
+            long now = System.nanoTime();
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            queueNanos.addAndGet(now - submitTime);
+            updateMax(maxQueueNanos, now - submitTime);
+            return now;
+        }
+        /** Call when a task is done running, successfully or not. */
+        public void finished(long startTime, boolean success) {
+            long elapsed = System.nanoTime() - startTime;
+            active.decrementAndGet();
+            (success ? completed : failed).incrementAndGet();
+            runNanos.addAndGet(elapsed);
+            updateMax(maxRunNanos, elapsed);
+        }
+        /** Call when a submitted task gets cancelled before it starts running. */
+        public void cancelled() {
+            queued.decrementAndGet();
+        }
+
+        static void updateMax(AtomicLong max, long value) {
+            long m;
+            while ((m = max.get()) < value && !max.compareAndSet(m, value)) { }
+        }
+
+        public int getQueuedCount() {
+            return queued.get();
+        }
+        public int getActiveCount() {
+            return active.get();
+        }
+        public long getCompletedCount() {
+            return completed.get();
+        }
+        public long getFailedCount() {
+            return failed.get();
+        }
+        public long getMeanQueueWaitNanos() {
+            long n = completed.get() + failed.get() + active.get();
+            return n > 0 ? queueNanos.get() / n : 0;
+        }
+        public long getMaxQueueWaitNanos() {
+            return maxQueueNanos.get();
+        }
+        public long getMeanDurationNanos() {
+            long n = completed.get() + failed.get();
+            return n > 0 ? runNanos.get() / n : 0;
+        }
+        public long getMaxDurationNanos() {
+            return maxRunNanos.get();
+        }
+        /** Clears all counters, including queued and active ones, so call it only while no tasks are in flight. */
+        public void reset() {
+            queued.set(0);
+            active.set(0);
+            completed.set(0);
+            failed.set(0);
+            queueNanos.set(0);
+            maxQueueNanos.set(0);
+            runNanos.set(0);
+            maxRunNanos.set(0);
+        }
+
+        @Override public String toString() {
+            return "queued = " + getQueuedCount() + ", active = " + getActiveCount()
+                    + ", completed = " + getCompletedCount() + ", failed = " + getFailedCount()
+                    + ", mean queue wait = " + getMeanQueueWaitNanos() / 1000 + " us"
+                    + ", mean duration = " + getMeanDurationNanos() / 1000 + " us";
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        final String prefix;
+        final AtomicInteger count = new AtomicInteger();
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    static class DaemonWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        final String prefix;
+        final AtomicInteger count = new AtomicInteger();
+        DaemonWorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        @Override public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName(prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    static synchronized ExecutorService createDefault(String name) {
+        ExecutorService e = defaults.get(name);
+        if (e == null || e.isShutdown()) {
+            if (PARALLEL.equals(name)) {
+                e = new ForkJoinPool(Parallel.getNumCores(), new DaemonWorkerThreadFactory("javacv-parallel"), null, false);
+            } else if (DECODER.equals(name)) {
+                // decoding is CPU bound, so no more threads than cores, but they still die when idle
+                ThreadPoolExecutor t = new ThreadPoolExecutor(Parallel.getNumCores(), Parallel.getNumCores(), 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("javacv-" + name));
+                t.allowCoreThreadTimeOut(true);
+                e = t;
+            } else {
+                // threads of a cached pool die when idle, so nothing lingers once grabbers are done
+                e = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new DaemonThreadFactory("javacv-" + name));
+            }
+            defaults.put(name, e);
+        }
+        return e;
+    }
+
+    /** Returns the executor registered under the given name, or a shared default one. */
+    public static ExecutorService get(String name) {
+        ExecutorService e = executors.get(name);
+        if (e == null) {
+            e = defaults.get(name);
+            if (e == null || e.isShutdown()) {
+                e = createDefault(name);
+            }
+        }
+        return e;
+    }
+
+    /** Registers an executor under the given name, or restores the default one when null. Returns the previous one, if any. */
+    public static ExecutorService set(String name, ExecutorService executor) {
+        return executor != null ? executors.put(name, executor) : executors.remove(name);
+    }
+
+    /** Returns the metrics associated with the given name, created on first access. */
+    public static Metrics getMetrics(String name) {
+        Metrics m = metrics.get(name);
+        if (m == null) {
+            synchronized (metrics) {
+                m = metrics.get(name);
+                if (m == null) {
+                    m = new Metrics();
+                    metrics.put(name, m);
+                }
+            }
+        }
+        return m;
+    }
+
+    /** Shuts down the default executors. Executors set by users are left alone. They get recreated on next use. */
+    public static synchronized void shutdown() {
+        for (ExecutorService e : defaults.values()) {
+            e.shutdownNow();
+        }
+        defaults.clear();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2017 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -55,6 +55,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -185,6 +187,23 @@ public class FFmpegFrameGrabber extends FrameGrabber {
             audio_c = null;
         }
 
+        // Free the packets of the jitter buffer and the saved codec parameters
+        if (jitter_pkts != null && jitter_free != null) {
+            jitter_free.addAll(jitter_pkts);
+            if (discontinuity_pkt != null) {
+                jitter_free.add(discontinuity_pkt);
+            }
+            for (JitterPacket p : jitter_free) {
+                av_packet_free(p.pkt);
+            }
+        }
+        jitter_pkts = jitter_free = null;
+        discontinuity_pkt = null;
+        last_times = null;
+        input_failed = false;
+        video_par = copyParameters(null, video_par);
+        audio_par = copyParameters(null, audio_par);
+
         // Close the video file
         if (inputStream == null && oc != null && !oc.isNull()) {
             avformat_close_input(oc);
@@ -318,6 +337,110 @@ public class FFmpegFrameGrabber extends FrameGrabber {
     private boolean         frameGrabbed;
     private Frame           frame;
 
+    /** A packet held in the jitter buffer, with its decoding time in microseconds. */
+    private static class JitterPacket {
+        AVPacket pkt;
+        long time;
+    }
+
+    private boolean live = false;
+    private int jitterBufferSize = 16;
+    private long readTimeout = 5000000, reconnectDelay = 100000, maxReconnectDelay = 5000000;
+    private int maxReconnectAttempts = -1;
+    private AVCodecParameters video_par, audio_par;  // of the opened decoders, compared after reconnects
+    private ArrayList<JitterPacket> jitter_pkts, jitter_free;
+    private long[] last_times;  // of the last packet released per stream, to detect late ones
+    private AVRational time_base_q;  // same as AV_TIME_BASE_Q, in microseconds
+    private boolean input_failed;  // so that we drain the jitter buffer before reconnecting
+    private JitterPacket discontinuity_pkt;  // first one after timestamps jumped back, held until we drain the jitter buffer
+    private long reconnectCount, reconnectAttemptCount, decoderReopenCount, latePacketCount, discontinuityCount, maxJitterBufferDepth;
+
+    public boolean isLive() {
+        return live;
+    }
+    /**
+     * Sets live mode for network sources, taking effect on the next {@link #start()}. In live mode,
+     * packets go through a jitter buffer reordering them by decoding time before decoding, packets
+     * arriving after later ones already went out get dropped, and when reading fails, the grabber
+     * reconnects with exponential backoff, reusing the decoders if the codec parameters did not change.
+     * Packets going back in time by more than a few spans of the jitter buffer are not late but a
+     * discontinuity, for example from a sender restarting, after which the decoders get flushed.
+     * Timestamps follow the ones of the source, so they may restart after a reconnect or a discontinuity.
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+    }
+
+    public int getJitterBufferSize() {
+        return jitterBufferSize;
+    }
+    /** Sets the number of packets to hold before releasing the oldest one, also passed as "reorder_queue_size". */
+    public void setJitterBufferSize(int jitterBufferSize) {
+        this.jitterBufferSize = jitterBufferSize;
+    }
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+    /** Sets the "rw_timeout" in microseconds after which reads from a live source fail, 0 to block. */
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+    /** Sets the delay in microseconds before the second attempt to reconnect, doubled for each further attempt. */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    public int getMaxReconnectAttempts() {
+        return maxReconnectAttempts;
+    }
+    /** Sets the number of failed attempts after which grabbing returns null as at the end of a file, or -1 to try forever. */
+    public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+        this.maxReconnectAttempts = maxReconnectAttempts;
+    }
+
+    /** Returns the number of successful reconnections. */
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+    /** Returns the number of attempts to reconnect, successful or not. */
+    public long getReconnectAttemptCount() {
+        return reconnectAttemptCount;
+    }
+    /** Returns the number of reconnections after which a decoder had to be reopened. */
+    public long getDecoderReopenCount() {
+        return decoderReopenCount;
+    }
+    /** Returns the number of packets dropped because they arrived after later ones of their stream got decoded. */
+    public long getLatePacketCount() {
+        return latePacketCount;
+    }
+    /** Returns the number of times timestamps jumped back too far for packets to be late, and restarted. */
+    public long getDiscontinuityCount() {
+        return discontinuityCount;
+    }
+    /** Returns the number of packets currently in the jitter buffer. */
+    public int getJitterBufferDepth() {
+        return jitter_pkts != null ? jitter_pkts.size() : 0;
+    }
+    public long getMaxJitterBufferDepth() {
+        return maxJitterBufferDepth;
+    }
+    public void resetStatistics() {
+        reconnectCount = reconnectAttemptCount = decoderReopenCount = latePacketCount = discontinuityCount = maxJitterBufferDepth = 0;
+    }
+
     @Override public double getGamma() {
         // default to a gamma of 2.2 for cheap Webcams, DV cameras, etc.
         if (gamma == 0.0) {
@@ -507,9 +630,7 @@ public class FFmpegFrameGrabber extends FrameGrabber {
         // }
     }
     void startUnsafe() throws Exception {
-        int ret;
         img_convert_ctx = null;
-        oc              = new AVFormatContext(null);
         video_c         = null;
         audio_c         = null;
         pkt             = new AVPacket();
@@ -523,6 +644,60 @@ public class FFmpegFrameGrabber extends FrameGrabber {
 
         pkt2.size(0);
 
+        openInput();
+
+        if (video_st != null) {
+            try {
+                openVideoCodec();
+            } catch (Exception e) {
+                release();
+                throw e;
+            }
+
+            // Allocate video frame and an AVFrame structure for the RGB image
+            if ((picture = av_frame_alloc()) == null) {
+                throw new Exception("av_frame_alloc() error: Could not allocate raw picture frame.");
+            }
+            if ((picture_rgb = av_frame_alloc()) == null) {
+                throw new Exception("av_frame_alloc() error: Could not allocate RGB picture frame.");
+            }
+
+            initPictureRGB();
+        }
+
+        if (audio_st != null) {
+            try {
+                openAudioCodec();
+            } catch (Exception e) {
+                release();
+                throw e;
+            }
+
+            // Allocate audio samples frame
+            if ((samples_frame = av_frame_alloc()) == null) {
+                throw new Exception("av_frame_alloc() error: Could not allocate audio frame.");
+            }
+
+            samples_ptr = new BytePointer[] { null };
+            samples_buf = new Buffer[] { null };
+        }
+
+        if (live) {
+            video_par = copyParameters(video_st, null);
+            audio_par = copyParameters(audio_st, null);
+            jitter_pkts = new ArrayList<JitterPacket>();
+            jitter_free = new ArrayList<JitterPacket>();
+            time_base_q = new AVRational().num(1).den(AV_TIME_BASE);
+            last_times = new long[oc.nb_streams()];
+            Arrays.fill(last_times, Long.MIN_VALUE);
+        }
+    }
+
+    /** Opens the format context and finds the video and audio streams, setting {@link #oc}, {@link #video_st}, and {@link #audio_st}. */
+    private void openInput() throws Exception {
+        int ret;
+        oc = new AVFormatContext(null);
+
         // Open video file
         AVInputFormat f = null;
         if (format != null && format.length() > 0) {
@@ -549,6 +724,16 @@ public class FFmpegFrameGrabber extends FrameGrabber {
         if (audioChannels > 0) {
             av_dict_set(options, "channels", "" + audioChannels, 0);
         }
+        if (live) {
+            // so that reads from dead connections fail instead of blocking forever, and
+            // so that the RTP demuxer reorders packets over our jitter buffer as well
+            if (readTimeout > 0 && !this.options.containsKey("rw_timeout")) {
+                av_dict_set(options, "rw_timeout", "" + readTimeout, 0);
+            }
+            if (!this.options.containsKey("reorder_queue_size")) {
+                av_dict_set(options, "reorder_queue_size", "" + jitterBufferSize, 0);
+            }
+        }
         for (Entry<String, String> e : this.options.entrySet()) {
             av_dict_set(options, e.getKey(), e.getValue(), 0);
         }
@@ -567,6 +752,7 @@ public class FFmpegFrameGrabber extends FrameGrabber {
         if ((ret = avformat_open_input(oc, filename, f, options)) < 0) {
             av_dict_set(options, "pixel_format", null, 0);
             if ((ret = avformat_open_input(oc, filename, f, options)) < 0) {
+                av_dict_free(options);
                 throw new Exception("avformat_open_input() error " + ret + ": Could not open input \"" + filename + "\". (Has setFormat() been called?)");
             }
         }
@@ -584,7 +770,6 @@ public class FFmpegFrameGrabber extends FrameGrabber {
 
         // Find the first video and audio stream, unless the user specified otherwise
         video_st = audio_st = null;
-        AVCodecParameters video_par = null, audio_par = null;
         int nb_streams = oc.nb_streams();
         for (int i = 0; i < nb_streams; i++) {
             AVStream st = oc.streams(i);
@@ -592,120 +777,147 @@ public class FFmpegFrameGrabber extends FrameGrabber {
             AVCodecParameters par = st.codecpar();
             if (video_st == null && par.codec_type() == AVMEDIA_TYPE_VIDEO && (videoStream < 0 || videoStream == i)) {
                 video_st = st;
-                video_par = par;
             } else if (audio_st == null && par.codec_type() == AVMEDIA_TYPE_AUDIO && (audioStream < 0 || audioStream == i)) {
                 audio_st = st;
-                audio_par = par;
             }
         }
         if (video_st == null && audio_st == null) {
             throw new Exception("Did not find a video or audio stream inside \"" + filename
                     + "\" for videoStream == " + videoStream + " and audioStream == " + audioStream + ".");
         }
+    }
 
-        if (video_st != null) {
-            // Find the decoder for the video stream
-            AVCodec codec = avcodec_find_decoder(video_par.codec_id());
-            if (codec == null) {
-                throw new Exception("avcodec_find_decoder() error: Unsupported video format or codec not found: " + video_par.codec_id() + ".");
-            }
+    private void openVideoCodec() throws Exception {
+        int ret;
+        AVCodecParameters par = video_st.codecpar();
 
-            /* Allocate a codec context for the decoder */
-            if ((video_c = avcodec_alloc_context3(codec)) == null) {
-                throw new Exception("avcodec_alloc_context3() error: Could not allocate video decoding context.");
-            }
+        // Find the decoder for the video stream
+        AVCodec codec = avcodec_find_decoder(par.codec_id());
+        if (codec == null) {
+            throw new Exception("avcodec_find_decoder() error: Unsupported video format or codec not found: " + par.codec_id() + ".");
+        }
 
-            /* copy the stream parameters from the muxer */
-            if ((ret = avcodec_parameters_to_context(video_c, video_st.codecpar())) < 0) {
-                release();
-                throw new Exception("avcodec_parameters_to_context() error: Could not copy the video stream parameters.");
-            }
+        /* Allocate a codec context for the decoder */
+        if ((video_c = avcodec_alloc_context3(codec)) == null) {
+            throw new Exception("avcodec_alloc_context3() error: Could not allocate video decoding context.");
+        }
 
-            options = new AVDictionary(null);
-            for (Entry<String, String> e : videoOptions.entrySet()) {
-                av_dict_set(options, e.getKey(), e.getValue(), 0);
-            }
-            // Open video codec
-            if ((ret = avcodec_open2(video_c, codec, options)) < 0) {
-                throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
-            }
-            av_dict_free(options);
+        /* copy the stream parameters from the muxer */
+        if ((ret = avcodec_parameters_to_context(video_c, par)) < 0) {
+            // free only the context, since reconnect() keeps the rest
+            avcodec_free_context(video_c);
+            video_c = null;
+            throw new Exception("avcodec_parameters_to_context() error: Could not copy the video stream parameters.");
+        }
 
-            // Hack to correct wrong frame rates that seem to be generated by some codecs
-            if (video_c.time_base().num() > 1000 && video_c.time_base().den() == 1) {
-                video_c.time_base().den(1000);
-            }
+        AVDictionary options = new AVDictionary(null);
+        for (Entry<String, String> e : videoOptions.entrySet()) {
+            av_dict_set(options, e.getKey(), e.getValue(), 0);
+        }
+        // Open video codec
+        if ((ret = avcodec_open2(video_c, codec, options)) < 0) {
+            throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
+        }
+        av_dict_free(options);
 
-            // Allocate video frame and an AVFrame structure for the RGB image
-            if ((picture = av_frame_alloc()) == null) {
-                throw new Exception("av_frame_alloc() error: Could not allocate raw picture frame.");
-            }
-            if ((picture_rgb = av_frame_alloc()) == null) {
-                throw new Exception("av_frame_alloc() error: Could not allocate RGB picture frame.");
-            }
+        // Hack to correct wrong frame rates that seem to be generated by some codecs
+        if (video_c.time_base().num() > 1000 && video_c.time_base().den() == 1) {
+            video_c.time_base().den(1000);
+        }
+    }
 
-            initPictureRGB();
+    private void openAudioCodec() throws Exception {
+        int ret;
+        AVCodecParameters par = audio_st.codecpar();
+
+        // Find the decoder for the audio stream
+        AVCodec codec = avcodec_find_decoder(par.codec_id());
+        if (codec == null) {
+            throw new Exception("avcodec_find_decoder() error: Unsupported audio format or codec not found: " + par.codec_id() + ".");
         }
 
-        if (audio_st != null) {
-            // Find the decoder for the audio stream
-            AVCodec codec = avcodec_find_decoder(audio_par.codec_id());
-            if (codec == null) {
-                throw new Exception("avcodec_find_decoder() error: Unsupported audio format or codec not found: " + audio_par.codec_id() + ".");
-            }
+        /* Allocate a codec context for the decoder */
+        if ((audio_c = avcodec_alloc_context3(codec)) == null) {
+            throw new Exception("avcodec_alloc_context3() error: Could not allocate audio decoding context.");
+        }
 
-            /* Allocate a codec context for the decoder */
-            if ((audio_c = avcodec_alloc_context3(codec)) == null) {
-                throw new Exception("avcodec_alloc_context3() error: Could not allocate audio decoding context.");
-            }
+        /* copy the stream parameters from the muxer */
+        if ((ret = avcodec_parameters_to_context(audio_c, par)) < 0) {
+            // free only the context, since reconnect() keeps the rest
+            avcodec_free_context(audio_c);
+            audio_c = null;
+            throw new Exception("avcodec_parameters_to_context() error: Could not copy the audio stream parameters.");
+        }
 
-            /* copy the stream parameters from the muxer */
-            if ((ret = avcodec_parameters_to_context(audio_c, audio_st.codecpar())) < 0) {
-                release();
-                throw new Exception("avcodec_parameters_to_context() error: Could not copy the audio stream parameters.");
-            }
+        AVDictionary options = new AVDictionary(null);
+        for (Entry<String, String> e : audioOptions.entrySet()) {
+            av_dict_set(options, e.getKey(), e.getValue(), 0);
+        }
+        // Open audio codec
+        if ((ret = avcodec_open2(audio_c, codec, options)) < 0) {
+            throw new Exception("avcodec_open2() error " + ret + ": Could not open audio codec.");
+        }
+        av_dict_free(options);
+    }
 
-            options = new AVDictionary(null);
-            for (Entry<String, String> e : audioOptions.entrySet()) {
-                av_dict_set(options, e.getKey(), e.getValue(), 0);
+    /** Returns a copy of the parameters of the stream in par, allocated if null, or frees par and returns null if there is no stream. */
+    private static AVCodecParameters copyParameters(AVStream st, AVCodecParameters par) throws Exception {
+        if (st == null) {
+            if (par != null) {
+                avcodec_parameters_free(par);
             }
-            // Open audio codec
-            if ((ret = avcodec_open2(audio_c, codec, options)) < 0) {
-                throw new Exception("avcodec_open2() error " + ret + ": Could not open audio codec.");
-            }
-            av_dict_free(options);
+            return null;
+        }
+        if (par == null && (par = avcodec_parameters_alloc()) == null) {
+            throw new Exception("avcodec_parameters_alloc() error: Could not allocate codec parameters.");
+        }
+        int ret;
+        if ((ret = avcodec_parameters_copy(par, st.codecpar())) < 0) {
+            throw new Exception("avcodec_parameters_copy() error " + ret + ": Could not copy codec parameters.");
+        }
+        return par;
+    }
 
-            // Allocate audio samples frame
-            if ((samples_frame = av_frame_alloc()) == null) {
-                throw new Exception("av_frame_alloc() error: Could not allocate audio frame.");
+    /** Returns true if a decoder opened with parameters a can also decode a stream with parameters b. */
+    private static boolean sameParameters(AVCodecParameters a, AVCodecParameters b) {
+        if (a == null || b == null || a.codec_id() != b.codec_id() || a.format() != b.format()
+                || a.width() != b.width() || a.height() != b.height()
+                || a.sample_rate() != b.sample_rate() || a.channels() != b.channels()
+                || a.extradata_size() != b.extradata_size()) {
+            return false;
+        }
+        BytePointer ea = a.extradata(), eb = b.extradata();
+        for (int i = 0; i < a.extradata_size(); i++) {
+            if (ea.get(i) != eb.get(i)) {
+                return false;
             }
-
-            samples_ptr = new BytePointer[] { null };
-            samples_buf = new Buffer[] { null };
         }
+        return true;
     }
-
     private void initPictureRGB() {
-        int width  = imageWidth  > 0 ? imageWidth  : video_c.width();
-        int height = imageHeight > 0 ? imageHeight : video_c.height();
-
+        initPictureRGB(imageWidth  > 0 ? imageWidth  : video_c.width(),
+                       imageHeight > 0 ? imageHeight : video_c.height());
+    }
+    private void initPictureRGB(int width, int height) {
         switch (imageMode) {
             case COLOR:
             case GRAY:
-                // If size changes I new allocation is needed -> free the old one.
-                if (image_ptr != null) {
-                    // First kill all references, then free it.
-                    image_buf = null;
-                    BytePointer[] temp = image_ptr;
-                    image_ptr = null;
-                    av_free(temp[0]);
-                }
                 int fmt = getPixelFormat();
 
-                // Determine required buffer size and allocate buffer
+                // Determine required buffer size and allocate buffer, but only if the current one is too small,
+                // so that streams switching back and forth between resolutions do not reallocate on every switch
                 int size = av_image_get_buffer_size(fmt, width, height, 1);
-                image_ptr = new BytePointer[] { new BytePointer(av_malloc(size)).capacity(size) };
-                image_buf = new Buffer[] { image_ptr[0].asBuffer() };
+                if (image_ptr == null || image_ptr[0] == null || image_ptr[0].capacity() < size) {
+                    if (image_ptr != null) {
+                        // First kill all references, then free it.
+                        image_buf = null;
+                        BytePointer[] temp = image_ptr;
+                        image_ptr = null;
+                        av_free(temp[0]);
+                    }
+                    image_ptr = new BytePointer[] { new BytePointer(av_malloc(size)).capacity(size) };
+                    image_buf = new Buffer[] { image_ptr[0].asBuffer() };
+                }
 
                 // Assign appropriate parts of buffer to image planes in picture_rgb
                 // Note that picture_rgb is an AVFrame, but AVFrame is a superset of AVPicture
@@ -738,16 +950,211 @@ public class FFmpegFrameGrabber extends FrameGrabber {
             av_packet_unref(pkt);
         }
         for (int i = 0; i < numBuffers+1; i++) {
-            if (av_read_frame(oc, pkt) < 0) {
+            if (readPacket(pkt) < 0) {
                 return;
             }
             av_packet_unref(pkt);
         }
     }
 
+    /**
+     * Reads the next packet into pkt with av_read_frame(), or in live mode, from the jitter buffer,
+     * reconnecting if needed. Returns a negative value at the end of the stream.
+     */
+    private int readPacket(AVPacket pkt) throws Exception {
+        if (!live || jitter_pkts == null) {
+            return av_read_frame(oc, pkt);
+        }
+        while (jitter_pkts.size() <= jitterBufferSize) {
+            if (input_failed) {
+                if (!jitter_pkts.isEmpty()) {
+                    // drain what we have before reconnecting
+                    break;
+                } else if (!reconnect()) {
+                    return -1;
+                }
+                input_failed = false;
+            }
+            if (discontinuity_pkt != null) {
+                if (!jitter_pkts.isEmpty()) {
+                    // drain what we have of the previous timeline first
+                    break;
+                }
+                discontinuityCount++;
+                if (video_c != null) {
+                    avcodec_flush_buffers(video_c);
+                }
+                if (audio_c != null) {
+                    avcodec_flush_buffers(audio_c);
+                }
+                Arrays.fill(last_times, Long.MIN_VALUE);
+                jitter_pkts.add(discontinuity_pkt);
+                discontinuity_pkt = null;
+                continue;
+            }
+            JitterPacket p = jitter_free.isEmpty() ? new JitterPacket() : jitter_free.remove(jitter_free.size() - 1);
+            if (p.pkt == null && (p.pkt = av_packet_alloc()) == null) {
+                throw new Exception("av_packet_alloc() error: Could not allocate packet.");
+            }
+            if (av_read_frame(oc, p.pkt) < 0) {
+                jitter_free.add(p);
+                input_failed = true;
+                continue;
+            }
+            // compare indices, since oc.streams() returns new wrappers
+            int index = p.pkt.stream_index();
+            AVStream st = video_st != null && index == video_st.index() ? video_st
+                        : audio_st != null && index == audio_st.index() ? audio_st : null;
+            if (st == null || index >= last_times.length) {
+                // not a stream we decode
+                av_packet_unref(p.pkt);
+                jitter_free.add(p);
+                continue;
+            }
+            long dts = p.pkt.dts() != AV_NOPTS_VALUE ? p.pkt.dts() : p.pkt.pts();
+            p.time = dts != AV_NOPTS_VALUE ? av_rescale_q(dts, st.time_base(), time_base_q) : Long.MIN_VALUE;
+            if (p.time == Long.MIN_VALUE) {
+                // no timestamp, assume it arrived in order
+                p.time = jitter_pkts.isEmpty() ? last_times[index] : jitter_pkts.get(jitter_pkts.size() - 1).time;
+            } else {
+                long latest = jitter_pkts.isEmpty() ? last_times[index]
+                            : Math.max(last_times[index], jitter_pkts.get(jitter_pkts.size() - 1).time);
+                if (latest != Long.MIN_VALUE && latest - p.time > discontinuityThreshold()) {
+                    // not late, but a new timeline
+                    discontinuity_pkt = p;
+                    continue;
+                } else if (p.time < last_times[index]) {
+                    latePacketCount++;
+                    av_packet_unref(p.pkt);
+                    jitter_free.add(p);
+                    continue;
+                }
+            }
+            // insert sorted by time, usually at the end
+            int i = jitter_pkts.size();
+            while (i > 0 && jitter_pkts.get(i - 1).time > p.time) {
+                i--;
+            }
+            jitter_pkts.add(i, p);
+            maxJitterBufferDepth = Math.max(maxJitterBufferDepth, jitter_pkts.size());
+        }
+        JitterPacket p = jitter_pkts.remove(0);
+        last_times[p.pkt.stream_index()] = p.time;
+        av_packet_move_ref(pkt, p.pkt);
+        jitter_free.add(p);
+        return 0;
+    }
+
+    /**
+     * Returns how far back in microseconds packets may arrive and still count as late, 4 times the
+     * span of the jitter buffer, but at least 1 second, which is also used until the buffer fills.
+     */
+    private long discontinuityThreshold() {
+        long span = jitter_pkts.size() > 1 ? jitter_pkts.get(jitter_pkts.size() - 1).time - jitter_pkts.get(0).time : 0;
+        return Math.max(4 * span, AV_TIME_BASE);
+    }
+
+    /**
+     * Closes the input and opens it again, waiting between attempts for a delay doubling from
+     * {@link #reconnectDelay} up to {@link #maxReconnectDelay}. Decoders are kept when the codec
+     * parameters of their stream did not change, and only flushed. Returns false after
+     * {@link #maxReconnectAttempts} failed attempts, or for sources that cannot reconnect.
+     */
+    private boolean reconnect() throws Exception {
+        if (inputStream != null) {
+            return false;
+        }
+        long delay = 0;
+        for (int attempt = 0; maxReconnectAttempts < 0 || attempt < maxReconnectAttempts; attempt++) {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000, (int)(delay % 1000) * 1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new Exception("Interrupted while reconnecting to \"" + filename + "\".", ex);
+                }
+            }
+            delay = delay > 0 ? Math.min(2 * delay, maxReconnectDelay) : reconnectDelay;
+            reconnectAttemptCount++;
+            if (oc != null && !oc.isNull()) {
+                avformat_close_input(oc);
+            }
+            oc = null;
+            try {
+                openInput();
+                break;
+            } catch (Exception e) {
+                if (oc != null && !oc.isNull()) {
+                    avformat_close_input(oc);
+                }
+                oc = null;
+                if (maxReconnectAttempts >= 0 && attempt + 1 >= maxReconnectAttempts) {
+                    return false;
+                }
+            }
+        }
+        if (oc == null) {
+            return false;
+        }
+        reconnectCount++;
+
+        boolean reopened = false;
+        if (video_c != null && video_st != null && sameParameters(video_par, video_st.codecpar())) {
+            avcodec_flush_buffers(video_c);
+        } else if (video_c != null || video_st != null) {
+            if (video_c != null) {
+                avcodec_free_context(video_c);
+                video_c = null;
+            }
+            if (video_st != null) {
+                openVideoCodec();
+                if (picture == null && (picture = av_frame_alloc()) == null) {
+                    throw new Exception("av_frame_alloc() error: Could not allocate raw picture frame.");
+                }
+                if (picture_rgb == null) {
+                    if ((picture_rgb = av_frame_alloc()) == null) {
+                        throw new Exception("av_frame_alloc() error: Could not allocate RGB picture frame.");
+                    }
+                    initPictureRGB();
+                }
+            }
+            video_par = copyParameters(video_st, video_par);
+            reopened = true;
+        }
+        if (audio_c != null && audio_st != null && sameParameters(audio_par, audio_st.codecpar())) {
+            avcodec_flush_buffers(audio_c);
+        } else if (audio_c != null || audio_st != null) {
+            if (audio_c != null) {
+                avcodec_free_context(audio_c);
+                audio_c = null;
+            }
+            if (audio_st != null) {
+                openAudioCodec();
+                if (samples_frame == null) {
+                    if ((samples_frame = av_frame_alloc()) == null) {
+                        throw new Exception("av_frame_alloc() error: Could not allocate audio frame.");
+                    }
+                    samples_ptr = new BytePointer[] { null };
+                    samples_buf = new Buffer[] { null };
+                }
+            }
+            audio_par = copyParameters(audio_st, audio_par);
+            reopened = true;
+        }
+        if (reopened) {
+            decoderReopenCount++;
+        }
+        last_times = new long[oc.nb_streams()];
+        Arrays.fill(last_times, Long.MIN_VALUE);
+        return true;
+    }
+
     private void processImage() throws Exception {
-        frame.imageWidth  = imageWidth  > 0 ? imageWidth  : video_c.width();
-        frame.imageHeight = imageHeight > 0 ? imageHeight : video_c.height();
+        // use the size of the decoded picture, which may change in the middle of a stream
+        int width  = picture.width()  > 0 ? picture.width()  : video_c.width();
+        int height = picture.height() > 0 ? picture.height() : video_c.height();
+        frame.imageWidth  = imageWidth  > 0 ? imageWidth  : width;
+        frame.imageHeight = imageHeight > 0 ? imageHeight : height;
         frame.imageDepth = Frame.DEPTH_UBYTE;
         switch (imageMode) {
             case COLOR:
@@ -759,12 +1166,12 @@ public class FFmpegFrameGrabber extends FrameGrabber {
 
                 // Has the size changed?
                 if (frame.imageWidth != picture_rgb.width() || frame.imageHeight != picture_rgb.height()) {
-                    initPictureRGB();
+                    initPictureRGB(frame.imageWidth, frame.imageHeight);
                 }
 
                 // Convert the image into BGR or GRAY format that OpenCV uses
                 img_convert_ctx = sws_getCachedContext(img_convert_ctx,
-                        video_c.width(), video_c.height(), video_c.pix_fmt(),
+                        width, height, picture.format() >= 0 ? picture.format() : video_c.pix_fmt(),
                         frame.imageWidth, frame.imageHeight, getPixelFormat(), SWS_BILINEAR,
                         null, null, (DoublePointer)null);
                 if (img_convert_ctx == null) {
@@ -773,7 +1180,7 @@ public class FFmpegFrameGrabber extends FrameGrabber {
 
                 // Convert the image from its native format to RGB or GRAY
                 sws_scale(img_convert_ctx, new PointerPointer(picture), picture.linesize(), 0,
-                        video_c.height(), new PointerPointer(picture_rgb), picture_rgb.linesize());
+                        height, new PointerPointer(picture_rgb), picture_rgb.linesize());
                 frame.imageStride = picture_rgb.linesize(0);
                 frame.image = image_buf;
                 break;
@@ -940,7 +1347,7 @@ public class FFmpegFrameGrabber extends FrameGrabber {
         boolean done = false;
         while (!done) {
             if (pkt2.size() <= 0) {
-                if (av_read_frame(oc, pkt) < 0) {
+                if (readPacket(pkt) < 0) {
                     if (doVideo && video_st != null) {
                         // The video codec may have buffered some frames
                         pkt.stream_index(video_st.index());
@@ -1026,7 +1433,7 @@ public class FFmpegFrameGrabber extends FrameGrabber {
 
 
         // Return the next frame of a stream.
-        if (av_read_frame(oc, pkt) < 0) {
+        if (readPacket(pkt) < 0) {
             return null;
         }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2017 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -203,6 +203,10 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             av_free(video_outbuf);
             video_outbuf = null;
         }
+        if (compressed_buf != null) {
+            av_free(compressed_buf.position(0));
+            compressed_buf = null;
+        }
         if (frame != null) {
             av_frame_free(frame);
             frame = null;
@@ -334,6 +338,10 @@ public class FFmpegFrameRecorder extends FrameRecorder {
     private AVPacket video_pkt, audio_pkt;
     private int[] got_video_packet, got_audio_packet;
     private AVFormatContext ifmt_ctx;
+    private BytePointer compressed_buf;
+    private long compressed_pts;
+    /** Time base of the timestamps given to recordCompressed(), in microseconds. */
+    private final AVRational compressed_time_base = new AVRational().num(1).den(1000000);
 
     @Override public int getFrameNumber() {
         return picture == null ? super.getFrameNumber() : (int)picture.pts();
@@ -376,6 +384,7 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         audio_st = null;
         got_video_packet = new int[1];
         got_audio_packet = new int[1];
+        compressed_pts = -1;
 
         /* auto detect the output format from the name. */
         String format_name = format == null || format.length() == 0 ? null : format;
@@ -965,6 +974,59 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         return image != null ? (video_pkt.flags() & AV_PKT_FLAG_KEY) != 0 : got_video_packet[0] != 0;
     }
 
+    /** Same as {@code recordCompressed(data, timestamp, true)}, as for JPEG images with {@code AV_CODEC_ID_MJPEG}. */
+    public boolean recordCompressed(ByteBuffer data, long timestamp) throws Exception {
+        return recordCompressed(data, timestamp, true);
+    }
+    /**
+     * Writes an image already compressed in the format of the video codec as is, without
+     * decoding and encoding it again, for example, JPEG data from
+     * {@link IPCameraFrameGrabber#grabCompressed()} with {@code setVideoCodec(AV_CODEC_ID_MJPEG)}.
+     * The timestamp is in microseconds since the start of the recording, or negative to
+     * follow the frame number. Packets get timestamps that strictly increase regardless.
+     */
+    public boolean recordCompressed(ByteBuffer data, long timestamp, boolean keyFrame) throws Exception {
+        if (video_st == null) {
+            throw new Exception("No video output stream (Is imageWidth > 0 && imageHeight > 0 and has start() been called?)");
+        }
+        int size = data.remaining();
+        BytePointer pointer;
+        if (data.isDirect()) {
+            pointer = new BytePointer(data);
+        } else {
+            if (compressed_buf == null || compressed_buf.capacity() < size) {
+                if (compressed_buf != null) {
+                    av_free(compressed_buf.position(0));
+                }
+                compressed_buf = new BytePointer(av_malloc(size)).capacity(size);
+            }
+            compressed_buf.position(0).put(data.array(), data.arrayOffset() + data.position(), size);
+            pointer = compressed_buf.position(0);
+        }
+
+        long pts = timestamp >= 0 ? av_rescale_q(timestamp, compressed_time_base, video_c.time_base())
+                                  : picture != null ? picture.pts() : compressed_pts + 1;
+        if (pts <= compressed_pts) {
+            pts = compressed_pts + 1;
+        }
+        compressed_pts = pts;
+
+        av_init_packet(video_pkt);
+        video_pkt.data(pointer);
+        video_pkt.size(size);
+        video_pkt.pts(av_rescale_q(pts, video_c.time_base(), video_st.time_base()));
+        video_pkt.dts(video_pkt.pts());
+        if (keyFrame) {
+            video_pkt.flags(video_pkt.flags() | AV_PKT_FLAG_KEY);
+        }
+        video_pkt.stream_index(video_st.index());
+        writePacket(AVMEDIA_TYPE_VIDEO, video_pkt);
+        if (picture != null) {
+            picture.pts(pts + 1);
+        }
+        return keyFrame;
+    }
+
     public boolean recordSamples(Buffer ... samples) throws Exception {
         return recordSamples(0, 0, samples);
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2015 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -33,10 +33,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
@@ -45,7 +47,7 @@ import java.util.concurrent.Future;
 public abstract class FrameGrabber implements Closeable {
 
     public static final List<String> list = new LinkedList<String>(Arrays.asList(new String[] {
-		"DC1394", "FlyCapture", "FlyCapture2", "OpenKinect", "OpenKinect2", "RealSense", "PS3Eye", "VideoInput", "OpenCV", "FFmpeg", "IPCamera" }));
+		"DC1394", "FlyCapture", "FlyCapture2", "OpenKinect", "OpenKinect2", "RealSense", "PS3Eye", "VideoInput", "OpenCV", "FFmpeg", "IPCamera", "Synthetic" }));
     public static void init() {
         for (String name : list) {
             try {
@@ -484,6 +486,7 @@ public abstract class FrameGrabber implements Closeable {
     public abstract void trigger() throws Exception;
 
     @Override public void close() throws Exception {
+        cancelDelayedGrab();
         stop();
         release();
     }
@@ -520,10 +523,22 @@ public abstract class FrameGrabber implements Closeable {
         }
     }
 
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    private ExecutorService executor = null;
     private Future<Void> future = null;
+    private AtomicBoolean futureClaimed = null;
+    private CountDownLatch futureDone = null;
     private Frame delayedFrame = null;
     private long delayedTime = 0;
+
+    /** Returns the executor set for {@link #delayedGrab(long)}, or null to use {@code ExecutorRegistry.get(ExecutorRegistry.GRABBER)}. */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+    /** Sets the executor to use for {@link #delayedGrab(long)}. It does not get shut down on {@link #close()}. */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     public void delayedGrab(final long delayTime) {
         delayedFrame = null;
         delayedTime = 0;
@@ -531,14 +546,61 @@ public abstract class FrameGrabber implements Closeable {
         if (future != null && !future.isDone()) {
             return;
         }
-        future = executor.submit(new Callable<Void>() { public Void call() throws Exception {
-            do {
-                delayedFrame = grab();
-                delayedTime = System.nanoTime()/1000 - start;
-            } while (delayedTime < delayTime);
+        final ExecutorRegistry.Metrics metrics = ExecutorRegistry.getMetrics(ExecutorRegistry.GRABBER);
+        final long submitTime = metrics.submitted();
+        ExecutorService e = executor != null ? executor : ExecutorRegistry.get(ExecutorRegistry.GRABBER);
+        // set by whichever comes first, the task starting or getting cancelled
+        final AtomicBoolean claimed = futureClaimed = new AtomicBoolean();
+        final CountDownLatch done = futureDone = new CountDownLatch(1);
+        future = e.submit(new Callable<Void>() { public Void call() throws Exception {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            long startTime = metrics.started(submitTime);
+            boolean success = false;
+            try {
+                do {
+                    delayedFrame = grab();
+                    delayedTime = System.nanoTime()/1000 - start;
+                } while (delayedTime < delayTime);
+                success = true;
+            } finally {
+                metrics.finished(startTime, success);
+                done.countDown();
+            }
             return null;
         }});
     }
+    /**
+     * Interrupts any pending {@link #delayedGrab(long)}, and waits for a grab already running to return,
+     * so that the caller may stop and release this grabber safely. Called on {@link #close()}.
+     */
+    public void cancelDelayedGrab() {
+        if (future != null && !future.isDone()) {
+            if (futureClaimed.compareAndSet(false, true)) {
+                // never started, so nothing to wait for
+                ExecutorRegistry.getMetrics(ExecutorRegistry.GRABBER).cancelled();
+                future.cancel(false);
+            } else {
+                future.cancel(true);
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        futureDone.await();
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        future = null;
+        futureClaimed = null;
+        futureDone = null;
+    }
     public long getDelayedTime() throws InterruptedException, ExecutionException {
         if (future == null) {
             return 0;
@@ -577,6 +639,7 @@ public abstract class FrameGrabber implements Closeable {
             latencies = new long[frameGrabbers.length];
             bestLatencies = null;
             lastNewestTimestamp = 0;
+            bestInterval = Long.MAX_VALUE;
         }
         public int size() {
             return frameGrabbers.length;
@@ -634,20 +697,29 @@ public abstract class FrameGrabber implements Closeable {
             if (bestLatencies == null) {
                 bestLatencies = Arrays.copyOf(latencies, latencies.length);
             } else {
-                int sum1 = 0, sum2 = 0;
+                long sum1 = 0, sum2 = 0;
                 for (int i = 0; i < frameGrabbers.length; i++) {
                     sum1 += latencies[i];
                     sum2 += bestLatencies[i];
                 }
                 if (sum1 < sum2) {
                     bestLatencies = Arrays.copyOf(latencies, latencies.length);
+                } else {
+                    // let them grow back slowly, in case the cameras drifted apart
+                    for (int i = 0; i < frameGrabbers.length; i++) {
+                        bestLatencies[i] += (latencies[i] - bestLatencies[i])/16;
+                    }
                 }
             }
 
             // we cannot have latencies higher than the time between frames..
             // or something too close to it anyway... 90% is good?
-            bestInterval = Math.min(bestInterval, newestTimestamp-lastNewestTimestamp);
-            for (int i = 0; i < bestLatencies.length; i++) {
+            long interval = newestTimestamp - lastNewestTimestamp;
+            if (lastNewestTimestamp > 0 && interval > 0) {
+                // follow changes of frame rate, without jumping on a single late frame
+                bestInterval = interval < bestInterval ? interval : bestInterval + (interval - bestInterval)/16;
+            }
+            for (int i = 0; i < bestLatencies.length && bestInterval < Long.MAX_VALUE; i++) {
                 bestLatencies[i] = Math.min(bestLatencies[i], bestInterval*9/10);
             }
 
@@ -658,13 +730,13 @@ public abstract class FrameGrabber implements Closeable {
                     if (frameGrabbers[i].isTriggerMode() || grabbedFrames[i] == null) {
                         continue;
                     }
-                    int latency = (int)(newestTimestamp - Math.max(0, frameGrabbers[i].getTimestamp()));
+                    long latency = newestTimestamp - Math.max(0, frameGrabbers[i].getTimestamp());
                     while (latency-bestLatencies[i] > 0.1*bestLatencies[i]) {
                         grabbedFrames[i] = frameGrabbers[i].grab();
                         if (grabbedFrames[i] == null) {
                             break;
                         }
-                        latency = (int)(newestTimestamp - Math.max(0, frameGrabbers[i].getTimestamp()));
+                        latency = newestTimestamp - Math.max(0, frameGrabbers[i].getTimestamp());
                         if (latency < 0) {
                             // woops, a camera seems to have dropped a frame somewhere...
                             // bump up the newestTimestamp
@@ -692,7 +764,441 @@ public abstract class FrameGrabber implements Closeable {
         }
     }
 
+    /**
+     * An {@link Array} that grabs from all devices in parallel, each on a dedicated daemon
+     * thread publishing copies of its frames into a {@link FrameRing}, instead of calling
+     * {@link FrameGrabber#grab()} on each device in turn. {@link #grab()} then assembles
+     * sets by picking for each device the frame whose timestamp is nearest the newest one,
+     * within {@link #getTolerance()}, waiting for the next frame of devices lagging behind.
+     * Frames skipped that way, or overwritten in the rings because {@link #grab()} did not
+     * keep up, count as dropped. Devices in trigger mode get triggered by their own thread.
+ * When a device returns a null frame, the end of its stream, or throws an exception, its
+ * thread exits, and {@link #grab()} throws an exception once its last frames got returned.
+     * <p>
+     * As with the rings, only the image data and the timestamp of frames get copied,
+     * and the frames returned remain valid until the next call to {@link #grab()}.
+     */
+    public static class ConcurrentArray extends Array {
+        protected ConcurrentArray(FrameGrabber[] frameGrabbers) {
+            super(frameGrabbers);
+        }
+
+        private int ringCapacity = 4;
+        private long tolerance = 0;
+
+        // not initialized here, since the constructor of Array calls setFrameGrabbers()
+        private Channel[] channels;
+        private Frame[] frameSet;
+        private long setCount, unsynchronizedCount;
+
+        /** The ring and output frame of a device, replaced by its thread when the image size changes. */
+        static class Stream {
+            final FrameRing ring;
+            final FrameRing.Consumer consumer;
+            final Frame[] frames;
+            final int width, height, depth, channels;
+
+            Stream(Frame f, int capacity) {
+                width = f.imageWidth;
+                height = f.imageHeight;
+                depth = f.imageDepth;
+                channels = f.imageChannels;
+                ring = new FrameRing(capacity, width, height, depth, channels, FrameRing.WaitStrategy.BLOCKING, true);
+                consumer = ring.newConsumer();
+                frames = new Frame[] { new Frame(width, height, depth, channels), new Frame(width, height, depth, channels) };
+            }
+            boolean matches(Frame f) {
+                return f.imageWidth == width && f.imageHeight == height && f.imageDepth == depth && f.imageChannels == channels;
+            }
+        }
+
+        /** A device with the thread grabbing from it, and the statistics of the sets it appeared in. */
+        static class Channel implements Runnable {
+            Channel(FrameGrabber grabber, int capacity) {
+                this.grabber = grabber;
+                this.capacity = capacity;
+            }
+
+            final FrameGrabber grabber;
+            final int capacity;
+            final Semaphore triggers = new Semaphore(0);
+            volatile Stream stream = null;
+            volatile Exception error = null;
+            volatile boolean running = false, ended = false;
+            volatile long grabbedCount = 0;
+            Thread thread = null;
+
+            // used only by the thread calling ConcurrentArray.grab()
+            Stream current = null;
+            int index = 0;              // of the current frame in current.frames
+            boolean lookahead = false;  // whether the other frame holds one not returned yet
+            long lastTimestamp = -1, interval = 0;
+            long skew = 0, maxSkew = 0, skewSum = 0, skewCount = 0, skipped = 0, dropped = 0;
+
+            public void run() {
+                try {
+                    while (running) {
+                        if (grabber.isTriggerMode()) {
+                            triggers.acquire();
+                            grabber.trigger();
+                        }
+                        Frame f = grabber.grab();
+                        if (f == null) {
+                            // end of stream: grabbing again would only spin
+                            ended = true;
+                            break;
+                        } else if (f.image == null) {
+                            continue;
+                        }
+                        Stream s = stream;
+                        if (s == null || !s.matches(f)) {
+                            s = new Stream(f, capacity);
+                            synchronized (this) {
+                                stream = s;
+                                notifyAll();
+                            }
+                        }
+                        Frame slot = s.ring.claim();
+                        FrameRing.copy(f, f.image, slot, slot.image);
+                        slot.timestamp = grabber.getTimestamp();
+                        s.ring.publish();
+                        grabbedCount++;
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (Exception e) {
+                    error = e;
+                } finally {
+                    synchronized (this) {
+                        running = false;
+                        notifyAll();
+                    }
+                }
+            }
+
+            void start() {
+                running = true;
+                thread = new Thread(this, "FrameGrabber.ConcurrentArray-" + grabber.getClass().getSimpleName());
+                thread.setDaemon(true);
+                thread.start();
+            }
+            /** Interrupts the thread and waits for it, returning false if it is still inside the grabber. */
+            boolean stop() throws InterruptedException {
+                running = false;
+                if (thread != null) {
+                    thread.interrupt();
+                    thread.join(Math.max(1000, grabber.getTimeout()));
+                    if (thread.isAlive()) {
+                        return false;
+                    }
+                    thread = null;
+                }
+                return true;
+            }
+
+            /** Waits for the thread to create a stream, and returns it, or null on timeout or error. */
+            synchronized Stream awaitStream(long timeoutMillis) throws Exception {
+                long end = System.currentTimeMillis() + timeoutMillis;
+                while (stream == null && running) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+                if (stream == null) {
+                    checkError();
+                }
+                return stream;
+            }
+
+            /** Throws the error of the thread, or reports the end of the stream, if any. */
+            void checkError() throws Exception {
+                if (error != null) {
+                    throw new Exception("Could not grab from " + grabber.getClass().getSimpleName() + ": " + error, error);
+                } else if (ended) {
+                    throw new Exception("End of stream from " + grabber.getClass().getSimpleName() + ".");
+                }
+            }
+
+            Frame frame() {
+                return current != null ? current.frames[index] : null;
+            }
+
+            /** Returns the next frame, without making it current, or null if none came within the timeout. */
+            Frame peek(long timeoutNanos) throws Exception {
+                Stream s = stream;
+                if (s != current) {
+                    // the image size changed: forget the frames of the old stream
+                    if (s == null && (s = awaitStream(timeoutNanos/1000000)) == null) {
+                        return null;
+                    }
+                    if (current != null) {
+                        dropped += current.consumer.getDroppedCount();
+                        current.consumer.close();
+                    }
+                    current = s;
+                    index = 0;
+                    lookahead = false;
+                }
+                if (!lookahead) {
+                    // read running before the lag, to not miss frames published just before exiting
+                    if (!running && current.consumer.getLag() == 0) {
+                        checkError();
+                    }
+                    lookahead = current.consumer.next(current.frames[1 - index], running ? timeoutNanos : 0);
+                }
+                return lookahead ? current.frames[1 - index] : null;
+            }
+
+            /** Makes the next frame current, and returns it, or null if none came within the timeout. */
+            Frame advance(long timeoutNanos) throws Exception {
+                if (peek(timeoutNanos) == null) {
+                    return null;
+                }
+                index = 1 - index;
+                lookahead = false;
+                Frame f = current.frames[index];
+                long d = f.timestamp - lastTimestamp;
+                if (lastTimestamp >= 0 && d > 0) {
+                    interval = interval > 0 ? interval + (d - interval)/8 : d;
+                }
+                lastTimestamp = f.timestamp;
+                return f;
+            }
+
+            long getDroppedCount() {
+                return skipped + dropped + (current != null ? current.consumer.getDroppedCount() : 0);
+            }
+        }
+
+        @Override public void setFrameGrabbers(FrameGrabber[] frameGrabbers) {
+            super.setFrameGrabbers(frameGrabbers);
+            channels = null;
+            frameSet = new Frame[frameGrabbers.length];
+            setCount = unsynchronizedCount = 0;
+        }
+
+        /** Returns the number of frames each ring holds, before overwriting the oldest ones. */
+        public int getRingCapacity() {
+            return ringCapacity;
+        }
+        public void setRingCapacity(int ringCapacity) {
+            this.ringCapacity = ringCapacity;
+        }
+
+        /**
+         * Returns the maximum difference in microseconds between timestamps of a synchronized set,
+         * or 0 to use half the shortest frame interval observed.
+         */
+        public long getTolerance() {
+            return tolerance;
+        }
+        public void setTolerance(long tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        /** Returns the number of sets returned by {@link #grab()}. */
+        public long getSetCount() {
+            return setCount;
+        }
+        /** Returns the number of sets returned with some timestamps outside the tolerance, or missing frames. */
+        public long getUnsynchronizedCount() {
+            return unsynchronizedCount;
+        }
+        /** Returns the number of frames grabbed from the given device by its thread. */
+        public long getGrabbedCount(int device) {
+            return channels != null ? channels[device].grabbedCount : 0;
+        }
+        /** Returns the number of frames from the given device skipped to synchronize or overwritten in its ring. */
+        public long getDroppedCount(int device) {
+            return channels != null ? channels[device].getDroppedCount() : 0;
+        }
+        /** Returns the timestamp of the device in the last set minus the reference, in microseconds. */
+        public long getSkew(int device) {
+            return channels != null ? channels[device].skew : 0;
+        }
+        /** Returns the mean absolute skew of the device over all sets, in microseconds. */
+        public long getMeanSkew(int device) {
+            Channel c = channels != null ? channels[device] : null;
+            return c != null && c.skewCount > 0 ? c.skewSum / c.skewCount : 0;
+        }
+        /** Returns the maximum absolute skew of the device over all sets, in microseconds. */
+        public long getMaxSkew(int device) {
+            return channels != null ? channels[device].maxSkew : 0;
+        }
+        public void resetStatistics() {
+            setCount = unsynchronizedCount = 0;
+            for (int i = 0; channels != null && i < channels.length; i++) {
+                Channel c = channels[i];
+                c.skew = c.maxSkew = c.skewSum = c.skewCount = c.skipped = 0;
+                c.dropped = c.current != null ? -c.current.consumer.getDroppedCount() : 0;
+            }
+        }
+
+        @Override public void start() throws Exception {
+            super.start();
+            channels = new Channel[frameGrabbers.length];
+            for (int i = 0; i < frameGrabbers.length; i++) {
+                channels[i] = new Channel(frameGrabbers[i], ringCapacity);
+                channels[i].start();
+            }
+        }
+        /**
+         * Stops the threads, and then the devices whose thread exited. Devices whose thread is
+         * still inside {@link FrameGrabber#grab()} do not get stopped, and an exception reports
+         * them, after which calling this method again waits for their threads again.
+         */
+        @Override public void stop() throws Exception {
+            boolean[] stopped = stopThreads();
+            for (int i = 0; i < frameGrabbers.length; i++) {
+                if (stopped[i]) {
+                    frameGrabbers[i].stop();
+                }
+            }
+            checkStopped(stopped, "stop");
+        }
+        @Override public void trigger() throws Exception {
+            for (int i = 0; channels != null && i < channels.length; i++) {
+                if (channels[i].grabber.isTriggerMode()) {
+                    channels[i].triggers.release();
+                }
+            }
+        }
+        @Override public Frame[] grab() throws Exception {
+            if (channels == null) {
+                throw new Exception("ConcurrentArray not started.");
+            }
+            long timeoutNanos = 0;
+            for (Channel c : channels) {
+                timeoutNanos = Math.max(timeoutNanos, c.grabber.getTimeout() * 1000000L);
+            }
+            boolean unsynchronized = false;
+            long reference = Long.MIN_VALUE, shortestInterval = Long.MAX_VALUE;
+            for (int i = 0; i < channels.length; i++) {
+                Channel c = channels[i];
+                frameSet[i] = c.advance(timeoutNanos);
+                if (frameSet[i] != null) {
+                    reference = Math.max(reference, frameSet[i].timestamp);
+                }
+                if (c.interval > 0) {
+                    shortestInterval = Math.min(shortestInterval, c.interval);
+                }
+                if (c.grabber.getClass() != channels[(i + 1) % channels.length].grabber.getClass()) {
+                    // assume we can't synchronize different types of cameras with each other
+                    unsynchronized = true;
+                }
+            }
+            long tol = tolerance > 0 ? tolerance : shortestInterval < Long.MAX_VALUE ? shortestInterval/2 : Long.MAX_VALUE;
+
+            // move devices lagging behind to their frame nearest the reference, which moves forward
+            // when a device has no frame close enough, up to as many times as frames the rings hold
+            for (int j = 0; !unsynchronized && j < ringCapacity; j++) {
+                boolean moved = false;
+                for (int i = 0; i < channels.length; i++) {
+                    Channel c = channels[i];
+                    if (frameSet[i] == null || c.grabber.isTriggerMode()) {
+                        continue;
+                    }
+                    while (frameSet[i].timestamp < reference) {
+                        // wait for the next frame only when the current one is out of tolerance
+                        Frame next = c.peek(reference - frameSet[i].timestamp > tol ? timeoutNanos : 0);
+                        if (next == null || Math.abs(next.timestamp - reference) > reference - frameSet[i].timestamp) {
+                            break;
+                        }
+                        frameSet[i] = c.advance(0);
+                        c.skipped++;
+                    }
+                    if (frameSet[i].timestamp - reference > tol) {
+                        reference = frameSet[i].timestamp;
+                        moved = true;
+                    }
+                }
+                if (!moved) {
+                    break;
+                }
+            }
+
+            setCount++;
+            boolean synced = true;
+            for (int i = 0; i < channels.length; i++) {
+                Channel c = channels[i];
+                if (frameSet[i] == null) {
+                    synced = false;
+                    continue;
+                }
+                c.skew = frameSet[i].timestamp - reference;
+                long s = Math.abs(c.skew);
+                c.maxSkew = Math.max(c.maxSkew, s);
+                c.skewSum += s;
+                c.skewCount++;
+                if (s > tol) {
+                    synced = false;
+                }
+            }
+            if (unsynchronized || !synced) {
+                unsynchronizedCount++;
+            }
+            return frameSet;
+        }
+        /** Same as {@link #stop()}, but releases the devices whose thread exited. */
+        @Override public void release() throws Exception {
+            boolean[] stopped = stopThreads();
+            for (int i = 0; i < frameGrabbers.length; i++) {
+                if (stopped[i]) {
+                    frameGrabbers[i].release();
+                }
+            }
+            checkStopped(stopped, "release");
+        }
+
+        /** Returns for each device whether its thread exited, keeping the channels until all of them did. */
+        boolean[] stopThreads() {
+            boolean[] stopped = new boolean[frameGrabbers.length];
+            if (channels == null) {
+                Arrays.fill(stopped, true);
+                return stopped;
+            }
+            boolean all = true;
+            try {
+                for (Channel c : channels) {
+                    c.running = false;
+                    if (c.thread != null) {
+                        c.thread.interrupt();
+                    }
+                }
+                for (int i = 0; i < channels.length; i++) {
+                    all &= stopped[i] = channels[i].stop();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                all = false;
+            }
+            if (all) {
+                channels = null;
+            }
+            return stopped;
+        }
+
+        void checkStopped(boolean[] stopped, String action) throws Exception {
+            String devices = null;
+            for (int i = 0; i < stopped.length; i++) {
+                if (!stopped[i]) {
+                    String d = i + " (" + frameGrabbers[i].getClass().getSimpleName() + ")";
+                    devices = devices == null ? d : devices + ", " + d;
+                }
+            }
+            if (devices != null) {
+                throw new Exception("Could not " + action + " devices still grabbing: " + devices);
+            }
+        }
+    }
+
     public Array createArray(FrameGrabber[] frameGrabbers) {
         return new Array(frameGrabbers);
     }
+    /** Returns an array grabbing from all devices in parallel, see {@link ConcurrentArray}. */
+    public Array createConcurrentArray(FrameGrabber[] frameGrabbers) {
+        return new ConcurrentArray(frameGrabbers);
+    }
 }
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ring of pre-allocated {@link Frame} objects to hand off images from a single
+ * producer thread, typically calling {@link FrameGrabber#grab()}, to any number
+ * of consumer threads. Slots are addressed with ever increasing sequence numbers,
+ * the way the LMAX Disruptor does it: the producer claims and publishes slots
+ * without allocating or locking, and each {@link Consumer} tracks its own position.
+ * <p>
+ * When {@code overwrite} is false, the producer waits for the slowest consumer
+ * before reusing a slot. When it is true, the producer never waits and consumers
+ * that lag by more than {@link #capacity()} frames skip ahead, counting the frames
+ * they missed in {@link Consumer#getDroppedCount()}.
+ * <p>
+ * Only image data, {@link Frame#timestamp}, and {@link Frame#keyFrame} are copied.
+ *
+ * @author Samuel Audet
+ */
+public class FrameRing {
+
+    /** Determines how threads wait for published frames or for free slots. */
+    public static enum WaitStrategy {
+        /** Spins continuously. Lowest latency, but burns a core per waiting thread. */
+        BUSY_SPIN,
+        /** Spins for a while and then calls {@link Thread#yield()}. */
+        YIELDING,
+        /** Parks the thread on a {@link Condition}. Highest latency, but no CPU used while waiting. */
+        BLOCKING
+    }
+
+    static final int SPIN_TRIES = 100;
+
+    public FrameRing(int capacity, Frame template) {
+        this(capacity, template.imageWidth, template.imageHeight, template.imageDepth, template.imageChannels,
+                WaitStrategy.YIELDING, false);
+    }
+    public FrameRing(int capacity, int width, int height, int depth, int channels) {
+        this(capacity, width, height, depth, channels, WaitStrategy.YIELDING, false);
+    }
+    public FrameRing(int capacity, int width, int height, int depth, int channels,
+            WaitStrategy waitStrategy, boolean overwrite) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.frames = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            frames[i] = new Frame(width, height, depth, channels);
+        }
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+        this.overwrite = overwrite;
+    }
+
+    private final int capacity;
+    private volatile Frame[] frames;
+    private final AtomicLongArray sequences;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private long claimed = -1;
+    private volatile Consumer[] consumers = new Consumer[0];
+
+    private final WaitStrategy waitStrategy;
+    private final boolean overwrite;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final Condition released = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    public int capacity() {
+        return capacity;
+    }
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    /** Returns the sequence number of the last published frame, or -1 if none. */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    /**
+     * Claims the next slot for the producer, waiting for consumers to release it
+     * unless this ring is in overwrite mode. The returned frame must be filled
+     * before calling {@link #publish()}, and should not be used afterwards.
+     */
+    public Frame claim() throws InterruptedException {
+        if (claimed > cursor.get()) {
+            throw new IllegalStateException("Previous slot was claimed but not published.");
+        }
+        long seq = cursor.get() + 1;
+        if (!overwrite) {
+            waitForSlot(seq);
+        }
+        Frame[] f = frames();
+        int index = (int)(seq % capacity);
+        // mark slot as being written, for consumers checking it concurrently
+        sequences.set(index, -1);
+        claimed = seq;
+        return f[index];
+    }
+
+    /** Makes the frame returned by the last call to {@link #claim()} visible to consumers. */
+    public void publish() {
+        long seq = claimed;
+        if (seq <= cursor.get()) {
+            throw new IllegalStateException("No slot was claimed.");
+        }
+        frames();
+        sequences.set((int)(seq % capacity), seq);
+        cursor.set(seq);
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Claims a slot, copies the content of the given frame into it, and publishes it. */
+    public void publish(Frame frame) throws InterruptedException {
+        Frame slot = claim();
+        copy(frame, frame.image, slot, slot.image);
+        publish();
+    }
+
+    /** Creates a new consumer that will start reading with the next published frame. */
+    public Consumer newConsumer() {
+        // register before reading the cursor, holding back the producer in the meantime,
+        // so that it cannot reuse the slot of the first frame we are about to read
+        Consumer c = new Consumer(Long.MIN_VALUE + 1);
+        synchronized (this) {
+            Consumer[] a = Arrays.copyOf(consumers, consumers.length + 1);
+            a[a.length - 1] = c;
+            consumers = a;
+        }
+        long next = cursor.get() + 1;
+        c.next = next;
+        c.released.set(next - 1);
+        signalReleased();
+        return c;
+    }
+
+    synchronized void removeConsumer(Consumer c) {
+        Consumer[] a = consumers;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == c) {
+                Consumer[] b = new Consumer[a.length - 1];
+                System.arraycopy(a, 0, b, 0, i);
+                System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+                consumers = b;
+                break;
+            }
+        }
+        signalReleased();
+    }
+
+    long minimumReleased(long max) {
+        long min = max;
+        for (Consumer c : consumers) {
+            min = Math.min(min, c.released.get());
+        }
+        return min;
+    }
+
+    void signalReleased() {
+        if (!overwrite && waiters.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    void waitForSlot(long seq) throws InterruptedException {
+        long wrap = seq - capacity;
+        int counter = 0;
+        while (minimumReleased(wrap) < wrap) {
+            frames();
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                lock.lock();
+                try {
+                    waiters.incrementAndGet();
+                    while (minimumReleased(wrap) < wrap) {
+                        frames();
+                        released.await(1, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    waiters.decrementAndGet();
+                    lock.unlock();
+                }
+            } else {
+                counter = idle(counter);
+            }
+        }
+    }
+
+    boolean waitForPublished(long seq, long timeoutNanos) throws InterruptedException {
+        long deadline = timeoutNanos >= 0 ? System.nanoTime() + timeoutNanos : 0;
+        int counter = 0;
+        while (cursor.get() < seq) {
+            frames();
+            if (timeoutNanos >= 0 && System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                lock.lock();
+                try {
+                    waiters.incrementAndGet();
+                    while (cursor.get() < seq) {
+                        frames();
+                        long nanos = timeoutNanos >= 0 ? deadline - System.nanoTime() : TimeUnit.MILLISECONDS.toNanos(1);
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        published.awaitNanos(nanos);
+                    }
+                } finally {
+                    waiters.decrementAndGet();
+                    lock.unlock();
+                }
+            } else {
+                counter = idle(counter);
+            }
+        }
+        return true;
+    }
+
+    int idle(int counter) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (waitStrategy == WaitStrategy.YIELDING && counter >= SPIN_TRIES) {
+            Thread.yield();
+            return counter;
+        }
+        return counter + 1;
+    }
+
+    /**
+     * A reader of the ring with its own sequence number. Each instance should be
+     * used by a single thread. Frames returned by {@link #take()} and {@link #poll()}
+     * point directly into the ring: they remain valid until the next call on this
+     * consumer, except in overwrite mode, where {@link #isOverwritten()} tells if
+     * the producer reused the slot in the meantime. Methods accepting a destination
+     * frame copy the data out, and are safe in both modes.
+     */
+    public class Consumer {
+        Consumer(long next) {
+            this.next = next;
+            this.released = new AtomicLong(next - 1);
+            Frame[] f = frames();
+            this.views = new Buffer[f.length][];
+            for (int i = 0; i < f.length; i++) {
+                Buffer[] image = f[i].image;
+                views[i] = new Buffer[image.length];
+                for (int j = 0; j < image.length; j++) {
+                    views[i][j] = duplicate(image[j]);
+                }
+            }
+        }
+
+        long next, last = -1, dropped = 0;
+        final AtomicLong released;
+        // our own views of the slot buffers, so consumers can copy concurrently
+        final Buffer[][] views;
+
+        /** Returns the sequence number of the next frame to read. */
+        public long getSequence() {
+            return next;
+        }
+
+        /** Returns the number of frames skipped because this consumer fell behind in overwrite mode. */
+        public long getDroppedCount() {
+            return dropped;
+        }
+
+        /** Returns how many published frames this consumer has not read yet. */
+        public long getLag() {
+            return Math.max(0, cursor.get() + 1 - next);
+        }
+
+        /** Returns true if the frame last returned by {@link #take()} or {@link #poll()} got reused by the producer. */
+        public boolean isOverwritten() {
+            return last < 0 || sequences.get((int)(last % capacity)) != last;
+        }
+
+        /** Lets the producer reuse the slot of the last frame returned, before the next call. */
+        public void release() {
+            released.set(next - 1);
+            signalReleased();
+        }
+
+        /** Removes this consumer from the ring, so the producer stops waiting for it. */
+        public void close() {
+            removeConsumer(this);
+        }
+
+        void skipLagged() {
+            long oldest = cursor.get() - capacity + 1;
+            if (next < oldest) {
+                dropped += oldest - next;
+                next = oldest;
+            }
+        }
+
+        Frame next(long timeoutNanos) throws InterruptedException {
+            release();
+            if (!waitForPublished(next, timeoutNanos)) {
+                return null;
+            }
+            if (overwrite) {
+                skipLagged();
+            }
+            Frame[] f = frames();
+            last = next++;
+            return f[(int)(last % capacity)];
+        }
+
+        boolean next(Frame frame, long timeoutNanos) throws InterruptedException {
+            release();
+            while (waitForPublished(next, timeoutNanos)) {
+                if (overwrite) {
+                    skipLagged();
+                }
+                Frame[] f = frames();
+                int index = (int)(next % capacity);
+                if (sequences.get(index) == next) {
+                    copy(f[index], views[index], frame, frame.image);
+                    if (sequences.get(index) == next) {
+                        last = next++;
+                        return true;
+                    }
+                }
+                // the producer lapped us while copying, try again with a newer frame
+                next++;
+                dropped++;
+            }
+            return false;
+        }
+
+        /** Waits for the next frame and returns the slot holding it. */
+        public Frame take() throws InterruptedException {
+            return next(-1);
+        }
+
+        /** Waits up to the given time for the next frame and returns the slot holding it, or null on timeout. */
+        public Frame take(long timeout, TimeUnit unit) throws InterruptedException {
+            return next(unit.toNanos(timeout));
+        }
+
+        /** Returns the slot holding the next frame, or null if none was published yet. */
+        public Frame poll() {
+            try {
+                return next(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /** Waits for the next frame and copies it into the given frame. */
+        public Frame take(Frame frame) throws InterruptedException {
+            next(frame, -1);
+            return frame;
+        }
+
+        /** Copies the next frame into the given one, returning false if none was published yet. */
+        public boolean poll(Frame frame) {
+            try {
+                return next(frame, 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    static Buffer duplicate(Buffer b) {
+        if (b instanceof ByteBuffer) {
+            return ((ByteBuffer)b).duplicate();
+        } else if (b instanceof ShortBuffer) {
+            return ((ShortBuffer)b).duplicate();
+        } else if (b instanceof IntBuffer) {
+            return ((IntBuffer)b).duplicate();
+        } else if (b instanceof LongBuffer) {
+            return ((LongBuffer)b).duplicate();
+        } else if (b instanceof FloatBuffer) {
+            return ((FloatBuffer)b).duplicate();
+        } else if (b instanceof DoubleBuffer) {
+            return ((DoubleBuffer)b).duplicate();
+        } else {
+            throw new UnsupportedOperationException("Unsupported buffer type: " + b.getClass());
+        }
+    }
+
+    /** Copies the image, timestamp, and key frame flag without allocating memory, rewinding the buffers afterwards. */
+    static void copy(Frame src, Buffer[] srcImage, Frame dst, Buffer[] dstImage) {
+        if (src.imageWidth != dst.imageWidth || src.imageHeight != dst.imageHeight
+                || src.imageDepth != dst.imageDepth || src.imageChannels != dst.imageChannels) {
+            throw new IllegalArgumentException("Frame of " + src.imageWidth + "x" + src.imageHeight + "x" + src.imageChannels
+                    + " (depth " + src.imageDepth + ") does not match ring slots of " + dst.imageWidth + "x"
+                    + dst.imageHeight + "x" + dst.imageChannels + " (depth " + dst.imageDepth + ")");
+        }
+        dst.keyFrame = src.keyFrame;
+        dst.timestamp = src.timestamp;
+        if (srcImage == null || dstImage == null) {
+            return;
+        }
+        int rows = src.imageStride == dst.imageStride ? 1 : src.imageHeight;
+        for (int i = 0; i < srcImage.length && i < dstImage.length; i++) {
+            int length = rows == 1 ? Math.min(srcImage[i].capacity(), dstImage[i].capacity())
+                                   : src.imageWidth * src.imageChannels;
+            for (int y = 0; y < rows; y++) {
+                copy(srcImage[i], y * src.imageStride, dstImage[i], y * dst.imageStride, length);
+            }
+            srcImage[i].clear();
+            dstImage[i].clear();
+        }
+    }
+
+    static void copy(Buffer src, int srcOffset, Buffer dst, int dstOffset, int length) {
+        src.limit(srcOffset + length).position(srcOffset);
+        dst.limit(dstOffset + length).position(dstOffset);
+        if (src instanceof ByteBuffer) {
+            ((ByteBuffer)dst).put((ByteBuffer)src);
+        } else if (src instanceof ShortBuffer) {
+            ((ShortBuffer)dst).put((ShortBuffer)src);
+        } else if (src instanceof IntBuffer) {
+            ((IntBuffer)dst).put((IntBuffer)src);
+        } else if (src instanceof LongBuffer) {
+            ((LongBuffer)dst).put((LongBuffer)src);
+        } else if (src instanceof FloatBuffer) {
+            ((FloatBuffer)dst).put((FloatBuffer)src);
+        } else if (src instanceof DoubleBuffer) {
+            ((DoubleBuffer)dst).put((DoubleBuffer)src);
+        } else {
+            throw new UnsupportedOperationException("Unsupported buffer type: " + src.getClass());
+        }
+    }
+
+    /** Returns the slots, or throws if {@link #release()} was called. */
+    Frame[] frames() {
+        Frame[] f = frames;
+        if (f == null) {
+            throw new IllegalStateException("FrameRing already released.");
+        }
+        return f;
+    }
+
+    /**
+     * Drops references to the slots so their native memory can be reclaimed. Threads waiting
+     * in the producer or consumers, and any later call on them, throw {@link IllegalStateException}.
+     */
+    public void release() {
+        frames = null;
+        consumers = new Consumer[0];
+        lock.lock();
+        try {
+            published.signalAll();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2012 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -72,6 +72,7 @@ public class GNImageAligner implements ImageAligner {
             w /= 2;
             h /= 2;
         }
+        this.ownTarget = target;
 
         this.hessianGradientTransformerData = new Data[n];
         for (int i = 0; i < n; i++) {
@@ -92,6 +93,7 @@ public class GNImageAligner implements ImageAligner {
 
         this.srcRoiPts = CvMat.create(4, 1, CV_64F, 2);
         this.dstRoiPts = CvMat.create(4, 1, CV_64F, 2);
+        this.correctionPts = CvMat.create(4, 1, CV_64F, 2);
         this.dstRoiPtsArray = new CvPoint(4);
         this.roi     = new CvRect();
         this.temproi = new CvRect();
@@ -130,6 +132,11 @@ public class GNImageAligner implements ImageAligner {
             alphaTikhonov   = s.alphaTikhonov;
             gammaTgamma     = s.gammaTgamma;
             constrained     = s.constrained;
+            levelIterationsMax    = s.levelIterationsMax;
+            rmseImprovementMin    = s.rmseImprovementMin;
+            motionPrediction      = s.motionPrediction;
+            levelDisplacementMax  = s.levelDisplacementMax;
+            iterationsMax         = s.iterationsMax;
         }
 
         double stepSize        = 0.1;
@@ -141,6 +148,11 @@ public class GNImageAligner implements ImageAligner {
         double alphaTikhonov   = 0;
         CvMat gammaTgamma      = null;
         boolean constrained    = false;
+        int levelIterationsMax      = 0;
+        double rmseImprovementMin   = 0;
+        boolean motionPrediction    = false;
+        double levelDisplacementMax = 0;
+        int iterationsMax           = 100;
 
         public double getStepSize() {
             return stepSize;
@@ -198,6 +210,52 @@ public class GNImageAligner implements ImageAligner {
             this.gammaTgamma = gammaTgamma;
         }
 
+        /**
+         * Maximum number of iterations at each pyramid level, or 0 for no limit. Reaching it at
+         * the finest level stops {@link GNImageAligner#align(IplImage)}, which then returns false.
+         */
+        public int getLevelIterationsMax() {
+            return levelIterationsMax;
+        }
+        public void setLevelIterationsMax(int levelIterationsMax) {
+            this.levelIterationsMax = levelIterationsMax;
+        }
+
+        /** Relative decrease of the RMSE under which an iteration moves to the next finer level, or 0 to disable. */
+        public double getRmseImprovementMin() {
+            return rmseImprovementMin;
+        }
+        public void setRmseImprovementMin(double rmseImprovementMin) {
+            this.rmseImprovementMin = rmseImprovementMin;
+        }
+
+        /** Whether {@link GNImageAligner#align(IplImage)} starts from a constant velocity prediction of the parameters. */
+        public boolean isMotionPrediction() {
+            return motionPrediction;
+        }
+        public void setMotionPrediction(boolean motionPrediction) {
+            this.motionPrediction = motionPrediction;
+        }
+
+        /**
+         * Largest correction, in pixels of a given level, that we expect the level to recover. When
+         * greater than 0, align() skips coarse levels not needed for the correction of the last frame.
+         */
+        public double getLevelDisplacementMax() {
+            return levelDisplacementMax;
+        }
+        public void setLevelDisplacementMax(double levelDisplacementMax) {
+            this.levelDisplacementMax = levelDisplacementMax;
+        }
+
+        /** Maximum number of iterations for {@link GNImageAligner#align(IplImage)}. */
+        public int getIterationsMax() {
+            return iterationsMax;
+        }
+        public void setIterationsMax(int iterationsMax) {
+            this.iterationsMax = iterationsMax;
+        }
+
 //        public boolean isConstrained() {
 //            return constrained;
 //        }
@@ -220,14 +278,29 @@ public class GNImageAligner implements ImageAligner {
 
     protected final int n;
     protected IplImage[] template, target, transformed, residual, mask;
+    protected IplImage[] ownTarget; // target may point to a shared pyramid instead
+    protected IplImage[] sharedTarget;
+    protected ImagePyramid targetPyramid;
     protected IplImage[] images = new IplImage[5];
-    protected CvMat srcRoiPts, dstRoiPts;
+    protected CvMat srcRoiPts, dstRoiPts, correctionPts;
     protected CvPoint dstRoiPtsArray;
     protected CvRect roi, temproi;
     protected ImageTransformer transformer;
     protected Data[] hessianGradientTransformerData, residualTransformerData;
     protected Parameters parameters, parametersArray[], tempParameters[], priorParameters;
-    protected CvMat hessian, gradient, update, prior;
+    /** @deprecated No longer used by iterations, except to solve singular systems with cvSolve(). Use the arrays instead. */
+    @Deprecated protected CvMat hessian, gradient, update, prior;
+    protected double[] hessianArray, gradientArray, updateArray, priorArray; // hessian in row-major order
+    protected double[] decomposition, priorProduct;
+    protected double[] prevParameters, resetParameters, prevSubspaceParameters, resetSubspaceParameters;
+    protected double[] predictedRoiPts, alignedParameters, prevAlignedParameters, alignDelta;
+    protected double lastCorrection = Double.POSITIVE_INFINITY;
+    // number of alignments, up to 2, since the last call to setParameters(), and whether the last one
+    // stopped at the finest level after Settings.levelIterationsMax iterations without converging
+    protected int alignedHistory = 0;
+    protected boolean levelStopped = false;
+    protected int levelIterations = 0, alignmentCount = 0;
+    protected long[] levelIterationCounts = new long[0], levelTimes = new long[0];
     protected double[] constraintGrad, subspaceResidual, subspaceJacobian[], updateScale;
     protected boolean[] subspaceCorrelated;
     protected int pyramidLevel;
@@ -280,6 +353,13 @@ public class GNImageAligner implements ImageAligner {
         if (target0 == null) {
             return;
         }
+        if (ownTarget != null) {
+            target = ownTarget;
+        }
+        if (targetPyramid != null) {
+            targetPyramid.release();
+            targetPyramid = null;
+        }
 
         if (target0.depth() == IPL_DEPTH_32F) {
             target[minLevel] = target0;
@@ -331,6 +411,37 @@ public class GNImageAligner implements ImageAligner {
         setPyramidLevel(maxLevel);
     }
 
+    /**
+     * Uses the given images, from pyramidLevelMin to pyramidLevelMax, as target pyramid without
+     * copying them, so they can be shared with other aligners. They only get read, until the
+     * next call to setTargetImage(), which switches back to the images of this aligner.
+     * Releases the reference to any {@link ImagePyramid} given previously.
+     */
+    public void setTargetPyramid(IplImage[] pyramid) {
+        if (targetPyramid != null) {
+            targetPyramid.release();
+            targetPyramid = null;
+        }
+        doSetTargetPyramid(pyramid);
+    }
+    protected void doSetTargetPyramid(IplImage[] pyramid) {
+        target = pyramid;
+        setPyramidLevel(settings.pyramidLevelMax);
+    }
+
+    /** Same as {@link #setTargetPyramid(IplImage[])} with the levels of the pyramid, holding a reference to it until replaced. */
+    public void setTargetPyramid(ImagePyramid pyramid) {
+        if (pyramid != targetPyramid) {
+            pyramid.retain();
+            if (targetPyramid != null) {
+                targetPyramid.release();
+            }
+            targetPyramid = pyramid;
+        }
+        sharedTarget = pyramid.getImages(sharedTarget);
+        doSetTargetPyramid(sharedTarget);
+    }
+
     public int getPyramidLevel() {
         return pyramidLevel;
     }
@@ -338,14 +449,103 @@ public class GNImageAligner implements ImageAligner {
         this.pyramidLevel = pyramidLevel;
         residualUpdateNeeded = true;
         trials = 0;
+        levelIterations = 0;
+    }
+
+    /** Returns the number of iterations done at each pyramid level since the last call to resetStatistics(). */
+    public long[] getLevelIterationCounts() {
+        return levelIterationCounts;
+    }
+    /** Returns the time in nanoseconds spent iterating at each pyramid level since the last call to resetStatistics(). */
+    public long[] getLevelTimes() {
+        return levelTimes;
+    }
+    /** Returns the number of calls to align() since the last call to resetStatistics(). */
+    public int getAlignmentCount() {
+        return alignmentCount;
+    }
+    public void resetStatistics() {
+        Arrays.fill(levelIterationCounts, 0);
+        Arrays.fill(levelTimes, 0);
+        alignmentCount = 0;
+    }
+
+    /**
+     * Aligns the template to a new target image, iterating until convergence,
+     * {@link Settings#getIterationsMax()}, or {@link Settings#getLevelIterationsMax()} at the finest
+     * level, and returns true only if it converged. With {@link Settings#isMotionPrediction()},
+     * starts from parameters extrapolated from the last two results, unless setParameters() got
+     * called since, and with {@link Settings#getLevelDisplacementMax()}, from the coarsest level
+     * needed to recover the displacement of the ROI that the last prediction required.
+     */
+    public boolean align(IplImage target0) {
+        return doAlign(target0, null);
+    }
+    /** Same as {@link #align(IplImage)}, but with a target pyramid as for {@link #setTargetPyramid(IplImage[])}. */
+    public boolean align(IplImage[] targetPyramid) {
+        return doAlign(null, targetPyramid);
+    }
+    protected boolean doAlign(IplImage target0, IplImage[] targetPyramid) {
+        if (settings.motionPrediction && alignedHistory >= 2) {
+            for (int i = 0; i < n; i++) {
+                parameters.set(i, 2*alignedParameters[i] - prevAlignedParameters[i]);
+            }
+            residualUpdateNeeded = true;
+        }
+        transformer.transform(srcRoiPts, correctionPts, parameters, false);
+        predictedRoiPts = correctionPts.get();
+        if (targetPyramid != null) {
+            setTargetPyramid(targetPyramid);
+        } else {
+            setTargetImage(target0);
+        }
+        setPyramidLevel(getStartLevel());
+
+        if (alignDelta == null || alignDelta.length != updateScale.length) {
+            alignDelta = new double[updateScale.length];
+        }
+        boolean converged = false;
+        levelStopped = false;
+        for (int i = 0; i < settings.iterationsMax && !converged && !levelStopped; i++) {
+            converged = iterate(alignDelta);
+        }
+
+        // only the geometric correction, as the displacement in pixels of the corners of the ROI
+        transformer.transform(srcRoiPts, correctionPts, parameters, false);
+        double[] pts = correctionPts.get();
+        lastCorrection = 0;
+        for (int i = 0; i < pts.length; i++) {
+            lastCorrection = Math.max(lastCorrection, Math.abs(pts[i] - predictedRoiPts[i]));
+        }
+        prevAlignedParameters = copy(alignedParameters, prevAlignedParameters);
+        alignedParameters = copy(parameters, alignedParameters);
+        alignedHistory = Math.min(alignedHistory + 1, 2);
+        alignmentCount++;
+        return converged;
+    }
+
+    /**
+     * Returns the finest level where the correction applied to the last prediction
+     * falls within {@link Settings#getLevelDisplacementMax()}, plus one level of margin.
+     */
+    protected int getStartLevel() {
+        int minLevel = settings.pyramidLevelMin, maxLevel = settings.pyramidLevelMax;
+        if (settings.levelDisplacementMax <= 0 || alignedHistory < 1) {
+            return maxLevel;
+        }
+        int level = minLevel;
+        while (level < maxLevel && lastCorrection > settings.levelDisplacementMax*(1<<level)) {
+            level++;
+        }
+        return Math.min(level + 1, maxLevel);
     }
 
     public boolean isConstrained()  {
         return settings.constrained;
     }
     public void setConstrained(boolean constrained) {
-        if (settings.constrained == constrained && hessian != null &&
-                gradient != null && update != null) {
+        if (settings.constrained == constrained && hessianArray != null &&
+                gradientArray != null && updateArray != null) {
             return;
         }
         settings.constrained = constrained;
@@ -356,8 +556,14 @@ public class GNImageAligner implements ImageAligner {
         hessian       = CvMat.create(m, m);
         gradient      = CvMat.create(m, 1);
         update        = CvMat.create(m, 1);
-        updateScale   = new double[m];
         prior         = CvMat.create(n, 1);
+        hessianArray  = new double[m*m];
+        gradientArray = new double[m];
+        updateArray   = new double[m];
+        updateScale   = new double[m];
+        priorArray    = new double[n];
+        decomposition = new double[m*m];
+        priorProduct  = new double[n];
 
         constraintGrad = new double[n];
         subspaceResidual = new double[n];
@@ -368,7 +574,12 @@ public class GNImageAligner implements ImageAligner {
     public Parameters getParameters() {
         return parameters;
     }
+    /** Sets the parameters, from which the next call to align() starts without motion prediction. */
     public void setParameters(Parameters parameters) {
+        doSetParameters(parameters);
+        alignedHistory = 0;
+    }
+    protected void doSetParameters(Parameters parameters) {
         this.parameters.set(parameters);
         subspaceParameters = parameters.getSubspace();
         if (subspaceParameters != null && settings.alphaSubspace != 0.0) {
@@ -452,29 +663,45 @@ public class GNImageAligner implements ImageAligner {
     }
 
     public boolean iterate(double[] delta) {
+        int level = pyramidLevel;
+        long startTime = System.nanoTime();
+        try {
+            levelIterations++;
+            return doIterate(delta);
+        } finally {
+            if (levelTimes.length <= level) {
+                levelIterationCounts = Arrays.copyOf(levelIterationCounts, level + 1);
+                levelTimes = Arrays.copyOf(levelTimes, level + 1);
+            }
+            levelIterationCounts[level]++;
+            levelTimes[level] += System.nanoTime() - startTime;
+        }
+    }
+
+    protected boolean doIterate(double[] delta) {
         boolean converged = false;
         final double prevRMSE = getRMSE();
-        final double[] prevParameters = parameters.get();
-        final double[] prevSubspaceParameters = subspaceParameters == null ? null : subspaceParameters.clone();
+        prevParameters = copy(parameters, prevParameters);
+        prevSubspaceParameters = copy(subspaceParameters, prevSubspaceParameters);
 
         if (trials == 0 && parameters.preoptimize()) {
-            setParameters(parameters);
+            doSetParameters(parameters);
             doResidual();
         }
-        final double[] resetParameters = parameters.get();
-        final double[] resetSubspaceParameters = subspaceParameters == null ? null : subspaceParameters.clone();
+        resetParameters = copy(parameters, resetParameters);
+        resetSubspaceParameters = copy(subspaceParameters, resetSubspaceParameters);
 
         doHessianGradient(updateScale);
 
         lastLinePosition = 0;
 
         // solve for optimal parameter update
-        cvSolve(hessian, gradient, update, CV_SVD);
+        solve(hessianArray, gradientArray, updateArray);
         for (int i = 0; i < n; i++) {
-            parameters.set(i, parameters.get(i) + settings.lineSearch[0]*update.get(i)*updateScale[i]);
+            parameters.set(i, parameters.get(i) + settings.lineSearch[0]*updateArray[i]*updateScale[i]);
         }
-        for (int i = n; i < update.length(); i++) {
-            subspaceParameters[i-n] += settings.lineSearch[0]*update.get(i)*updateScale[i];
+        for (int i = n; i < updateArray.length; i++) {
+            subspaceParameters[i-n] += settings.lineSearch[0]*updateArray[i]*updateScale[i];
         }
         residualUpdateNeeded = true;
 
@@ -486,10 +713,10 @@ public class GNImageAligner implements ImageAligner {
             }
             lastLinePosition = j;
             for (int i = 0; i < n; i++) {
-                parameters.set(i, parameters.get(i) + settings.lineSearch[j]*update.get(i)*updateScale[i]);
+                parameters.set(i, parameters.get(i) + settings.lineSearch[j]*updateArray[i]*updateScale[i]);
             }
-            for (int i = n; i < update.length(); i++) {
-                subspaceParameters[i-n] += settings.lineSearch[j]*update.get(i)*updateScale[i];
+            for (int i = n; i < updateArray.length; i++) {
+                subspaceParameters[i-n] += settings.lineSearch[j]*updateArray[i]*updateScale[i];
             }
             residualUpdateNeeded = true;
         }
@@ -497,9 +724,12 @@ public class GNImageAligner implements ImageAligner {
         double deltaNorm = 0;
         if (delta != null) {
             for (int i = 0; i < delta.length && i < updateScale.length; i++) {
-                delta[i] = settings.lineSearch[lastLinePosition]*update.get(i)*updateScale[i];
+                delta[i] = settings.lineSearch[lastLinePosition]*updateArray[i]*updateScale[i];
             }
-            deltaNorm = JavaCV.norm(Arrays.copyOf(delta, n));
+            for (int i = 0; i < delta.length && i < n; i++) {
+                deltaNorm += delta[i]*delta[i];
+            }
+            deltaNorm = Math.sqrt(deltaNorm);
         }
 
         boolean invalid = getRMSE() > prevRMSE || deltaNorm > settings.deltaMax ||
@@ -514,27 +744,137 @@ public class GNImageAligner implements ImageAligner {
         }
         if (invalid && deltaNorm > settings.deltaMin && ++trials < 2) {
             return false;
-        } else if (invalid || deltaNorm < settings.deltaMin) {
+        } else if (invalid || deltaNorm < settings.deltaMin || isLevelStalled(prevRMSE)) {
             trials = 0;
             if (pyramidLevel > settings.pyramidLevelMin) {
                 setPyramidLevel(pyramidLevel-1);
             } else {
                 converged = true;
             }
+        } else if (isLevelCapped()) {
+            // out of iterations for this level, which at the finest one is not convergence
+            trials = 0;
+            if (pyramidLevel > settings.pyramidLevelMin) {
+                setPyramidLevel(pyramidLevel-1);
+            } else {
+                levelStopped = true;
+            }
         } else {
             trials = 0;
         }
         return converged;
     }
 
+    /** Returns true when the current level has used up {@link Settings#getLevelIterationsMax()}. */
+    protected boolean isLevelCapped() {
+        return settings.levelIterationsMax > 0 && levelIterations >= settings.levelIterationsMax;
+    }
+    /** Returns true when the last iteration decreased the RMSE by less than {@link Settings#getRmseImprovementMin()}. */
+    protected boolean isLevelStalled(double prevRMSE) {
+        return settings.rmseImprovementMin > 0 && prevRMSE - getRMSE() < settings.rmseImprovementMin*prevRMSE;
+    }
+
+    /** Copies the parameters into the array, reallocated only when its size differs. */
+    static double[] copy(Parameters p, double[] a) {
+        int size = p.size();
+        if (a == null || a.length != size) {
+            a = new double[size];
+        }
+        for (int i = 0; i < size; i++) {
+            a[i] = p.get(i);
+        }
+        return a;
+    }
+    static double[] copy(double[] p, double[] a) {
+        if (p == null) {
+            return a;
+        }
+        if (a == null || a.length != p.length) {
+            a = new double[p.length];
+        }
+        System.arraycopy(p, 0, a, 0, p.length);
+        return a;
+    }
+
+    /** Solves hessian * update = gradient with {@link #solveLDLT}, or with cvSolve(CV_SVD) if the system is singular. */
+    protected void solve(double[] hessian, double[] gradient, double[] update) {
+        int m = gradient.length;
+        if (solveLDLT(hessian, gradient, update, decomposition, m)) {
+            return;
+        }
+        for (int i = 0; i < m; i++) {
+            this.gradient.put(i, gradient[i]);
+            for (int j = 0; j < m; j++) {
+                this.hessian.put(i, j, hessian[i*m + j]);
+            }
+        }
+        cvSolve(this.hessian, this.gradient, this.update, CV_SVD);
+        for (int i = 0; i < m; i++) {
+            update[i] = this.update.get(i);
+        }
+    }
+
+    /**
+     * Solves the symmetric m x m system A x = b, using only the lower triangle of A, with an
+     * LDL^T decomposition stored in L, D on its diagonal. Since there is no pivoting, this also
+     * works for the indefinite matrices of constrained systems, but returns false when a pivot
+     * is too small, for example when some parameters have no effect on the residual.
+     */
+    static boolean solveLDLT(double[] A, double[] b, double[] x, double[] L, int m) {
+        double maxDiag = 0;
+        for (int i = 0; i < m; i++) {
+            maxDiag = Math.max(maxDiag, Math.abs(A[i*m + i]));
+        }
+        double eps = 1e-12*maxDiag;
+        if (!(eps > 0) || Double.isInfinite(eps)) {
+            return false;
+        }
+        for (int j = 0; j < m; j++) {
+            double d = A[j*m + j];
+            for (int k = 0; k < j; k++) {
+                double l = L[j*m + k];
+                d -= l*l*L[k*m + k];
+            }
+            if (!(Math.abs(d) > eps)) {
+                return false;
+            }
+            L[j*m + j] = d;
+            for (int i = j + 1; i < m; i++) {
+                double s = A[i*m + j];
+                for (int k = 0; k < j; k++) {
+                    s -= L[i*m + k]*L[j*m + k]*L[k*m + k];
+                }
+                L[i*m + j] = s/d;
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            double s = b[i];
+            for (int k = 0; k < i; k++) {
+                s -= L[i*m + k]*x[k];
+            }
+            x[i] = s;
+        }
+        for (int i = 0; i < m; i++) {
+            x[i] /= L[i*m + i];
+        }
+        for (int i = m - 1; i >= 0; i--) {
+            double s = x[i];
+            for (int k = i + 1; k < m; k++) {
+                s -= L[k*m + i]*x[k];
+            }
+            x[i] = s;
+        }
+        return true;
+    }
+
     protected void doHessianGradient(final double[] scale) {
         final double constraintError = parameters.getConstraintError();
         final double stepSize = settings.stepSize;
 
-        cvSetZero(gradient);
-        cvSetZero(hessian);
+        Arrays.fill(gradientArray, 0);
+        Arrays.fill(hessianArray, 0);
 
-        Parallel.loop(0, n, new Parallel.Looper() {
+        Parallel.loop(0, n, new Parallel.AdaptiveLooper() {
         public void loop(int from, int to, int looperID) {
 //        for (int i = 0; i < n; i++) {
         for (int i = from; i < to; i++) {
@@ -566,11 +906,12 @@ public class GNImageAligner implements ImageAligner {
 //        double dstCount = hessianGradientTransformerData[0].dstCount;
 //        double dstCountZero = hessianGradientTransformerData[0].dstCountZero;
 //        double dstCountOutlier = hessianGradientTransformerData[0].dstCountOutlier;
+        int size = gradientArray.length;
         for (int i = 0; i < n; i++) {
             Data d = (Data)hessianGradientTransformerData[i];
-            gradient.put(i, gradient.get(i) - d.srcDstDot);
+            gradientArray[i] -= d.srcDstDot;
             for (int j = 0; j < n; j++) {
-                hessian.put(i, j, hessian.get(i, j) + d.dstDstDot.get(j));
+                hessianArray[i*size + j] += d.dstDstDot.get(j);
             }
         }
 //        prevOutlierRatio = dstCountOutlier/dstCount;
@@ -582,19 +923,27 @@ public class GNImageAligner implements ImageAligner {
     protected void doRegularization(final double[] scale) {
         final double constraintError = parameters.getConstraintError();
         final double stepSize = settings.stepSize;
+        final int size = gradientArray.length;
 
         // if we have a gamma or an alpha, compute the prior for regularization, but
         // if prioParameters == null, our prior is zero motion, so no need to compute it
         if ((settings.gammaTgamma != null || settings.alphaTikhonov != 0) &&
-                prior != null && priorParameters != null) {
+                priorArray != null && priorParameters != null) {
+            for (int i = 0; i < n; i++) {
+                priorArray[i] = parameters.get(i) - priorParameters.get(i);
+            }
             for (int i = 0; i < n; i++) {
-                prior.put(i, parameters.get(i) - priorParameters.get(i));
+                double p = 0;
+                for (int j = 0; j < n; j++) {
+                    p += hessianArray[i*size + j]*priorArray[j];
+                }
+                priorProduct[i] = p;
             }
-            cvMatMul(hessian, prior, prior);
+            System.arraycopy(priorProduct, 0, priorArray, 0, n);
 
             // compute gradient
             for (int i = 0; i < n; i++) {
-                gradient.put(i, gradient.get(i) + prior.get(i));
+                gradientArray[i] += priorArray[i];
             }
         }
 //System.out.println(prior);
@@ -610,10 +959,10 @@ public class GNImageAligner implements ImageAligner {
 
             for (int i = 0; i < n; i++) {
                 double c = constraintGrad[i]*scale[n];
-                hessian.put(i, n, c);
-                hessian.put(n, i, c);
+                hessianArray[i*size + n] = c;
+                hessianArray[n*size + i] = c;
             }
-            gradient.put(n, -constraintError*scale[n]);
+            gradientArray[n] = -constraintError*scale[n];
         }
 
         if (subspaceParameters != null && subspaceParameters.length > 0 &&
@@ -625,7 +974,11 @@ public class GNImageAligner implements ImageAligner {
             Arrays.fill(subspaceCorrelated, false);
             tempParameters[0].set(parameters);
             tempParameters[0].setSubspace(subspaceParameters);
-            Parallel.loop(0, n+m, tempSubspaceParameters.length, new Parallel.Looper() {
+            // each worker perturbs its own copy one element at a time, restoring it afterwards
+            for (double[] p : tempSubspaceParameters) {
+                System.arraycopy(subspaceParameters, 0, p, 0, m);
+            }
+            Parallel.loop(0, n+m, tempSubspaceParameters.length, new Parallel.AdaptiveLooper() {
             public void loop(int from, int to, int looperID) {
 //            int looperID = 0;
 //            for (int i = 0; i < n+m; i++) {
@@ -634,11 +987,12 @@ public class GNImageAligner implements ImageAligner {
                     Arrays.fill(subspaceJacobian[i], 0);
                     subspaceJacobian[i][i] = scale[i];
                 } else {
-                    System.arraycopy(subspaceParameters, 0, tempSubspaceParameters[looperID], 0, m);
-                    tempSubspaceParameters[looperID][i-n] += stepSize;
+                    double[] p = tempSubspaceParameters[looperID];
+                    p[i-n] += stepSize;
                     tempParameters[i-n+1].set(parameters);
-                    tempParameters[i-n+1].setSubspace(tempSubspaceParameters[looperID]);
-                    scale[i] = tempSubspaceParameters[looperID][i-n] - subspaceParameters[i-n];
+                    tempParameters[i-n+1].setSubspace(p);
+                    scale[i] = p[i-n] - subspaceParameters[i-n];
+                    p[i-n] = subspaceParameters[i-n];
                     for (int j = 0; j < n; j++) {
                         subspaceJacobian[i][j] = tempParameters[0].get(j) - tempParameters[i-n+1].get(j);
                         subspaceCorrelated[j] |= subspaceJacobian[i][j] != 0; // this may not work in parallel...
@@ -661,7 +1015,7 @@ public class GNImageAligner implements ImageAligner {
             final double K = settings.alphaSubspace*settings.alphaSubspace * RMSE*RMSE/
                     subspaceCorrelatedCount;//(subspaceRMSE*subspaceRMSE);
 
-            Parallel.loop(0, n+m, new Parallel.Looper() {
+            Parallel.loop(0, n+m, new Parallel.AdaptiveLooper() {
             public void loop(int from, int to, int looperID) {
 //            int looperID = 0;
 //            for (int i = 0; i < n+m; i++) {
@@ -679,9 +1033,9 @@ public class GNImageAligner implements ImageAligner {
                         h += subspaceJacobian[i][k]*subspaceJacobian[j][k];
                     }
 //                    subspaceHessian[i][j] = h;
-                    h = hessian.get(i, j) + K*h;
-                    hessian.put(i, j, h);
-                    hessian.put(j, i, h);
+                    h = hessianArray[i*size + j] + K*h;
+                    hessianArray[i*size + j] = h;
+                    hessianArray[j*size + i] = h;
                 }
 
                 double g = 0;
@@ -689,16 +1043,14 @@ public class GNImageAligner implements ImageAligner {
                     g -= subspaceJacobian[i][k]*subspaceResidual[k];
                 }
 //                subspaceGradient[i] = g;
-                g = gradient.get(i) + K*g;
-                gradient.put(i, g);
+                gradientArray[i] += K*g;
             }}});
         }
 
         // add Tikhonov regularization
-        int rows = hessian.rows(), cols = hessian.cols();
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                double h = hessian.get(i, j);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                double h = hessianArray[i*size + j];
                 double g = 0;
                 if (settings.gammaTgamma != null && i < settings.gammaTgamma.rows() && j < settings.gammaTgamma.cols()) {
                     g = settings.gammaTgamma.get(i, j);
@@ -707,7 +1059,7 @@ public class GNImageAligner implements ImageAligner {
                 if (i == j && i < n) {
                     a = settings.alphaTikhonov * settings.alphaTikhonov;
                 }
-                hessian.put(i, j, h + g + a);
+                hessianArray[i*size + j] = h + g + a;
             }
         }
     }
@@ -761,4 +1113,91 @@ public class GNImageAligner implements ImageAligner {
 //        }
         residualUpdateNeeded = false;
     }
+
+    /**
+     * Benchmark on a synthetic sequence: a smoothed random texture, warped in each frame by a
+     * rotation and translation that grow steadily, as seen by a moving camera. Tracks it first
+     * with the default schedule, and then with the adaptive one (level iteration limit, RMSE
+     * improvement threshold, motion prediction, and level skipping). Reports for each the time
+     * and iterations per frame and the largest error on the corners of the region, and then the
+     * ratio of their times, which the adaptive schedule should bring to 0.5 or less.
+     */
+    public static void main(String[] args) {
+        int width = 640, height = 480;
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        IplImage template = IplImage.create(width, height, IPL_DEPTH_32F, 1);
+        IplImage target   = IplImage.create(width, height, IPL_DEPTH_32F, 1);
+        java.nio.FloatBuffer buf = template.getFloatBuffer();
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, random.nextFloat());
+        }
+        cvSmooth(template, template, CV_GAUSSIAN, 15, 0, 0, 0);
+
+        double[] roiPts = { width/4, height/4,  3*width/4, height/4,  3*width/4, 3*height/4,  width/4, 3*height/4 };
+        ProjectiveTransformer transformer = new ProjectiveTransformer(roiPts);
+
+        Settings adaptive = new Settings();
+        adaptive.setLevelIterationsMax(10);
+        adaptive.setRmseImprovementMin(0.001);
+        adaptive.setMotionPrediction(true);
+        adaptive.setLevelDisplacementMax(2);
+        Settings[] schedules = { new Settings(), adaptive };
+        String[] names = { "default", "adaptive" };
+        double[] seconds = new double[schedules.length];
+
+        double[] h = new double[9], truePts = new double[8];
+        CvMat H = CvMat.create(3, 3);
+        double cx = width/2, cy = height/2;
+        for (int k = 0; k < schedules.length; k++) {
+            GNImageAligner aligner = null;
+            long nanos = 0;
+            int failures = 0;
+            double error = 0;
+            for (int t = 0; t < frames; t++) {
+                double angle = Math.toRadians(0.05*t), tx = 0.5*t, ty = -0.3*t;
+                double c = Math.cos(angle), s = Math.sin(angle);
+                h[0] = c; h[1] = -s; h[2] = cx - c*cx + s*cy + tx;
+                h[3] = s; h[4] =  c; h[5] = cy - s*cx - c*cy + ty;
+                h[6] = 0; h[7] =  0; h[8] = 1;
+                H.put(h);
+                cvWarpPerspective(template, target, H, CV_INTER_LINEAR | CV_WARP_FILL_OUTLIERS, CvScalar.ZERO);
+                for (int i = 0; i < 4; i++) {
+                    double x = roiPts[2*i], y = roiPts[2*i + 1];
+                    truePts[2*i    ] = h[0]*x + h[1]*y + h[2];
+                    truePts[2*i + 1] = h[3]*x + h[4]*y + h[5];
+                }
+
+                if (aligner == null) {
+                    aligner = new GNImageAligner(transformer, transformer.createParameters(),
+                                                 template, roiPts, target, schedules[k]);
+                }
+                long start = System.nanoTime();
+                if (!aligner.align(target)) {
+                    failures++;
+                }
+                nanos += System.nanoTime() - start;
+
+                double[] p = aligner.getParameters().get();
+                for (int i = 0; i < 8; i++) {
+                    error = Math.max(error, Math.abs(p[i] - truePts[i]));
+                }
+            }
+            seconds[k] = nanos/1e9;
+
+            long iterations = 0;
+            long[] counts = aligner.getLevelIterationCounts(), times = aligner.getLevelTimes();
+            System.out.println(names[k] + " schedule:");
+            for (int i = counts.length - 1; i >= 0; i--) {
+                iterations += counts[i];
+                System.out.println("  level " + i + ": " + (float)(counts[i]/(double)frames) + " iterations/frame, "
+                        + (float)(times[i]/1e6/frames) + " ms/frame");
+            }
+            System.out.println("  " + (float)(seconds[k]*1000/frames) + " ms/frame, "
+                    + (float)(iterations/(double)frames) + " iterations/frame, "
+                    + failures + " frames not converged, max corner error = " + (float)error + " px");
+        }
+        System.out.println("time ratio adaptive/default = " + (float)(seconds[1]/seconds[0]) + " (goal: 0.5 or less)");
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2012 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -323,10 +323,10 @@ public class GNImageAlignerCL extends GNImageAligner implements ImageAlignerCL {
         final double constraintError = parameters.getConstraintError();
         final double stepSize = settings.stepSize;
 
-        cvSetZero(gradient);
-        cvSetZero(hessian);
+        Arrays.fill(gradientArray, 0);
+        Arrays.fill(hessianArray, 0);
 
-        Parallel.loop(0, n, new Parallel.Looper() {
+        Parallel.loop(0, n, new Parallel.AdaptiveLooper() {
         public void loop(int from, int to, int looperID) {
 //        for (int i = 0; i < n; i++) {
         for (int i = from; i < to; i++) {
@@ -352,10 +352,11 @@ public class GNImageAlignerCL extends GNImageAligner implements ImageAlignerCL {
         doRegularization(updateScale);
 
         outputData.readBuffer(context);
+        int size = gradientArray.length;
         for (int i = 0; i < n; i++) {
-            gradient.put(i, gradient.get(i) - outputData.srcDstDot.get(i));
+            gradientArray[i] -= outputData.srcDstDot.get(i);
             for (int j = 0; j < n; j++) {
-                hessian.put(i, j, hessian.get(i, j) + outputData.dstDstDot.get(i*n + j));
+                hessianArray[i*size + j] += outputData.dstDstDot.get(i*n + j);
             }
         }
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2011 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -27,6 +27,10 @@ import java.nio.IntBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import org.bytedeco.javacv.ProjectiveDevice.CalibrationSettings;
 
 import static org.bytedeco.javacpp.opencv_calib3d.*;
@@ -59,6 +63,9 @@ public class GeometricCalibrator {
         double detectedBoardMin  = 0.5;
         double patternSteadySize = 0.005;
         double patternMovedSize  = 0.05;
+        int incrementalInterval  = 0;
+        boolean incrementalUseCenters = false;
+        double outlierFactor     = 3.0;
 
         public double getDetectedBoardMin() {
             return detectedBoardMin;
@@ -80,6 +87,30 @@ public class GeometricCalibrator {
         public void setPatternMovedSize(double patternMovedSize) {
             this.patternMovedSize = patternMovedSize;
         }
+
+        /** Number of views added between calibrations in the background, or 0 to disable them. */
+        public int getIncrementalInterval() {
+            return incrementalInterval;
+        }
+        public void setIncrementalInterval(int incrementalInterval) {
+            this.incrementalInterval = incrementalInterval;
+        }
+
+        /** Value of useCenters for calibrations in the background. */
+        public boolean isIncrementalUseCenters() {
+            return incrementalUseCenters;
+        }
+        public void setIncrementalUseCenters(boolean incrementalUseCenters) {
+            this.incrementalUseCenters = incrementalUseCenters;
+        }
+
+        /** Views with a reprojection error larger than this factor times the RMS error are outliers. */
+        public double getOutlierFactor() {
+            return outlierFactor;
+        }
+        public void setOutlierFactor(double outlierFactor) {
+            this.outlierFactor = outlierFactor;
+        }
     }
 
     private Settings settings;
@@ -97,6 +128,191 @@ public class GeometricCalibrator {
     private CvMat warpSrcPts = CvMat.create(1, 4, CV_64F, 2);
     private CvMat warpDstPts = CvMat.create(1, 4, CV_64F, 2);
     private CvMat tempPts    = CvMat.create(1, 4, CV_64F, 2);
+    private PackedPoints packedCorners = new PackedPoints(false), packedCenters = new PackedPoints(true);
+    private ExecutorService executor = null;
+    private Future<Estimate> future = null;
+    private volatile Estimate estimate = null;
+
+    /**
+     * Points of all views in packed arrays, extended with the views added to the
+     * lists since the last call, or rebuilt when the lists get replaced. Views edited
+     * in place, or removed, get detected by comparing them with the packed points,
+     * and get packed again from the first one that differs.
+     */
+    static class PackedPoints {
+        PackedPoints(boolean useCenters) {
+            this.useCenters = useCenters;
+        }
+
+        final boolean useCenters;
+        LinkedList<Marker[]> objectMarkers = null, imageMarkers = null;
+        float[] objectPoints = new float[0], imagePoints = new float[0];
+        int[] pointCounts = new int[0];
+        int viewCount = 0, pointCount = 0;
+
+        void update(LinkedList<Marker[]> om, LinkedList<Marker[]> im) {
+            assert(om.size() == im.size());
+            if (om != objectMarkers || im != imageMarkers) {
+                objectMarkers = om;
+                imageMarkers = im;
+                viewCount = pointCount = 0;
+            }
+            int views = 0, points = 0;
+            Iterator<Marker[]> i1 = om.iterator(),
+                               i2 = im.iterator();
+            while (views < viewCount && i1.hasNext() && i2.hasNext()) {
+                Marker[] m1 = i1.next(),
+                         m2 = i2.next();
+                int n = m1.length*(useCenters ? 1 : 4);
+                if (m1.length != m2.length || n != pointCounts[views] || !matches(m1, m2, points)) {
+                    break;
+                }
+                points += n;
+                views++;
+            }
+            viewCount = views;
+            pointCount = points;
+
+            i1 = om.listIterator(viewCount);
+            i2 = im.listIterator(viewCount);
+            while (i1.hasNext() && i2.hasNext()) {
+                Marker[] m1 = i1.next(),
+                         m2 = i2.next();
+                assert(m1.length == m2.length);
+                int n = m1.length*(useCenters ? 1 : 4);
+                if (viewCount >= pointCounts.length) {
+                    pointCounts = Arrays.copyOf(pointCounts, Math.max(16, 2*viewCount));
+                }
+                if (pointCount + n > imagePoints.length/2) {
+                    int capacity = Math.max(2*pointCount, pointCount + n);
+                    objectPoints = Arrays.copyOf(objectPoints, 3*capacity);
+                    imagePoints  = Arrays.copyOf(imagePoints,  2*capacity);
+                }
+                for (int j = 0; j < m1.length; j++) {
+                    if (useCenters) {
+                        double[] c1 = m1[j].getCenter();
+                        double[] c2 = m2[j].getCenter();
+                        put(c1[0], c1[1], c2[0], c2[1]);
+                    } else { // use corners...
+                        for (int k = 0; k < 4; k++) {
+                            put(m1[j].corners[2*k], m1[j].corners[2*k + 1],
+                                m2[j].corners[2*k], m2[j].corners[2*k + 1]);
+                        }
+                    }
+                }
+                pointCounts[viewCount++] = n;
+            }
+        }
+
+        /** Returns true if the markers give the same points as the ones packed from index p. */
+        boolean matches(Marker[] m1, Marker[] m2, int p) {
+            for (int j = 0; j < m1.length; j++) {
+                if (useCenters) {
+                    double[] c1 = m1[j].getCenter();
+                    double[] c2 = m2[j].getCenter();
+                    if (!matches(p++, c1[0], c1[1], c2[0], c2[1])) {
+                        return false;
+                    }
+                } else {
+                    for (int k = 0; k < 4; k++) {
+                        if (!matches(p++, m1[j].corners[2*k], m1[j].corners[2*k + 1],
+                                          m2[j].corners[2*k], m2[j].corners[2*k + 1])) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        boolean matches(int p, double objectX, double objectY, double imageX, double imageY) {
+            return objectPoints[3*p    ] == (float)objectX && objectPoints[3*p + 1] == (float)objectY
+                && imagePoints [2*p    ] == (float)imageX  && imagePoints [2*p + 1] == (float)imageY;
+        }
+
+        void put(double objectX, double objectY, double imageX, double imageY) {
+            objectPoints[3*pointCount    ] = (float)objectX;
+            objectPoints[3*pointCount + 1] = (float)objectY;
+            objectPoints[3*pointCount + 2] = 0;
+            imagePoints [2*pointCount    ] = (float)imageX;
+            imagePoints [2*pointCount + 1] = (float)imageY;
+            pointCount++;
+        }
+
+        /** Returns new matrices of object points, image points, and point counts. */
+        CvMat[] toMats() {
+            CvMat objectMat = CvMat.create(1, pointCount, CV_32F, 3);
+            CvMat imageMat  = CvMat.create(1, pointCount, CV_32F, 2);
+            CvMat countsMat = CvMat.create(1, viewCount, CV_32S, 1);
+            objectMat.getFloatBuffer().put(objectPoints, 0, 3*pointCount);
+            imageMat .getFloatBuffer().put(imagePoints,  0, 2*pointCount);
+            countsMat.getIntBuffer()  .put(pointCounts,  0, viewCount);
+            return new CvMat[] { objectMat, imageMat, countsMat };
+        }
+    }
+
+    /** Calibration results, as returned by {@link #getEstimate()}. */
+    public static class Estimate {
+        Estimate(int viewCount, CvMat cameraMatrix, CvMat distortionCoeffs, CvMat extrParams,
+                CvMat reprojErrs, double[] err, double outlierFactor, long solveTime) {
+            this.viewCount        = viewCount;
+            this.cameraMatrix     = cameraMatrix;
+            this.distortionCoeffs = distortionCoeffs;
+            this.extrParams       = extrParams;
+            this.viewErrors       = reprojErrs.get();
+            this.avgReprojErr     = err[0];
+            this.maxReprojErr     = err[1];
+            this.solveTime        = solveTime;
+            int[] outliers = new int[viewErrors.length];
+            int n = 0;
+            for (int i = 0; i < viewErrors.length; i++) {
+                if (viewErrors[i] > outlierFactor*avgReprojErr) {
+                    outliers[n++] = i;
+                }
+            }
+            this.outlierViews = Arrays.copyOf(outliers, n);
+        }
+
+        final int viewCount;
+        final CvMat cameraMatrix, distortionCoeffs, extrParams;
+        final double[] viewErrors;
+        final double avgReprojErr, maxReprojErr;
+        final int[] outlierViews;
+        final long solveTime;
+
+        /** Returns the number of views used, the first ones added. */
+        public int getViewCount() {
+            return viewCount;
+        }
+        public CvMat getCameraMatrix() {
+            return cameraMatrix;
+        }
+        public CvMat getDistortionCoeffs() {
+            return distortionCoeffs;
+        }
+        public CvMat getExtrParams() {
+            return extrParams;
+        }
+        /** Returns the RMS reprojection error of each view. */
+        public double[] getViewErrors() {
+            return viewErrors;
+        }
+        /** Returns the RMS reprojection error over all views. */
+        public double getAvgReprojErr() {
+            return avgReprojErr;
+        }
+        public double getMaxReprojErr() {
+            return maxReprojErr;
+        }
+        /** Returns the indices of the views with an error larger than {@link Settings#getOutlierFactor()} times the RMS. */
+        public int[] getOutlierViews() {
+            return outlierViews;
+        }
+        /** Returns the time in nanoseconds taken by the calibration. */
+        public long getSolveTime() {
+            return solveTime;
+        }
+    }
 
     public MarkerDetector getMarkerDetector() {
         return markerDetector;
@@ -111,15 +327,33 @@ public class GeometricCalibrator {
     public LinkedList<Marker[]> getAllObjectMarkers() {
         return allObjectMarkers;
     }
-    public void setAllObjectMarkers(LinkedList<Marker[]> allObjectMarkers) {
+    public synchronized void setAllObjectMarkers(LinkedList<Marker[]> allObjectMarkers) {
         this.allObjectMarkers = allObjectMarkers;
+        estimate = null;
     }
 
     public LinkedList<Marker[]> getAllImageMarkers() {
         return allImageMarkers;
     }
-    public void setAllImageMarkers(LinkedList<Marker[]> allImageMarkers) {
+    public synchronized void setAllImageMarkers(LinkedList<Marker[]> allImageMarkers) {
         this.allImageMarkers = allImageMarkers;
+        estimate = null;
+    }
+
+    /** Returns the executor set for {@link #calibrateInBackground(boolean)}, or null to use {@code ExecutorRegistry.get(ExecutorRegistry.CALIBRATOR)}. */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the results of the last calibration completed, in the background or by
+     * {@link #calibrate(boolean)}, or null if none since the markers were last replaced.
+     */
+    public Estimate getEstimate() {
+        return estimate;
     }
 
     public Marker[] processImage(IplImage image) {
@@ -167,6 +401,21 @@ public class GeometricCalibrator {
         }
     }
 
+    /**
+     * Calls calibrators[i].processImage(images[i]) for all images concurrently, for example with
+     * one calibrator per camera. Returns the results of processImage() in the same order.
+     */
+    public static Marker[][] processImages(final GeometricCalibrator[] calibrators, final IplImage[] images) {
+        final Marker[][] markers = new Marker[images.length][];
+        Parallel.loop(0, images.length, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i = from; i < to; i++) {
+                markers[i] = calibrators[i].processImage(images[i]);
+            }
+        }});
+        return markers;
+    }
+
     public void drawMarkers(IplImage image) {
         markerDetector.draw(image, lastDetectedMarkers);
     }
@@ -202,6 +451,16 @@ public class GeometricCalibrator {
 
         // we added the detected markers, so save last computed warp too...
         cvCopy(prevWarp, lastWarp);
+
+        Estimate e = estimate;
+        int interval = settings.incrementalInterval;
+        if (interval > 0 && getImageCount() - (e != null ? e.viewCount : 0) >= interval) {
+            try {
+                calibrateInBackground(settings.incrementalUseCenters);
+            } catch (RejectedExecutionException ex) {
+                // the markers got added anyway, so try again with the next ones
+            }
+        }
     }
 
     public int getImageCount() {
@@ -213,156 +472,151 @@ public class GeometricCalibrator {
         // fill up pointCounts, objectPoints and imagePoints, with data from
         // srcMarkers and dstMarkers
         assert(allObjectMarkers.size() == allImageMarkers.size());
-        Iterator<Marker[]> i1 = allObjectMarkers.iterator(),
-                           i2 = allImageMarkers.iterator();
-        CvMat pointCounts = CvMat.create(1, allImageMarkers.size(), CV_32S, 1);
-        IntBuffer pointCountsBuf = pointCounts.getIntBuffer();
-        int totalPointCount = 0;
-        while (i1.hasNext() && i2.hasNext()) {
-            Marker[] m1 = i1.next(),
-                     m2 = i2.next();
-            assert(m1.length == m2.length);
-            int n = m1.length*(useCenters ? 1 : 4);
-            pointCountsBuf.put(n);
-            totalPointCount += n;
-        }
-        i1 = allObjectMarkers.iterator();
-        i2 = allImageMarkers.iterator();
-        CvMat objectPoints = CvMat.create(1, totalPointCount, CV_32F, 3);
-        CvMat imagePoints  = CvMat.create(1, totalPointCount, CV_32F, 2);
-        FloatBuffer objectPointsBuf = objectPoints.getFloatBuffer();
-        FloatBuffer imagePointsBuf  = imagePoints.getFloatBuffer();
-        while (i1.hasNext() && i2.hasNext()) {
-            Marker[] m1 = i1.next(),
-                     m2 = i2.next();
-            for (int j = 0; j < m1.length; j++) {
-                if (useCenters) {
-                    double[] c1 = m1[j].getCenter();
-                    objectPointsBuf.put((float)c1[0]);
-                    objectPointsBuf.put((float)c1[1]);
-                    objectPointsBuf.put(0);
-
-                    double[] c2 = m2[j].getCenter();
-                    imagePointsBuf.put((float)c2[0]);
-                    imagePointsBuf.put((float)c2[1]);
-                } else { // use corners...
-                    for (int k = 0; k < 4; k++) {
-                        objectPointsBuf.put((float)m1[j].corners[2*k    ]);
-                        objectPointsBuf.put((float)m1[j].corners[2*k + 1]);
-                        objectPointsBuf.put(0);
-
-                        imagePointsBuf.put((float)m2[j].corners[2*k    ]);
-                        imagePointsBuf.put((float)m2[j].corners[2*k + 1]);
-                    }
-                }
-            }
-        }
-
-        return new CvMat[] { objectPoints, imagePoints, pointCounts };
+        PackedPoints packed = useCenters ? packedCenters : packedCorners;
+        packed.update(allObjectMarkers, allImageMarkers);
+        return packed.toMats();
     }
 
-    public static double[] computeReprojectionError(CvMat object_points,
-            CvMat image_points, CvMat point_counts, CvMat camera_matrix,
-            CvMat dist_coeffs, CvMat rot_vects, CvMat trans_vects,
+    /** Computes the errors of each view in parallel. Returns the RMS and maximum errors over all views. */
+    public static double[] computeReprojectionError(final CvMat object_points,
+            final CvMat image_points, CvMat point_counts, final CvMat camera_matrix,
+            final CvMat dist_coeffs, final CvMat rot_vects, final CvMat trans_vects,
             CvMat per_view_errors ) {
-        CvMat image_points2 = CvMat.create(image_points.rows(),
+        final CvMat image_points2 = CvMat.create(image_points.rows(),
             image_points.cols(), image_points.type());
 
-        int i, image_count = rot_vects.rows(), points_so_far = 0;
-        double total_err = 0, max_err = 0, err;
-
-        CvMat object_points_i = new CvMat(),
-              image_points_i  = new CvMat(),
-              image_points2_i = new CvMat();
+        int image_count = rot_vects.rows();
+        final int[] points_so_far = new int[image_count + 1];
         IntBuffer point_counts_buf = point_counts.getIntBuffer();
-        CvMat rot_vect = new CvMat(), trans_vect = new CvMat();
-
-        for (i = 0; i < image_count; i++) {
-            object_points_i.reset();
-            image_points_i .reset();
-            image_points2_i.reset();
-            int point_count = point_counts_buf.get(i);
-
-            cvGetCols(object_points, object_points_i,
-                    points_so_far, points_so_far + point_count);
-            cvGetCols(image_points, image_points_i,
-                    points_so_far, points_so_far + point_count);
-            cvGetCols(image_points2, image_points2_i,
-                    points_so_far, points_so_far + point_count);
-            points_so_far += point_count;
-
-            cvGetRows(rot_vects,   rot_vect,   i, i+1, 1);
-            cvGetRows(trans_vects, trans_vect, i, i+1, 1);
-
-            cvProjectPoints2(object_points_i, rot_vect, trans_vect,
-                                camera_matrix, dist_coeffs, image_points2_i);
-            err = cvNorm(image_points_i, image_points2_i);
-            err *= err;
-            if (per_view_errors != null)
-                per_view_errors.put(i, Math.sqrt(err/point_count));
-            total_err += err;
-
-            for (int j = 0; j < point_count; j++) {
-                double x1 = image_points_i .get(0, j, 0);
-                double y1 = image_points_i .get(0, j, 1);
-                double x2 = image_points2_i.get(0, j, 0);
-                double y2 = image_points2_i.get(0, j, 1);
-                double dx = x1-x2;
-                double dy = y1-y2;
-                err = Math.sqrt(dx*dx + dy*dy);
-                if (err > max_err) {
-                    max_err = err;
+        for (int i = 0; i < image_count; i++) {
+            points_so_far[i + 1] = points_so_far[i] + point_counts_buf.get(i);
+        }
+        final double[] view_err = new double[image_count], view_max_err = new double[image_count];
+
+        Parallel.loop(0, image_count, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            CvMat object_points_i = new CvMat(),
+                  image_points_i  = new CvMat(),
+                  image_points2_i = new CvMat();
+            CvMat rot_vect = new CvMat(), trans_vect = new CvMat();
+
+            for (int i = from; i < to; i++) {
+                object_points_i.reset();
+                image_points_i .reset();
+                image_points2_i.reset();
+                int start = points_so_far[i], point_count = points_so_far[i + 1] - start;
+
+                cvGetCols(object_points, object_points_i, start, start + point_count);
+                cvGetCols(image_points,  image_points_i,  start, start + point_count);
+                cvGetCols(image_points2, image_points2_i, start, start + point_count);
+
+                cvGetRows(rot_vects,   rot_vect,   i, i+1, 1);
+                cvGetRows(trans_vects, trans_vect, i, i+1, 1);
+
+                cvProjectPoints2(object_points_i, rot_vect, trans_vect,
+                                    camera_matrix, dist_coeffs, image_points2_i);
+                double err = cvNorm(image_points_i, image_points2_i);
+                view_err[i] = err*err;
+
+                double max_err = 0;
+                for (int j = 0; j < point_count; j++) {
+                    double x1 = image_points_i .get(0, j, 0);
+                    double y1 = image_points_i .get(0, j, 1);
+                    double x2 = image_points2_i.get(0, j, 0);
+                    double y2 = image_points2_i.get(0, j, 1);
+                    double dx = x1-x2;
+                    double dy = y1-y2;
+                    err = Math.sqrt(dx*dx + dy*dy);
+                    if (err > max_err) {
+                        max_err = err;
+                    }
                 }
+                view_max_err[i] = max_err;
             }
+        }});
+
+        double total_err = 0, max_err = 0;
+        for (int i = 0; i < image_count; i++) {
+            if (per_view_errors != null)
+                per_view_errors.put(i, Math.sqrt(view_err[i]/(points_so_far[i + 1] - points_so_far[i])));
+            total_err += view_err[i];
+            max_err = Math.max(max_err, view_max_err[i]);
         }
 
-        return new double[] { Math.sqrt(total_err/points_so_far), max_err };
+        return new double[] { Math.sqrt(total_err/points_so_far[image_count]), max_err };
     }
 
-    public double[] calibrate(boolean useCenters) {
-        ProjectiveDevice d = projectiveDevice;
-        CalibrationSettings dsettings = (CalibrationSettings)d.getSettings();
-
-        if (d.cameraMatrix == null) {
-            d.cameraMatrix = CvMat.create(3, 3);
-            cvSetZero(d.cameraMatrix);
+    static CvMat initCameraMatrix(CvMat cameraMatrix, CalibrationSettings dsettings) {
+        if (cameraMatrix == null) {
+            cameraMatrix = CvMat.create(3, 3);
+            cvSetZero(cameraMatrix);
             if ((dsettings.flags & CV_CALIB_FIX_ASPECT_RATIO) != 0) {
-                d.cameraMatrix.put(0, dsettings.initAspectRatio);
-                d.cameraMatrix.put(4, 1.);
+                cameraMatrix.put(0, dsettings.initAspectRatio);
+                cameraMatrix.put(4, 1.);
             }
         }
+        return cameraMatrix;
+    }
+
+    static CvMat initDistortionCoeffs(CvMat distortionCoeffs, CalibrationSettings dsettings) {
         int kn = dsettings.isFixK3() ? 4 : 5;
         if (dsettings.isRationalModel() && !dsettings.isFixK4() &&
                 !dsettings.isFixK4() && !dsettings.isFixK5()) {
             kn = 8;
         }
-        if (d.distortionCoeffs == null || d.distortionCoeffs.cols() != kn) {
-            d.distortionCoeffs = CvMat.create(1, kn);
-            cvSetZero(d.distortionCoeffs);
+        if (distortionCoeffs == null || distortionCoeffs.cols() != kn) {
+            distortionCoeffs = CvMat.create(1, kn);
+            cvSetZero(distortionCoeffs);
         }
+        return distortionCoeffs;
+    }
 
+    /**
+     * Runs cvCalibrateCamera2() on the given points, and fills up reprojErrs with the error of each view.
+     * Returns the RMS and maximum errors over all views, or null if the results are invalid.
+     */
+    static double[] solve(CvMat[] points, int imageWidth, int imageHeight, CvMat cameraMatrix,
+            CvMat distortionCoeffs, CvMat extrParams, CvMat reprojErrs, int flags) {
         CvMat rotVects = new CvMat(), transVects = new CvMat();
-        d.extrParams = CvMat.create(allImageMarkers.size(), 6);
-        cvGetCols(d.extrParams, rotVects,   0, 3);
-        cvGetCols(d.extrParams, transVects, 3, 6);
+        cvGetCols(extrParams, rotVects,   0, 3);
+        cvGetCols(extrParams, transVects, 3, 6);
 
-        CvMat[] points = getPoints(useCenters);
         cvCalibrateCamera2(points[0], points[1], points[2],
-                cvSize(d.imageWidth, d.imageHeight),
-                d.cameraMatrix, d.distortionCoeffs,
-                rotVects, transVects, dsettings.flags,
+                cvSize(imageWidth, imageHeight),
+                cameraMatrix, distortionCoeffs,
+                rotVects, transVects, flags,
                 cvTermCriteria(CV_TERMCRIT_ITER | CV_TERMCRIT_EPS, 30, JavaCV.DBL_EPSILON));
 
-        if (cvCheckArr(d.cameraMatrix,     CV_CHECK_QUIET, 0, 0) != 0 &&
-            cvCheckArr(d.distortionCoeffs, CV_CHECK_QUIET, 0, 0) != 0 &&
-            cvCheckArr(d.extrParams,       CV_CHECK_QUIET, 0, 0) != 0) {
+        if (cvCheckArr(cameraMatrix,     CV_CHECK_QUIET, 0, 0) != 0 &&
+            cvCheckArr(distortionCoeffs, CV_CHECK_QUIET, 0, 0) != 0 &&
+            cvCheckArr(extrParams,       CV_CHECK_QUIET, 0, 0) != 0) {
+            return computeReprojectionError(points[0], points[1], points[2],
+                    cameraMatrix, distortionCoeffs, rotVects, transVects, reprojErrs);
+        } else {
+            return null;
+        }
+    }
+
+    public double[] calibrate(boolean useCenters) {
+        ProjectiveDevice d = projectiveDevice;
+        CalibrationSettings dsettings = (CalibrationSettings)d.getSettings();
+
+        d.cameraMatrix     = initCameraMatrix(d.cameraMatrix, dsettings);
+        d.distortionCoeffs = initDistortionCoeffs(d.distortionCoeffs, dsettings);
+        d.extrParams = CvMat.create(allImageMarkers.size(), 6);
 
-            d.reprojErrs = CvMat.create(1, allImageMarkers.size());
-            double[] err = computeReprojectionError(points[0], points[1], points[2],
-                    d.cameraMatrix, d.distortionCoeffs, rotVects, transVects, d.reprojErrs);
+        CvMat[] points = getPoints(useCenters);
+        CvMat reprojErrs = CvMat.create(1, allImageMarkers.size());
+        long start = System.nanoTime();
+        double[] err = solve(points, d.imageWidth, d.imageHeight, d.cameraMatrix,
+                d.distortionCoeffs, d.extrParams, reprojErrs, dsettings.flags);
+        if (err != null) {
+            d.reprojErrs = reprojErrs;
             d.avgReprojErr = err[0];
             d.maxReprojErr = err[1];
 //            d.nominalDistance = d.getNominalDistance(markedPlane);
+            estimate = new Estimate(points[2].cols(), cvCloneMat(d.cameraMatrix), cvCloneMat(d.distortionCoeffs),
+                    cvCloneMat(d.extrParams), reprojErrs, err, settings.outlierFactor, System.nanoTime() - start);
             return err;
         } else {
             d.cameraMatrix = null;
@@ -372,6 +626,80 @@ public class GeometricCalibrator {
         }
     }
 
+    /**
+     * Calibrates in the background on a copy of the points of all views added so far, without
+     * modifying the projective device, and makes the results available via {@link #getEstimate()}.
+     * Starts from the intrinsics of the last estimate, if any, with CV_CALIB_USE_INTRINSIC_GUESS,
+     * falling back on a calibration from scratch if that fails. Called by {@link #addMarkers()}
+     * every {@link Settings#getIncrementalInterval()} views. If a calibration is already running,
+     * returns it instead of starting another one.
+     *
+     * @throws RejectedExecutionException if the executor does not accept the calibration
+     */
+    public synchronized Future<Estimate> calibrateInBackground(final boolean useCenters) {
+        if (future != null && !future.isDone()) {
+            return future;
+        }
+        ProjectiveDevice d = projectiveDevice;
+        final CalibrationSettings dsettings = (CalibrationSettings)d.getSettings();
+        final Estimate previous = estimate;
+        final CvMat[] points = getPoints(useCenters);
+        final int viewCount = points[2].cols(), imageWidth = d.imageWidth, imageHeight = d.imageHeight;
+        final double outlierFactor = settings.outlierFactor;
+        final LinkedList<Marker[]> objectMarkers = allObjectMarkers, imageMarkers = allImageMarkers;
+
+        final ExecutorRegistry.Metrics metrics = ExecutorRegistry.getMetrics(ExecutorRegistry.CALIBRATOR);
+        final long submitTime = metrics.submitted();
+        ExecutorService e = executor != null ? executor : ExecutorRegistry.get(ExecutorRegistry.CALIBRATOR);
+        Future<Estimate> f;
+        try {
+            f = e.submit(new Callable<Estimate>() { public Estimate call() throws Exception {
+                long startTime = metrics.started(submitTime);
+                boolean success = false;
+                try {
+                    long start = System.nanoTime();
+                    CvMat extrParams = CvMat.create(viewCount, 6), reprojErrs = CvMat.create(1, viewCount);
+                    CvMat cameraMatrix = null, distortionCoeffs = null;
+                    double[] err = null;
+                    if (previous != null) {
+                        cameraMatrix     = cvCloneMat(previous.cameraMatrix);
+                        distortionCoeffs = initDistortionCoeffs(cvCloneMat(previous.distortionCoeffs), dsettings);
+                        err = solve(points, imageWidth, imageHeight, cameraMatrix, distortionCoeffs,
+                                extrParams, reprojErrs, dsettings.flags | CV_CALIB_USE_INTRINSIC_GUESS);
+                    }
+                    if (err == null) {
+                        cameraMatrix     = initCameraMatrix(null, dsettings);
+                        distortionCoeffs = initDistortionCoeffs(null, dsettings);
+                        err = solve(points, imageWidth, imageHeight, cameraMatrix, distortionCoeffs,
+                                extrParams, reprojErrs, dsettings.flags & ~CV_CALIB_USE_INTRINSIC_GUESS);
+                    }
+                    Estimate result = null;
+                    if (err != null) {
+                        result = new Estimate(viewCount, cameraMatrix, distortionCoeffs, extrParams,
+                                reprojErrs, err, outlierFactor, System.nanoTime() - start);
+                        synchronized (GeometricCalibrator.this) {
+                            // publish only if the markers were not replaced, and no newer estimate exists
+                            Estimate current = estimate;
+                            if (objectMarkers == allObjectMarkers && imageMarkers == allImageMarkers
+                                    && (current == null || current.viewCount <= viewCount)) {
+                                estimate = result;
+                            }
+                        }
+                    }
+                    success = true;
+                    return result;
+                } finally {
+                    metrics.finished(startTime, success);
+                }
+            }});
+        } catch (RejectedExecutionException ex) {
+            metrics.cancelled();
+            throw ex;
+        }
+        future = f;
+        return future;
+    }
+
     public static double[] computeStereoError(CvMat imagePoints1, CvMat imagePoints2,
             CvMat M1, CvMat D1, CvMat M2, CvMat D2, CvMat F) {
         // CALIBRATION QUALITY CHECK
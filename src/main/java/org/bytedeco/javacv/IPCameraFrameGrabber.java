@@ -22,22 +22,19 @@
 
 package org.bytedeco.javacv;
 
-import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.Loader;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.TimeUnit;
 
 import static org.bytedeco.javacpp.opencv_core.*;
-import static org.bytedeco.javacpp.opencv_imgcodecs.*;
 
 public class IPCameraFrameGrabber extends FrameGrabber {
 
@@ -62,13 +59,20 @@ public class IPCameraFrameGrabber extends FrameGrabber {
         }
     }
 
-    private final FrameConverter converter = new OpenCVFrameConverter.ToIplImage();
+    private final FrameConverter converter = new OpenCVFrameConverter.ToMat();
+    private final Java2DFrameConverter java2dConverter = new Java2DFrameConverter();
     private final URL url;
     private final int connectionTimeout;
     private final int readTimeout;
-    private DataInputStream input;
-    private byte[] pixelBuffer = new byte[1024];
-    private IplImage decoded = null;
+    private ReadableByteChannel input;
+    private final MjpegParser parser = new MjpegParser();
+    private ByteBuffer payload = null;
+    private Mat decoded = null;
+    private MjpegIngest ingest = null;
+    private MjpegIngest.Stream stream = null;
+    private MjpegIngest.Part part = null;
+    private boolean decoding = true;
+    private int scaleDenominator = 1;
 
     /**
      * @param url          The URL to create the camera connection with.
@@ -114,8 +118,61 @@ public class IPCameraFrameGrabber extends FrameGrabber {
         this(new URL(urlstr), -1, -1, null);
     }
 
+    /** Returns the {@link MjpegIngest} receiving and decoding images in the background, or null if grab() does it. */
+    public MjpegIngest getIngest() {
+        return ingest;
+    }
+    /**
+     * Sets an {@link MjpegIngest}, for example {@link MjpegIngest#getDefault()}, to receive images
+     * on its selector thread and decode them ahead of {@link #grab()}, keeping up to
+     * {@link #getNumBuffers()} of them. Takes effect on the next {@link #start()}.
+     */
+    public void setIngest(MjpegIngest ingest) {
+        this.ingest = ingest;
+    }
+
+    /** Returns whether the {@link MjpegIngest} decodes images in the background, ahead of {@link #grab()}. */
+    public boolean isDecoding() {
+        return decoding;
+    }
+    /**
+     * Disable when only calling {@link #grabCompressed()}, so the {@link MjpegIngest} does not decode
+     * images for nothing. {@link #grab()} still works, decoding on demand. Takes effect on the next {@link #start()}.
+     */
+    public void setDecoding(boolean decoding) {
+        this.decoding = decoding;
+    }
+
+    /** Returns the denominator of the scale at which images get decoded. */
+    public int getScaleDenominator() {
+        return scaleDenominator;
+    }
+    /**
+     * Sets the scale of decoded images to 1/2, 1/4, or 1/8 with a denominator of 2, 4, or 8, which
+     * costs only a fraction of decoding images at full resolution, or back to 1. Images get decoded
+     * in grayscale, with 1 channel, when the image mode is {@link ImageMode#GRAY}, and in color otherwise.
+     * With an {@link MjpegIngest}, which decodes images in the background, the scale and the image
+     * mode take effect on the next {@link #start()}, and on the next {@link #grab()} otherwise.
+     */
+    public void setScaleDenominator(int scaleDenominator) {
+        MjpegIngest.decodeFlags(false, scaleDenominator); // validates it
+        this.scaleDenominator = scaleDenominator;
+    }
+
+    private int decodeFlags() {
+        return MjpegIngest.decodeFlags(imageMode == ImageMode.GRAY, scaleDenominator);
+    }
+
     @Override
     public void start() throws Exception {
+        if (ingest != null) {
+            try {
+                stream = ingest.open(url, connectionTimeout, readTimeout, numBuffers, decoding, decodeFlags());
+            } catch (IOException e) {
+                throw new Exception(e.getMessage(), e);
+            }
+            return;
+        }
         try {
             /*
              * We don't need to keep a reference to the connection
@@ -130,7 +187,9 @@ public class IPCameraFrameGrabber extends FrameGrabber {
             if (readTimeout >= 0) {
                 connection.setReadTimeout(readTimeout);
             }
-            input = new DataInputStream(connection.getInputStream());
+            parser.reset();
+            parser.setBoundary(MjpegParser.boundaryOf(connection.getContentType()));
+            input = Channels.newChannel(connection.getInputStream());
         } catch (IOException e) {
             throw new Exception(e.getMessage(), e);
         }
@@ -138,6 +197,11 @@ public class IPCameraFrameGrabber extends FrameGrabber {
 
     @Override
     public void stop() throws Exception {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+            releaseDecoded();
+        }
         if (input != null) {
             try {
                 input.close();
@@ -150,6 +214,10 @@ public class IPCameraFrameGrabber extends FrameGrabber {
                 releaseDecoded();
             }
         }
+        if (decoded != null) {
+            decoded.deallocate();
+            decoded = null;
+        }
     }
 
     @Override
@@ -159,105 +227,89 @@ public class IPCameraFrameGrabber extends FrameGrabber {
     @Override
     public Frame grab() throws Exception {
         try {
-            final byte[] b = readImage();
-            final CvMat mat = cvMat(1, b.length, CV_8UC1, new BytePointer(b));
+            if (stream != null) {
+                MjpegIngest.Part p = takePart();
+                timestamp = p.getTimestamp();
+                return converter.convert(p.getImage());
+            }
+            final ByteBuffer b = readImage();
             releaseDecoded();
-            return converter.convert(decoded = cvDecodeImage(mat));
+            timestamp = parser.getTimestamp();
+            return converter.convert(decoded = MjpegIngest.decode(b, decodeFlags(), decoded != null ? decoded : new Mat()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception(e.getMessage(), e);
         } catch (IOException e) {
             throw new Exception(e.getMessage(), e);
         }
     }
 
-    public BufferedImage grabBufferedImage() throws IOException {
-        BufferedImage bi = ImageIO.read(new ByteArrayInputStream(readImage()));
-        return bi;
-    }
-
     /**
-     * Ensures that if the decoded image is not null that it gets released and set to null.
-     * If the image was not set to null then trying to release a null pointer will cause  a
-     * segfault.
+     * Returns the JPEG data of the next image, without decoding it, in a pooled direct buffer
+     * valid until the next grab, for example, to pass to {@link FFmpegFrameRecorder#recordCompressed}.
+     * {@link #getTimestamp()} returns the time in microseconds, from {@link System#nanoTime()},
+     * when it started arriving.
      */
-    private void releaseDecoded() {
-        if (decoded != null) {
-            cvReleaseImage(decoded);
-            decoded = null;
-        }
-    }
-
-    private byte[] readImage() throws IOException {
-        final StringBuffer sb = new StringBuffer();
-        int c;
-        // read http subheader
-        while ((c = input.read()) != -1) {
-            if (c > 0) {
-                sb.append((char) c);
-                if (c == 13) {
-                    sb.append((char) input.read());// '10'+
-                    c = input.read();
-                    sb.append((char) c);
-                    if (c == 13) {
-                        sb.append((char) input.read());// '10'
-                        break; // done with subheader
-                    }
-
-                }
+    public ByteBuffer grabCompressed() throws Exception {
+        try {
+            if (stream != null) {
+                MjpegIngest.Part p = takePart();
+                timestamp = p.getTimestamp();
+                return p.getData();
             }
+            final ByteBuffer b = readImage();
+            releaseDecoded();
+            timestamp = parser.getTimestamp();
+            return b;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new Exception(e.getMessage(), e);
         }
-        // find embedded jpeg in stream
-        /*
-         * Some cameras return headers 'content-length' using different casing
-         * Eg. Axis cameras return 'Content-Length:' while TrendNet cameras return 'content-length:'
-         */
-        final String subheader = sb.toString().toLowerCase();
-        //log.debug(subheader);
+    }
 
-        // Yay! - server was nice and sent content length
-        int c0 = subheader.indexOf("content-length: ");
-        final int c1 = subheader.indexOf('\r', c0);
+    /** Returns a copy of the image from {@link #grab()}, so that the JPEG data gets decoded only once. */
+    public BufferedImage grabBufferedImage() throws IOException {
+        BufferedImage bi = Java2DFrameConverter.cloneBufferedImage(java2dConverter.convert(grab()));
+        return bi;
+    }
 
-        if (c0 < 0) {
-            //log.info("no content length returning null");
-            throw new EOFException("The camera stream ended unexpectedly");
+    /** Releases the previous part, and returns the next one from the stream of the {@link MjpegIngest}. */
+    private MjpegIngest.Part takePart() throws IOException, InterruptedException {
+        // a read timeout of 0 means forever, as with URLConnection
+        MjpegIngest.Part p = stream.take(readTimeout > 0 ? readTimeout : -1);
+        if (p == null) {
+            throw new IOException("Timed out waiting for an image from " + url);
         }
-
-        c0 += 16;
-        final int contentLength = Integer.parseInt(subheader.substring(c0, c1).trim());
-        //log.debug("Content-Length: " + contentLength);
-
-        // adaptive size - careful - don't want a 2G jpeg
-        ensureBufferCapacity(contentLength);
-
-        input.readFully(pixelBuffer, 0, contentLength);
-        input.read();// \r
-        input.read();// \n
-        input.read();// \r
-        input.read();// \n
-
-        return pixelBuffer;
+        releaseDecoded();
+        return part = p;
     }
 
-    @Override
-    public void release() throws Exception {
+    /**
+     * Gives the part returned last back to the {@link MjpegIngest}, if any. The image decoded
+     * by {@link #grab()} itself gets reused instead, and only deallocated by {@link #stop()}.
+     */
+    private void releaseDecoded() {
+        if (part != null) {
+            part.release();
+            part = null;
+        }
     }
 
     /**
-     * Grow the pixel buffer if necessary.  Using this method instead of allocating a new buffer every time a frame
-     * is grabbed improves performance by reducing the frequency of garbage collections.  In a simple test, the
-     * original version of IPCameraFrameGrabber that allocated a 4096 element byte array for every read
-     * caused about 200MB of allocations within 13 seconds.  In this version, almost no additional heap space
-     * is typically allocated per frame.
+     * Reads the next part with bulk reads parsed by {@link MjpegParser}, and returns its payload,
+     * valid until the next call. Parts need a Content-Length header, a boundary, or else
+     * they end at the JPEG end of image marker.
      */
-    private void ensureBufferCapacity(int desiredCapacity) {
-        int capacity = pixelBuffer.length;
-
-        while (capacity < desiredCapacity) {
-            capacity *= 2;
-        }
+    private ByteBuffer readImage() throws IOException {
+        parser.recycle(payload);
+        payload = null;
+        return payload = parser.read(input);
+    }
 
-        if (capacity > pixelBuffer.length) {
-            pixelBuffer = new byte[capacity];
-        }
+    @Override
+    public void release() throws Exception {
     }
 
     /**
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.FloatBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Gaussian pyramid of an image, from minLevel to maxLevel, whose levels get computed only
+ * when first requested after {@link #setImage(IplImage)}, so that transformers and aligners
+ * working on the same image can share them instead of each calling cvPyrDown().
+ * When the image has an ROI, only the corresponding region of each level gets updated,
+ * widened by the 2 pixels per level that the kernel reads from the level below.
+ * <p>
+ * Floating-point levels get computed by bands of rows in parallel, with the same 5x5
+ * Gaussian kernel and border handling as cvPyrDown(). Other depths fall back on cvPyrDown().
+ * Methods are synchronized, so consumers may request levels from multiple threads.
+ * Instances are reference counted: the creator holds one reference, {@link #retain()}
+ * adds one, and {@link #release()} frees the images once none remains.
+ *
+ * @author Samuel Audet
+ */
+public class ImagePyramid {
+    public ImagePyramid(int minLevel, int maxLevel) {
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+        this.levels = new IplImage[maxLevel+1];
+        this.regions = new int[4*(maxLevel+1)];
+    }
+
+    final int minLevel, maxLevel;
+    final IplImage[] levels;
+    IplImage base = null;  // our floating-point copy of the image, if needed
+    int validLevel = -1;   // all levels up to this one are up to date
+    final int[] regions;   // {x0, y0, x1, y1} of the region to update at each level
+    int references = 1;
+    long hitCount = 0, missCount = 0, buildTime = 0;
+
+    public int getMinLevel() {
+        return minLevel;
+    }
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /** Adds a reference to this pyramid, and returns it. */
+    public synchronized ImagePyramid retain() {
+        if (references <= 0) {
+            throw new IllegalStateException("ImagePyramid already released.");
+        }
+        references++;
+        return this;
+    }
+    /** Removes a reference, and frees the images after the last one. */
+    public synchronized void release() {
+        if (--references == 0) {
+            for (int i = minLevel + 1; i <= maxLevel; i++) {
+                if (levels[i] != null) {
+                    levels[i].deallocate();
+                    levels[i] = null;
+                }
+            }
+            if (base != null) {
+                base.deallocate();
+                base = null;
+            }
+            levels[minLevel] = null;
+            validLevel = -1;
+        }
+    }
+
+    /** Returns the number of requests for levels that were already up to date. */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+    /** Returns the number of requests for levels that needed to be computed. */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total > 0 ? (double)hitCount/total : 0;
+    }
+    /** Returns the time in nanoseconds spent converting and downsampling images. */
+    public synchronized long getBuildTime() {
+        return buildTime;
+    }
+    public synchronized void resetStatistics() {
+        hitCount = missCount = buildTime = 0;
+    }
+
+    /** Same as {@code setImage(image0, true, 1.0/image0.highValue())}. */
+    public void setImage(IplImage image0) {
+        setImage(image0, true, 1.0/image0.highValue());
+    }
+    /**
+     * Sets the image at minLevel, used directly if it is already in floating point or if
+     * convertToFloat is false, or else converted with the given scale. If the image has an
+     * ROI, only the region gets converted, and only the pixels of each level that depend on it,
+     * within 2 pixels of the region at the level below, get updated. The ROI of the image is left as it was.
+     */
+    public synchronized void setImage(IplImage image0, boolean convertToFloat, double scale) {
+        if (references <= 0) {
+            throw new IllegalStateException("ImagePyramid already released.");
+        }
+        long start = System.nanoTime();
+        int w = image0.width(), h = image0.height();
+        IplROI ir = image0.roi();
+        boolean hasROI = ir != null;
+        int rx = 0, ry = 0, rw = w, rh = h;
+        if (hasROI) {
+            rx = ir.xOffset(); rw = ir.width();
+            ry = ir.yOffset(); rh = ir.height();
+            cvResetImageROI(image0);
+        }
+        boolean sizeChanged = levels[minLevel] == null || levels[minLevel].width() != w || levels[minLevel].height() != h
+                || levels[minLevel].nChannels() != image0.nChannels();
+        if (image0.depth() != IPL_DEPTH_32F && convertToFloat
+                && (base == null || base.width() != w || base.height() != h || base.nChannels() != image0.nChannels())) {
+            base = IplImage.create(w, h, IPL_DEPTH_32F, image0.nChannels(), image0.origin());
+            sizeChanged = true;
+        }
+        IplImage l = image0.depth() == IPL_DEPTH_32F || !convertToFloat ? image0 : base;
+        levels[minLevel] = l;
+        for (int i = minLevel + 1; i <= maxLevel; i++) {
+            int lw = levels[i-1].width()/2, lh = levels[i-1].height()/2;
+            if (levels[i] == null || levels[i].width() != lw || levels[i].height() != lh
+                    || levels[i].depth() != l.depth() || levels[i].nChannels() != l.nChannels()) {
+                levels[i] = IplImage.create(lw, lh, l.depth(), l.nChannels(), l.origin());
+                sizeChanged = true; // the whole level needs computing
+            }
+        }
+
+        if (hasROI && !sizeChanged) {
+            // from the bottom up, the pixels that depend on the ROI: the 5x5 kernel reads 2 pixels
+            // on each side, so each level widens the region below by 2 pixels before halving it,
+            // while the pixels outside keep their previous values, still valid sources for the next level
+            regions[4*minLevel] = rx; regions[4*minLevel + 1] = ry;
+            regions[4*minLevel + 2] = rx + rw; regions[4*minLevel + 3] = ry + rh;
+            for (int i = minLevel + 1; i <= maxLevel; i++) {
+                if (i > validLevel) {
+                    // never computed for the previous image, so out of date everywhere
+                    regions[4*i] = regions[4*i + 1] = 0;
+                    regions[4*i + 2] = levels[i].width();
+                    regions[4*i + 3] = levels[i].height();
+                    continue;
+                }
+                regions[4*i    ] = Math.max(0, (regions[4*(i-1)    ] - 1) >> 1);
+                regions[4*i + 1] = Math.max(0, (regions[4*(i-1) + 1] - 1) >> 1);
+                regions[4*i + 2] = Math.min(levels[i].width(),  ((regions[4*(i-1) + 2] + 1) >> 1) + 1);
+                regions[4*i + 3] = Math.min(levels[i].height(), ((regions[4*(i-1) + 3] + 1) >> 1) + 1);
+            }
+        } else {
+            for (int i = minLevel; i <= maxLevel; i++) {
+                regions[4*i] = regions[4*i + 1] = 0;
+                regions[4*i + 2] = levels[i].width();
+                regions[4*i + 3] = levels[i].height();
+            }
+        }
+
+        if (l == base) {
+            CvRect r = cvRect(regions[4*minLevel], regions[4*minLevel + 1],
+                    regions[4*minLevel + 2] - regions[4*minLevel], regions[4*minLevel + 3] - regions[4*minLevel + 1]);
+            cvSetImageROI(image0, r);
+            cvSetImageROI(base, r);
+            cvConvertScale(image0, base, scale, 0);
+            cvResetImageROI(base);
+            cvResetImageROI(image0);
+        }
+        if (hasROI) {
+            cvSetImageROI(image0, cvRect(rx, ry, rw, rh));
+        }
+        validLevel = minLevel;
+        buildTime += System.nanoTime() - start;
+    }
+
+    /** Returns the image at the given level, computing it and the ones below it if needed. */
+    public synchronized IplImage getImage(int level) {
+        if (level < minLevel || level > maxLevel) {
+            throw new IllegalArgumentException("Level " + level + " not in [" + minLevel + ", " + maxLevel + "].");
+        }
+        if (validLevel < minLevel) {
+            throw new IllegalStateException("No image set.");
+        }
+        if (level <= validLevel) {
+            hitCount++;
+            return levels[level];
+        }
+        missCount++;
+        long start = System.nanoTime();
+        for (int i = validLevel + 1; i <= level; i++) {
+            pyrDown(levels[i-1], levels[i], regions[4*i], regions[4*i + 1], regions[4*i + 2], regions[4*i + 3]);
+        }
+        validLevel = level;
+        buildTime += System.nanoTime() - start;
+        return levels[level];
+    }
+
+    /**
+     * Fills images with all levels, computing them if needed, and returns it,
+     * or a new array indexed by level if null or too small.
+     */
+    public synchronized IplImage[] getImages(IplImage[] images) {
+        if (images == null || images.length < maxLevel+1) {
+            images = new IplImage[maxLevel+1];
+        }
+        for (int i = minLevel; i <= maxLevel; i++) {
+            images[i] = getImage(i);
+        }
+        return images;
+    }
+
+    /**
+     * Downsamples the region [x0, x1) x [y0, y1) of dst from the whole of src,
+     * whose ROI, which the caller of setImage() may have set, gets ignored.
+     */
+    static void pyrDown(IplImage src, IplImage dst, final int x0, int y0, final int x1, int y1) {
+        IplROI ir = src.roi();
+        CvRect roi = ir != null ? cvRect(ir.xOffset(), ir.yOffset(), ir.width(), ir.height()) : null;
+        if (roi != null) {
+            cvResetImageROI(src);
+        }
+        try {
+            if (src.depth() != IPL_DEPTH_32F) {
+                cvPyrDown(src, dst, CV_GAUSSIAN_5x5);
+                return;
+            }
+            final int c = src.nChannels();
+            final int sw = src.width(), sh = src.height(), sstep = src.widthStep()/4, dstep = dst.widthStep()/4;
+            final FloatBuffer srcBuf = src.getFloatBuffer(), dstBuf = dst.getFloatBuffer();
+            Parallel.loop(y0, y1, new Parallel.AdaptiveLooper() {
+            public void loop(int from, int to, int looperID) {
+                pyrDownRows(srcBuf.duplicate(), sw, sh, sstep, dstBuf.duplicate(), dstep, c, x0, x1, from, to);
+            }});
+        } finally {
+            if (roi != null) {
+                cvSetImageROI(src, roi);
+            }
+        }
+    }
+
+    /** Returns the index of a pixel outside of [0, n) as for BORDER_REFLECT_101, the default of cvPyrDown(). */
+    static int reflect(int i, int n) {
+        if (n == 1) {
+            return 0;
+        }
+        while (i < 0 || i >= n) {
+            i = i < 0 ? -i : 2*n - 2 - i;
+        }
+        return i;
+    }
+
+    /**
+     * Computes rows [y0, y1) and columns [x0, x1) of dst with the kernel [1 4 6 4 1]/16 applied
+     * horizontally then vertically, on rows of src filtered only once each and kept in a ring.
+     */
+    static void pyrDownRows(FloatBuffer src, int sw, int sh, int sstep, FloatBuffer dst, int dstep,
+            int c, int x0, int x1, int y0, int y1) {
+        int rowLength = (x1 - x0)*c, srcLength = sw*c;
+        float[] buf = PixelKernels.scratch.get().floats(5*rowLength + srcLength + rowLength);
+        int srcRow = 5*rowLength, out = srcRow + srcLength;
+        int[] keys = { -1, -1, -1, -1, -1 };
+        for (int y = y0; y < y1; y++) {
+            for (int k = 0; k < 5; k++) {
+                int sy = reflect(2*y - 2 + k, sh);
+                int slot = sy % 5;
+                if (keys[slot] == sy) {
+                    continue;
+                }
+                keys[slot] = sy;
+                src.position(sy*sstep);
+                src.get(buf, srcRow, srcLength);
+                int row = slot*rowLength;
+                for (int x = x0; x < x1; x++) {
+                    int sx = 2*x;
+                    int xm2 = reflect(sx - 2, sw)*c, xm1 = reflect(sx - 1, sw)*c, xc = reflect(sx, sw)*c,
+                        xp1 = reflect(sx + 1, sw)*c, xp2 = reflect(sx + 2, sw)*c;
+                    for (int ch = 0; ch < c; ch++) {
+                        buf[row + (x - x0)*c + ch] = buf[srcRow + xc + ch]*6
+                                + (buf[srcRow + xm1 + ch] + buf[srcRow + xp1 + ch])*4
+                                + buf[srcRow + xm2 + ch] + buf[srcRow + xp2 + ch];
+                    }
+                }
+            }
+            int r0 = (reflect(2*y - 2, sh) % 5)*rowLength, r1 = (reflect(2*y - 1, sh) % 5)*rowLength,
+                r2 = (reflect(2*y, sh) % 5)*rowLength, r3 = (reflect(2*y + 1, sh) % 5)*rowLength,
+                r4 = (reflect(2*y + 2, sh) % 5)*rowLength;
+            for (int i = 0; i < rowLength; i++) {
+                buf[out + i] = (buf[r2 + i]*6 + (buf[r1 + i] + buf[r3 + i])*4 + buf[r0 + i] + buf[r4 + i])*(1f/256);
+            }
+            dst.position(y*dstep + x0*c);
+            dst.put(buf, out, rowLength);
+        }
+    }
+}
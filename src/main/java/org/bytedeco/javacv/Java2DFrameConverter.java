@@ -411,31 +411,94 @@ public class Java2DFrameConverter extends FrameConverter<BufferedImage> {
     public static void applyGamma(Frame frame, double gamma) {
         applyGamma(frame.image[0].position(0), frame.imageDepth, frame.imageStride, gamma);
     }
+    /** Lookup table for a given depth and gamma, immutable so that it can get shared between threads. */
+    static class GammaTable {
+        final int depth;
+        final double gamma;
+        final Object table;
+        GammaTable(int depth, double gamma, Object table) {
+            this.depth = depth;
+            this.gamma = gamma;
+            this.table = table;
+        }
+    }
+    /** Last lookup table computed by {@link #gammaTable(int, double)}, reused while the gamma does not change. */
+    private static volatile GammaTable gammaTableCache = null;
+    static Object gammaTable(int depth, double gamma) {
+        GammaTable cache = gammaTableCache;
+        if (cache != null && cache.depth == depth && cache.gamma == gamma) {
+            return cache.table;
+        }
+        Object table;
+        switch (depth) {
+            case Frame.DEPTH_UBYTE: {
+                byte[] t = new byte[256];
+                for (int in = 0; in < t.length; in++) {
+                    t[in] = gamma == 2.2   ? gamma22[in]
+                          : gamma == 1/2.2 ? gamma22inv[in]
+                          : (byte)Math.round(Math.pow((double)in/0xFF, gamma)*0xFF);
+                }
+                table = t;
+                break;
+            }
+            case Frame.DEPTH_BYTE: {
+                byte[] t = new byte[256];
+                for (int i = 0; i < t.length; i++) {
+                    int in = (byte)i;
+                    t[i] = (byte)Math.round(Math.pow((double)in/Byte.MAX_VALUE, gamma)*Byte.MAX_VALUE);
+                }
+                table = t;
+                break;
+            }
+            case Frame.DEPTH_USHORT: {
+                short[] t = new short[65536];
+                for (int in = 0; in < t.length; in++) {
+                    t[in] = (short)Math.round(Math.pow((double)in/0xFFFF, gamma)*0xFFFF);
+                }
+                table = t;
+                break;
+            }
+            case Frame.DEPTH_SHORT: {
+                short[] t = new short[65536];
+                for (int i = 0; i < t.length; i++) {
+                    int in = (short)i;
+                    t[i] = (short)Math.round(Math.pow((double)in/Short.MAX_VALUE, gamma)*Short.MAX_VALUE);
+                }
+                table = t;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("No lookup table for depth " + depth);
+        }
+        gammaTableCache = new GammaTable(depth, gamma, table);
+        return table;
+    }
+
+    /**
+     * Applies in place the same gamma correction as {@link #flipCopyWithGamma}, with lookup tables for integer types,
+     * to the elements of the buffer between its position and its limit.
+     */
     public static void applyGamma(Buffer buffer, int depth, int stride, double gamma) {
         if (gamma == 1.0) {
             return;
         }
         switch (depth) {
             case Frame.DEPTH_UBYTE:
-                flipCopyWithGamma(((ByteBuffer)buffer).asReadOnlyBuffer(), stride, (ByteBuffer)buffer, stride, false, gamma, false, 0);
-                break;
             case Frame.DEPTH_BYTE:
-                flipCopyWithGamma(((ByteBuffer)buffer).asReadOnlyBuffer(), stride, (ByteBuffer)buffer, stride, true, gamma, false, 0);
+                PixelKernels.lookup((ByteBuffer)buffer, (byte[])gammaTable(depth, gamma));
                 break;
             case Frame.DEPTH_USHORT:
-                flipCopyWithGamma(((ShortBuffer)buffer).asReadOnlyBuffer(), stride, (ShortBuffer)buffer, stride, false, gamma, false, 0);
-                break;
             case Frame.DEPTH_SHORT:
-                flipCopyWithGamma(((ShortBuffer)buffer).asReadOnlyBuffer(), stride, (ShortBuffer)buffer, stride, true, gamma, false, 0);
+                PixelKernels.lookup((ShortBuffer)buffer, (short[])gammaTable(depth, gamma));
                 break;
             case Frame.DEPTH_INT:
-                flipCopyWithGamma(((IntBuffer)buffer).asReadOnlyBuffer(), stride, (IntBuffer)buffer, stride, gamma, false, 0);
+                PixelKernels.pow((IntBuffer)buffer, gamma, Integer.MAX_VALUE);
                 break;
             case Frame.DEPTH_FLOAT:
-                flipCopyWithGamma(((FloatBuffer)buffer).asReadOnlyBuffer(), stride, (FloatBuffer)buffer, stride, gamma, false, 0);
+                PixelKernels.pow((FloatBuffer)buffer, gamma);
                 break;
             case Frame.DEPTH_DOUBLE:
-                flipCopyWithGamma(((DoubleBuffer)buffer).asReadOnlyBuffer(), stride, (DoubleBuffer)buffer, stride, gamma, false, 0);
+                PixelKernels.pow((DoubleBuffer)buffer, gamma);
                 break;
             default:
                 assert false;
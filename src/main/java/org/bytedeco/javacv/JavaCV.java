@@ -25,8 +25,6 @@ package org.bytedeco.javacv;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.Arrays;
 import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacpp.opencv_imgproc;
@@ -447,7 +445,7 @@ public class JavaCV {
         final double targetVar = totalVar*varMultiplier;
 
         //for (int y = 0; y < h; y++) {
-        Parallel.loop(0, h, new Parallel.Looper() {
+        Parallel.loop(0, h, new Parallel.AdaptiveLooper() {
         public void loop(int from, int to, int looperID) {
             for (int y = from; y < to; y++) {
                 for (int x = 0; x < w; x++) {
@@ -533,52 +531,32 @@ public class JavaCV {
         ByteBuffer dstData = dstImage.getByteBuffer();
         int srcStep = srcImage.widthStep();
         int dstStep = dstImage.widthStep();
+
+        // work on primitive arrays, loaded and stored in bulk
+        PixelKernels.Scratch scratch = PixelKernels.scratch.get();
+        int srcLength = Math.min(srcData.remaining(), (height-1)*srcStep + width);
+        int dstLength = Math.min(dstData.remaining(), (height-1)*dstStep + width);
+        byte[] src = scratch.image(0, srcLength);
+        byte[] dst = scratch.image(1, dstLength);
+        srcData.duplicate().get(src, 0, srcLength);
+
+        // thresholding itself does not depend on neighbors, so do it for all rows in parallel
+        PixelKernels.classify(src, srcStep, dst, dstStep, width, height,
+                lowThreshold, highThreshold, lowValue, medValue, highValue);
+
         int srcIndex = 0;
         int dstIndex = 0;
 
         //
-        // first pass forward
+        // first pass forward, where only pixels between thresholds remain to be decided
         //
 
         // first line
-        int i = 0;
-        int in = srcData.get(srcIndex+i)&0xFF;
-        if (in >= highThreshold) {
-            dstData.put(dstIndex+i, highValue);
-        } else if (in < lowThreshold) {
-            dstData.put(dstIndex+i, lowValue);
-        } else {
-            dstData.put(dstIndex+i, medValue);
-        }
-
-        for (i = 1; i < width-1; i++) {
-            in = srcData.get(srcIndex+i)&0xFF;
-            if (in >= highThreshold) {
-                dstData.put(dstIndex+i, highValue);
-            } else if (in < lowThreshold) {
-                dstData.put(dstIndex+i, lowValue);
-            } else {
-                byte prev = dstData.get(dstIndex+i-1);
-                if (prev == highValue) {
-                    dstData.put(dstIndex+i, highValue);
-                } else {
-                    dstData.put(dstIndex+i, medValue);
-                }
-            }
-        }
-
-        i = width-1;
-        in = srcData.get(srcIndex+i)&0xFF;
-        if (in >= highThreshold) {
-            dstData.put(dstIndex+i, highValue);
-        } else if (in < lowThreshold) {
-            dstData.put(dstIndex+i, lowValue);
-        } else {
-            byte prev = dstData.get(dstIndex+i-1);
-            if (prev == highValue) {
-                dstData.put(dstIndex+i, highValue);
-            } else {
-                dstData.put(dstIndex+i, medValue);
+        int i, in;
+        for (i = 1; i < width; i++) {
+            in = src[srcIndex+i]&0xFF;
+            if (in < highThreshold && in >= lowThreshold && dst[dstIndex+i-1] == highValue) {
+                dst[dstIndex+i] = highValue;
             }
         }
 
@@ -591,60 +569,42 @@ public class JavaCV {
 
             // first column
             i = 0;
-            in = srcData.get(srcIndex+i)&0xFF;
-            if (in >= highThreshold) {
-                dstData.put(dstIndex+i, highValue);
-            } else if (in < lowThreshold) {
-                dstData.put(dstIndex+i, lowValue);
-            } else {
-                byte prev1 = dstData.get(dstIndex+i-dstStep);
-                byte prev2 = dstData.get(dstIndex+i-dstStep+1);
+            in = src[srcIndex+i]&0xFF;
+            if (in < highThreshold && in >= lowThreshold) {
+                byte prev1 = dst[dstIndex+i-dstStep];
+                byte prev2 = dst[dstIndex+i-dstStep+1];
                 if (prev1 == highValue || prev2 == highValue) {
-                    dstData.put(dstIndex+i, highValue);
-                } else {
-                    dstData.put(dstIndex+i, medValue);
+                    dst[dstIndex+i] = highValue;
                 }
             }
 
             // other columns
             for (i = 1; i < width-1; i++) {
-                in = srcData.get(srcIndex+i)&0xFF;
-                if (in >= highThreshold) {
-                    dstData.put(dstIndex+i, highValue);
-                } else if (in < lowThreshold) {
-                    dstData.put(dstIndex+i, lowValue);
-                } else {
-                    byte prev1 = dstData.get(dstIndex+i-1);
-                    byte prev2 = dstData.get(dstIndex+i-dstStep-1);
-                    byte prev3 = dstData.get(dstIndex+i-dstStep);
-                    byte prev4 = dstData.get(dstIndex+i-dstStep+1);
+                in = src[srcIndex+i]&0xFF;
+                if (in < highThreshold && in >= lowThreshold) {
+                    byte prev1 = dst[dstIndex+i-1];
+                    byte prev2 = dst[dstIndex+i-dstStep-1];
+                    byte prev3 = dst[dstIndex+i-dstStep];
+                    byte prev4 = dst[dstIndex+i-dstStep+1];
 
                     if (prev1 == highValue || prev2 == highValue ||
                         prev3 == highValue || prev4 == highValue) {
-                        dstData.put(dstIndex+i, highValue);
-                    } else {
-                        dstData.put(dstIndex+i, medValue);
+                        dst[dstIndex+i] = highValue;
                     }
                 }
             }
 
             // last column
             i = width-1;
-            in = srcData.get(srcIndex+i)&0xFF;
-            if (in >= highThreshold) {
-                dstData.put(dstIndex+i, highValue);
-            } else if (in < lowThreshold) {
-                dstData.put(dstIndex+i, lowValue);
-            } else {
-                byte prev1 = dstData.get(dstIndex+i-1);
-                byte prev2 = dstData.get(dstIndex+i-dstStep-1);
-                byte prev3 = dstData.get(dstIndex+i-dstStep);
+            in = src[srcIndex+i]&0xFF;
+            if (in < highThreshold && in >= lowThreshold) {
+                byte prev1 = dst[dstIndex+i-1];
+                byte prev2 = dst[dstIndex+i-dstStep-1];
+                byte prev3 = dst[dstIndex+i-dstStep];
 
                 if (prev1 == highValue || prev2 == highValue ||
                     prev3 == highValue) {
-                    dstData.put(dstIndex+i, highValue);
-                } else {
-                    dstData.put(dstIndex+i, medValue);
+                    dst[dstIndex+i] = highValue;
                 }
             }
         }
@@ -659,26 +619,26 @@ public class JavaCV {
 
         // first (actually last) line
         i = width-1;
-        if (dstData.get(dstIndex+i) == medValue) {
-            dstData.put(dstIndex+i, lowValue);
+        if (dst[dstIndex+i] == medValue) {
+            dst[dstIndex+i] = lowValue;
         }
 
         for (i = width-2; i > 0 ; i--) {
-            if (dstData.get(dstIndex+i) == medValue) {
-                if (dstData.get(dstIndex+i+1) == highValue) {
-                    dstData.put(dstIndex+i, highValue);
+            if (dst[dstIndex+i] == medValue) {
+                if (dst[dstIndex+i+1] == highValue) {
+                    dst[dstIndex+i] = highValue;
                 } else {
-                    dstData.put(dstIndex+i, lowValue);
+                    dst[dstIndex+i] = lowValue;
                 }
             }
         }
 
         i = 0;
-        if (dstData.get(dstIndex+i) == medValue) {
-            if (dstData.get(dstIndex+i+1) == highValue) {
-                dstData.put(dstIndex+i, highValue);
+        if (dst[dstIndex+i] == medValue) {
+            if (dst[dstIndex+i+1] == highValue) {
+                dst[dstIndex+i] = highValue;
             } else {
-                dstData.put(dstIndex+i, lowValue);
+                dst[dstIndex+i] = lowValue;
             }
         }
 
@@ -690,102 +650,68 @@ public class JavaCV {
 
             // first column
             i = width-1;
-            if (dstData.get(dstIndex+i) == medValue) {
-                if (dstData.get(dstIndex+i+dstStep)   == highValue ||
-                    dstData.get(dstIndex+i+dstStep-1) == highValue) {
-                    dstData.put(dstIndex+i, highValue);
+            if (dst[dstIndex+i] == medValue) {
+                if (dst[dstIndex+i+dstStep]   == highValue ||
+                    dst[dstIndex+i+dstStep-1] == highValue) {
+                    dst[dstIndex+i] = highValue;
                 } else {
-                    dstData.put(dstIndex+i, lowValue);
+                    dst[dstIndex+i] = lowValue;
                 }
             }
 
             // other columns
             for (i = width-2; i > 0 ; i--) {
-                if (dstData.get(dstIndex+i) == medValue) {
-                    if (dstData.get(dstIndex+i+1)         == highValue ||
-                        dstData.get(dstIndex+i+dstStep+1) == highValue ||
-                        dstData.get(dstIndex+i+dstStep)   == highValue ||
-                        dstData.get(dstIndex+i+dstStep-1) == highValue) {
-                        dstData.put(dstIndex+i, highValue);
+                if (dst[dstIndex+i] == medValue) {
+                    if (dst[dstIndex+i+1]         == highValue ||
+                        dst[dstIndex+i+dstStep+1] == highValue ||
+                        dst[dstIndex+i+dstStep]   == highValue ||
+                        dst[dstIndex+i+dstStep-1] == highValue) {
+                        dst[dstIndex+i] = highValue;
                     } else {
-                        dstData.put(dstIndex+i, lowValue);
+                        dst[dstIndex+i] = lowValue;
                     }
                 }
             }
 
             // last column
             i = 0;
-            if (dstData.get(dstIndex+i) == medValue) {
-                if (dstData.get(dstIndex+i+1)         == highValue ||
-                    dstData.get(dstIndex+i+dstStep+1) == highValue ||
-                    dstData.get(dstIndex+i+dstStep)   == highValue) {
-                    dstData.put(dstIndex+i, highValue);
+            if (dst[dstIndex+i] == medValue) {
+                if (dst[dstIndex+i+1]         == highValue ||
+                    dst[dstIndex+i+dstStep+1] == highValue ||
+                    dst[dstIndex+i+dstStep]   == highValue) {
+                    dst[dstIndex+i] = highValue;
                 } else {
-                    dstData.put(dstIndex+i, lowValue);
+                    dst[dstIndex+i] = lowValue;
                 }
             }
         }
+
+        // store back only the pixels, leaving the padding of each row untouched
+        ByteBuffer d = dstData.duplicate();
+        int position = d.position();
+        for (int y = 0; y < srcImage.height(); y++) {
+            d.position(position + y*dstStep);
+            d.put(dst, y*dstStep, width);
+        }
     }
 
     /** Clamps image intensities between min and max. */
     public static void clamp(IplImage src, IplImage dst, double min, double max) {
         switch (src.depth()) {
-            case IPL_DEPTH_8U: {
-                ByteBuffer sb = src.getByteBuffer();
-                ByteBuffer db = dst.getByteBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, (byte)Math.max(Math.min(sb.get(i) & 0xFF,max),min));
-                }
-                break;
-            }
-            case IPL_DEPTH_16U: {
-                ShortBuffer sb = src.getShortBuffer();
-                ShortBuffer db = dst.getShortBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, (short)Math.max(Math.min(sb.get(i) & 0xFFFF,max),min));
-                }
-                break;
-            }
-            case IPL_DEPTH_32F: {
-                FloatBuffer sb = src.getFloatBuffer();
-                FloatBuffer db = dst.getFloatBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, (float)Math.max(Math.min(sb.get(i),max),min));
-                }
-                break;
-            }
-            case IPL_DEPTH_8S: {
-                ByteBuffer sb = src.getByteBuffer();
-                ByteBuffer db = dst.getByteBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, (byte)Math.max(Math.min(sb.get(i),max),min));
-                }
-                break;
-            }
-            case IPL_DEPTH_16S: {
-                ShortBuffer sb = src.getShortBuffer();
-                ShortBuffer db = dst.getShortBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, (short)Math.max(Math.min(sb.get(i),max),min));
-                }
-                break;
-            }
-            case IPL_DEPTH_32S: {
-                IntBuffer sb = src.getIntBuffer();
-                IntBuffer db = dst.getIntBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, (int)Math.max(Math.min(sb.get(i),max),min));
-                }
-                break;
-            }
-            case IPL_DEPTH_64F: {
-                DoubleBuffer sb = src.getDoubleBuffer();
-                DoubleBuffer db = dst.getDoubleBuffer();
-                for (int i = 0; i < sb.capacity(); i++) {
-                    db.put(i, Math.max(Math.min(sb.get(i),max),min));
-                }
-                break;
-            }
+            case IPL_DEPTH_8U:
+                PixelKernels.clamp(src.getByteBuffer(),   dst.getByteBuffer(),  false, min, max); break;
+            case IPL_DEPTH_8S:
+                PixelKernels.clamp(src.getByteBuffer(),   dst.getByteBuffer(),  true,  min, max); break;
+            case IPL_DEPTH_16U:
+                PixelKernels.clamp(src.getShortBuffer(),  dst.getShortBuffer(), false, min, max); break;
+            case IPL_DEPTH_16S:
+                PixelKernels.clamp(src.getShortBuffer(),  dst.getShortBuffer(), true,  min, max); break;
+            case IPL_DEPTH_32S:
+                PixelKernels.clamp(src.getIntBuffer(),    dst.getIntBuffer(),    min, max); break;
+            case IPL_DEPTH_32F:
+                PixelKernels.clamp(src.getFloatBuffer(),  dst.getFloatBuffer(),  min, max); break;
+            case IPL_DEPTH_64F:
+                PixelKernels.clamp(src.getDoubleBuffer(), dst.getDoubleBuffer(), min, max); break;
             default: assert(false);
         }
     }
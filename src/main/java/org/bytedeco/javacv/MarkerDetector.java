@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2012 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -52,6 +52,8 @@ public class MarkerDetector {
         double thresholdKBlackMarkers = 0.6;
         double thresholdKWhiteMarkers = 1.0;
         int subPixelWindow = 11;
+        int fullScanInterval = 0;
+        double trackingMargin = 0.5;
 
         public int getThresholdWindowMin() {
             return thresholdWindowMin;
@@ -94,6 +96,26 @@ public class MarkerDetector {
         public void setSubPixelWindow(int subPixelWindow) {
             this.subPixelWindow = subPixelWindow;
         }
+
+        /**
+         * Scans the full image at least once every that many frames, and otherwise only around
+         * markers of the previous frames. Markers that appear get found only on full scans.
+         * 0 or 1 disables tracking.
+         */
+        public int getFullScanInterval() {
+            return fullScanInterval;
+        }
+        public void setFullScanInterval(int fullScanInterval) {
+            this.fullScanInterval = fullScanInterval;
+        }
+
+        /** Fraction of the size of tracked markers by which to expand regions of interest. */
+        public double getTrackingMargin() {
+            return trackingMargin;
+        }
+        public void setTrackingMargin(double trackingMargin) {
+            this.trackingMargin = trackingMargin;
+        }
     }
 
     private Settings settings;
@@ -107,16 +129,25 @@ public class MarkerDetector {
         this.subPixelTermCriteria = cvTermCriteria(CV_TERMCRIT_EPS, 100, 0.001);
     }
 
-    private MultiTracker tracker = null;
+    private MultiTracker tracker = null, roiTracker = null;
     private IntPointer markerNum = new IntPointer(1);
     private int width = 0, height = 0, depth = 0, channels = 0;
-    private IplImage tempImage, tempImage2, sumImage, sqSumImage, thresholdedImage;
+    private IplImage tempImage, tempImage2, thresholdedImage, roiImage;
+    private AdaptiveThresholder thresholder = new AdaptiveThresholder();
     private CvMat points = CvMat.create(1, 4, CV_32F, 2);
-    private CvPoint2D32f corners = new CvPoint2D32f(4);
+    private CvPoint2D32f corners = new CvPoint2D32f(4*16);
+    private int[] candidateIds = new int[16], candidateDirs = new int[16];
+    private float[] candidateConfidences = new float[16];
     private CvMemStorage memory = CvMemStorage.create();
     private CvSize subPixelSize = null, subPixelZeroZone = null;
     private CvTermCriteria subPixelTermCriteria = null;
 
+    // tracking state for black and white markers, indexed by whiteMarkers ? 1 : 0
+    private Marker[][] trackedMarkers = new Marker[2][], previousMarkers = new Marker[2][];
+    private int[] framesSinceFullScan = new int[2];
+    private int[] rois = new int[64];
+    private long fullScanCount = 0, roiScanCount = 0, fullScanPixels = 0, roiScanPixels = 0;
+
     private CvFont font = cvFont(1, 1);
     private CvSize textSize = new CvSize();
 
@@ -129,6 +160,7 @@ public class MarkerDetector {
                 image.depth() == depth && image.nChannels() == channels) {
             return;
         }
+        resetTracking();
 
         width    = image.width();
         height   = image.height();
@@ -141,11 +173,16 @@ public class MarkerDetector {
         if (depth != IPL_DEPTH_8U && channels > 1) {
             tempImage2   = IplImage.create(width, height, IPL_DEPTH_8U, 3);
         }
-        sumImage         = IplImage.create(width+1, height+1, IPL_DEPTH_64F, 1);
-        sqSumImage       = IplImage.create(width+1, height+1, IPL_DEPTH_64F, 1);
         thresholdedImage = IplImage.create(width,   height,   IPL_DEPTH_8U,  1);
 
-        tracker = new MultiTracker(thresholdedImage.widthStep(), thresholdedImage.height());
+        tracker = createTracker(thresholdedImage);
+        roiTracker = null;
+        roiImage = null;
+    }
+
+    /** Returns a new tracker configured to detect markers in images of the same size as the given one. */
+    private static MultiTracker createTracker(IplImage image) {
+        MultiTracker tracker = new MultiTracker(image.widthStep(), image.height());
 
 //        if (depth != IPL_DEPTH_8U) {
 //            throw new Exception("Unsupported format: IplImage must have depth == IPL_DEPTH_8U.");
@@ -171,8 +208,44 @@ public class MarkerDetector {
 //        tracker.setPoseEstimator(POSE_ESTIMATOR_RPP);
         tracker.setMarkerMode(MARKER_ID_BCH);
         tracker.setImageProcessingMode(IMAGE_FULL_RES);
+        return tracker;
     }
 
+    /** Forgets markers of previous frames, so that the next call to detect() scans the full image. */
+    public void resetTracking() {
+        Arrays.fill(trackedMarkers, null);
+        Arrays.fill(previousMarkers, null);
+        Arrays.fill(framesSinceFullScan, 0);
+    }
+
+    /** Returns the number of calls that scanned the full image. */
+    public long getFullScanCount() {
+        return fullScanCount;
+    }
+    /** Returns the number of calls that scanned only regions around tracked markers. */
+    public long getRoiScanCount() {
+        return roiScanCount;
+    }
+    /** Returns the ratio of full scans over all scans, including the full scans done after losing markers. */
+    public double getFullScanRatio() {
+        long total = fullScanCount + roiScanCount;
+        return total > 0 ? (double)fullScanCount/total : 0;
+    }
+    /** Returns the average number of pixels thresholded by ROI scans relative to full scans. */
+    public double getRoiPixelRatio() {
+        return fullScanPixels > 0 && roiScanCount > 0 ?
+                ((double)roiScanPixels/roiScanCount)/((double)fullScanPixels/fullScanCount) : 0;
+    }
+    public void resetScanStatistics() {
+        fullScanCount = roiScanCount = fullScanPixels = roiScanPixels = 0;
+    }
+
+    /**
+     * Detects markers in the image. With {@link Settings#getFullScanInterval()} greater than 1,
+     * only regions predicted from the markers of the last two frames get thresholded and
+     * searched, until the interval elapses or markers get lost, in which case the full
+     * image gets scanned again. Tracking assumes consecutive images come from the same camera.
+     */
     public Marker[] detect(IplImage image, boolean whiteMarkers) {
         init(image);
 
@@ -187,20 +260,189 @@ public class MarkerDetector {
             cvCvtColor(image, tempImage, channels > 3 ? CV_RGBA2GRAY : CV_BGR2GRAY);
             image = tempImage;
         }
+
+        int t = whiteMarkers ? 1 : 0;
+        Marker[] tracked = trackedMarkers[t];
+        Marker[] markers = null;
+        if (tracked != null && tracked.length > 0 && framesSinceFullScan[t] + 1 < settings.fullScanInterval) {
+            int count = predictRegions(tracked, previousMarkers[t]);
+            markers = scan(image, whiteMarkers, rois, count);
+            roiScanCount++;
+            roiScanPixels += thresholder.getPixelCount();
+            framesSinceFullScan[t]++;
+            if (markers.length < tracked.length) {
+                // some markers got lost, so look for them everywhere
+                markers = null;
+            }
+        }
+        if (markers == null) {
+            markers = scan(image, whiteMarkers, null, 0);
+            fullScanCount++;
+            fullScanPixels += thresholder.getPixelCount();
+            framesSinceFullScan[t] = 0;
+        }
+        previousMarkers[t] = tracked;
+        trackedMarkers[t] = markers;
+        return markers;
+    }
+
+    /**
+     * Detects markers in all images concurrently, using detectors[i] for images[i]. Since each
+     * detector keeps its buffers sized for the images it saw last, reusing the same detectors
+     * for images from the same cameras avoids any reallocation.
+     */
+    public static Marker[][] detect(final MarkerDetector[] detectors, final IplImage[] images, final boolean whiteMarkers) {
+        if (detectors.length < images.length) {
+            throw new IllegalArgumentException("Not enough detectors: " + detectors.length + " < " + images.length);
+        }
+        final Marker[][] markers = new Marker[images.length][];
+        Parallel.loop(0, images.length, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i = from; i < to; i++) {
+                markers[i] = detectors[i].detect(images[i], whiteMarkers);
+            }
+        }});
+        return markers;
+    }
+
+    /**
+     * Fills rois with the bounding boxes of markers, moved by their displacement since the
+     * previous frame, and expanded by the tracking margin and the sub-pixel window. Returns the count.
+     */
+    private int predictRegions(Marker[] markers, Marker[] previous) {
+        if (rois.length < 4*markers.length) {
+            rois = new int[4*markers.length];
+        }
+        for (int i = 0; i < markers.length; i++) {
+            double[] c = markers[i].corners;
+            double minX = c[0], maxX = c[0], minY = c[1], maxY = c[1];
+            for (int j = 1; j < 4; j++) {
+                minX = Math.min(minX, c[2*j]); maxX = Math.max(maxX, c[2*j]);
+                minY = Math.min(minY, c[2*j+1]); maxY = Math.max(maxY, c[2*j+1]);
+            }
+            double dx = 0, dy = 0;
+            for (int j = 0; previous != null && j < previous.length; j++) {
+                if (previous[j].id == markers[i].id) {
+                    double[] c0 = previous[j].getCenter(), c1 = markers[i].getCenter();
+                    dx = c1[0] - c0[0];
+                    dy = c1[1] - c0[1];
+                    break;
+                }
+            }
+            double margin = settings.trackingMargin*Math.max(maxX - minX, maxY - minY) + settings.subPixelWindow;
+            int x1 = (int)Math.floor(Math.min(minX, minX + dx) - margin);
+            int y1 = (int)Math.floor(Math.min(minY, minY + dy) - margin);
+            int x2 = (int)Math.ceil (Math.max(maxX, maxX + dx) + margin);
+            int y2 = (int)Math.ceil (Math.max(maxY, maxY + dy) + margin);
+            rois[4*i    ] = x1;
+            rois[4*i + 1] = y1;
+            rois[4*i + 2] = x2 - x1;
+            rois[4*i + 3] = y2 - y1;
+        }
+        return markers.length;
+    }
+
+    /**
+     * Thresholds the grayscale image, only inside rois if not null, and detects markers,
+     * also only inside rois, each copied to a tile with its own tracker, so that labeling
+     * does not go over the full image either.
+     */
+    private Marker[] scan(IplImage image, boolean whiteMarkers, int[] rois, int count) {
 //long time1 = System.currentTimeMillis();
-        JavaCV.adaptiveThreshold(image, sumImage, sqSumImage, thresholdedImage, whiteMarkers,
+        thresholder.threshold(image, thresholdedImage, whiteMarkers,
                 settings.thresholdWindowMax, settings.thresholdWindowMin, settings.thresholdVarMultiplier,
-                whiteMarkers ? settings.thresholdKWhiteMarkers : settings.thresholdKBlackMarkers);
+                whiteMarkers ? settings.thresholdKWhiteMarkers : settings.thresholdKBlackMarkers, rois, count);
 //CanvasFrame.global.showImage(thresholded, 0.5);
 //CanvasFrame.global.waitKey();
 //long time2 = System.currentTimeMillis();
 
         int n = 0;
-        ARMarkerInfo markers = new ARMarkerInfo(null);
-        tracker.arDetectMarkerLite(thresholdedImage.imageData(), 128 /*tracker.getThreshold()*/, markers, markerNum);
+        if (rois == null) {
+            n = detectCandidates(tracker, thresholdedImage, 0, 0, n);
+        } else {
+            for (int i = 0; i < count; i++) {
+                int x1 = Math.max(rois[4*i    ], 0), x2 = Math.min(rois[4*i    ] + rois[4*i + 2], width);
+                int y1 = Math.max(rois[4*i + 1], 0), y2 = Math.min(rois[4*i + 1] + rois[4*i + 3], height);
+                if (x1 >= x2 || y1 >= y2) {
+                    continue;
+                }
+                prepareTile(x1, y1, x2 - x1, y2 - y1);
+                n = detectCandidates(roiTracker, roiImage, x1, y1, n);
+            }
+        }
 //long time3 = System.currentTimeMillis();
-        Marker[] markers2 = new Marker[markerNum.get(0)];
-        for (int i = 0; i < markers2.length && !markers.isNull(); i++) {
+
+        // refine the corners of all markers in parallel, each in its own slice of the array
+        final IplImage grayImage = image;
+        Parallel.loop(0, n, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i = from; i < to; i++) {
+                cvFindCornerSubPix(grayImage, new CvPoint2D32f(corners).position(4*i), 4,
+                        subPixelSize, subPixelZeroZone, subPixelTermCriteria);
+            }
+        }});
+
+        Marker[] markers2 = new Marker[n];
+        for (int i = 0; i < n; i++) {
+            int dir = candidateDirs[i];
+            double[] d = { corners.position(4*i + (4-dir)%4).x(), corners.position(4*i + (4-dir)%4).y(),
+                           corners.position(4*i + (5-dir)%4).x(), corners.position(4*i + (5-dir)%4).y(),
+                           corners.position(4*i + (6-dir)%4).x(), corners.position(4*i + (6-dir)%4).y(),
+                           corners.position(4*i + (7-dir)%4).x(), corners.position(4*i + (7-dir)%4).y() };
+            markers2[i] = new Marker(candidateIds[i], d, candidateConfidences[i]);
+        }
+//long time4 = System.currentTimeMillis();
+//System.out.println("thresholdTime = " + (time2-time1) + "  detectTime = " + (time3-time2) + "  subPixTime = " + (time4-time3));
+
+        //cvCvtColor(thresholdedImage, image, CV_GRAY2BGR);
+        //cvCopy(thresholdedImage, image, null);
+
+        return markers2;
+    }
+
+    /**
+     * Copies the region of the thresholded image to the top left corner of roiImage, with
+     * the rest set to the background, reallocating it along with its tracker only when too small.
+     */
+    private void prepareTile(int x, int y, int w, int h) {
+        if (roiImage == null || roiImage.width() < w || roiImage.height() < h) {
+            // round up to limit how often the tile grows while markers move
+            int tileWidth  = Math.max(roiImage != null ? roiImage.width()  : 0, (w + 63) & ~63);
+            int tileHeight = Math.max(roiImage != null ? roiImage.height() : 0, (h + 63) & ~63);
+            roiImage = IplImage.create(tileWidth, tileHeight, IPL_DEPTH_8U, 1);
+            roiTracker = createTracker(roiImage);
+        }
+        cvSet(roiImage, cvScalarAll(thresholder.getBackground()));
+        cvSetImageROI(thresholdedImage, cvRect(x, y, w, h));
+        cvSetImageROI(roiImage, cvRect(0, 0, w, h));
+        cvCopy(thresholdedImage, roiImage);
+        cvResetImageROI(roiImage);
+        cvResetImageROI(thresholdedImage);
+    }
+
+    /**
+     * Detects markers in the thresholded image with the tracker, and appends them as candidates
+     * after the first n ones, with their corners moved by the offset, skipping duplicates of
+     * candidates found in overlapping regions. Returns the new number of candidates.
+     */
+    private int detectCandidates(MultiTracker tracker, IplImage thresholded, int offsetX, int offsetY, int n) {
+        ARMarkerInfo markers = new ARMarkerInfo(null);
+        tracker.arDetectMarkerLite(thresholded.imageData(), 128 /*tracker.getThreshold()*/, markers, markerNum);
+        int total = markerNum.get(0);
+        if (candidateIds.length < n + total) {
+            int capacity = Math.max(n + total, 2*candidateIds.length);
+            candidateIds = Arrays.copyOf(candidateIds, capacity);
+            candidateDirs = Arrays.copyOf(candidateDirs, capacity);
+            candidateConfidences = Arrays.copyOf(candidateConfidences, capacity);
+            CvPoint2D32f c = new CvPoint2D32f(4*capacity);
+            for (int j = 0; j < 4*n; j++) {
+                corners.position(j);
+                c.position(j).put(corners.x(), corners.y());
+            }
+            corners = c;
+        }
+        int first = n;
+        for (int i = 0; i < total && !markers.isNull(); i++) {
             markers.position(i);
             int id = markers.id();
             if (id < 0) {
@@ -211,6 +453,10 @@ public class MarkerDetector {
             float confidence = markers.cf();
             float[] vertex = new float[8];
             markers.vertex().get(vertex);
+            for (int j = 0; j < 4; j++) {
+                vertex[2*j    ] += offsetX;
+                vertex[2*j + 1] += offsetY;
+            }
 
             int w = settings.subPixelWindow/2+1;
             if (vertex[0]-w < 0 || vertex[0]+w >= width || vertex[1]-w < 0 || vertex[1]+w >= height ||
@@ -220,6 +466,10 @@ public class MarkerDetector {
                 // too tight for cvFindCornerSubPix...
                     continue;
             }
+            if (isDuplicate(id, vertex, first)) {
+                // already found in another region...
+                continue;
+            }
 
             points.getFloatBuffer().put(vertex);
             CvBox2D box = cvMinAreaRect2(points, memory);
@@ -232,7 +482,7 @@ public class MarkerDetector {
             }
 
             for (int j = 0; j < 4; j++) {
-                corners.position(j).put(vertex[2*j], vertex[2*j+1]);
+                corners.position(4*n + j).put(vertex[2*j], vertex[2*j+1]);
             }
 
 if (false) {
@@ -240,14 +490,14 @@ if (false) {
             // this allows us to cram more markers closer to one another
             double cx = 0, cy = 0;
             for (int j = 0; j < 4; j++) {
-                corners.position(j);
+                corners.position(4*n + j);
                 cx += corners.x();
                 cy += corners.y();
             }
             cx /= 4;
             cy /= 4;
             for (int j = 0; j < 4; j++) {
-                corners.position(j);
+                corners.position(4*n + j);
                 float x = corners.x();
                 float y = corners.y();
                 double dx = cx - x;
@@ -256,21 +506,31 @@ if (false) {
                 corners.y(y + (float)Math.signum(dy)*(settings.subPixelWindow/4));
             }
 }
-            cvFindCornerSubPix(image, corners.position(0), 4, subPixelSize, subPixelZeroZone, subPixelTermCriteria);
-            double[] d = { corners.position((4-dir)%4).x(), corners.position((4-dir)%4).y(),
-                           corners.position((5-dir)%4).x(), corners.position((5-dir)%4).y(),
-                           corners.position((6-dir)%4).x(), corners.position((6-dir)%4).y(),
-                           corners.position((7-dir)%4).x(), corners.position((7-dir)%4).y() };
-
-            markers2[n++] = new Marker(id, d, confidence);
+            candidateIds[n] = id;
+            candidateDirs[n] = dir;
+            candidateConfidences[n] = confidence;
+            n++;
         }
-//long time4 = System.currentTimeMillis();
-//System.out.println("thresholdTime = " + (time2-time1) + "  detectTime = " + (time3-time2) + "  subPixTime = " + (time4-time3));
-
-        //cvCvtColor(thresholdedImage, image, CV_GRAY2BGR);
-        //cvCopy(thresholdedImage, image, null);
+        return n;
+    }
 
-        return Arrays.copyOf(markers2, n);
+    /** Returns true if one of the first n candidates has the same ID and corners within the sub-pixel window. */
+    private boolean isDuplicate(int id, float[] vertex, int n) {
+        for (int i = 0; i < n; i++) {
+            if (candidateIds[i] != id) {
+                continue;
+            }
+            boolean close = true;
+            for (int j = 0; j < 4 && close; j++) {
+                corners.position(4*i + j);
+                close = Math.abs(corners.x() - vertex[2*j]) < settings.subPixelWindow
+                     && Math.abs(corners.y() - vertex[2*j + 1]) < settings.subPixelWindow;
+            }
+            if (close) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void draw(IplImage image, Marker[] markers) {
@@ -0,0 +1,659 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import org.bytedeco.javacpp.BytePointer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgcodecs.*;
+
+/**
+ * Receives MJPEG streams over HTTP from any number of IP cameras on a single selector
+ * thread, with non-blocking bulk reads parsed by {@link MjpegParser}, and decodes
+ * the JPEG images on the executor named {@link ExecutorRegistry#DECODER}, so that
+ * receiving the next images overlaps with decoding the previous ones. Each {@link Stream}
+ * still delivers its parts in the order they were received. When consumers fall behind,
+ * the oldest parts get dropped, so that a stream never holds more than its depth.
+ * <p>
+ * Only plain "http" URLs are supported, with basic authentication from their user info.
+ * {@link IPCameraFrameGrabber} uses an instance when given one with
+ * {@link IPCameraFrameGrabber#setIngest(MjpegIngest)}.
+ *
+ * @author Samuel Audet
+ */
+public class MjpegIngest implements Closeable {
+    private static final Logger logger = Logger.getLogger(MjpegIngest.class.getName());
+
+    private static MjpegIngest defaultInstance = null;
+
+    /** Returns an instance shared by all callers, created on first use. */
+    public static synchronized MjpegIngest getDefault() {
+        if (defaultInstance == null || defaultInstance.closed) {
+            defaultInstance = new MjpegIngest();
+        }
+        return defaultInstance;
+    }
+
+    private Selector selector = null;
+    private Thread thread = null;
+    private volatile boolean closed = false;
+    private final ConcurrentLinkedQueue<Stream> pending = new ConcurrentLinkedQueue<Stream>();
+    private ExecutorService executor = null;
+    private final AtomicLong byteCount = new AtomicLong();
+
+    /** Maximum number of decoded images kept for reuse by each stream. */
+    static final int IMAGE_POOL_SIZE = 4;
+
+    /** Returns the executor decoding images, or null for the one registered under {@link ExecutorRegistry#DECODER}. */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Returns the number of bytes received by all streams. */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /** The payload of a part received by a {@link Stream}, and its image once decoded. */
+    public static class Part {
+        Part(MjpegParser parser, ByteBuffer data, long timestamp, ConcurrentLinkedQueue<Mat> images, int flags) {
+            this.parser = parser;
+            this.data = data;
+            this.timestamp = timestamp;
+            this.images = images;
+            this.flags = flags;
+        }
+
+        final MjpegParser parser;
+        final long timestamp;
+        final ConcurrentLinkedQueue<Mat> images; // decoded images to reuse, shared by the parts of a stream
+        final int flags;
+        ByteBuffer data;
+        Mat image = null;
+        Throwable error = null;
+        boolean submitted = false, decoding = false, decoded = false, released = false;
+
+        /** Returns the JPEG data, valid until {@link #release()}. */
+        public ByteBuffer getData() {
+            return data;
+        }
+        /** Returns the time in microseconds, from {@link System#nanoTime()}, when the part started arriving. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        void decode() {
+            synchronized (this) {
+                if (released || decoded || decoding) {
+                    return;
+                }
+                decoding = true;
+            }
+            Mat img = images.poll();
+            Throwable t = null;
+            try {
+                img = MjpegIngest.decode(data, flags, img != null ? img : new Mat());
+            } catch (Throwable e) {
+                t = e;
+            }
+            synchronized (this) {
+                decoding = false;
+                decoded = true;
+                error = t;
+                image = img;
+                if (released) {
+                    free();
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the image decoded in the background, or decodes it now if it was not
+         * submitted for decoding, and returns it. The image is valid until {@link #release()}.
+         */
+        public Mat getImage() throws IOException, InterruptedException {
+            boolean decodeNow;
+            synchronized (this) {
+                decodeNow = !submitted && !decoded;
+            }
+            if (decodeNow) {
+                decode();
+            }
+            synchronized (this) {
+                while (!decoded && !released) {
+                    wait();
+                }
+                if (released) {
+                    throw new IOException("Part already released.");
+                }
+                if (error != null) {
+                    throw new IOException("Could not decode image: " + error, error);
+                }
+                return image;
+            }
+        }
+
+        /** Gives the image and the data back to their pools, once any decoding in progress is done. */
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (!decoding) {
+                free();
+            }
+            notifyAll();
+        }
+
+        void free() {
+            if (image != null) {
+                if (images.size() < IMAGE_POOL_SIZE) {
+                    images.offer(image);
+                } else {
+                    image.deallocate();
+                }
+                image = null;
+            }
+            parser.recycle(data);
+            data = null;
+        }
+    }
+
+    /** A connection to a camera, buffering up to depth parts for {@link #take(long)}. */
+    public class Stream implements Closeable {
+        Stream(URL url, int connectTimeout, int readTimeout, int depth, boolean decode, int flags) throws IOException {
+            if (!"http".equalsIgnoreCase(url.getProtocol())) {
+                throw new IOException("Only http URLs are supported by MjpegIngest: " + url);
+            }
+            this.url = url;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.depth = Math.max(1, depth);
+            this.decode = decode;
+            this.flags = flags;
+
+            String path = url.getFile().length() > 0 ? url.getFile() : "/";
+            StringBuilder s = new StringBuilder();
+            s.append("GET ").append(path).append(" HTTP/1.0\r\n");
+            s.append("Host: ").append(url.getHost()).append(url.getPort() >= 0 ? ":" + url.getPort() : "").append("\r\n");
+            if (url.getUserInfo() != null) {
+                s.append("Authorization: Basic ").append(base64(url.getUserInfo().getBytes("UTF-8"))).append("\r\n");
+            }
+            s.append("Connection: close\r\n\r\n");
+            request = ByteBuffer.wrap(s.toString().getBytes("ISO-8859-1"));
+        }
+
+        final URL url;
+        final int connectTimeout, readTimeout, depth;
+        final boolean decode;
+        final int flags;
+        final ConcurrentLinkedQueue<Mat> images = new ConcurrentLinkedQueue<Mat>();
+        final ByteBuffer request;
+        final MjpegParser parser = new MjpegParser();
+        final ArrayDeque<Part> parts = new ArrayDeque<Part>();
+        SocketChannel channel = null;
+        long openTime = 0, lastRead = 0;
+        IOException error = null;
+        volatile boolean closed = false;
+        long receivedCount = 0, droppedCount = 0;
+
+        public URL getURL() {
+            return url;
+        }
+        /** Returns the number of parts received. */
+        public synchronized long getReceivedCount() {
+            return receivedCount;
+        }
+        /** Returns the number of parts dropped because {@link #take(long)} did not keep up. */
+        public synchronized long getDroppedCount() {
+            return droppedCount;
+        }
+        /** Returns the number of parts waiting for {@link #take(long)}. */
+        public synchronized int getQueuedCount() {
+            return parts.size();
+        }
+
+        synchronized void add(Part p) {
+            if (closed) {
+                p.release();
+                return;
+            }
+            receivedCount++;
+            while (parts.size() >= depth) {
+                parts.poll().release();
+                droppedCount++;
+            }
+            parts.add(p);
+            if (decode) {
+                submit(p);
+            }
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits up to the given time in milliseconds, or forever if negative, for the next
+         * part, and returns it, or null on timeout. Callers should {@link Part#release()} it.
+         */
+        public synchronized Part take(long timeoutMillis) throws IOException, InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (parts.isEmpty() && error == null && !closed) {
+                if (timeoutMillis < 0) {
+                    wait();
+                } else {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    wait(remaining);
+                }
+            }
+            if (!parts.isEmpty()) {
+                return parts.poll();
+            }
+            if (error != null) {
+                throw error;
+            }
+            throw new IOException("Stream closed.");
+        }
+
+        /** Disconnects from the camera and releases the parts not taken. */
+        @Override public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                while (!parts.isEmpty()) {
+                    parts.poll().release();
+                }
+                notifyAll();
+            }
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+    }
+
+    /** Same as {@code open(url, connectTimeout, readTimeout, depth, decode, IMREAD_COLOR)}. */
+    public Stream open(URL url, int connectTimeout, int readTimeout, int depth, boolean decode) throws IOException {
+        return open(url, connectTimeout, readTimeout, depth, decode, IMREAD_COLOR);
+    }
+    /**
+     * Connects to the camera in the background and returns the stream receiving its images,
+     * decoded with the given imdecode() flags, for example, from {@link #decodeFlags(boolean, int)}.
+     */
+    public Stream open(URL url, int connectTimeout, int readTimeout, int depth, boolean decode, int flags) throws IOException {
+        Stream s = new Stream(url, connectTimeout, readTimeout, depth, decode, flags);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("MjpegIngest closed.");
+            }
+            if (thread == null) {
+                selector = Selector.open();
+                thread = new Thread(new Runnable() { public void run() { loop(); } }, "javacv-mjpeg-ingest");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        s.openTime = System.nanoTime();
+        pending.add(s);
+        selector.wakeup();
+        return s;
+    }
+
+    /** Stops the selector thread and closes all streams. */
+    @Override public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+        }
+        if (t != null) {
+            selector.wakeup();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void submit(final Part p) {
+        p.submitted = true;
+        final ExecutorRegistry.Metrics metrics = ExecutorRegistry.getMetrics(ExecutorRegistry.DECODER);
+        final long submitTime = metrics.submitted();
+        ExecutorService e = executor != null ? executor : ExecutorRegistry.get(ExecutorRegistry.DECODER);
+        try {
+            e.execute(new Runnable() { public void run() {
+                long startTime = metrics.started(submitTime);
+                p.decode();
+                metrics.finished(startTime, p.error == null);
+            }});
+        } catch (RejectedExecutionException ex) {
+            metrics.cancelled();
+            // let the consumer decode it
+            p.submitted = false;
+        }
+    }
+
+    void loop() {
+        try {
+            while (!closed) {
+                selector.select(100);
+                Stream s;
+                while ((s = pending.poll()) != null) {
+                    connect(s);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    s = (Stream)key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable() && s.channel.finishConnect()) {
+                            s.lastRead = System.nanoTime();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            s.channel.write(s.request);
+                            if (!s.request.hasRemaining()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(s);
+                        }
+                    } catch (IOException e) {
+                        disconnect(key, s, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // check timeouts, and drop streams closed by their users
+                long now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    s = (Stream)key.attachment();
+                    boolean connected = s.channel.isConnected();
+                    int timeout = connected ? s.readTimeout : s.connectTimeout;
+                    long since = connected ? s.lastRead : s.openTime;
+                    if (s.closed) {
+                        disconnect(key, s, null);
+                    } else if (timeout > 0 && now - since > timeout * 1000000L) {
+                        disconnect(key, s, new IOException((connected ? "Read" : "Connect") + " timed out: " + s.url));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Selector failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                disconnect(key, (Stream)key.attachment(), new IOException("MjpegIngest closed."));
+            }
+            Stream s;
+            while ((s = pending.poll()) != null) {
+                s.fail(new IOException("MjpegIngest closed."));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.warning("Could not close selector: " + e);
+            }
+            synchronized (this) {
+                closed = true;
+            }
+        }
+    }
+
+    void connect(Stream s) {
+        try {
+            int port = s.url.getPort() >= 0 ? s.url.getPort() : s.url.getDefaultPort();
+            s.channel = SocketChannel.open();
+            s.channel.configureBlocking(false);
+            s.channel.connect(new InetSocketAddress(s.url.getHost(), port));
+            s.channel.register(selector, SelectionKey.OP_CONNECT, s);
+        } catch (IOException e) {
+            s.fail(e);
+            if (s.channel != null) {
+                try {
+                    s.channel.close();
+                } catch (IOException ex) { }
+            }
+        }
+    }
+
+    void read(Stream s) throws IOException {
+        int n;
+        // drain what the socket has, parsing as the buffer fills up
+        while ((n = s.channel.read(s.parser.buffer())) > 0) {
+            byteCount.addAndGet(n);
+            s.lastRead = System.nanoTime();
+            ByteBuffer payload;
+            while ((payload = s.parser.parse()) != null) {
+                s.add(new Part(s.parser, payload, s.parser.getTimestamp(), s.images, s.flags));
+            }
+        }
+        if (n < 0) {
+            throw new IOException("The camera stream ended unexpectedly: " + s.url);
+        }
+    }
+
+    void disconnect(SelectionKey key, Stream s, IOException e) {
+        key.cancel();
+        try {
+            s.channel.close();
+        } catch (IOException ex) {
+            logger.warning("Could not close connection: " + ex);
+        }
+        if (e != null) {
+            s.fail(e);
+        }
+    }
+
+    /**
+     * Returns the imdecode() flags to decode in color or grayscale, at 1/2, 1/4, or 1/8 of the
+     * resolution when scaleDenominator is 2, 4, or 8, which JPEG decoders do by skipping the
+     * higher frequencies of the DCT, at a fraction of the cost of decoding everything.
+     */
+    public static int decodeFlags(boolean grayscale, int scaleDenominator) {
+        switch (scaleDenominator) {
+            case 1: return grayscale ? IMREAD_GRAYSCALE : IMREAD_COLOR;
+            case 2: return grayscale ? IMREAD_REDUCED_GRAYSCALE_2 : IMREAD_REDUCED_COLOR_2;
+            case 4: return grayscale ? IMREAD_REDUCED_GRAYSCALE_4 : IMREAD_REDUCED_COLOR_4;
+            case 8: return grayscale ? IMREAD_REDUCED_GRAYSCALE_8 : IMREAD_REDUCED_COLOR_8;
+            default: throw new IllegalArgumentException("Scale denominator must be 1, 2, 4, or 8: " + scaleDenominator);
+        }
+    }
+
+    /**
+     * Decodes a JPEG image from a direct buffer into dst, whose memory gets reused when
+     * the size and type of the image do not change, and returns it.
+     */
+    static Mat decode(ByteBuffer jpeg, int flags, Mat dst) throws IOException {
+        Mat buf = new Mat(1, jpeg.limit(), CV_8UC1, new BytePointer(jpeg));
+        imdecode(buf, flags, dst);
+        if (dst.empty()) {
+            throw new IOException("imdecode() could not decode the image.");
+        }
+        return dst;
+    }
+
+    static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    static String base64(byte[] b) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < b.length; i += 3) {
+            int n = (b[i] & 0xFF) << 16 | (i + 1 < b.length ? (b[i + 1] & 0xFF) << 8 : 0) | (i + 2 < b.length ? b[i + 2] & 0xFF : 0);
+            s.append(BASE64[n >> 18 & 63]).append(BASE64[n >> 12 & 63]);
+            s.append(i + 1 < b.length ? BASE64[n >> 6 & 63] : '=').append(i + 2 < b.length ? BASE64[n & 63] : '=');
+        }
+        return s.toString();
+    }
+
+    /**
+     * Benchmarks a number of streams served by a local stand-in MJPEG server, decoding all
+     * images and printing the throughput. Arguments: cameras, seconds, width, height, fps (0 for unlimited),
+     * and scale denominator (1, 2, 4, or 8).
+     */
+    public static void main(String[] args) throws Exception {
+        final int cameras = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int width   = args.length > 2 ? Integer.parseInt(args[2]) : 1280;
+        final int height  = args.length > 3 ? Integer.parseInt(args[3]) : 720;
+        final int fps     = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        final int scale   = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | ((x ^ y) & 0xFF));
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bytes);
+        final byte[] jpeg = bytes.toByteArray();
+
+        final ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread() { @Override public void run() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    Thread t = new Thread() { @Override public void run() {
+                        try {
+                            OutputStream out = socket.getOutputStream();
+                            out.write(("HTTP/1.0 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=frame\r\n\r\n").getBytes("ISO-8859-1"));
+                            byte[] header = ("--frame\r\nContent-Type: image/jpeg\r\nContent-Length: " + jpeg.length + "\r\n\r\n").getBytes("ISO-8859-1");
+                            long next = System.nanoTime();
+                            while (true) {
+                                out.write(header);
+                                out.write(jpeg);
+                                out.write('\r');
+                                out.write('\n');
+                                if (fps > 0) {
+                                    next += 1000000000L / fps;
+                                    long sleep = next - System.nanoTime();
+                                    if (sleep > 0) {
+                                        Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+                                    }
+                                }
+                            }
+                        } catch (Exception e) {
+                            // client disconnected
+                        }
+                    }};
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }};
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        MjpegIngest ingest = new MjpegIngest();
+        final URL url = new URL("http://localhost:" + server.getLocalPort() + "/video.mjpg");
+        final Stream[] streams = new Stream[cameras];
+        final long[] frames = new long[cameras];
+        final Exception[] errors = new Exception[cameras];
+        Thread[] consumers = new Thread[cameras];
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        for (int i = 0; i < cameras; i++) {
+            streams[i] = ingest.open(url, 5000, 5000, 4, true, decodeFlags(false, scale));
+            final int camera = i;
+            consumers[i] = new Thread() { @Override public void run() {
+                try {
+                    while (System.nanoTime() < end) {
+                        Part p = streams[camera].take(5000);
+                        if (p == null) {
+                            throw new IOException("No image received within 5000 ms.");
+                        }
+                        p.getImage();
+                        p.release();
+                        frames[camera]++;
+                    }
+                } catch (Exception e) {
+                    // reported by the main thread, after the others finish
+                    errors[camera] = e;
+                }
+            }};
+            consumers[i].start();
+        }
+        long start = System.nanoTime();
+        long total = 0, dropped = 0;
+        for (int i = 0; i < cameras; i++) {
+            consumers[i].join();
+            total += frames[i];
+            dropped += streams[i].getDroppedCount();
+            streams[i].close();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d cameras at %dx%d, JPEG of %d bytes decoded at 1/%d: %.1f frames/s (%.1f per camera), %d dropped, %.1f MB/s received%n",
+                cameras, width, height, jpeg.length, scale, total / elapsed, total / elapsed / cameras, dropped, ingest.getByteCount() / elapsed / 1e6);
+        System.out.println("decoder: " + ExecutorRegistry.getMetrics(ExecutorRegistry.DECODER));
+        ingest.close();
+        server.close();
+
+        Exception error = null;
+        for (int i = 0; i < cameras; i++) {
+            if (errors[i] != null) {
+                System.err.println("Camera " + i + " failed after " + frames[i] + " frames: " + errors[i]);
+                error = error != null ? error : errors[i];
+            }
+        }
+        if (error != null) {
+            throw new Exception("Benchmark failed for some cameras.", error);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Splits a multipart MJPEG stream, as sent by IP cameras, into JPEG payloads. Bytes are
+ * read in bulk into a buffer and scanned there, instead of one at a time from a stream,
+ * and payloads get copied into direct buffers from a small pool, which can be passed
+ * as is to native decoders. Parts need a Content-Length header, or else they end at
+ * the boundary, when known, or at the JPEG end of image marker.
+ * <p>
+ * {@link #parse(ByteBuffer)} works incrementally on whatever bytes are available, for
+ * non-blocking channels, while {@link #read(ReadableByteChannel)} blocks until a whole
+ * part is available. An HTTP response header, if any, gets checked and skipped.
+ *
+ * @author Samuel Audet
+ */
+public class MjpegParser {
+    public MjpegParser() {
+        this(null);
+    }
+    public MjpegParser(String boundary) {
+        setBoundary(boundary);
+    }
+
+    /** Maximum size of a header block, beyond which the stream is considered corrupted. */
+    static final int MAX_HEADER_SIZE = 16 * 1024;
+    /** Maximum size of a payload, to avoid allocating gigabytes on corrupted streams. */
+    static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+    static final int POOL_SIZE = 8;
+
+    final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    byte[] boundary = null;
+    int scanned = 0;           // bytes of the header already scanned for its end
+    int leftover = 0;          // bytes left in the internal buffer after the last parse()
+    ByteBuffer payload = null; // being filled, or null while reading a header
+    int contentLength = -1;    // of the payload, or -1 when scanning for its end
+    long partTimestamp = 0;
+    long partCount = 0, byteCount = 0;
+
+    /** Sets the boundary given in the Content-Type of the stream, with or without the leading "--". */
+    public void setBoundary(String boundary) {
+        if (boundary == null || boundary.length() == 0) {
+            this.boundary = null;
+            return;
+        }
+        if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        if (!boundary.startsWith("--")) {
+            boundary = "--" + boundary;
+        }
+        try {
+            this.boundary = ("\r\n" + boundary).getBytes("ISO-8859-1");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns the boundary parameter of a Content-Type header value, or null if none. */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int i = contentType.toLowerCase().indexOf("boundary=");
+        if (i < 0) {
+            return null;
+        }
+        String b = contentType.substring(i + 9);
+        int j = b.indexOf(';');
+        return (j >= 0 ? b.substring(0, j) : b).trim();
+    }
+
+    /** Returns the time in microseconds, from {@link System#nanoTime()}, when the header of the last part got parsed. */
+    public long getTimestamp() {
+        return partTimestamp;
+    }
+    public long getPartCount() {
+        return partCount;
+    }
+    /** Returns the number of bytes read by {@link #read(ReadableByteChannel)} or added with {@link #buffer()}. */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns the internal buffer, in write mode, that non-blocking callers fill with
+     * {@code channel.read(parser.buffer())} before calling {@link #parse()}.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Same as {@link #parse(ByteBuffer)} with the internal {@link #buffer()}, compacted afterwards. */
+    public ByteBuffer parse() throws IOException {
+        byteCount += buffer.position() - leftover;
+        buffer.flip();
+        try {
+            return parse(buffer);
+        } finally {
+            buffer.compact();
+            leftover = buffer.position();
+        }
+    }
+
+    /** Reads from the channel until a whole part is available, and returns its payload. */
+    public ByteBuffer read(ReadableByteChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer part = parse();
+            if (part != null) {
+                return part;
+            }
+            int n = channel.read(buffer);
+            if (n < 0) {
+                throw new EOFException("The camera stream ended unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Consumes bytes from the buffer, in read mode, and returns the payload of the part they
+     * complete, flipped and ready to read, or null if more bytes are needed. Payloads should
+     * be given back with {@link #recycle(ByteBuffer)} once no longer needed.
+     */
+    public ByteBuffer parse(ByteBuffer in) throws IOException {
+        while (true) {
+            if (payload == null) {
+                if (!parseHeader(in)) {
+                    return null;
+                }
+            } else if (contentLength >= 0) {
+                int n = Math.min(in.remaining(), contentLength - payload.position());
+                int limit = in.limit();
+                in.limit(in.position() + n);
+                payload.put(in);
+                in.limit(limit);
+                if (payload.position() == contentLength) {
+                    return finish();
+                }
+                return null;
+            } else {
+                int end = scanPayload(in);
+                int limit = in.limit();
+                in.limit(end >= 0 ? end : Math.max(in.position(), limit - searchOverlap()));
+                ensurePayloadCapacity(payload.position() + in.remaining());
+                payload.put(in);
+                in.limit(limit);
+                if (end >= 0) {
+                    return finish();
+                }
+                return null;
+            }
+        }
+    }
+
+    /** Returns how many trailing bytes to keep in the input, in case they start the boundary or marker. */
+    int searchOverlap() {
+        return boundary != null ? boundary.length - 1 : 1;
+    }
+
+    /** Returns the end of the payload in the input, just before the boundary or after the end of image marker, or -1. */
+    int scanPayload(ByteBuffer in) {
+        byte[] a = in.array();
+        int from = in.arrayOffset() + in.position(), to = in.arrayOffset() + in.limit();
+        if (boundary != null) {
+            byte first = boundary[0];
+            for (int i = from; i <= to - boundary.length; i++) {
+                if (a[i] != first) {
+                    continue;
+                }
+                int j = 1;
+                while (j < boundary.length && a[i + j] == boundary[j]) {
+                    j++;
+                }
+                if (j == boundary.length) {
+                    return i - in.arrayOffset();
+                }
+            }
+        } else {
+            for (int i = from; i < to - 1; i++) {
+                if (a[i] == (byte)0xFF && a[i + 1] == (byte)0xD9) {
+                    return i + 2 - in.arrayOffset();
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Looks for the end of a header block, and parses it, returning false if more bytes are needed. */
+    boolean parseHeader(ByteBuffer in) throws IOException {
+        byte[] a = in.array();
+        int start = in.arrayOffset() + in.position(), end = in.arrayOffset() + in.limit();
+        // skip line breaks left over from the previous part
+        while (start < end && (a[start] == '\r' || a[start] == '\n')) {
+            start++;
+        }
+        in.position(start - in.arrayOffset());
+        int i = start + Math.max(0, scanned - 3);
+        for (; i <= end - 4; i++) {
+            if (a[i] == '\r' && a[i + 1] == '\n' && a[i + 2] == '\r' && a[i + 3] == '\n') {
+                break;
+            }
+        }
+        if (i > end - 4) {
+            if (end - start > MAX_HEADER_SIZE) {
+                throw new IOException("Header too long, is this an MJPEG stream?");
+            }
+            scanned = end - start;
+            return false;
+        }
+        String header = new String(a, start, i - start, "ISO-8859-1");
+        in.position(i + 4 - in.arrayOffset());
+        scanned = 0;
+
+        int length = -1;
+        boolean response = header.startsWith("HTTP/");
+        String[] lines = header.split("\r\n");
+        for (int k = 0; k < lines.length; k++) {
+            String line = lines[k];
+            if (k == 0 && response) {
+                String[] status = line.split(" ");
+                if (status.length < 2 || !status[1].equals("200")) {
+                    throw new IOException("Unexpected HTTP response: " + line);
+                }
+            } else if (line.regionMatches(true, 0, "content-length:", 0, 15)) {
+                try {
+                    length = Integer.parseInt(line.substring(15).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid header: " + line);
+                }
+            } else if (response && line.regionMatches(true, 0, "content-type:", 0, 13)) {
+                String b = boundaryOf(line.substring(13));
+                if (b != null) {
+                    setBoundary(b);
+                }
+            }
+        }
+        if (response) {
+            // the Content-Length of the response, if any, is not the one of a part
+            return true;
+        }
+        if (length > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Content-Length too large: " + length);
+        }
+        contentLength = length;
+        payload = allocate(length >= 0 ? length : 64 * 1024);
+        partTimestamp = System.nanoTime() / 1000;
+        return true;
+    }
+
+    ByteBuffer finish() {
+        ByteBuffer p = payload;
+        payload = null;
+        contentLength = -1;
+        partCount++;
+        p.flip();
+        return p;
+    }
+
+    void ensurePayloadCapacity(int capacity) throws IOException {
+        if (capacity > payload.capacity()) {
+            if (capacity > MAX_PAYLOAD_SIZE) {
+                throw new IOException("Part too large, missing boundary?");
+            }
+            ByteBuffer p = allocate(Math.max(capacity, 2 * payload.capacity()));
+            payload.flip();
+            p.put(payload);
+            recycle(payload);
+            payload = p;
+        }
+    }
+
+    /** Returns a cleared direct buffer of at least the given capacity, from the pool if possible. */
+    public ByteBuffer allocate(int capacity) {
+        ByteBuffer b;
+        while ((b = pool.poll()) != null) {
+            if (b.capacity() >= capacity) {
+                b.clear();
+                return b;
+            }
+        }
+        // grow a bit, so that buffers fit slightly larger frames next time
+        return ByteBuffer.allocateDirect(capacity + capacity / 8);
+    }
+
+    /** Gives a payload back to the pool, from any thread. */
+    public void recycle(ByteBuffer b) {
+        if (b != null && b.isDirect() && pool.size() < POOL_SIZE) {
+            pool.offer(b);
+        }
+    }
+
+    /** Forgets any partial part, to start over with a new connection. */
+    public void reset() {
+        buffer.clear();
+        scanned = leftover = 0;
+        if (payload != null) {
+            recycle(payload);
+            payload = null;
+        }
+        contentLength = -1;
+    }
+}
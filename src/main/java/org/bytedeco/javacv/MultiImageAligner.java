@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Aligns several templates, for example planar surfaces, to the same target images.
+ * The {@link ImagePyramid} of each target image gets built only once, and shared read-only with
+ * all aligners, which then run concurrently, each until its own convergence.
+ * <p>
+ * Aligners must have their own {@link ImageTransformer}, since transformers keep
+ * buffers for each call, and the same pyramid levels.
+ *
+ * @author Samuel Audet
+ */
+public class MultiImageAligner {
+    public MultiImageAligner(GNImageAligner ... aligners) {
+        if (aligners.length == 0) {
+            throw new IllegalArgumentException("No aligners.");
+        }
+        ImageAligner.Settings s = aligners[0].getSettings();
+        for (int i = 0; i < aligners.length; i++) {
+            ImageAligner.Settings s2 = aligners[i].getSettings();
+            if (s2.getPyramidLevelMin() != s.getPyramidLevelMin() || s2.getPyramidLevelMax() != s.getPyramidLevelMax()) {
+                throw new IllegalArgumentException("Aligner " + i + " has different pyramid levels.");
+            }
+            for (int j = 0; j < i; j++) {
+                if (aligners[i].transformer == aligners[j].transformer) {
+                    throw new IllegalArgumentException("Aligners " + j + " and " + i + " share the same transformer.");
+                }
+            }
+        }
+        this.aligners = aligners;
+        this.converged = new boolean[aligners.length];
+    }
+
+    final GNImageAligner[] aligners;
+    final boolean[] converged;
+    ImagePyramid pyramid = null;
+    IplImage[] levels = null;
+
+    public GNImageAligner[] getAligners() {
+        return aligners;
+    }
+
+    /** Returns the pyramid of the last target image. */
+    public ImagePyramid getTargetPyramid() {
+        return pyramid;
+    }
+
+    /** Returns for each aligner whether it converged on the last call to align(). */
+    public boolean[] getConverged() {
+        return converged;
+    }
+
+    /** Builds the pyramid of the target image, and aligns all templates to it. Returns true if all converged. */
+    public boolean align(IplImage target0) {
+        if (pyramid == null) {
+            ImageAligner.Settings s = aligners[0].getSettings();
+            pyramid = new ImagePyramid(s.getPyramidLevelMin(), s.getPyramidLevelMax());
+        }
+        pyramid.setImage(target0);
+        levels = pyramid.getImages(levels);
+        Arrays.fill(converged, false);
+        Parallel.loop(0, aligners.length, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i = from; i < to; i++) {
+                converged[i] = aligners[i].align(levels);
+            }
+        }});
+        for (boolean c : converged) {
+            if (!c) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import org.bytedeco.javacpp.Pointer;
+
+import static org.bytedeco.javacpp.opencv_calib3d.*;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_features2d.*;
+import static org.bytedeco.javacpp.opencv_flann.*;
+
+/**
+ * Finds many planar objects at once in a scene, with the same approach as {@link ObjectFinder}.
+ * The descriptors of all templates get packed or indexed together once, either for brute-force
+ * matching or in a single FLANN index when {@link ObjectFinder.Settings#isUseFLANN()}, the
+ * keypoints of a scene get detected only once per call to {@link #find(IplImage)}, and a homography gets
+ * estimated for each template with enough matches. Templates can be saved to and loaded from
+ * a file, to avoid detecting their keypoints again on startup.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Samuel Audet
+ */
+public class MultiObjectFinder {
+    public MultiObjectFinder() {
+        this(new ObjectFinder.Settings());
+    }
+    public MultiObjectFinder(ObjectFinder.Settings settings) {
+        this.settings = settings;
+    }
+
+    static final Logger logger = Logger.getLogger(MultiObjectFinder.class.getName());
+
+    ObjectFinder.Settings settings;
+    public ObjectFinder.Settings getSettings() {
+        return settings;
+    }
+    /** The detector should produce the same kind of binary descriptors as the one used for the templates. */
+    public void setSettings(ObjectFinder.Settings settings) {
+        this.settings = settings;
+    }
+
+    /** Keypoints and descriptors of all templates, with the mapping from descriptor rows to templates. */
+    int templateCount = 0, descriptorCount = 0, descriptorSize = 0;
+    int[] widths = new int[0], heights = new int[0], templateStarts = new int[1];
+    float[] points = new float[0];
+    byte[] descriptors = new byte[0];
+    int[] descriptorTemplates = new int[0];
+
+    Mat indexDescriptors = null;
+    long[] indexBits = null;
+    boolean indexUsesFLANN = false;
+    Index flannIndex = null;
+    IndexParams indexParams = new LshIndexParams(12, 20, 2); // using LSH Hamming distance
+    SearchParams searchParams = null;
+
+    KeyPointVector imageKeypoints = new KeyPointVector();
+    Mat imageDescriptors = new Mat(), indicesMat = new Mat(), distsMat = new Mat();
+    long[] imageBits = null;
+    int[] neighbors = new int[0], dists1 = new int[0], dists2 = new int[0];
+    Mat pt1 = new Mat(), pt2 = new Mat(), mask = new Mat();
+    int[] pairCounts = new int[0], pairStarts = new int[0], pairs = new int[0];
+    float[] imagePoints = new float[0];
+
+    public int getTemplateCount() {
+        return templateCount;
+    }
+    public int getTemplateWidth(int template) {
+        return widths[template];
+    }
+    public int getTemplateHeight(int template) {
+        return heights[template];
+    }
+    public int getTemplateDescriptorCount(int template) {
+        return templateStarts[template + 1] - templateStarts[template];
+    }
+
+    /** Detects keypoints of the image and adds them as a new template. Returns its index. */
+    public int addTemplate(IplImage image) {
+        KeyPointVector keypoints = new KeyPointVector();
+        Mat descriptors = new Mat();
+        settings.detector.detectAndCompute(cvarrToMat(image), new Mat(), keypoints, descriptors, false);
+
+        int n = (int)keypoints.size();
+        float[] p = new float[2*n];
+        for (int i = 0; i < n; i++) {
+            Point2f pt = keypoints.get(i).pt();
+            p[2*i    ] = pt.x();
+            p[2*i + 1] = pt.y();
+        }
+        byte[] d = new byte[n*descriptors.cols()];
+        if (n > 0) {
+            if (descriptors.depth() != CV_8U) {
+                throw new IllegalArgumentException("Only binary descriptors are supported.");
+            }
+            ((ByteBuffer)descriptors.createBuffer()).get(d);
+        }
+        int t = addTemplate(image.width(), image.height(), p, d, n > 0 ? descriptors.cols() : descriptorSize);
+        logger.fine("Template " + t + ": " + n + " object descriptors");
+        return t;
+    }
+
+    /**
+     * Adds a template from its keypoints and binary descriptors. Returns its index.
+     *
+     * @param points      keypoints as {x, y} pairs
+     * @param descriptors one row of {@code descriptorSize} bytes for each keypoint
+     */
+    public int addTemplate(int width, int height, float[] points, byte[] descriptors, int descriptorSize) {
+        int n = points.length/2;
+        if (n > 0 && this.descriptorSize > 0 && descriptorSize != this.descriptorSize) {
+            throw new IllegalArgumentException("Descriptor size " + descriptorSize
+                    + " does not match the one of previous templates: " + this.descriptorSize);
+        }
+        if (descriptors.length != n*descriptorSize) {
+            throw new IllegalArgumentException("Expected " + n + " descriptors of " + descriptorSize + " bytes.");
+        }
+        if (n > 0) {
+            this.descriptorSize = descriptorSize;
+        }
+        int t = templateCount++;
+        if (widths.length < templateCount) {
+            int capacity = Math.max(templateCount, 2*widths.length);
+            widths  = Arrays.copyOf(widths, capacity);
+            heights = Arrays.copyOf(heights, capacity);
+            templateStarts = Arrays.copyOf(templateStarts, capacity + 1);
+        }
+        widths[t] = width;
+        heights[t] = height;
+
+        int start = descriptorCount;
+        descriptorCount += n;
+        if (descriptorTemplates.length < descriptorCount) {
+            int capacity = Math.max(descriptorCount, 2*descriptorTemplates.length);
+            this.points = Arrays.copyOf(this.points, 2*capacity);
+            this.descriptors = Arrays.copyOf(this.descriptors, capacity*Math.max(descriptorSize, 1));
+            descriptorTemplates = Arrays.copyOf(descriptorTemplates, capacity);
+        }
+        System.arraycopy(points, 0, this.points, 2*start, 2*n);
+        System.arraycopy(descriptors, 0, this.descriptors, start*descriptorSize, n*descriptorSize);
+        Arrays.fill(descriptorTemplates, start, descriptorCount, t);
+        templateStarts[t] = start;
+        templateStarts[t + 1] = descriptorCount;
+
+        indexDescriptors = null; // to rebuild on next call to find()
+        return t;
+    }
+
+    /** Removes all templates. */
+    public void clearTemplates() {
+        templateCount = descriptorCount = descriptorSize = 0;
+        indexDescriptors = null;
+    }
+
+    /**
+     * Packs the descriptors of all templates for brute-force matching, or builds the FLANN index
+     * over them when the settings ask for it, if not already done for the current settings.
+     */
+    void buildIndex() {
+        if (indexDescriptors != null && indexUsesFLANN == settings.useFLANN) {
+            return;
+        }
+        indexDescriptors = new Mat(descriptorCount, descriptorSize, CV_8UC1);
+        ((ByteBuffer)indexDescriptors.createBuffer()).put(descriptors, 0, descriptorCount*descriptorSize);
+        indexUsesFLANN = settings.useFLANN;
+        if (indexUsesFLANN) {
+            flannIndex = new Index();
+            flannIndex.build(indexDescriptors, indexParams, FLANN_DIST_HAMMING);
+            if (searchParams == null) {
+                searchParams = new SearchParams(64, 0, true); // maximum number of leafs checked
+                searchParams.deallocate(false); // for some reason FLANN seems to do it for us
+            }
+        } else {
+            indexBits = ObjectFinder.packDescriptors(indexDescriptors, indexBits);
+            flannIndex = null;
+        }
+        logger.fine(templateCount + " templates, " + descriptorCount + " object descriptors "
+                + (indexUsesFLANN ? "indexed" : "packed"));
+    }
+
+    /**
+     * Searches the image for all templates.
+     *
+     * @return the corners of each template found in the image, indexed by template,
+     *         or null where the template could not be found
+     */
+    public double[][] find(IplImage image) {
+        return find(image, new double[templateCount][]);
+    }
+
+    /** Same as {@link #find(IplImage)}, but reusing the given corner arrays when possible. */
+    public double[][] find(IplImage image, double[][] corners) {
+        if (corners == null || corners.length < templateCount) {
+            corners = corners == null ? new double[templateCount][] : Arrays.copyOf(corners, templateCount);
+        }
+        if (descriptorCount < settings.matchesMin) {
+            Arrays.fill(corners, null);
+            return corners;
+        }
+        buildIndex();
+
+        settings.detector.detectAndCompute(cvarrToMat(image), new Mat(), imageKeypoints, imageDescriptors, false);
+        int total = imageDescriptors.rows();
+        logger.fine(total + " image descriptors");
+        if (total < settings.matchesMin) {
+            Arrays.fill(corners, null);
+            return corners;
+        }
+
+        findPairs(total);
+        for (int t = 0; t < templateCount; t++) {
+            corners[t] = locate(t, corners[t]);
+        }
+        return corners;
+    }
+
+    /**
+     * Finds for each image descriptor the nearest template descriptor, in neighbors[], or -1 when
+     * it is not sufficiently closer than the second nearest one, with the FLANN index.
+     */
+    void flannFindNeighbors(int total) {
+        flannIndex.knnSearch(imageDescriptors, indicesMat, distsMat, 2, searchParams);
+        IntBuffer indicesBuf = indicesMat.createBuffer();
+        IntBuffer distsBuf = distsMat.createBuffer();
+        for (int i = 0; i < total; i++) {
+            int j = indicesBuf.get(2*i);
+            boolean match = j >= 0 && j < descriptorCount && distsBuf.get(2*i) < settings.distanceThreshold*distsBuf.get(2*i+1);
+            neighbors[i] = match ? j : -1;
+        }
+    }
+
+    /**
+     * Same as {@link #flannFindNeighbors(int)}, but exactly, by brute force over the packed
+     * descriptors, in parallel, with the same blocking as {@link ObjectFinder#findPairs}.
+     */
+    void findNeighbors(int total) {
+        final int indexRows = descriptorCount;
+        final int words = (descriptorSize + 7)/8;
+        imageBits = ObjectFinder.packDescriptors(imageDescriptors, imageBits);
+        final long[] indexBits = this.indexBits, imageBits = this.imageBits;
+        final int[] neighbors = this.neighbors, dists1 = this.dists1, dists2 = this.dists2;
+        final double distanceThreshold = settings.distanceThreshold;
+
+        Parallel.loop(0, total, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i0 = from; i0 < to; i0 += ObjectFinder.OBJECT_BLOCK) {
+                int i1 = Math.min(i0 + ObjectFinder.OBJECT_BLOCK, to);
+                for (int i = i0; i < i1; i++) {
+                    neighbors[i] = -1;
+                    dists1[i] = dists2[i] = Integer.MAX_VALUE;
+                }
+                for (int j0 = 0; j0 < indexRows; j0 += ObjectFinder.IMAGE_BLOCK) {
+                    int j1 = Math.min(j0 + ObjectFinder.IMAGE_BLOCK, indexRows);
+                    for (int i = i0; i < i1; i++) {
+                        int neighbor = neighbors[i], dist1 = dists1[i], dist2 = dists2[i];
+                        int p = i*words;
+                        for (int j = j0, q = j0*words; j < j1; j++, q += words) {
+                            int d = 0;
+                            for (int k = 0; k < words; k++) {
+                                d += Long.bitCount(imageBits[p + k] ^ indexBits[q + k]);
+                            }
+                            if (d < dist1) {
+                                dist2 = dist1;
+                                dist1 = d;
+                                neighbor = j;
+                            } else if (d < dist2) {
+                                dist2 = d;
+                            }
+                        }
+                        neighbors[i] = neighbor;
+                        dists1[i] = dist1;
+                        dists2[i] = dist2;
+                    }
+                }
+                for (int i = i0; i < i1; i++) {
+                    if (!(dists1[i] < distanceThreshold*dists2[i])) {
+                        neighbors[i] = -1;
+                    }
+                }
+            }
+        }});
+    }
+
+    /** Matches image descriptors against those of the templates, and sorts the pairs passing the ratio test by template. */
+    void findPairs(int total) {
+        if (imageDescriptors.cols() != descriptorSize) {
+            throw new IllegalArgumentException("Image descriptor size " + imageDescriptors.cols()
+                    + " does not match the one of the templates: " + descriptorSize);
+        }
+        if (neighbors.length < total) {
+            neighbors = new int[total];
+            dists1 = new int[total];
+            dists2 = new int[total];
+        }
+        if (indexUsesFLANN) {
+            flannFindNeighbors(total);
+        } else {
+            findNeighbors(total);
+        }
+
+        if (pairCounts.length < templateCount) {
+            pairCounts = new int[templateCount];
+            pairStarts = new int[templateCount];
+        }
+        if (pairs.length < 2*total) {
+            pairs = new int[2*total];
+            imagePoints = new float[2*total];
+        }
+        Arrays.fill(pairCounts, 0, templateCount, 0);
+        int n = 0;
+        for (int i = 0; i < total; i++) {
+            int j = neighbors[i];
+            if (j >= 0) {
+                pairCounts[descriptorTemplates[j]]++;
+                n++;
+            }
+        }
+        logger.fine(n + " matching pairs found");
+
+        // counting sort of the pairs by template, as {object keypoint, image keypoint}
+        for (int t = 0, start = 0; t < templateCount; t++) {
+            pairStarts[t] = start;
+            start += pairCounts[t];
+        }
+        for (int i = 0; i < total; i++) {
+            int j = neighbors[i];
+            if (j >= 0) {
+                int k = pairStarts[descriptorTemplates[j]]++;
+                pairs[2*k    ] = j;
+                pairs[2*k + 1] = i;
+                Point2f p = imageKeypoints.get(i).pt();
+                imagePoints[2*k    ] = p.x();
+                imagePoints[2*k + 1] = p.y();
+            }
+        }
+        for (int t = 0; t < templateCount; t++) {
+            pairStarts[t] -= pairCounts[t];
+        }
+    }
+
+    /** Estimates the homography of a template from its pairs, and returns its transformed corners, or null. */
+    double[] locate(int t, double[] corners) {
+        int n = pairCounts[t];
+        if (n < settings.matchesMin) {
+            return null;
+        }
+        pt1 .create(n, 1, CV_32FC2);
+        pt2 .create(n, 1, CV_32FC2);
+        FloatBuffer pt1Idx = pt1.createBuffer();
+        FloatBuffer pt2Idx = pt2.createBuffer();
+        for (int i = 0; i < n; i++) {
+            int k = pairStarts[t] + i, j = pairs[2*k];
+            pt1Idx.put(2*i, points[2*j]); pt1Idx.put(2*i+1, points[2*j + 1]);
+            pt2Idx.put(2*i, imagePoints[2*k]); pt2Idx.put(2*i+1, imagePoints[2*k + 1]);
+        }
+
+        Mat H = findHomography(pt1, pt2, CV_RANSAC, settings.ransacReprojThreshold, mask, 2000, 0.995);
+        if (H.empty() || countNonZero(mask) < settings.matchesMin) {
+            return null;
+        }
+        int w = widths[t], h = heights[t];
+        double[] srcCorners = {0, 0,  w, 0,  w, h,  0, h};
+        if (corners == null || corners.length != srcCorners.length) {
+            corners = new double[srcCorners.length];
+        }
+        return ObjectFinder.transform((double[])H.createIndexer(false).array(), srcCorners, corners);
+    }
+
+    /** Returns the pairs of {template keypoint, image keypoint} matched for template t by the last call to find(). */
+    public int[] getPairs(int t) {
+        int n = pairCounts.length > t ? pairCounts[t] : 0;
+        int[] p = new int[2*n];
+        for (int i = 0; i < n; i++) {
+            int k = pairStarts[t] + i;
+            p[2*i    ] = pairs[2*k] - templateStarts[t];
+            p[2*i + 1] = pairs[2*k + 1];
+        }
+        return p;
+    }
+
+    public void write(File file) throws Exception {
+        write(file.getAbsolutePath());
+    }
+    /** Writes keypoints and descriptors of all templates to a file, in the XML or YAML format of OpenCV. */
+    public void write(String filename) throws Exception {
+        CvFileStorage fs = CvFileStorage.open(filename, null, CV_STORAGE_WRITE);
+        if (fs == null) {
+            throw new Exception("Error: Could not open template file " + filename + " for writing");
+        }
+        try {
+            CvAttrList a = cvAttrList();
+            cvWriteInt(fs, "templateCount", templateCount);
+            cvWriteInt(fs, "descriptorSize", descriptorSize);
+            for (int t = 0; t < templateCount; t++) {
+                int start = templateStarts[t], n = templateStarts[t + 1] - start;
+                cvStartWriteStruct(fs, "template" + t, CV_NODE_MAP, null, a);
+                cvWriteInt(fs, "width", widths[t]);
+                cvWriteInt(fs, "height", heights[t]);
+                cvWriteInt(fs, "count", n);
+                if (n > 0) {
+                    CvMat p = CvMat.create(n, 2, CV_32F);
+                    p.getFloatBuffer().put(points, 2*start, 2*n);
+                    cvWrite(fs, "points", p, a);
+                    p.release();
+                    CvMat d = CvMat.create(n, descriptorSize, CV_8U);
+                    ByteBuffer b = d.getByteBuffer();
+                    for (int i = 0; i < n; i++) {
+                        b.position(i*d.step());
+                        b.put(descriptors, (start + i)*descriptorSize, descriptorSize);
+                    }
+                    cvWrite(fs, "descriptors", d, a);
+                    d.release();
+                }
+                cvEndWriteStruct(fs);
+            }
+        } finally {
+            fs.release();
+        }
+    }
+
+    public void read(File file) throws Exception {
+        read(file.getAbsolutePath());
+    }
+    /** Adds templates read from a file written by {@link #write(String)}. */
+    public void read(String filename) throws Exception {
+        CvFileStorage fs = CvFileStorage.open(filename, null, CV_STORAGE_READ);
+        if (fs == null) {
+            throw new Exception("Error: Could not open template file " + filename);
+        }
+        try {
+            CvAttrList a = cvAttrList();
+            int count = cvReadIntByName(fs, null, "templateCount", 0);
+            int size = cvReadIntByName(fs, null, "descriptorSize", 0);
+            for (int t = 0; t < count; t++) {
+                CvFileNode fn = cvGetFileNodeByName(fs, null, "template" + t);
+                if (fn == null) {
+                    throw new Exception("Error: Template " + t + " missing from " + filename);
+                }
+                int w = cvReadIntByName(fs, fn, "width", 0);
+                int h = cvReadIntByName(fs, fn, "height", 0);
+                int n = cvReadIntByName(fs, fn, "count", 0);
+                float[] p = new float[2*n];
+                byte[] d = new byte[n*size];
+                if (n > 0) {
+                    Pointer pp = cvReadByName(fs, fn, "points", a);
+                    Pointer dp = cvReadByName(fs, fn, "descriptors", a);
+                    if (pp == null || dp == null) {
+                        throw new Exception("Error: Keypoints of template " + t + " missing from " + filename);
+                    }
+                    CvMat pm = new CvMat(pp), dm = new CvMat(dp);
+                    pm.getFloatBuffer().get(p);
+                    ByteBuffer b = dm.getByteBuffer();
+                    for (int i = 0; i < n; i++) {
+                        b.position(i*dm.step());
+                        b.get(d, i*size, size);
+                    }
+                    pm.release();
+                    dm.release();
+                }
+                addTemplate(w, h, p, d, size);
+            }
+        } finally {
+            fs.release();
+        }
+    }
+
+    public static class Exception extends java.lang.Exception {
+        public Exception(String message) { super(message); }
+        public Exception(String message, Throwable cause) { super(message, cause); }
+    }
+}
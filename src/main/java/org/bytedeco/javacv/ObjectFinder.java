@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2015 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -31,10 +31,14 @@
 package org.bytedeco.javacv;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.logging.Logger;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
 
 import static org.bytedeco.javacpp.opencv_calib3d.*;
 import static org.bytedeco.javacpp.opencv_core.*;
@@ -67,11 +71,29 @@ public class ObjectFinder {
 
     public static class Settings extends BaseChildSettings {
         IplImage objectImage = null;
+        /**
+         * Never exposed, so that its parameters only change through the setters below, which
+         * increment detectorVersion, letting workspaces know when to copy the detector again.
+         */
         AKAZE detector = AKAZE.create();
         double distanceThreshold = 0.75;
         int matchesMin = 4;
         double ransacReprojThreshold = 1.0;
         boolean useFLANN = false;
+        int detectorVersion = 0;
+
+        /** Returns a new detector with the same parameters, since detectors are not thread-safe. */
+        AKAZE createDetector() {
+            AKAZE d = AKAZE.create();
+            d.setDescriptorType(detector.getDescriptorType());
+            d.setDescriptorSize(detector.getDescriptorSize());
+            d.setDescriptorChannels(detector.getDescriptorChannels());
+            d.setThreshold(detector.getThreshold());
+            d.setNOctaves(detector.getNOctaves());
+            d.setNOctaveLayers(detector.getNOctaveLayers());
+            d.setDiffusivity(detector.getDiffusivity());
+            return d;
+        }
 
         public IplImage getObjectImage() {
             return objectImage;
@@ -85,6 +107,7 @@ public class ObjectFinder {
         }
         public void setDescriptorType(int dtype) {
             detector.setDescriptorType(dtype);
+            detectorVersion++;
         }
 
         public int getDescriptorSize() {
@@ -92,6 +115,7 @@ public class ObjectFinder {
         }
         public void setDescriptorSize(int dsize) {
             detector.setDescriptorSize(dsize);
+            detectorVersion++;
         }
 
         public int getDescriptorChannels() {
@@ -99,6 +123,7 @@ public class ObjectFinder {
         }
         public void setDescriptorChannels(int dch) {
             detector.setDescriptorChannels(dch);
+            detectorVersion++;
         }
 
         public double getThreshold() {
@@ -106,6 +131,7 @@ public class ObjectFinder {
         }
         public void setThreshold(double threshold) {
             detector.setThreshold(threshold);
+            detectorVersion++;
         }
 
         public int getNOctaves() {
@@ -113,6 +139,7 @@ public class ObjectFinder {
         }
         public void setNOctaves(int nOctaves) {
             detector.setNOctaves(nOctaves);
+            detectorVersion++;
         }
 
         public int getNOctaveLayers() {
@@ -120,6 +147,7 @@ public class ObjectFinder {
         }
         public void setNOctaveLayers(int nOctaveLayers) {
             detector.setNOctaveLayers(nOctaveLayers);
+            detectorVersion++;
         }
 
         public double getDistanceThreshold() {
@@ -164,163 +192,336 @@ public class ObjectFinder {
                 new Mat(), objectKeypoints, objectDescriptors, false);
 
         int total = (int)objectKeypoints.size();
-        if (settings.useFLANN) {
-            indicesMat = new Mat(total, 2, CV_32SC1);
-            distsMat   = new Mat(total, 2, CV_32FC1);
-            flannIndex = new Index();
-            indexParams = new LshIndexParams(12, 20, 2); // using LSH Hamming distance
-            searchParams = new SearchParams(64, 0, true); // maximum number of leafs checked
-            searchParams.deallocate(false); // for some reason FLANN seems to do it for us
-        }
-        pt1  = new Mat(total, 1, CV_32FC2);
-        pt2  = new Mat(total, 1, CV_32FC2);
-        mask = new Mat(total, 1, CV_8UC1);
-        H    = new Mat(3, 3, CV_64FC1);
-        ptpairs = new ArrayList<Integer>(2*objectDescriptors.rows());
+        objectPoints = keypointCoordinates(objectKeypoints, null);
+        objectBits = packDescriptors(objectDescriptors, null);
+        int w = settings.objectImage.width();
+        int h = settings.objectImage.height();
+        srcCorners = new double[] {0, 0,  w, 0,  w, h,  0, h};
         logger.info(total + " object descriptors");
     }
 
     static final Logger logger = Logger.getLogger(ObjectFinder.class.getName());
 
-    KeyPointVector objectKeypoints = null, imageKeypoints = null;
-    Mat objectDescriptors = null, imageDescriptors = null;
-    Mat indicesMat, distsMat;
-    Index flannIndex = null;
-    IndexParams indexParams = null;
-    SearchParams searchParams = null;
-    Mat pt1 = null, pt2 = null, mask = null, H = null;
-    ArrayList<Integer> ptpairs = null;
+    // computed once by setSettings(), and only read afterwards by find()
+    KeyPointVector objectKeypoints = null;
+    Mat objectDescriptors = null;
+    float[] objectPoints = null;
+    long[] objectBits = null;
+    double[] srcCorners = null;
+
+    /**
+     * Scratch memory and results of {@link ObjectFinder#find(Mat, Workspace)}, reused from
+     * one call to the next, along with its own copy of the detector of the settings. It may be
+     * shared between finders, but not between threads.
+     */
+    public static class Workspace {
+        AKAZE detector = null;
+        Settings detectorSettings = null;
+        int detectorVersion = -1;
+        KeyPointVector imageKeypoints = new KeyPointVector();
+        Mat imageDescriptors = new Mat(), noMask = new Mat();
+        IplImage headerImage = null;
+        long headerData = 0;
+        int headerX, headerY, headerWidth, headerHeight, headerStep;
+        Mat header = null;
+        Mat indicesMat = new Mat(), distsMat = new Mat();
+        Index flannIndex = null;
+        IndexParams indexParams = null;
+        SearchParams searchParams = null;
+        Mat pt1 = new Mat(256, 1, CV_32FC2), pt2 = new Mat(256, 1, CV_32FC2), mask = new Mat(256, 1, CV_8UC1);
+        long[] imageBits = null;
+        int[] neighbors = null, dists1 = null, dists2 = null;
+        float[] imagePoints = null;
+        int[] pairs = new int[256];
+        int pairCount = 0;
+        double[] homography = new double[9], dstCorners = new double[8];
+
+        public KeyPointVector getImageKeypoints() {
+            return imageKeypoints;
+        }
+        public Mat getImageDescriptors() {
+            return imageDescriptors;
+        }
+
+        /** Returns the number of pairs matched by the last call. */
+        public int getPairCount() {
+            return pairCount;
+        }
+        /** Returns {object keypoint, image keypoint} for each pair matched, in the first 2*getPairCount() elements. */
+        public int[] getPairs() {
+            return pairs;
+        }
+        /** Returns the 3x3 homography, in row-major order, of the last call that located the object. */
+        public double[] getHomography() {
+            return homography;
+        }
+
+        /**
+         * Returns a Mat header over the image, created once and reused while the same
+         * image keeps the same data, size, and ROI, instead of one per call to find().
+         */
+        Mat header(IplImage image) {
+            long data = image.imageData().address();
+            int x = 0, y = 0, w = image.width(), h = image.height(), step = image.widthStep();
+            IplROI roi = image.roi();
+            if (roi != null) {
+                x = roi.xOffset(); y = roi.yOffset();
+                w = roi.width();   h = roi.height();
+            }
+            if (header == null || headerImage != image || headerData != data || headerX != x
+                    || headerY != y || headerWidth != w || headerHeight != h || headerStep != step) {
+                header = cvarrToMat(image);
+                headerImage = image;
+                headerData = data;
+                headerX = x; headerY = y;
+                headerWidth = w; headerHeight = h;
+                headerStep = step;
+            }
+            return header;
+        }
+
+        void addPair(int objectIndex, int imageIndex) {
+            if (pairs.length < 2*pairCount + 2) {
+                pairs = Arrays.copyOf(pairs, 2*pairs.length);
+            }
+            pairs[2*pairCount    ] = objectIndex;
+            pairs[2*pairCount + 1] = imageIndex;
+            pairCount++;
+        }
+    }
+
+    final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+        @Override protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
 
+    /**
+     * Locates the object with the workspace of the calling thread, so that a finder can be shared
+     * between threads, as long as its settings do not change. Returns the corners, as an array
+     * overwritten by the next call on the same thread, so callers keeping them should copy it, or null.
+     */
     public double[] find(IplImage image) {
+        return find(image, workspace.get());
+    }
+
+    /** Same as {@link #find(Mat, Workspace)}, reusing the Mat header of the workspace over the image. */
+    public double[] find(IplImage image, Workspace ws) {
+        return find(ws.header(image), ws);
+    }
+
+    /**
+     * Locates the object in the image using only the given workspace, which then also holds
+     * the pairs matched. Once the buffers of the workspace have grown large enough, no Java
+     * arrays get allocated. Returns the corners of the object, as an array owned by the
+     * workspace and overwritten by its next call, or null if the object was not found.
+     */
+    public double[] find(Mat image, Workspace ws) {
+        ws.pairCount = 0;
         if (objectDescriptors.rows() < settings.getMatchesMin()) {
             return null;
         }
-        imageKeypoints = new KeyPointVector();
-        imageDescriptors = new Mat();
-        settings.detector.detectAndCompute(cvarrToMat(image),
-                new Mat(), imageKeypoints, imageDescriptors, false);
-        if (imageDescriptors.rows() < settings.getMatchesMin()) {
+        detector(ws).detectAndCompute(image, ws.noMask, ws.imageKeypoints, ws.imageDescriptors, false);
+        if (ws.imageDescriptors.rows() < settings.getMatchesMin()) {
             return null;
         }
 
-        int total = (int)imageKeypoints.size();
-        logger.info(total + " image descriptors");
+        int total = (int)ws.imageKeypoints.size();
+        logger.fine(total + " image descriptors");
 
-        int w = settings.objectImage.width();
-        int h = settings.objectImage.height();
-        double[] srcCorners = {0, 0,  w, 0,  w, h,  0, h};
-        double[] dstCorners = locatePlanarObject(objectKeypoints, objectDescriptors,
-                imageKeypoints, imageDescriptors, srcCorners);
-        return dstCorners;
+        return locatePlanarObject(ws, srcCorners, ws.dstCorners);
     }
 
-    static final int[] bits = new int[256];
-    static {
-        for (int i = 0; i < bits.length; i++) {
-            for (int j = i; j != 0; j >>= 1) {
-                bits[i] += j & 0x1;
-            }
+    /** Returns the detector of the workspace, created anew when the settings or their parameters change. */
+    AKAZE detector(Workspace ws) {
+        if (ws.detector == null || ws.detectorSettings != settings || ws.detectorVersion != settings.detectorVersion) {
+            ws.detector = settings.createDetector();
+            ws.detectorSettings = settings;
+            ws.detectorVersion = settings.detectorVersion;
         }
+        return ws.detector;
     }
 
-    int compareDescriptors(ByteBuffer d1, ByteBuffer d2, int best) {
-        int totalCost = 0;
-        assert d1.limit() - d1.position() == d2.limit() - d2.position();
-        while (d1.position() < d1.limit()) {
-            totalCost += bits[(d1.get() ^ d2.get()) & 0xFF];
-            if (totalCost > best)
-                break;
+    /** Rows of descriptors handled at once, to keep image descriptors in cache while comparing. */
+    static final int OBJECT_BLOCK = 16, IMAGE_BLOCK = 256;
+
+    /**
+     * Packs each row of binary descriptors into 64-bit words, padded with zeros, and returns
+     * the array, reallocated only when too small. Hamming distances stay the same.
+     */
+    static long[] packDescriptors(Mat descriptors, long[] bits) {
+        int rows = descriptors.rows(), size = descriptors.cols(), words = (size + 7)/8;
+        if (bits == null || bits.length < rows*words) {
+            bits = new long[rows*words];
+        }
+        if (rows == 0) {
+            return bits;
+        }
+        ByteBuffer buf = ((ByteBuffer)descriptors.createBuffer()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < rows; i++) {
+            int p = i*size, q = i*words;
+            for (int k = 0; k < words; k++, p += 8) {
+                if (p + 8 <= (i + 1)*size) {
+                    bits[q + k] = buf.getLong(p);
+                } else {
+                    long w = 0;
+                    for (int m = 0; p + m < (i + 1)*size; m++) {
+                        w |= (buf.get(p + m) & 0xFFL) << (8*m);
+                    }
+                    bits[q + k] = w;
+                }
+            }
         }
-        return totalCost;
+        return bits;
     }
 
-    int naiveNearestNeighbor(ByteBuffer vec, ByteBuffer modelDescriptors) {
-        int neighbor = -1;
-        int d, dist1 = Integer.MAX_VALUE, dist2 = Integer.MAX_VALUE;
-        int size = vec.limit() - vec.position();
-
-        for (int i = 0; i * size < modelDescriptors.capacity(); i++) {
-            ByteBuffer mvec = (ByteBuffer)modelDescriptors.position(i * size).limit((i + 1) * size);
-            d = compareDescriptors((ByteBuffer)vec.reset(), mvec, dist2);
-            if (d < dist1) {
-                dist2 = dist1;
-                dist1 = d;
-                neighbor = i;
-            } else if (d < dist2) {
-                dist2 = d;
+    /**
+     * Copies the {x, y} coordinates of all keypoints into the array, reallocated only when too small.
+     * Reads them directly from the memory of the vector, where each KeyPoint starts with its Point2f,
+     * to avoid creating two Java objects per keypoint.
+     */
+    static float[] keypointCoordinates(KeyPointVector keypoints, float[] xy) {
+        int n = (int)keypoints.size();
+        if (xy == null || xy.length < 2*n) {
+            xy = new float[Math.max(2*n, 16)];
+        }
+        if (n > 0) {
+            int stride = Loader.sizeof(KeyPoint.class)/4;
+            FloatPointer p = new FloatPointer(keypoints.get(0));
+            for (int i = 0; i < n; i++) {
+                xy[2*i    ] = p.get(i*stride    );
+                xy[2*i + 1] = p.get(i*stride + 1);
             }
         }
-        if (dist1 < settings.distanceThreshold*dist2)
-            return neighbor;
-        return -1;
+        return xy;
     }
 
-    void findPairs(Mat objectDescriptors, Mat imageDescriptors) {
-        int size = imageDescriptors.cols();
-        ByteBuffer objectBuf = objectDescriptors.createBuffer();
-        ByteBuffer imageBuf = imageDescriptors.createBuffer();
-
-        for (int i = 0; i * size < objectBuf.capacity(); i++) {
-            ByteBuffer descriptor = (ByteBuffer)objectBuf.position(i * size).limit((i + 1) * size).mark();
-            int nearestNeighbor = naiveNearestNeighbor(descriptor, imageBuf);
-            if (nearestNeighbor >= 0) {
-                ptpairs.add(i);
-                ptpairs.add(nearestNeighbor);
+    /**
+     * Finds for each object descriptor the nearest image descriptor by brute force, and keeps the
+     * pair if it is sufficiently closer than the second nearest one. Distances get computed with
+     * {@link Long#bitCount(long)} on packed descriptors, over blocks of rows, in parallel.
+     */
+    void findPairs(Workspace ws) {
+        final int objectRows = objectDescriptors.rows();
+        final int imageRows = ws.imageDescriptors.rows();
+        final int words = (ws.imageDescriptors.cols() + 7)/8;
+        ws.imageBits = packDescriptors(ws.imageDescriptors, ws.imageBits);
+        if (ws.neighbors == null || ws.neighbors.length < objectRows) {
+            ws.neighbors = new int[objectRows];
+            ws.dists1 = new int[objectRows];
+            ws.dists2 = new int[objectRows];
+        }
+        final long[] objectBits = this.objectBits, imageBits = ws.imageBits;
+        final int[] neighbors = ws.neighbors, dists1 = ws.dists1, dists2 = ws.dists2;
+        final double distanceThreshold = settings.distanceThreshold;
+
+        Parallel.loop(0, objectRows, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i0 = from; i0 < to; i0 += OBJECT_BLOCK) {
+                int i1 = Math.min(i0 + OBJECT_BLOCK, to);
+                for (int i = i0; i < i1; i++) {
+                    neighbors[i] = -1;
+                    dists1[i] = dists2[i] = Integer.MAX_VALUE;
+                }
+                for (int j0 = 0; j0 < imageRows; j0 += IMAGE_BLOCK) {
+                    int j1 = Math.min(j0 + IMAGE_BLOCK, imageRows);
+                    for (int i = i0; i < i1; i++) {
+                        int neighbor = neighbors[i], dist1 = dists1[i], dist2 = dists2[i];
+                        int p = i*words;
+                        for (int j = j0, q = j0*words; j < j1; j++, q += words) {
+                            int d = 0;
+                            for (int k = 0; k < words; k++) {
+                                d += Long.bitCount(objectBits[p + k] ^ imageBits[q + k]);
+                            }
+                            if (d < dist1) {
+                                dist2 = dist1;
+                                dist1 = d;
+                                neighbor = j;
+                            } else if (d < dist2) {
+                                dist2 = d;
+                            }
+                        }
+                        neighbors[i] = neighbor;
+                        dists1[i] = dist1;
+                        dists2[i] = dist2;
+                    }
+                }
+                for (int i = i0; i < i1; i++) {
+                    if (!(dists1[i] < distanceThreshold*dists2[i])) {
+                        neighbors[i] = -1;
+                    }
+                }
+            }
+        }});
+
+        for (int i = 0; i < objectRows; i++) {
+            if (neighbors[i] >= 0) {
+                ws.addPair(i, neighbors[i]);
             }
         }
     }
 
-    void flannFindPairs(Mat objectDescriptors, Mat imageDescriptors) {
+    void flannFindPairs(Workspace ws) {
         int length = objectDescriptors.rows();
+        if (ws.flannIndex == null) {
+            ws.flannIndex = new Index();
+            ws.indexParams = new LshIndexParams(12, 20, 2); // using LSH Hamming distance
+            ws.searchParams = new SearchParams(64, 0, true); // maximum number of leafs checked
+            ws.searchParams.deallocate(false); // for some reason FLANN seems to do it for us
+        }
 
         // find nearest neighbors using FLANN
-        flannIndex.build(imageDescriptors, indexParams, FLANN_DIST_HAMMING);
-        flannIndex.knnSearch(objectDescriptors, indicesMat, distsMat, 2, searchParams);
+        ws.flannIndex.build(ws.imageDescriptors, ws.indexParams, FLANN_DIST_HAMMING);
+        ws.flannIndex.knnSearch(objectDescriptors, ws.indicesMat, ws.distsMat, 2, ws.searchParams);
 
-        IntBuffer indicesBuf = indicesMat.createBuffer();
-        IntBuffer distsBuf = distsMat.createBuffer();
+        IntBuffer indicesBuf = ws.indicesMat.createBuffer();
+        IntBuffer distsBuf = ws.distsMat.createBuffer();
         for (int i = 0; i < length; i++) {
             if (distsBuf.get(2*i) < settings.distanceThreshold*distsBuf.get(2*i+1)) {
-                ptpairs.add(i);
-                ptpairs.add(indicesBuf.get(2*i));
+                ws.addPair(i, indicesBuf.get(2*i));
             }
         }
     }
 
     /** a rough implementation for object location */
-    double[] locatePlanarObject(KeyPointVector objectKeypoints, Mat objectDescriptors,
-            KeyPointVector imageKeypoints, Mat imageDescriptors, double[] srcCorners) {
-        ptpairs.clear();
+    double[] locatePlanarObject(Workspace ws, double[] srcCorners, double[] dstCorners) {
+        ws.pairCount = 0;
         if (settings.useFLANN) {
-            flannFindPairs(objectDescriptors, imageDescriptors);
+            flannFindPairs(ws);
         } else {
-            findPairs(objectDescriptors, imageDescriptors);
+            findPairs(ws);
         }
-        int n = ptpairs.size()/2;
-        logger.info(n + " matching pairs found");
+        int n = ws.pairCount;
+        logger.fine(n + " matching pairs found");
         if (n < settings.matchesMin) {
             return null;
         }
 
-        pt1 .resize(n);
-        pt2 .resize(n);
-        mask.resize(n);
-        FloatBuffer pt1Idx = pt1.createBuffer();
-        FloatBuffer pt2Idx = pt2.createBuffer();
+        ws.imagePoints = keypointCoordinates(ws.imageKeypoints, ws.imagePoints);
+        float[] objectPoints = this.objectPoints, imagePoints = ws.imagePoints;
+        int[] pairs = ws.pairs;
+        ws.pt1 .resize(n);
+        ws.pt2 .resize(n);
+        ws.mask.resize(n);
+        FloatBuffer pt1Idx = ws.pt1.createBuffer();
+        FloatBuffer pt2Idx = ws.pt2.createBuffer();
         for (int i = 0; i < n; i++) {
-            Point2f p1 = objectKeypoints.get(ptpairs.get(2*i)).pt();
-            pt1Idx.put(2*i, p1.x()); pt1Idx.put(2*i+1, p1.y());
-            Point2f p2 = imageKeypoints.get(ptpairs.get(2*i+1)).pt();
-            pt2Idx.put(2*i, p2.x()); pt2Idx.put(2*i+1, p2.y());
+            int p1 = 2*pairs[2*i], p2 = 2*pairs[2*i+1];
+            pt1Idx.put(2*i, objectPoints[p1]); pt1Idx.put(2*i+1, objectPoints[p1+1]);
+            pt2Idx.put(2*i, imagePoints[p2]);  pt2Idx.put(2*i+1, imagePoints[p2+1]);
         }
 
-        H = findHomography(pt1, pt2, CV_RANSAC, settings.ransacReprojThreshold, mask, 2000, 0.995);
-        if (H.empty() || countNonZero(mask) < settings.matchesMin) {
+        Mat H = findHomography(ws.pt1, ws.pt2, CV_RANSAC, settings.ransacReprojThreshold, ws.mask, 2000, 0.995);
+        if (H.empty() || countNonZero(ws.mask) < settings.matchesMin) {
             return null;
         }
 
-        double[] h = (double[])H.createIndexer(false).array();
-        double[] dstCorners = new double[srcCorners.length];
+        ((DoubleBuffer)H.createBuffer()).get(ws.homography);
+        return transform(ws.homography, srcCorners, dstCorners);
+    }
+
+    /** Applies the homography h to the {x, y} pairs of srcCorners, and stores the results in dstCorners. */
+    static double[] transform(double[] h, double[] srcCorners, double[] dstCorners) {
         for(int i = 0; i < srcCorners.length/2; i++) {
             double x = srcCorners[2*i], y = srcCorners[2*i + 1];
             double Z = 1/(h[6]*x + h[7]*y + h[8]);
@@ -361,8 +562,9 @@ public class ObjectFinder {
         settings.ransacReprojThreshold = 5;
         ObjectFinder finder = new ObjectFinder(settings);
 
+        ObjectFinder.Workspace workspace = new ObjectFinder.Workspace();
         long start = System.currentTimeMillis();
-        double[] dst_corners = finder.find(image);
+        double[] dst_corners = finder.find(image, workspace);
         System.out.println("Finding time = " + (System.currentTimeMillis() - start) + " ms");
 
         if (dst_corners !=  null) {
@@ -378,9 +580,10 @@ public class ObjectFinder {
             }
         }
 
-        for (int i = 0; i < finder.ptpairs.size(); i += 2) {
-            Point2f pt1 = finder.objectKeypoints.get(finder.ptpairs.get(i)).pt();
-            Point2f pt2 = finder.imageKeypoints.get(finder.ptpairs.get(i + 1)).pt();
+        int[] pairs = workspace.getPairs();
+        for (int i = 0; i < 2*workspace.getPairCount(); i += 2) {
+            Point2f pt1 = finder.objectKeypoints.get(pairs[i]).pt();
+            Point2f pt2 = workspace.getImageKeypoints().get(pairs[i + 1]).pt();
             line(cvarrToMat(correspond), new Point(Math.round(pt1.x()), Math.round(pt1.y())),
                     new Point(Math.round(pt2.x()), Math.round(pt2.y() + object.height())),
                     Scalar.WHITE, 1, 8, 0);
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2012 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -22,16 +22,28 @@
 
 package org.bytedeco.javacv;
 
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Runs loops and tasks on the {@link ExecutorRegistry#PARALLEL} executor, by
+ * default a shared {@link ForkJoinPool} of daemon threads. Calls made from inside
+ * a running loop or task, for example {@link cvkernels#multiWarpColorTransform}
+ * invoked by {@link GNImageAligner}, execute inline on the calling thread instead
+ * of oversubscribing the cores.
  *
  * @author Samuel Audet
  */
 public class Parallel {
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
     public static final String NUM_THREADS = "org.bytedeco.javacv.numthreads";
 
     public static int getNumThreads() {
@@ -53,22 +65,76 @@ public class Parallel {
         return Runtime.getRuntime().availableProcessors();
     }
 
+    /** Nesting depth of parallel calls on the current thread, to run nested ones inline. */
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** Returns true when called from a thread already executing a parallel loop or task. */
+    public static boolean isNested() {
+        Thread t = Thread.currentThread();
+        return (t instanceof ForkJoinWorkerThread
+                && ((ForkJoinWorkerThread)t).getPool() == ExecutorRegistry.get(ExecutorRegistry.PARALLEL))
+                || depth.get()[0] > 0;
+    }
+
+    /** Returns {@code ExecutorRegistry.getMetrics(ExecutorRegistry.PARALLEL)}. */
+    public static ExecutorRegistry.Metrics getMetrics() {
+        return ExecutorRegistry.getMetrics(ExecutorRegistry.PARALLEL);
+    }
+
     public static void run(Runnable ... runnables) {
-        if (runnables.length == 1) {
-            runnables[0].run();
+        if (runnables.length == 1 || isNested()) {
+            for (Runnable r : runnables) {
+                r.run();
+            }
             return;
         }
 
+        ExecutorService threadPool = ExecutorRegistry.get(ExecutorRegistry.PARALLEL);
+        final ExecutorRegistry.Metrics metrics = getMetrics();
         Future[] futures = new Future[runnables.length];
-        for (int i = 0; i < runnables.length; i++) {
-            futures[i] = threadPool.submit(runnables[i]);
+        // set by whichever comes first, the task starting or getting cancelled, to update the metrics once
+        final AtomicBoolean[] claimed = new AtomicBoolean[runnables.length];
+        for (int i = 1; i < runnables.length; i++) {
+            final Runnable r = runnables[i];
+            final AtomicBoolean c = claimed[i] = new AtomicBoolean();
+            final long submitTime = metrics.submitted();
+            futures[i] = threadPool.submit(new Callable<Void>() { public Void call() {
+                if (!c.compareAndSet(false, true)) {
+                    return null;
+                }
+                long startTime = metrics.started(submitTime);
+                boolean success = false;
+                int[] d = depth.get();
+                d[0]++;
+                try {
+                    r.run();
+                    success = true;
+                } finally {
+                    d[0]--;
+                    metrics.finished(startTime, success);
+                }
+                return null;
+            }});
         }
 
         Throwable error = null;
+        int[] d = depth.get();
+        d[0]++;
         try {
-            for (Future f : futures) {
-                if (!f.isDone()) {
-                    f.get();
+            runnables[0].run();
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            d[0]--;
+        }
+        try {
+            for (int i = 1; i < futures.length; i++) {
+                if (error == null && !futures[i].isDone()) {
+                    futures[i].get();
                 }
             }
         } catch (Throwable t) {
@@ -76,8 +142,11 @@ public class Parallel {
         }
 
         if (error != null) {
-            for (Future f : futures) {
-                f.cancel(true);
+            for (int i = 1; i < futures.length; i++) {
+                if (claimed[i].compareAndSet(false, true)) {
+                    metrics.cancelled();
+                }
+                futures[i].cancel(true);
             }
             throw new RuntimeException(error);
         }
@@ -87,22 +156,226 @@ public class Parallel {
         void loop(int from, int to, int looperID);
     }
 
+    /**
+     * A {@link Looper} that does not keep state across calls, so its range can
+     * be split into chunks scheduled dynamically: loop() may get called several
+     * times with the same looperID, but never concurrently.
+     */
+    public interface AdaptiveLooper extends Looper { }
+
+    /** Load imbalance collected for loops of a given {@link Looper} class. */
+    public static class LoopStatistics {
+        long loops, totalNanos, maxNanos;
+        double imbalanceSum, maxImbalance;
+
+        synchronized void add(long elapsedNanos, double imbalance) {
+            loops++;
+            totalNanos += elapsedNanos;
+            maxNanos = Math.max(maxNanos, elapsedNanos);
+            imbalanceSum += imbalance;
+            maxImbalance = Math.max(maxImbalance, imbalance);
+        }
+
+        public synchronized long getLoopCount() {
+            return loops;
+        }
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+        public synchronized long getMaxNanos() {
+            return maxNanos;
+        }
+        /** Returns the mean of (busiest looper time / average looper time - 1) over all loops. */
+        public synchronized double getMeanImbalance() {
+            return loops > 0 ? imbalanceSum / loops : 0;
+        }
+        public synchronized double getMaxImbalance() {
+            return maxImbalance;
+        }
+
+        @Override public synchronized String toString() {
+            return "loops = " + loops + ", mean time = " + (loops > 0 ? totalNanos / loops / 1000 : 0)
+                    + " us, max time = " + maxNanos / 1000 + " us, mean imbalance = " + (float)getMeanImbalance()
+                    + ", max imbalance = " + (float)maxImbalance;
+        }
+    }
+
+    private static volatile boolean statisticsEnabled = false;
+    private static final ConcurrentMap<Class, LoopStatistics> statistics = new ConcurrentHashMap<Class, LoopStatistics>();
+
+    public static boolean isStatisticsEnabled() {
+        return statisticsEnabled;
+    }
+    public static void setStatisticsEnabled(boolean enabled) {
+        statisticsEnabled = enabled;
+    }
+    /** Returns statistics per {@link Looper} class, filled only when {@link #isStatisticsEnabled()}. */
+    public static Map<Class, LoopStatistics> getStatistics() {
+        return statistics;
+    }
+    public static void resetStatistics() {
+        statistics.clear();
+    }
+
+    /**
+     * Reusable task executing one looperID, either over a static range or over chunks taken from a shared counter.
+     * It can also be passed as a Runnable to executors other than {@link ForkJoinPool}.
+     */
+    @SuppressWarnings("serial")
+    static class LoopTask extends ForkJoinTask<Void> implements Runnable {
+        Looper looper;
+        AtomicInteger next;
+        int from, to, chunk, looperID;
+        long submitTime, busyNanos;
+        ExecutorRegistry.Metrics metrics;
+
+        @Override public Void getRawResult() { return null; }
+        @Override protected void setRawResult(Void value) { }
+
+        @Override public void run() {
+            quietlyInvoke();
+        }
+
+        @Override protected boolean exec() {
+            long start = metrics != null ? metrics.started(submitTime) : System.nanoTime();
+            boolean success = false;
+            int[] d = depth.get();
+            d[0]++;
+            try {
+                if (next == null) {
+                    looper.loop(from, to, looperID);
+                } else {
+                    int subFrom;
+                    while ((subFrom = next.getAndAdd(chunk)) < to) {
+                        looper.loop(subFrom, Math.min(subFrom + chunk, to), looperID);
+                    }
+                }
+                success = true;
+            } finally {
+                d[0]--;
+                looper = null;
+                busyNanos = System.nanoTime() - start;
+                if (metrics != null) {
+                    metrics.finished(start, success);
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Tasks and counter cached per calling thread, so loops do not allocate once warmed up. */
+    static class LoopContext {
+        LoopTask[] tasks = new LoopTask[0];
+        final AtomicInteger next = new AtomicInteger();
+
+        LoopTask[] tasks(int n) {
+            if (tasks.length < n) {
+                LoopTask[] t = new LoopTask[n];
+                for (int i = 0; i < n; i++) {
+                    t[i] = i < tasks.length ? tasks[i] : new LoopTask();
+                }
+                tasks = t;
+            }
+            return tasks;
+        }
+    }
+    private static final ThreadLocal<LoopContext> loopContext = new ThreadLocal<LoopContext>() {
+        @Override protected LoopContext initialValue() {
+            return new LoopContext();
+        }
+    };
+
     public static void loop(int from, int to, final Looper looper) {
         loop(from, to, getNumThreads(), looper);
     }
     public static void loop(int from, int to, int numThreads, final Looper looper) {
         int numLoopers = Math.min(to-from, numThreads > 0 ? numThreads : getNumCores());
-        Runnable[] runnables = new Runnable[numLoopers];
+        if (numLoopers <= 0) {
+            return;
+        }
+        if (numLoopers == 1 || isNested()) {
+            int[] d = depth.get();
+            d[0]++;
+            try {
+                looper.loop(from, to, 0);
+            } finally {
+                d[0]--;
+            }
+            return;
+        }
+
+        long start = statisticsEnabled ? System.nanoTime() : 0;
+        ExecutorService threadPool = ExecutorRegistry.get(ExecutorRegistry.PARALLEL);
+        ExecutorRegistry.Metrics metrics = getMetrics();
+        LoopContext context = loopContext.get();
+        LoopTask[] tasks = context.tasks(numLoopers);
+        boolean adaptive = looper instanceof AdaptiveLooper;
+        // guided scheduling: chunks small enough to let idle loopers steal work,
+        // large enough to keep the overhead of the shared counter negligible
+        int chunk = Math.max(1, (to-from) / (4*numLoopers));
+        context.next.set(from);
         for (int i = 0; i < numLoopers; i++) {
-            final int subFrom = (to-from)*i/numLoopers + from;
-            final int subTo = (to-from)*(i+1)/numLoopers + from;
-            final int looperID = i;
-            runnables[i] = new Runnable() {
-                public void run() {
-                    looper.loop(subFrom, subTo, looperID);
+            LoopTask t = tasks[i];
+            t.reinitialize();
+            t.looper = looper;
+            t.looperID = i;
+            t.busyNanos = 0;
+            t.metrics = i > 0 ? metrics : null;
+            if (adaptive) {
+                t.next = context.next;
+                t.from = from;
+                t.to = to;
+                t.chunk = chunk;
+            } else {
+                t.next = null;
+                t.from = (to-from)*i/numLoopers + from;
+                t.to = (to-from)*(i+1)/numLoopers + from;
+            }
+        }
+        for (int i = 1; i < numLoopers; i++) {
+            tasks[i].submitTime = metrics.submitted();
+            if (threadPool instanceof ForkJoinPool) {
+                ((ForkJoinPool)threadPool).execute((ForkJoinTask<?>)tasks[i]);
+            } else {
+                threadPool.execute((Runnable)tasks[i]);
+            }
+        }
+
+        Throwable error = null;
+        try {
+            tasks[0].invoke();
+        } catch (Throwable t) {
+            error = t;
+        }
+        for (int i = 1; i < numLoopers; i++) {
+            try {
+                tasks[i].join();
+            } catch (Throwable t) {
+                if (error == null) {
+                    error = t;
                 }
-            };
+            }
+        }
+        if (error != null) {
+            throw error instanceof RuntimeException ? (RuntimeException)error : new RuntimeException(error);
+        }
+
+        if (statisticsEnabled) {
+            long total = 0, max = 0;
+            for (int i = 0; i < numLoopers; i++) {
+                total += tasks[i].busyNanos;
+                max = Math.max(max, tasks[i].busyNanos);
+            }
+            double mean = (double)total / numLoopers;
+            Class c = looper.getClass();
+            LoopStatistics s = statistics.get(c);
+            if (s == null) {
+                LoopStatistics other = statistics.putIfAbsent(c, s = new LoopStatistics());
+                if (other != null) {
+                    s = other;
+                }
+            }
+            s.add(System.nanoTime() - start, mean > 0 ? max / mean - 1 : 0);
         }
-        run(runnables);
     }
 }
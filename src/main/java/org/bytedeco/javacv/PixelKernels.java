@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Per-pixel kernels working on NIO buffers one block of elements at a time.
+ * Each block gets copied in bulk to a primitive array, processed by a simple
+ * counted loop that the JIT can unroll and vectorize, and copied back. Blocks
+ * are distributed over threads with {@link Parallel}.
+ *
+ * @author Samuel Audet
+ */
+class PixelKernels {
+    private PixelKernels() { }
+
+    /** Number of elements processed per block, small enough to stay in the L1 cache. */
+    static final int BLOCK_SIZE = 4096;
+
+    /** Staging arrays reused by each thread. */
+    static class Scratch {
+        byte[] bytes = new byte[0];
+        short[] shorts = new short[0];
+        int[] ints = new int[0];
+        float[] floats = new float[0];
+        double[] doubles = new double[0];
+        float[] pixel = new float[0];
+        byte[][] images = { new byte[0], new byte[0] };
+
+        byte[] bytes(int n) {
+            return bytes.length >= n ? bytes : (bytes = new byte[n]);
+        }
+        short[] shorts(int n) {
+            return shorts.length >= n ? shorts : (shorts = new short[n]);
+        }
+        int[] ints(int n) {
+            return ints.length >= n ? ints : (ints = new int[n]);
+        }
+        float[] floats(int n) {
+            return floats.length >= n ? floats : (floats = new float[n]);
+        }
+        double[] doubles(int n) {
+            return doubles.length >= n ? doubles : (doubles = new double[n]);
+        }
+        /** Returns the channels of a single pixel, separate from the blocks used by the kernels. */
+        float[] pixel(int n) {
+            return pixel.length >= n ? pixel : (pixel = new float[n]);
+        }
+        /** Returns whole images, separate from the blocks used by the kernels. */
+        byte[] image(int i, int n) {
+            return images[i].length >= n ? images[i] : (images[i] = new byte[n]);
+        }
+    }
+    static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    static int blocks(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Integer bounds equivalent to {@code (int)Math.max(Math.min(v, max), min)} for integer values of v:
+     * values above {@code hi} map to {@code above}, values below {@code lo} map to {@code below}.
+     */
+    static class IntBounds {
+        final int lo, hi, above, below;
+        final boolean simple;
+        IntBounds(double min, double max, int typeMin, int typeMax) {
+            double hiD = Math.floor(max), loD = Math.ceil(min);
+            hi = (int)Math.max(Math.min(hiD, typeMax), typeMin - 1L);
+            lo = (int)Math.min(Math.max(loD, typeMin), typeMax + 1L);
+            above = (int)Math.max(max, min);
+            below = (int)min;
+            simple = lo <= hi && above == hi && below == lo;
+        }
+    }
+
+    static void clamp(int[] a, int n, IntBounds b) {
+        if (b.simple) {
+            int lo = b.lo, hi = b.hi;
+            for (int i = 0; i < n; i++) {
+                a[i] = Math.max(Math.min(a[i], hi), lo);
+            }
+        } else {
+            int lo = b.lo, hi = b.hi, above = b.above, below = b.below;
+            for (int i = 0; i < n; i++) {
+                int v = a[i];
+                a[i] = v > hi ? above : v < lo ? below : v;
+            }
+        }
+    }
+
+    /** Clamps all elements of the buffers as 8-bit values, unsigned or not. */
+    static void clamp(final ByteBuffer src, final ByteBuffer dst, final boolean signed, double min, double max) {
+        final int length = Math.min(src.capacity(), dst.capacity());
+        final IntBounds b = signed ? new IntBounds(min, max, Byte.MIN_VALUE, Byte.MAX_VALUE) : new IntBounds(min, max, 0, 0xFF);
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            Scratch s = scratch.get();
+            byte[] bytes = s.bytes(BLOCK_SIZE);
+            int[] ints = s.ints(BLOCK_SIZE);
+            ByteBuffer sb = src.duplicate(), db = dst.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                sb.limit(offset + n).position(offset);
+                sb.get(bytes, 0, n);
+                if (signed) {
+                    for (int i = 0; i < n; i++) {
+                        ints[i] = bytes[i];
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        ints[i] = bytes[i] & 0xFF;
+                    }
+                }
+                clamp(ints, n, b);
+                for (int i = 0; i < n; i++) {
+                    bytes[i] = (byte)ints[i];
+                }
+                db.limit(offset + n).position(offset);
+                db.put(bytes, 0, n);
+            }
+        }});
+    }
+
+    /** Clamps all elements of the buffers as 16-bit values, unsigned or not. */
+    static void clamp(final ShortBuffer src, final ShortBuffer dst, final boolean signed, double min, double max) {
+        final int length = Math.min(src.capacity(), dst.capacity());
+        final IntBounds b = signed ? new IntBounds(min, max, Short.MIN_VALUE, Short.MAX_VALUE) : new IntBounds(min, max, 0, 0xFFFF);
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            Scratch s = scratch.get();
+            short[] shorts = s.shorts(BLOCK_SIZE);
+            int[] ints = s.ints(BLOCK_SIZE);
+            ShortBuffer sb = src.duplicate(), db = dst.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                sb.limit(offset + n).position(offset);
+                sb.get(shorts, 0, n);
+                if (signed) {
+                    for (int i = 0; i < n; i++) {
+                        ints[i] = shorts[i];
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        ints[i] = shorts[i] & 0xFFFF;
+                    }
+                }
+                clamp(ints, n, b);
+                for (int i = 0; i < n; i++) {
+                    shorts[i] = (short)ints[i];
+                }
+                db.limit(offset + n).position(offset);
+                db.put(shorts, 0, n);
+            }
+        }});
+    }
+
+    /** Clamps all elements of the buffers as 32-bit signed integers. */
+    static void clamp(final IntBuffer src, final IntBuffer dst, final double min, final double max) {
+        final int length = Math.min(src.capacity(), dst.capacity());
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            int[] ints = scratch.get().ints(BLOCK_SIZE);
+            IntBuffer sb = src.duplicate(), db = dst.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                sb.limit(offset + n).position(offset);
+                sb.get(ints, 0, n);
+                for (int i = 0; i < n; i++) {
+                    ints[i] = (int)Math.max(Math.min(ints[i], max), min);
+                }
+                db.limit(offset + n).position(offset);
+                db.put(ints, 0, n);
+            }
+        }});
+    }
+
+    /** Clamps all elements of the buffers as 32-bit floats. */
+    static void clamp(final FloatBuffer src, final FloatBuffer dst, double min, double max) {
+        final int length = Math.min(src.capacity(), dst.capacity());
+        final float lo = (float)min, hi = (float)max;
+        final boolean exact = lo == min && hi == max;
+        final double dmin = min, dmax = max;
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            float[] floats = scratch.get().floats(BLOCK_SIZE);
+            FloatBuffer sb = src.duplicate(), db = dst.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                sb.limit(offset + n).position(offset);
+                sb.get(floats, 0, n);
+                if (exact) {
+                    for (int i = 0; i < n; i++) {
+                        floats[i] = Math.max(Math.min(floats[i], hi), lo);
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        floats[i] = (float)Math.max(Math.min(floats[i], dmax), dmin);
+                    }
+                }
+                db.limit(offset + n).position(offset);
+                db.put(floats, 0, n);
+            }
+        }});
+    }
+
+    /** Clamps all elements of the buffers as 64-bit floats. */
+    static void clamp(final DoubleBuffer src, final DoubleBuffer dst, final double min, final double max) {
+        final int length = Math.min(src.capacity(), dst.capacity());
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            double[] doubles = scratch.get().doubles(BLOCK_SIZE);
+            DoubleBuffer sb = src.duplicate(), db = dst.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                sb.limit(offset + n).position(offset);
+                sb.get(doubles, 0, n);
+                for (int i = 0; i < n; i++) {
+                    doubles[i] = Math.max(Math.min(doubles[i], max), min);
+                }
+                db.limit(offset + n).position(offset);
+                db.put(doubles, 0, n);
+            }
+        }});
+    }
+
+    /** Replaces in place the 8-bit elements of the buffer between its position and limit by {@code table[element & 0xFF]}. */
+    static void lookup(final ByteBuffer buffer, final byte[] table) {
+        final int position = buffer.position(), length = buffer.limit() - position;
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            byte[] bytes = scratch.get().bytes(BLOCK_SIZE);
+            ByteBuffer b = buffer.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                b.limit(position + offset + n).position(position + offset);
+                b.get(bytes, 0, n);
+                for (int i = 0; i < n; i++) {
+                    bytes[i] = table[bytes[i] & 0xFF];
+                }
+                b.position(position + offset);
+                b.put(bytes, 0, n);
+            }
+        }});
+    }
+
+    /** Replaces in place the 16-bit elements of the buffer between its position and limit by {@code table[element & 0xFFFF]}. */
+    static void lookup(final ShortBuffer buffer, final short[] table) {
+        final int position = buffer.position(), length = buffer.limit() - position;
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            short[] shorts = scratch.get().shorts(BLOCK_SIZE);
+            ShortBuffer b = buffer.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                b.limit(position + offset + n).position(position + offset);
+                b.get(shorts, 0, n);
+                for (int i = 0; i < n; i++) {
+                    shorts[i] = table[shorts[i] & 0xFFFF];
+                }
+                b.position(position + offset);
+                b.put(shorts, 0, n);
+            }
+        }});
+    }
+
+    /** Replaces in place the elements between position and limit by {@code (int)Math.round(Math.pow((double)element/scale, gamma)*scale)}. */
+    static void pow(final IntBuffer buffer, final double gamma, final double scale) {
+        final int position = buffer.position(), length = buffer.limit() - position;
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            int[] ints = scratch.get().ints(BLOCK_SIZE);
+            IntBuffer b = buffer.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                b.limit(position + offset + n).position(position + offset);
+                b.get(ints, 0, n);
+                for (int i = 0; i < n; i++) {
+                    ints[i] = (int)Math.round(Math.pow((double)ints[i]/scale, gamma)*scale);
+                }
+                b.position(position + offset);
+                b.put(ints, 0, n);
+            }
+        }});
+    }
+
+    /** Replaces in place the elements between position and limit by {@code (float)Math.pow(element, gamma)}. */
+    static void pow(final FloatBuffer buffer, final double gamma) {
+        final int position = buffer.position(), length = buffer.limit() - position;
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            float[] floats = scratch.get().floats(BLOCK_SIZE);
+            FloatBuffer b = buffer.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                b.limit(position + offset + n).position(position + offset);
+                b.get(floats, 0, n);
+                for (int i = 0; i < n; i++) {
+                    floats[i] = (float)Math.pow(floats[i], gamma);
+                }
+                b.position(position + offset);
+                b.put(floats, 0, n);
+            }
+        }});
+    }
+
+    /** Replaces in place the elements between position and limit by {@code Math.pow(element, gamma)}. */
+    static void pow(final DoubleBuffer buffer, final double gamma) {
+        final int position = buffer.position(), length = buffer.limit() - position;
+        Parallel.loop(0, blocks(length), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            double[] doubles = scratch.get().doubles(BLOCK_SIZE);
+            DoubleBuffer b = buffer.duplicate();
+            for (int k = from; k < to; k++) {
+                int offset = k * BLOCK_SIZE, n = Math.min(BLOCK_SIZE, length - offset);
+                b.limit(position + offset + n).position(position + offset);
+                b.get(doubles, 0, n);
+                for (int i = 0; i < n; i++) {
+                    doubles[i] = Math.pow(doubles[i], gamma);
+                }
+                b.position(position + offset);
+                b.put(doubles, 0, n);
+            }
+        }});
+    }
+
+    /**
+     * Classifies rows of 8-bit unsigned pixels from src into dst as {@code highValue} when
+     * {@code >= highThreshold}, {@code lowValue} when {@code < lowThreshold}, or else {@code medValue}.
+     */
+    static void classify(final byte[] src, final int srcStep, final byte[] dst, final int dstStep,
+            final int width, int height, final int lowThreshold, final int highThreshold,
+            final byte lowValue, final byte medValue, final byte highValue) {
+        Parallel.loop(0, height, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int y = from; y < to; y++) {
+                int s = y * srcStep, d = y * dstStep;
+                for (int x = 0; x < width; x++) {
+                    int in = src[s + x] & 0xFF;
+                    dst[d + x] = in >= highThreshold ? highValue : in < lowThreshold ? lowValue : medValue;
+                }
+            }
+        }});
+    }
+
+    /**
+     * Computes dst from src in a single pass, as cvRemap() with bilinear interpolation and
+     * zero outliers, followed by {@code mixing*pixel + additive} on the first three channels
+     * if mixing is not null, saturated for 8-bit images, and by cvResize() with CV_INTER_AREA
+     * from the size of src down by a factor of 2^level. Maps are either fixed-point (16SC2 and
+     * 16UC1) or floating-point (32FC1 and 32FC1), of the size of src, and floating-point
+     * coordinates get rounded to 1/32 of a pixel as cvRemap() does. Supports 8-bit unsigned
+     * and 32-bit floating-point images. Rows of dst are computed in parallel.
+     *
+     * @throws IllegalArgumentException if the sizes, depths, or channels of the images do not match
+     */
+    static void remapColorArea(IplImage src, IplImage map1, IplImage map2,
+            double[] mixing, double[] additive, IplImage dst, final int level) {
+        final int sw = src.width(), sh = src.height(), c = src.nChannels();
+        final int dw = dst.width();
+        if (dw != sw >> level || dst.height() != sh >> level || dw <= 0 || dst.height() <= 0) {
+            throw new IllegalArgumentException("Size of dst " + dw + "x" + dst.height() + " is not the size of src "
+                    + sw + "x" + sh + " down by 2^" + level + ".");
+        }
+        if (dst.depth() != src.depth() || dst.nChannels() != c) {
+            throw new IllegalArgumentException("Depth or channels of dst differ from the ones of src.");
+        }
+        if (map1.width() != sw || map1.height() != sh || map2.width() != sw || map2.height() != sh) {
+            throw new IllegalArgumentException("Size of the maps " + map1.width() + "x" + map1.height()
+                    + " is not the size of src " + sw + "x" + sh + ".");
+        }
+        final boolean bytes = src.depth() == IPL_DEPTH_8U;
+        final boolean fixed = map1.depth() == IPL_DEPTH_16S;
+        final ByteBuffer srcBytes = bytes ? src.getByteBuffer() : null, dstBytes = bytes ? dst.getByteBuffer() : null;
+        final FloatBuffer srcFloats = bytes ? null : src.getFloatBuffer(), dstFloats = bytes ? null : dst.getFloatBuffer();
+        final ShortBuffer map1Shorts = fixed ? map1.getShortBuffer() : null, map2Shorts = fixed ? map2.getShortBuffer() : null;
+        final FloatBuffer map1Floats = fixed ? null : map1.getFloatBuffer(), map2Floats = fixed ? null : map2.getFloatBuffer();
+        final int sstep = bytes ? src.widthStep() : src.widthStep()/4, dstep = bytes ? dst.widthStep() : dst.widthStep()/4;
+        final int mstep1 = map1.widthStep()/(fixed ? 2 : 4), mstep2 = map2.widthStep()/(fixed ? 2 : 4);
+        final float[] m = mixing != null && c >= 3 ? new float[12] : null;
+        if (m != null) {
+            for (int i = 0; i < 3; i++) {
+                m[4*i    ] = (float)mixing[3*i    ];
+                m[4*i + 1] = (float)mixing[3*i + 1];
+                m[4*i + 2] = (float)mixing[3*i + 2];
+                m[4*i + 3] = additive != null ? (float)additive[i] : 0;
+            }
+        }
+        Parallel.loop(0, dst.height(), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            Scratch s = scratch.get();
+            int f = 1 << level, n = f*dw, rowLength = dw*c;
+            int[] xy = s.ints(2*n);
+            short[] mapShorts = fixed ? s.shorts(3*n) : null;
+            float[] buf = s.floats(rowLength + (fixed ? 0 : 2*n)), v = s.pixel(c);
+            byte[] out = bytes ? s.bytes(rowLength) : null;
+            ShortBuffer m1s = fixed ? map1Shorts.duplicate() : null, m2s = fixed ? map2Shorts.duplicate() : null;
+            FloatBuffer m1f = fixed ? null : map1Floats.duplicate(), m2f = fixed ? null : map2Floats.duplicate();
+            float norm = 1f/(f*f);
+            for (int y = from; y < to; y++) {
+                Arrays.fill(buf, 0, rowLength, 0f);
+                for (int sy = 0; sy < f; sy++) {
+                    // load the coordinates of the samples, in units of 1/32 pixel
+                    int my = y*f + sy;
+                    if (fixed) {
+                        m1s.position(my*mstep1);
+                        m1s.get(mapShorts, 0, 2*n);
+                        m2s.position(my*mstep2);
+                        m2s.get(mapShorts, 2*n, n);
+                        for (int i = 0; i < n; i++) {
+                            int alpha = mapShorts[2*n + i] & 0x3FF;
+                            xy[2*i    ] = mapShorts[2*i    ]*32 + (alpha & 31);
+                            xy[2*i + 1] = mapShorts[2*i + 1]*32 + (alpha >> 5);
+                        }
+                    } else {
+                        m1f.position(my*mstep1);
+                        m1f.get(buf, rowLength, n);
+                        m2f.position(my*mstep2);
+                        m2f.get(buf, rowLength + n, n);
+                        for (int i = 0; i < n; i++) {
+                            xy[2*i    ] = Math.round(buf[rowLength + i    ]*32);
+                            xy[2*i + 1] = Math.round(buf[rowLength + n + i]*32);
+                        }
+                    }
+                    for (int i = 0; i < n; i++) {
+                        int sx = xy[2*i], x0 = sx >> 5, y0 = xy[2*i + 1] >> 5;
+                        float wx = (sx & 31)*(1f/32), wy = (xy[2*i + 1] & 31)*(1f/32);
+                        float w00 = (1 - wx)*(1 - wy), w01 = wx*(1 - wy), w10 = (1 - wx)*wy, w11 = wx*wy;
+                        boolean in00 = x0 >= 0 && x0 < sw && y0 >= 0 && y0 < sh,
+                                in01 = x0 + 1 >= 0 && x0 + 1 < sw && y0 >= 0 && y0 < sh,
+                                in10 = x0 >= 0 && x0 < sw && y0 + 1 >= 0 && y0 + 1 < sh,
+                                in11 = x0 + 1 >= 0 && x0 + 1 < sw && y0 + 1 >= 0 && y0 + 1 < sh;
+                        int p00 = y0*sstep + x0*c, p10 = p00 + sstep;
+                        for (int ch = 0; ch < c; ch++) {
+                            float a = 0;
+                            if (bytes) {
+                                if (in00) a += w00*(srcBytes.get(p00 + ch) & 0xFF);
+                                if (in01) a += w01*(srcBytes.get(p00 + c + ch) & 0xFF);
+                                if (in10) a += w10*(srcBytes.get(p10 + ch) & 0xFF);
+                                if (in11) a += w11*(srcBytes.get(p10 + c + ch) & 0xFF);
+                            } else {
+                                if (in00) a += w00*srcFloats.get(p00 + ch);
+                                if (in01) a += w01*srcFloats.get(p00 + c + ch);
+                                if (in10) a += w10*srcFloats.get(p10 + ch);
+                                if (in11) a += w11*srcFloats.get(p10 + c + ch);
+                            }
+                            v[ch] = a;
+                        }
+                        int d = (i/f)*c;
+                        if (m != null) {
+                            for (int k = 0; k < 3; k++) {
+                                float a = m[4*k]*v[0] + m[4*k + 1]*v[1] + m[4*k + 2]*v[2] + m[4*k + 3];
+                                buf[d + k] += bytes ? Math.max(Math.min(a, 255f), 0f) : a;
+                            }
+                            for (int ch = 3; ch < c; ch++) {
+                                buf[d + ch] += v[ch];
+                            }
+                        } else {
+                            for (int ch = 0; ch < c; ch++) {
+                                buf[d + ch] += v[ch];
+                            }
+                        }
+                    }
+                }
+                if (bytes) {
+                    for (int i = 0; i < rowLength; i++) {
+                        out[i] = (byte)Math.max(Math.min(Math.round(buf[i]*norm), 255), 0);
+                    }
+                    ByteBuffer b = dstBytes.duplicate();
+                    b.position(y*dstep);
+                    b.put(out, 0, rowLength);
+                } else {
+                    for (int i = 0; i < rowLength; i++) {
+                        buf[i] *= norm;
+                    }
+                    FloatBuffer b = dstFloats.duplicate();
+                    b.position(y*dstep);
+                    b.put(buf, 0, rowLength);
+                }
+            }
+        }});
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2011 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -181,6 +181,32 @@ public class ProCamGeometricCalibrator {
         return processCameraImage(cameraImage, 0);
     }
     public Marker[][] processCameraImage(IplImage cameraImage, final int cameraNumber) {
+        detectMarkers(cameraImage, cameraNumber);
+        return processMarkers(cameraNumber) ? 
+            new Marker[][] { lastDetectedMarkers1[cameraNumber],
+                             lastDetectedMarkers2[cameraNumber] } : null;
+    }
+
+    /**
+     * Same as calling processCameraImage(cameraImages[i], i) for each camera, but detects
+     * markers in all images concurrently, before processing them one camera at a time.
+     */
+    public Marker[][][] processCameraImages(final IplImage[] cameraImages) {
+        Parallel.loop(0, cameraImages.length, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int i = from; i < to; i++) {
+                detectMarkers(cameraImages[i], i);
+            }
+        }});
+        Marker[][][] markers = new Marker[cameraImages.length][][];
+        for (int i = 0; i < cameraImages.length; i++) {
+            markers[i] = processMarkers(i) ?
+                new Marker[][] { lastDetectedMarkers1[i], lastDetectedMarkers2[i] } : null;
+        }
+        return markers;
+    }
+
+    private void detectMarkers(IplImage cameraImage, final int cameraNumber) {
         cameraCalibrators[cameraNumber].getProjectiveDevice().imageWidth = cameraImage.width();
         cameraCalibrators[cameraNumber].getProjectiveDevice().imageHeight = cameraImage.height();
 
@@ -232,10 +258,6 @@ public class ProCamGeometricCalibrator {
                         markerDetectors[cameraNumber].detect(grayscaleImage[cameraNumber], projWhiteMarkers);
             }});
         }
-
-        return processMarkers(cameraNumber) ? 
-            new Marker[][] { lastDetectedMarkers1[cameraNumber],
-                             lastDetectedMarkers2[cameraNumber] } : null;
     }
 
     public void drawMarkers(IplImage image) {
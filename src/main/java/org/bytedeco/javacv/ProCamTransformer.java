@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2012 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -72,6 +72,8 @@ public class ProCamTransformer implements ImageTransformer {
     protected ProjectiveColorTransformer surfaceTransformer = null;
     protected ProjectiveColorTransformer projectorTransformer = null;
     protected IplImage[] projectorImage = null, surfaceImage = null;
+    protected ImagePyramid projectorPyramid = null, surfacePyramid = null;
+    private IplImage[] projectorPyramidImages = null, surfacePyramidImages = null;
     protected CvScalar fillColor = cvScalar(0.0, 0.0, 0.0, 1.0);
     protected CvRect roi = new CvRect();
     protected CvMat frontoParallelH = null, invFrontoParallelH = null;
@@ -110,6 +112,12 @@ public class ProCamTransformer implements ImageTransformer {
         setProjectorImage(projectorImage0, minLevel, maxLevel, true);
     }
     public void setProjectorImage(IplImage projectorImage0, int minLevel, int maxLevel, boolean convertToFloat) {
+        if (projectorPyramid != null) {
+            // do not downsample into the levels of the pyramid
+            projectorPyramid.release();
+            projectorPyramid = null;
+            projectorImage = null;
+        }
         if (projectorImage == null || projectorImage.length != maxLevel+1) {
             projectorImage = new IplImage[maxLevel+1];
         }
@@ -162,10 +170,30 @@ public class ProCamTransformer implements ImageTransformer {
             cvResetImageROI(projectorImage[i-1]);
         }
     }
+    /**
+     * Uses the levels of a pyramid possibly shared with other transformers, holding a reference
+     * to it until replaced, or until images get set with the other setter, which then releases it.
+     */
+    public void setProjectorImage(ImagePyramid pyramid) {
+        if (pyramid != projectorPyramid) {
+            pyramid.retain();
+            if (projectorPyramid != null) {
+                projectorPyramid.release();
+            }
+            projectorPyramid = pyramid;
+        }
+        projectorImage = projectorPyramidImages = pyramid.getImages(projectorPyramidImages);
+    }
     public IplImage getSurfaceImage(int pyramidLevel) {
         return surfaceImage[pyramidLevel];
     }
     public void setSurfaceImage(IplImage surfaceImage0, int pyramidLevels) {
+        if (surfacePyramid != null) {
+            // do not downsample into the levels of the pyramid
+            surfacePyramid.release();
+            surfacePyramid = null;
+            surfaceImage = null;
+        }
         if (surfaceImage == null || surfaceImage.length != pyramidLevels) {
             surfaceImage = new IplImage[pyramidLevels];
         }
@@ -186,6 +214,21 @@ public class ProCamTransformer implements ImageTransformer {
         }
     }
 
+    /**
+     * Uses the levels of a pyramid possibly shared with other transformers, holding a reference
+     * to it until replaced, or until images get set with the other setter, which then releases it.
+     */
+    public void setSurfaceImage(ImagePyramid pyramid) {
+        if (pyramid != surfacePyramid) {
+            pyramid.retain();
+            if (surfacePyramid != null) {
+                surfacePyramid.release();
+            }
+            surfacePyramid = pyramid;
+        }
+        surfaceImage = surfacePyramidImages = pyramid.getImages(surfacePyramidImages);
+    }
+
     protected void prepareTransforms(CvMat H1, CvMat H2, CvMat X, int pyramidLevel, Parameters p) {
         ProjectiveColorTransformer.Parameters cameraParameters    = p.getSurfaceParameters();
         ProjectiveColorTransformer.Parameters projectorParameters = p.getProjectorParameters();
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2012 Samuel Audet
+ * Copyright (C) 2009-2018 Samuel Audet
  *
  * Licensed either under the Apache License, Version 2.0, or (at your option)
  * under the terms of the GNU General Public License as published by
@@ -325,8 +325,7 @@ public class ProjectiveDevice {
             cameraMatrix.put(5, sy*cameraMatrix.get(5));
             this.imageWidth  = imageWidth;
             this.imageHeight = imageHeight;
-            int p = mapsPyramidLevel;
-            undistortMaps1[p] = undistortMaps2[p] = distortMaps1[p] = distortMaps2[p] = null;
+            clearMaps();
         }
     }
 
@@ -470,14 +469,20 @@ public class ProjectiveDevice {
     private IplImage[] distortMaps1 = { null }, distortMaps2 = { null };
     private IplImage tempImage = null;
 
+    /** Forgets the maps of all pyramid levels, including the full resolution ones of {@link #undistortColor}. */
+    private void clearMaps() {
+        Arrays.fill(undistortMaps1, null);
+        Arrays.fill(undistortMaps2, null);
+        Arrays.fill(distortMaps1, null);
+        Arrays.fill(distortMaps2, null);
+    }
     public boolean isFixedPointMaps() {
         return fixedPointMaps;
     }
     public void setFixedPointMaps(boolean fixedPointMaps) {
         if (this.fixedPointMaps != fixedPointMaps) {
             this.fixedPointMaps = fixedPointMaps;
-            int p = mapsPyramidLevel;
-            undistortMaps1[p] = undistortMaps2[p] = distortMaps1[p] = distortMaps2[p] = null;
+            clearMaps();
         }
     }
 
@@ -498,33 +503,24 @@ public class ProjectiveDevice {
         }
     }
 
+    /**
+     * Gets the maps of the current pyramid level from {@link UndistortMapCache},
+     * shared with other devices that have the same calibration, or computes them.
+     */
     private void initUndistortMaps() {
+        initUndistortMaps(mapsPyramidLevel);
+    }
+    private void initUndistortMaps(int p) {
         //cvUndistort2(src, dst, cameraMatrix, distortionCoeffs);
-        int p = mapsPyramidLevel;
         if (undistortMaps1[p] == null || undistortMaps2[p] == null) {
-            if (fixedPointMaps) {
-                undistortMaps1[p] = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16S, 2);
-                undistortMaps2[p] = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16U, 1);
-            } else {
-                undistortMaps1[p] = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
-                undistortMaps2[p] = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
-            }
-            cvInitUndistortMap(cameraMatrix, distortionCoeffs, undistortMaps1[p], undistortMaps2[p]);
-            if (mapsPyramidLevel > 0) {
-                IplImage map1 = undistortMaps1[p];
-                IplImage map2 = undistortMaps2[p];
-                int w = imageWidth  >> p;
-                int h = imageHeight >> p;
-                undistortMaps1[p] = IplImage.create(w, h, map1.depth(), map1.nChannels());
-                undistortMaps2[p] = IplImage.create(w, h, map2.depth(), map2.nChannels());
-                cvResize(map1, undistortMaps1[p], CV_INTER_NN);
-                cvResize(map2, undistortMaps2[p], CV_INTER_NN);
-//                FloatBuffer m1 = map1.getFloatBuffer();
-//                FloatBuffer n1 = undistortMaps1[p].getFloatBuffer();
-//                for (int i = 0; i < 8; i++) {
-//                    System.out.println(m1.get(1280*2*i) - n1.get(640*i));
-//                }
+            String key = UndistortMapCache.key(cameraMatrix, distortionCoeffs, imageWidth, imageHeight, p, false);
+            IplImage[] maps = UndistortMapCache.get(key, fixedPointMaps);
+            if (maps == null) {
+                maps = createUndistortMaps(p);
+                maps = UndistortMapCache.put(key, maps[0], maps[1]);
             }
+            undistortMaps1[p] = maps[0];
+            undistortMaps2[p] = maps[1];
         }
 //        if (undistortMap1 == null || undistortMap2 == null) {
 //            IplImage mapx = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
@@ -552,6 +548,34 @@ public class ProjectiveDevice {
 //            }
 //        }
     }
+    private IplImage[] createUndistortMaps(int p) {
+        IplImage map1, map2;
+        if (fixedPointMaps) {
+            map1 = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16S, 2);
+            map2 = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16U, 1);
+        } else {
+            map1 = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
+            map2 = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
+        }
+        cvInitUndistortMap(cameraMatrix, distortionCoeffs, map1, map2);
+        return p > 0 ? resizeMaps(map1, map2, p) : new IplImage[] { map1, map2 };
+    }
+    private IplImage[] resizeMaps(IplImage map1, IplImage map2, int p) {
+        int w = imageWidth  >> p;
+        int h = imageHeight >> p;
+        IplImage[] maps = { IplImage.create(w, h, map1.depth(), map1.nChannels()),
+                            IplImage.create(w, h, map2.depth(), map2.nChannels()) };
+        cvResize(map1, maps[0], CV_INTER_NN);
+        cvResize(map2, maps[1], CV_INTER_NN);
+//        FloatBuffer m1 = map1.getFloatBuffer();
+//        FloatBuffer n1 = maps[0].getFloatBuffer();
+//        for (int i = 0; i < 8; i++) {
+//            System.out.println(m1.get(1280*2*i) - n1.get(640*i));
+//        }
+        map1.release();
+        map2.release();
+        return maps;
+    }
     public IplImage getUndistortMap1() {
         initUndistortMaps();
         return undistortMaps1[mapsPyramidLevel];
@@ -579,43 +603,104 @@ public class ProjectiveDevice {
         return null;
     }
 
+    /**
+     * Same as {@link #undistort(IplImage, IplImage)} at the full resolution of the calibration,
+     * followed by cvTransform() with colorMixingMatrix and additiveLight, if not null, and by
+     * cvResize() with CV_INTER_AREA down to the given pyramid level, but in a single pass by
+     * rows in parallel, without intermediate images, for 8-bit unsigned and 32-bit floating-point
+     * images. The size of src must be imageWidth x imageHeight, and the one of dst 2^pyramidLevel
+     * times smaller. Results may differ from the three separate passes by rounding.
+     */
+    public void undistortColor(IplImage src, IplImage dst, int pyramidLevel) {
+        if (src != null && dst != null) {
+            initUndistortMaps(0);
+            int depth = src.depth();
+            if (depth != IPL_DEPTH_8U && depth != IPL_DEPTH_32F) {
+                undistortColorSeparately(src, dst, pyramidLevel);
+                return;
+            }
+            PixelKernels.remapColorArea(src, undistortMaps1[0], undistortMaps2[0],
+                    colorMixingMatrix != null ? colorMixingMatrix.get() : null,
+                    additiveLight != null ? additiveLight.get() : null, dst, pyramidLevel);
+        }
+    }
+    private IplImage[] colorTempImages = { null, null };
+    private CvMat[] colorTempMats = { null, null };
+    /** The three separate passes equivalent to {@link #undistortColor(IplImage, IplImage, int)}. */
+    void undistortColorSeparately(IplImage src, IplImage dst, int pyramidLevel) {
+        initUndistortMaps(0);
+        IplImage temp0 = colorTempImages[0] = IplImage.createIfNotCompatible(colorTempImages[0], src);
+        IplImage temp1 = colorTempImages[1] = IplImage.createIfNotCompatible(colorTempImages[1], src);
+        cvRemap(src, temp0, undistortMaps1[0], undistortMaps2[0],
+                CV_INTER_LINEAR | CV_WARP_FILL_OUTLIERS, CvScalar.ZERO);
+        int c = src.nChannels();
+        if (colorMixingMatrix != null && c >= 3) {
+            if (colorTempMats[0] == null || colorTempMats[0].rows() != c) {
+                colorTempMats[0] = CvMat.create(c, c);
+                colorTempMats[1] = CvMat.create(c, 1);
+            }
+            CvMat m = colorTempMats[0], a = colorTempMats[1];
+            cvSetIdentity(m);
+            cvSetZero(a);
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    m.put(i*c + j, colorMixingMatrix.get(i*3 + j));
+                }
+                a.put(i, additiveLight != null ? additiveLight.get(i) : 0);
+            }
+            cvTransform(temp0, temp1, m, a);
+        } else {
+            cvCopy(temp0, temp1);
+        }
+        if (pyramidLevel > 0) {
+            cvResize(temp1, dst, CV_INTER_AREA);
+        } else {
+            cvCopy(temp1, dst);
+        }
+    }
+
     private void initDistortMaps() {
         int p = mapsPyramidLevel;
         if (distortMaps1[p] == null || distortMaps2[p] == null) {
-            IplImage mapx = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
-            IplImage mapy = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
-            FloatBuffer bufx = mapx.getFloatBuffer();
-            FloatBuffer bufy = mapy.getFloatBuffer();
-            int width  = mapx.width();
-            int height = mapx.height();
-            for (int y = 0; y < height; y++) {
+            String key = UndistortMapCache.key(cameraMatrix, distortionCoeffs, imageWidth, imageHeight, p, true);
+            IplImage[] maps = UndistortMapCache.get(key, fixedPointMaps);
+            if (maps == null) {
+                maps = createDistortMaps(p);
+                maps = UndistortMapCache.put(key, maps[0], maps[1]);
+            }
+            distortMaps1[p] = maps[0];
+            distortMaps2[p] = maps[1];
+        }
+    }
+    private IplImage[] createDistortMaps(int p) {
+        IplImage mapx = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
+        IplImage mapy = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_32F, 1);
+        final FloatBuffer bufx = mapx.getFloatBuffer();
+        final FloatBuffer bufy = mapy.getFloatBuffer();
+        final int width  = mapx.width();
+        final int stepx = mapx.widthStep()/4, stepy = mapy.widthStep()/4;
+        Parallel.loop(0, mapx.height(), new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            for (int y = from; y < to; y++) {
                 for (int x = 0; x < width; x++) {
                     double[] distxy = undistort(x, y);
-                    bufx.put((float)distxy[0]);
-                    bufy.put((float)distxy[1]);
+                    bufx.put(y*stepx + x, (float)distxy[0]);
+                    bufy.put(y*stepy + x, (float)distxy[1]);
                 }
             }
-            if (fixedPointMaps) {
-                distortMaps1[p] = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16S, 2);
-                distortMaps2[p] = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16U /* IPL_DEPTH_16S */, 1);
-                cvConvertMaps(mapx, mapy, distortMaps1[p], distortMaps2[p]);
-                mapx.release();
-                mapy.release();
-            } else {
-                distortMaps1[p] = mapx;
-                distortMaps2[p] = mapy;
-            }
-            if (mapsPyramidLevel > 0) {
-                IplImage map1 = distortMaps1[p];
-                IplImage map2 = distortMaps2[p];
-                int w = imageWidth  >> p;
-                int h = imageHeight >> p;
-                distortMaps1[p] = IplImage.create(w, h, map1.depth(), map1.nChannels());
-                distortMaps2[p] = IplImage.create(w, h, map2.depth(), map2.nChannels());
-                cvResize(map1, distortMaps1[p], CV_INTER_NN);
-                cvResize(map2, distortMaps2[p], CV_INTER_NN);
-            }
-        }
+        }});
+        IplImage map1, map2;
+        if (fixedPointMaps) {
+            map1 = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16S, 2);
+            map2 = IplImage.create(imageWidth, imageHeight, IPL_DEPTH_16U /* IPL_DEPTH_16S */, 1);
+            cvConvertMaps(mapx, mapy, map1, map2);
+            mapx.release();
+            mapy.release();
+        } else {
+            map1 = mapx;
+            map2 = mapy;
+        }
+        return p > 0 ? resizeMaps(map1, map2, p) : new IplImage[] { map1, map2 };
     }
     public IplImage getDistortMap1() {
         initDistortMaps();
@@ -940,4 +1025,66 @@ public class ProjectiveDevice {
 
         return s;
     }
+
+    /**
+     * Benchmark of {@link #undistortColor(IplImage, IplImage, int)} against the three separate
+     * passes, on a random 8-bit BGR image of the given size, 1920x1080 by default, with synthetic
+     * lens distortion and color mixing. Reports the time per frame and the largest difference
+     * at each pyramid level.
+     */
+    public static void main(String[] args) {
+        int width  = args.length > 0 ? Integer.parseInt(args[0]) : 1920;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        ProjectiveDevice device = new ProjectiveDevice("Benchmark");
+        device.imageWidth  = width;
+        device.imageHeight = height;
+        device.cameraMatrix = CvMat.create(3, 3);
+        device.cameraMatrix.put(0.8*width, 0, width/2.0,  0, 0.8*width, height/2.0,  0, 0, 1);
+        device.distortionCoeffs = CvMat.create(1, 5);
+        device.distortionCoeffs.put(-0.25, 0.08, 0.001, -0.001, 0);
+        device.colorMixingMatrix = CvMat.create(3, 3);
+        device.colorMixingMatrix.put(0.9, 0.1, 0.05,  0.05, 1.1, 0.0,  0.02, 0.08, 0.95);
+        device.additiveLight = CvMat.create(3, 1);
+        device.additiveLight.put(5, -3, 2);
+        device.setFixedPointMaps(args.length > 3 && args[3].equals("fixed"));
+
+        IplImage src = IplImage.create(width, height, IPL_DEPTH_8U, 3);
+        java.nio.ByteBuffer buf = src.getByteBuffer();
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, (byte)random.nextInt(256));
+        }
+        cvSmooth(src, src, CV_GAUSSIAN, 5, 0, 0, 0);
+
+        for (int level = 0; level <= 2; level++) {
+            IplImage dst1 = IplImage.create(width >> level, height >> level, IPL_DEPTH_8U, 3);
+            IplImage dst2 = IplImage.create(width >> level, height >> level, IPL_DEPTH_8U, 3);
+            device.undistortColorSeparately(src, dst1, level);
+            device.undistortColor(src, dst2, level);
+
+            long start = System.nanoTime();
+            for (int t = 0; t < trials; t++) {
+                device.undistortColorSeparately(src, dst1, level);
+            }
+            double separate = (System.nanoTime() - start)/1e6/trials;
+            start = System.nanoTime();
+            for (int t = 0; t < trials; t++) {
+                device.undistortColor(src, dst2, level);
+            }
+            double fused = (System.nanoTime() - start)/1e6/trials;
+
+            java.nio.ByteBuffer b1 = dst1.getByteBuffer(), b2 = dst2.getByteBuffer();
+            int maxDiff = 0;
+            for (int y = 0; y < dst1.height(); y++) {
+                for (int x = 0; x < dst1.width()*3; x++) {
+                    int i = y*dst1.widthStep() + x;
+                    maxDiff = Math.max(maxDiff, Math.abs((b1.get(i) & 0xFF) - (b2.get(i) & 0xFF)));
+                }
+            }
+            System.out.println("level " + level + ": separate = " + (float)separate + " ms, fused = "
+                    + (float)fused + " ms, speedup = " + (float)(separate/fused) + ", max difference = " + maxDiff);
+        }
+    }
 }
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * A camera simulated in Java, without any hardware or native library, to benchmark and
+ * test pipelines deterministically. It generates 8-bit images, in color or gray, with a
+ * moving pattern and optionally the image of a {@link MarkedPlane} moving over it, along
+ * with audio tones, at the given resolution and frame rate.
+ * <p>
+ * Frame n has the exact timestamp {@code timeOffset + n*1000000/frameRate} in microseconds,
+ * on a clock shared by all instances, plus a random jitter if set. Frames may also get
+ * dropped at random. In real time, the default, {@link #grab()} waits until the time of
+ * the frame, and frames older than {@link #getNumBuffers()} periods get dropped, as with
+ * real cameras. Otherwise, frames get generated as fast as possible on a virtual clock
+ * starting at 0. In trigger mode, each call to {@link #trigger()} produces one frame.
+ * Results depend only on the settings and the seed, the device number by default.
+ * <p>
+ * When audio is enabled with a sample rate and number of channels, each video frame is
+ * followed by an audio frame covering the same period, so it is best left disabled for
+ * use with {@link FrameGrabber.Array}.
+ *
+ * @author Samuel Audet
+ */
+public class SyntheticFrameGrabber extends FrameGrabber {
+    /** Returns no devices, so that {@link FrameGrabber#getDefault()} never picks this one over real cameras. */
+    public static String[] getDeviceDescriptions() throws Exception {
+        tryLoad();
+        return new String[0];
+    }
+
+    public static SyntheticFrameGrabber createDefault(int deviceNumber) throws Exception { return new SyntheticFrameGrabber(deviceNumber); }
+
+    /** Nothing to load: this grabber is pure Java. */
+    public static void tryLoad() throws Exception { }
+
+    public static enum Pattern {
+        BLANK, GRADIENT, CHECKERBOARD, NOISE
+    }
+
+    /** Origin of the clock shared by all instances in real time, in nanoseconds. */
+    static final long EPOCH = System.nanoTime();
+
+    public SyntheticFrameGrabber(int deviceNumber) {
+        this.seed = deviceNumber;
+        this.imageWidth = 640;
+        this.imageHeight = 480;
+        this.frameRate = 30;
+    }
+    public void release() throws Exception {
+        stop();
+    }
+
+    private long seed;
+    private Pattern pattern = Pattern.GRADIENT;
+    private double patternSpeed = 60;
+    private int squareSize = 32;
+    private byte[] planeImage = null;
+    private int planeWidth, planeHeight;
+    private double planeMotion = 1.0;
+    private double toneFrequency = 440;
+    private long timeOffset = 0, jitter = 0;
+    private double dropProbability = 0;
+    private boolean realTime = true;
+
+    private boolean started = false;
+    private Random random = null;
+    private long startIndex, nextIndex, triggerIndex, droppedCount;
+    private final LinkedBlockingQueue<Long> triggerTimes = new LinkedBlockingQueue<Long>();
+    private Frame videoFrame = null, audioFrame = null;
+    private boolean audioPending = false;
+    private long audioIndex = 0;
+    private final double[] planeWarp = new double[9], planeWarpInverse = new double[9];
+
+    /** Seed of the random generator for the noise pattern, jitter, and dropped frames. */
+    public long getSeed() {
+        return seed;
+    }
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+    public void setPattern(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    /** Speed in pixels per second at which the pattern moves. */
+    public double getPatternSpeed() {
+        return patternSpeed;
+    }
+    public void setPatternSpeed(double patternSpeed) {
+        this.patternSpeed = patternSpeed;
+    }
+
+    /** Size in pixels of the squares of {@link Pattern#CHECKERBOARD}. */
+    public int getSquareSize() {
+        return squareSize;
+    }
+    public void setSquareSize(int squareSize) {
+        this.squareSize = squareSize;
+    }
+
+    /** Sets the plane whose image gets drawn over the pattern, copied from {@link MarkedPlane#getImage()}, or null for none. */
+    public void setMarkedPlane(MarkedPlane markedPlane) {
+        if (markedPlane == null) {
+            planeImage = null;
+            return;
+        }
+        IplImage image = markedPlane.getImage();
+        planeWidth  = image.width();
+        planeHeight = image.height();
+        planeImage  = new byte[planeWidth*planeHeight];
+        ByteBuffer b = image.getByteBuffer();
+        int step = image.widthStep(), c = image.nChannels();
+        for (int y = 0; y < planeHeight; y++) {
+            for (int x = 0; x < planeWidth; x++) {
+                planeImage[y*planeWidth + x] = b.get(y*step + x*c);
+            }
+        }
+    }
+
+    /** Amplitude of the motion of the plane, where 0 keeps it still in the middle of the image. */
+    public double getPlaneMotion() {
+        return planeMotion;
+    }
+    public void setPlaneMotion(double planeMotion) {
+        this.planeMotion = planeMotion;
+    }
+
+    /**
+     * Returns the homography from the plane to the last image grabbed, as a row-major 3x3 matrix,
+     * which gives the ground truth for the corners of the markers of the plane.
+     */
+    public double[] getPlaneWarp() {
+        return planeWarp.clone();
+    }
+
+    /** Frequency in Hz of the tone of the first audio channel. Channel i gets (i+1) times this frequency. */
+    public double getToneFrequency() {
+        return toneFrequency;
+    }
+    public void setToneFrequency(double toneFrequency) {
+        this.toneFrequency = toneFrequency;
+    }
+
+    /** Offset in microseconds of the timestamps, to simulate cameras out of phase. */
+    public long getTimeOffset() {
+        return timeOffset;
+    }
+    public void setTimeOffset(long timeOffset) {
+        this.timeOffset = timeOffset;
+    }
+
+    /** Maximum random variation in microseconds of the timestamps, limited to less than half a period. */
+    public long getJitter() {
+        return jitter;
+    }
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+
+    /** Probability for each frame to get dropped. */
+    public double getDropProbability() {
+        return dropProbability;
+    }
+    public void setDropProbability(double dropProbability) {
+        this.dropProbability = dropProbability;
+    }
+
+    /** Returns the number of frames dropped since {@link #start()}, at random or because they were not grabbed in time. */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** True to wait for the time of each frame, or false to generate frames as fast as possible on a virtual clock. */
+    public boolean isRealTime() {
+        return realTime;
+    }
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /** Returns the time of the clock in microseconds, shared by all instances in real time. */
+    long clock() {
+        return (System.nanoTime() - EPOCH)/1000;
+    }
+
+    /** Returns the nominal time of frame n in microseconds. */
+    long frameTime(long n) {
+        return timeOffset + Math.round(n*1000000.0/frameRate);
+    }
+
+    public void start() throws Exception {
+        if (imageWidth <= 0 || imageHeight <= 0 || frameRate <= 0) {
+            throw new Exception("start() Error: Invalid image size or frame rate.");
+        }
+        random = new Random(seed);
+        startIndex = realTime ? (long)Math.ceil((clock() - timeOffset)*frameRate/1000000.0) : 0;
+        nextIndex = triggerIndex = startIndex;
+        droppedCount = 0;
+        audioPending = false;
+        audioIndex = 0;
+        triggerTimes.clear();
+        int channels = imageMode == ImageMode.COLOR ? 3 : 1;
+        if (videoFrame == null || videoFrame.imageWidth != imageWidth || videoFrame.imageHeight != imageHeight
+                || videoFrame.imageChannels != channels) {
+            videoFrame = new Frame(imageWidth, imageHeight, Frame.DEPTH_UBYTE, channels);
+        }
+        audioFrame = null;
+        if (sampleRate > 0 && audioChannels > 0) {
+            int samples = (int)Math.ceil(sampleRate/frameRate) + 1;
+            ByteBuffer b = ByteBuffer.allocateDirect(samples*audioChannels*4).order(ByteOrder.nativeOrder());
+            audioFrame = new Frame();
+            audioFrame.sampleRate = sampleRate;
+            audioFrame.audioChannels = audioChannels;
+            audioFrame.samples = new Buffer[] { sampleMode == SampleMode.FLOAT ? b.asFloatBuffer() : b.asShortBuffer() };
+        }
+        started = true;
+    }
+
+    public void stop() throws Exception {
+        started = false;
+        triggerTimes.clear();
+    }
+
+    /** Produces one frame in trigger mode, with the current time, or the time of the next frame on a virtual clock. */
+    public void trigger() throws Exception {
+        if (!started) {
+            throw new Exception("trigger() Error: Could not trigger. (Has start() been called?)");
+        }
+        triggerTimes.add(realTime ? clock() : frameTime(triggerIndex++));
+    }
+
+    public Frame grab() throws Exception {
+        if (!started) {
+            throw new Exception("grab() Error: Could not grab frame. (Has start() been called?)");
+        }
+        if (audioPending) {
+            audioPending = false;
+            return grabSamples();
+        }
+
+        long n, time;
+        if (triggerMode) {
+            Long t = triggerTimes.poll(timeout, TimeUnit.MILLISECONDS);
+            if (t == null) {
+                throw new Exception("grab() Error: Timed out waiting for trigger.");
+            }
+            time = t;
+            n = nextIndex++;
+        } else {
+            if (realTime) {
+                // frames not grabbed in time got overwritten in the buffers
+                long oldest = (long)Math.floor((clock() - timeOffset)*frameRate/1000000.0) - numBuffers + 1;
+                if (nextIndex < oldest) {
+                    droppedCount += oldest - nextIndex;
+                    nextIndex = oldest;
+                }
+            }
+            n = nextIndex++;
+            while (dropProbability > 0 && random.nextDouble() < dropProbability) {
+                droppedCount++;
+                n = nextIndex++;
+            }
+            time = frameTime(n);
+            if (jitter > 0) {
+                long j = Math.min(jitter, (long)(1000000.0/frameRate/2) - 1);
+                time += j > 0 ? (long)((2*random.nextDouble() - 1)*j) : 0;
+            }
+            if (realTime) {
+                long wait = time - clock();
+                if (wait > 0) {
+                    Thread.sleep(wait/1000, (int)(wait%1000)*1000);
+                }
+            }
+        }
+
+        frameNumber = (int)(n - startIndex);
+        timestamp = time;
+        render(n, time);
+        videoFrame.timestamp = time;
+        videoFrame.keyFrame = true;
+        if (audioFrame != null) {
+            audioPending = true;
+            audioIndex = n;
+        }
+        return videoFrame;
+    }
+
+    /** Fills the audio frame with the tones of the period of frame audioIndex. */
+    Frame grabSamples() {
+        long first = Math.round(audioIndex*(double)sampleRate/frameRate);
+        int count = (int)(Math.round((audioIndex + 1)*(double)sampleRate/frameRate) - first);
+        Buffer b = audioFrame.samples[0];
+        b.clear();
+        for (int i = 0; i < count; i++) {
+            double t = (double)(first + i)/sampleRate;
+            for (int c = 0; c < audioChannels; c++) {
+                double v = 0.5*Math.sin(2*Math.PI*toneFrequency*(c + 1)*t);
+                if (b instanceof FloatBuffer) {
+                    ((FloatBuffer)b).put((float)v);
+                } else {
+                    ((ShortBuffer)b).put((short)Math.round(v*Short.MAX_VALUE));
+                }
+            }
+        }
+        b.flip();
+        audioFrame.timestamp = timestamp;
+        return audioFrame;
+    }
+
+    /** Computes the warp of the plane at the given time, and draws the pattern and the plane, by rows in parallel. */
+    void render(final long n, long time) {
+        final double seconds = time/1000000.0;
+        final int w = imageWidth, h = imageHeight, c = videoFrame.imageChannels, stride = videoFrame.imageStride;
+        final ByteBuffer buffer = (ByteBuffer)videoFrame.image[0];
+        final double shift = patternSpeed*seconds;
+        final Pattern pattern = this.pattern;
+        final int square = Math.max(1, squareSize);
+        final byte[] plane = planeImage;
+        final long seed = this.seed;
+        if (plane != null) {
+            computePlaneWarp(seconds);
+        }
+        final double[] hi = planeWarpInverse;
+
+        Parallel.loop(0, h, new Parallel.AdaptiveLooper() {
+        public void loop(int from, int to, int looperID) {
+            byte[] row = PixelKernels.scratch.get().bytes(w*c);
+            ByteBuffer b = buffer.duplicate();
+            for (int y = from; y < to; y++) {
+                double yy = y + shift/2;
+                int squareY = (int)Math.floor(yy/square);
+                for (int x = 0; x < w; x++) {
+                    double xx = x + shift;
+                    int v;
+                    switch (pattern) {
+                        case GRADIENT:     v = ((int)Math.floor(xx) + (int)Math.floor(yy)) & 0xFF; break;
+                        case CHECKERBOARD: v = (((int)Math.floor(xx/square) + squareY) & 1) != 0 ? 224 : 32; break;
+                        case NOISE:        v = hash(x, y, n, seed) & 0xFF; break;
+                        default:           v = 128;
+                    }
+                    if (plane != null) {
+                        double z  = hi[6]*x + hi[7]*y + hi[8];
+                        double px = (hi[0]*x + hi[1]*y + hi[2])/z;
+                        double py = (hi[3]*x + hi[4]*y + hi[5])/z;
+                        if (px >= 0 && px < planeWidth && py >= 0 && py < planeHeight) {
+                            v = plane[(int)py*planeWidth + (int)px] & 0xFF;
+                            for (int k = 0; k < c; k++) {
+                                row[x*c + k] = (byte)v;
+                            }
+                            continue;
+                        }
+                    }
+                    row[x*c] = (byte)v;
+                    for (int k = 1; k < c; k++) {
+                        row[x*c + k] = pattern == Pattern.GRADIENT ? (byte)(v + 85*k) : (byte)v;
+                    }
+                }
+                b.position(y*stride);
+                b.put(row, 0, w*c);
+            }
+        }});
+    }
+
+    static int hash(int x, int y, long n, long seed) {
+        int h = x*73856093 ^ y*19349663 ^ (int)n*83492791 ^ (int)seed*0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        h ^= h >>> 15;
+        return h;
+    }
+
+    /**
+     * Places the plane at the center of the image, scaled to fill 60% of it, then rotates and
+     * translates it along smooth periodic paths scaled by planeMotion.
+     */
+    void computePlaneWarp(double seconds) {
+        double scale = 0.6*Math.min((double)imageWidth/planeWidth, (double)imageHeight/planeHeight);
+        double angle = planeMotion*0.15*Math.sin(2*Math.PI*seconds/5);
+        double tx = imageWidth /2.0 + planeMotion*0.1*imageWidth *Math.sin(2*Math.PI*seconds/7);
+        double ty = imageHeight/2.0 + planeMotion*0.1*imageHeight*Math.sin(2*Math.PI*seconds/3);
+        double cos = scale*Math.cos(angle), sin = scale*Math.sin(angle);
+        double cx = planeWidth/2.0, cy = planeHeight/2.0;
+        double[] H = planeWarp, Hi = planeWarpInverse;
+        H[0] = cos; H[1] = -sin; H[2] = tx - cos*cx + sin*cy;
+        H[3] = sin; H[4] =  cos; H[5] = ty - sin*cx - cos*cy;
+        H[6] = 0;   H[7] =  0;   H[8] = 1;
+        // inverse of the similarity
+        double s2 = cos*cos + sin*sin;
+        Hi[0] =  cos/s2; Hi[1] = sin/s2; Hi[2] = -(cos*H[2] + sin*H[5])/s2;
+        Hi[3] = -sin/s2; Hi[4] = cos/s2; Hi[5] = -(-sin*H[2] + cos*H[5])/s2;
+        Hi[6] = 0;       Hi[7] = 0;      Hi[8] = 1;
+    }
+}
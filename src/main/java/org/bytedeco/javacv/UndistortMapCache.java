@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2018 Samuel Audet
+ *
+ * Licensed either under the Apache License, Version 2.0, or (at your option)
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation (subject to the "Classpath" exception),
+ * either version 2, or any later version (collectively, the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.gnu.org/licenses/
+ *     http://www.gnu.org/software/classpath/license.html
+ *
+ * or as provided in the LICENSE.txt file that accompanied this code.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bytedeco.javacv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+import org.bytedeco.javacpp.BytePointer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Shares the undistortion and distortion maps of {@link ProjectiveDevice} between all
+ * devices with the same calibration, image size, and pyramid level, so that they get
+ * computed only once per process and are kept in memory only once. The maps returned
+ * are shared and must be considered read-only.
+ * <p>
+ * When a directory is set, via {@link #setDirectory(File)} or the {@link #DIRECTORY}
+ * system property, the maps also get saved there, both fixed-point and floating-point, in
+ * files named after a hash of the parameters, and later processes map them in memory with
+ * {@link FileChannel#map}, read-only, instead of recomputing them. Files are in the native
+ * byte order, so they get recomputed when moved to a machine with another one.
+ *
+ * @author Samuel Audet
+ */
+public class UndistortMapCache {
+    private static final Logger logger = Logger.getLogger(UndistortMapCache.class.getName());
+
+    public static final String DIRECTORY = "org.bytedeco.javacv.mapcache";
+
+    /** Identifies our file format, to change whenever the content of the maps may differ. */
+    static final int MAGIC = 0x4A434D32; // "JCM2"
+    static final int HEADER_SIZE = 32;
+
+    /** Maps currently referenced by some device, indexed by key. */
+    static final Map<String, WeakReference<IplImage>[]> entries = new HashMap<String, WeakReference<IplImage>[]>();
+    /** Files mapped in memory, kept alive as long as the maps pointing into them. */
+    static final Map<IplImage, ByteBuffer> mappings = new WeakHashMap<IplImage, ByteBuffer>();
+    static long memoryHits = 0, diskHits = 0, misses = 0;
+
+    public static File getDirectory() {
+        String s = System.getProperty(DIRECTORY);
+        return s != null && s.length() > 0 ? new File(s) : null;
+    }
+    public static void setDirectory(File directory) {
+        if (directory != null) {
+            System.setProperty(DIRECTORY, directory.getPath());
+        } else {
+            System.clearProperty(DIRECTORY);
+        }
+    }
+
+    /** Returns the number of requests served by maps already in memory. */
+    public static synchronized long getMemoryHits() {
+        return memoryHits;
+    }
+    /** Returns the number of requests served by loading maps from the directory. */
+    public static synchronized long getDiskHits() {
+        return diskHits;
+    }
+    /** Returns the number of requests for maps that needed computing. */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+    public static synchronized void resetStatistics() {
+        memoryHits = diskHits = misses = 0;
+    }
+
+    /** Forgets all maps in memory. Devices already holding some keep using them. */
+    public static synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns a hexadecimal SHA-1 hash of the parameters that determine the content of the maps.
+     * The depth of the maps is not part of it, see {@link #get(String, boolean)}.
+     */
+    public static String key(CvMat cameraMatrix, CvMat distortionCoeffs,
+            int imageWidth, int imageHeight, int level, boolean distort) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(imageWidth);
+            out.writeInt(imageHeight);
+            out.writeInt(level);
+            out.writeBoolean(distort);
+            for (CvMat m : new CvMat[] { cameraMatrix, distortionCoeffs }) {
+                int n = m == null ? 0 : m.rows()*m.cols();
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(Double.doubleToLongBits(m.get(i)));
+                }
+            }
+            out.close();
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+            StringBuilder s = new StringBuilder();
+            for (byte b : digest) {
+                s.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return s.toString();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the maps for the given key, from memory or else from the directory,
+     * or null if they need computing and {@link #put}ting.
+     */
+    public static IplImage[] get(String key, boolean fixedPoint) {
+        String memoryKey = key + (fixedPoint ? ".16s" : ".32f");
+        synchronized (UndistortMapCache.class) {
+            IplImage[] maps = lookup(memoryKey);
+            if (maps != null) {
+                memoryHits++;
+                return maps;
+            }
+        }
+        IplImage[] maps = null;
+        File directory = getDirectory();
+        if (directory != null) {
+            File file = new File(directory, memoryKey + ".map");
+            try {
+                maps = load(file);
+            } catch (IOException e) {
+                logger.warning("Could not load " + file + ": " + e);
+            }
+        }
+        synchronized (UndistortMapCache.class) {
+            if (maps == null) {
+                misses++;
+                return null;
+            }
+            diskHits++;
+            // another thread may have loaded them in the meantime
+            IplImage[] other = lookup(memoryKey);
+            if (other != null) {
+                return other;
+            }
+            register(memoryKey, maps);
+            return maps;
+        }
+    }
+
+    /**
+     * Registers newly computed maps, also saved to the directory if set, and returns the
+     * shared ones, which differ from the ones given if another thread got there first.
+     */
+    public static IplImage[] put(String key, IplImage map1, IplImage map2) {
+        boolean fixedPoint = map1.depth() == IPL_DEPTH_16S;
+        String memoryKey = key + (fixedPoint ? ".16s" : ".32f");
+        IplImage[] maps = { map1, map2 };
+        synchronized (UndistortMapCache.class) {
+            IplImage[] other = lookup(memoryKey);
+            if (other != null) {
+                return other;
+            }
+            register(memoryKey, maps);
+        }
+        File directory = getDirectory();
+        if (directory != null) {
+            File file = new File(directory, memoryKey + ".map");
+            try {
+                save(file, map1, map2);
+            } catch (IOException e) {
+                logger.warning("Could not save " + file + ": " + e);
+            }
+        }
+        return maps;
+    }
+
+    static IplImage[] lookup(String memoryKey) {
+        WeakReference<IplImage>[] refs = entries.get(memoryKey);
+        if (refs != null) {
+            IplImage map1 = refs[0].get(), map2 = refs[1].get();
+            if (map1 != null && map2 != null) {
+                return new IplImage[] { map1, map2 };
+            }
+            entries.remove(memoryKey);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void register(String memoryKey, IplImage[] maps) {
+        // drop entries of maps no longer used by any device
+        Iterator<WeakReference<IplImage>[]> it = entries.values().iterator();
+        while (it.hasNext()) {
+            WeakReference<IplImage>[] refs = it.next();
+            if (refs[0].get() == null || refs[1].get() == null) {
+                it.remove();
+            }
+        }
+        entries.put(memoryKey, new WeakReference[] {
+                new WeakReference<IplImage>(maps[0]), new WeakReference<IplImage>(maps[1]) });
+    }
+
+    /**
+     * Saves the maps: a header with {@link #MAGIC}, width, height, depth and channels of each map,
+     * and size of the data, followed by the rows of map1 and then the rows of map2, without padding,
+     * in the native byte order. Writes to a temporary file first, so other processes never see partial data.
+     */
+    static void save(File file, IplImage map1, IplImage map2) throws IOException {
+        int w = map1.width(), h = map1.height();
+        if (map2.width() != w || map2.height() != h) {
+            throw new IOException("Maps of different sizes.");
+        }
+        int row1 = rowSize(map1), row2 = rowSize(map2), size = h*(row1 + row2);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + size).order(ByteOrder.nativeOrder());
+        buf.putInt(MAGIC).putInt(w).putInt(h).putInt(map1.depth()).putInt(map1.nChannels())
+           .putInt(map2.depth()).putInt(map2.nChannels()).putInt(size);
+        byte[] row = new byte[Math.max(row1, row2)];
+        for (IplImage map : new IplImage[] { map1, map2 }) {
+            ByteBuffer src = map.getByteBuffer();
+            int step = map.widthStep(), length = rowSize(map);
+            for (int y = 0; y < h; y++) {
+                src.position(y*step);
+                src.get(row, 0, length);
+                buf.put(row, 0, length);
+            }
+        }
+        buf.position(0);
+
+        File directory = file.getParentFile();
+        directory.mkdirs();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /** Returns the number of bytes of data in each row of the image, excluding padding. */
+    static int rowSize(IplImage image) {
+        return image.width()*image.nChannels()*((image.depth() & 0xFF)/8);
+    }
+
+    /**
+     * Maps the file in memory, read-only, and returns maps pointing directly into it, without
+     * copying, or null if it does not exist. The mapping lasts as long as the maps get used.
+     */
+    static IplImage[] load(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("File too small.");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.nativeOrder());
+            int magic = buf.getInt(), w = buf.getInt(), h = buf.getInt();
+            int depth1 = buf.getInt(), channels1 = buf.getInt(), depth2 = buf.getInt(), channels2 = buf.getInt();
+            int size = buf.getInt();
+            if (magic != MAGIC || w <= 0 || h <= 0 || channels1 <= 0 || channels2 <= 0
+                    || channel.size() != HEADER_SIZE + (long)size) {
+                throw new IOException("Invalid header.");
+            }
+            IplImage map1 = IplImage.createHeader(w, h, depth1, channels1);
+            IplImage map2 = IplImage.createHeader(w, h, depth2, channels2);
+            int row1 = rowSize(map1), row2 = rowSize(map2);
+            if (size != h*(row1 + row2)) {
+                throw new IOException("Invalid header.");
+            }
+            buf.position(HEADER_SIZE);
+            cvSetData(map1, new BytePointer(buf.slice()), row1);
+            buf.position(HEADER_SIZE + h*row1);
+            cvSetData(map2, new BytePointer(buf.slice()), row2);
+            synchronized (UndistortMapCache.class) {
+                mappings.put(map1, buf);
+                mappings.put(map2, buf);
+            }
+            return new IplImage[] { map1, map2 };
+        } finally {
+            // the mapping stays valid after closing the file
+            in.close();
+        }
+    }
+}